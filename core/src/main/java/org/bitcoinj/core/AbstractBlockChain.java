@@ -100,28 +100,17 @@ public abstract class AbstractBlockChain {
     // locked most of the time.
     private final Object chainHeadLock = new Object();
 
+    // The best chain by height, kept in step with chainHead.
+    private final BestChainIndex bestChainIndex;
+
     protected final NetworkParameters params;
     private final CopyOnWriteArrayList<ListenerRegistration<NewBestBlockListener>> newBestBlockListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<ReorganizeListener>> reorganizeListeners;
     private final CopyOnWriteArrayList<ListenerRegistration<TransactionReceivedInBlockListener>> transactionReceivedListeners;
 
-    // Holds a block header and, optionally, a list of tx hashes or block's transactions
-    class OrphanBlock {
-        final Block block;
-        final List<Sha256Hash> filteredTxHashes;
-        final Map<Sha256Hash, Transaction> filteredTxn;
-        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
-            final boolean filtered = filteredTxHashes != null && filteredTxn != null;
-            Preconditions.checkArgument((block.transactions == null && filtered)
-                                        || (block.transactions != null && !filtered));
-            this.block = block;
-            this.filteredTxHashes = filteredTxHashes;
-            this.filteredTxn = filteredTxn;
-        }
-    }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
     // were downloading the block chain.
-    private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<>();
+    private final OrphanBlockPool orphanBlocks = new OrphanBlockPool();
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -134,6 +123,8 @@ public abstract class AbstractBlockChain {
 
     private final VersionTally versionTally;
 
+    @Nullable private volatile BlockArchive blockArchive;
+
     /** See {@link #AbstractBlockChain(Context, List, BlockStore)} */
     public AbstractBlockChain(NetworkParameters params, List<? extends Wallet> transactionReceivedListeners,
                               BlockStore blockStore) throws BlockStoreException {
@@ -149,6 +140,8 @@ public abstract class AbstractBlockChain {
         chainHead = blockStore.getChainHead();
         log.info("chain head is at height {}:\n{}", chainHead.getHeight(), chainHead.getHeader());
         this.params = context.getParams();
+        this.bestChainIndex = new BestChainIndex(params);
+        this.bestChainIndex.setChainHead(chainHead, blockStore);
 
         this.newBestBlockListeners = new CopyOnWriteArrayList<>();
         this.reorganizeListeners = new CopyOnWriteArrayList<>();
@@ -282,6 +275,45 @@ public abstract class AbstractBlockChain {
         ListenerRegistration.removeFromList(listener, transactionReceivedListeners);
     }
     
+    /**
+     * Sets an archive that every full block connected to the chain, whether on the best chain or on a side chain, is
+     * written to, or null to stop archiving blocks. Blocks received as headers or filtered blocks are not archived.
+     */
+    public void setBlockArchive(@Nullable BlockArchive blockArchive) {
+        this.blockArchive = blockArchive;
+    }
+
+    /** Returns the archive set by {@link #setBlockArchive(BlockArchive)}, or null. */
+    @Nullable
+    public BlockArchive getBlockArchive() {
+        return blockArchive;
+    }
+
+    /**
+     * <p>Adds the blocks that follow the chain head from the block archive, one after the other, as if they had been
+     * downloaded. This lets wallets be rescanned, or a chain be caught up, from disk instead of from the network. It
+     * stops at the first block the archive doesn't have, from where the chain can be downloaded as usual.</p>
+     *
+     * @return The number of blocks added.
+     * @throws IllegalStateException If no archive was set.
+     */
+    public int replayFromArchive() throws BlockStoreException, VerificationException, PrunedException {
+        BlockArchive archive = blockArchive;
+        checkState(archive != null, "No block archive set");
+        int count = 0;
+        while (true) {
+            StoredBlock head = getChainHead();
+            Sha256Hash next = archive.getNextBlockHash(head.getHeader().getHash());
+            Block block = next != null ? archive.get(next) : null;
+            if (block == null || !add(block) || getChainHead().equals(head))
+                break;
+            count++;
+        }
+        log.info("Replayed {} blocks from the block archive, chain is now {} blocks high", count,
+                getChainHead().getHeight());
+        return count;
+    }
+
     /**
      * Returns the {@link BlockStore} the chain was constructed with. You can use this to iterate over the chain.
      */
@@ -428,12 +460,11 @@ public abstract class AbstractBlockChain {
         // TODO: Use read/write locks to ensure that during chain download properties are still low latency.
         lock.lock();
         try {
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
-            if (tryConnecting && orphanBlocks.containsKey(block.getHash())) {
+            if (tryConnecting && orphanBlocks.contains(block.getHash())) {
                 return false;
             }
 
@@ -480,17 +511,17 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                orphanBlocks.add(new OrphanBlockPool.OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 checkState(lock.isHeldByCurrentThread());
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                params.checkDifficultyTransitions(storedPrev, block, blockStore);
+                params.checkDifficultyTransitions(storedPrev, block, blockStore, bestChainIndex);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             return true;
         } finally {
@@ -498,6 +529,105 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * <p>Adds a run of block headers, such as the ones a peer sends during fast catch-up, and returns how many of them
+     * were connected to the chain. Adding stops at the first header that does not connect.</p>
+     *
+     * <p>If {@link #canStoreHeaderRuns()}, each header is checked as {@link #add(Block)} would check it. The headers
+     * that extend the chain head are then written with a single {@link BatchBlockStore#putAll(List, StoredBlock)} call,
+     * and the chain head moves once, to the last of them. Listeners are informed after the whole run is stored.
+     * Headers which do not extend the chain head, for example because they are on a fork, and all headers of chains
+     * that can't store runs, are passed to {@link #add(Block)} one by one.</p>
+     */
+    public int addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            int connected = 0;
+            if (canStoreHeaderRuns())
+                connected = addHeaderRun(headers);
+            for (Block header : headers.subList(connected, headers.size())) {
+                if (!add(header))
+                    break;
+                connected++;
+            }
+            return connected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether {@link #addHeaders(List)} may store runs of headers with a single
+     * {@link BatchBlockStore#putAll(List, StoredBlock)} call. That bypasses {@link #addToBlockStore(StoredBlock, Block)}
+     * and {@link #doSetChainHead(StoredBlock)}, so it is only allowed for header chains whose hooks do nothing but
+     * write to the store. False by default.
+     */
+    protected boolean canStoreHeaderRuns() {
+        return false;
+    }
+
+    // Connects the leading headers which extend the chain head, and returns how many there were.
+    private int addHeaderRun(List<Block> headers) throws VerificationException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        final StoredBlock oldHead = getChainHead();
+        StoredBlock prev = oldHead;
+        List<StoredBlock> newBlocks = new ArrayList<>(headers.size());
+        VerificationException failure = null;
+        try {
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(prev.getHeader().getHash()))
+                    break;
+                try {
+                    header.verifyHeader();
+                    if (!params.passesCheckpoint(prev.getHeight() + 1, header.getHash()))
+                        throw new VerificationException("Block failed checkpoint lockin at " + (prev.getHeight() + 1));
+                    params.checkDifficultyTransitions(prev, header, blockStore, bestChainIndex);
+                    checkVersionNotOutdated(header);
+                } catch (VerificationException e) {
+                    log.error("Failed to verify block: ", e);
+                    log.error(header.getHashAsString());
+                    failure = new VerificationException("Could not verify block:\n" + header.toString(), e);
+                    break;
+                }
+                StoredBlock newBlock = prev.build(header.transactions == null ? header : header.cloneAsHeader());
+                // The index is updated ahead of the store, so difficulty checks later in the run can find this block.
+                bestChainIndex.setChainHead(newBlock, blockStore);
+                versionTally.add(header.getVersion());
+                newBlocks.add(newBlock);
+                prev = newBlock;
+            }
+            if (newBlocks.isEmpty()) {
+                if (failure != null)
+                    throw failure;
+                return 0;
+            }
+            try {
+                ((BatchBlockStore) blockStore).putAll(newBlocks, prev);
+            } catch (BlockStoreException e) {
+                // Nothing was stored, so forget the blocks again.
+                bestChainIndex.setChainHead(oldHead, blockStore);
+                versionTally.initialize(blockStore, oldHead);
+                throw e;
+            }
+            // putAll stored the head already, which is all doSetChainHead would do, see canStoreHeaderRuns.
+            synchronized (chainHeadLock) {
+                this.chainHead = prev;
+            }
+            log.debug("Chain is now {} blocks high, running listeners", prev.getHeight());
+            for (int i = 0; i < newBlocks.size(); i++)
+                informListenersForNewBlock(headers.get(i), NewBlockType.BEST_CHAIN, null, null, newBlocks.get(i));
+            for (StoredBlock newBlock : newBlocks)
+                tryConnectingOrphans(newBlock.getHeader().getHash());
+        } catch (BlockStoreException e) {
+            // TODO: Figure out a better way to propagate this exception to the user.
+            throw new RuntimeException(e);
+        }
+        // The headers before the one that failed are valid and stay connected.
+        if (failure != null)
+            throw failure;
+        return newBlocks.size();
+    }
+
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
@@ -506,9 +636,7 @@ public abstract class AbstractBlockChain {
     public Set<Sha256Hash> drainOrphanBlocks() {
         lock.lock();
         try {
-            Set<Sha256Hash> hashes = new HashSet<>(orphanBlocks.keySet());
-            orphanBlocks.clear();
-            return hashes;
+            return orphanBlocks.drain();
         } finally {
             lock.unlock();
         }
@@ -546,14 +674,7 @@ public abstract class AbstractBlockChain {
             // NOTE: This requires 1,000 blocks since the last checkpoint (on main
             // net, less on test) in order to be applied. It is also limited to
             // stopping addition of new v2/3 blocks to the tip of the chain.
-            if (block.getVersion() == Block.BLOCK_VERSION_BIP34
-                || block.getVersion() == Block.BLOCK_VERSION_BIP66) {
-                final Integer count = versionTally.getCountAtOrAbove(block.getVersion() + 1);
-                if (count != null
-                    && count >= params.getMajorityRejectBlockOutdated()) {
-                    throw new VerificationException.BlockVersionOutOfDate(block.getVersion());
-                }
-            }
+            checkVersionNotOutdated(block);
 
             // This block connects to the best known block, it is a normal continuation of the system.
             TransactionOutputChanges txOutChanges = null;
@@ -563,6 +684,7 @@ public abstract class AbstractBlockChain {
                     block.transactions == null ? block : block.cloneAsHeader(), txOutChanges);
             versionTally.add(block.getVersion());
             setChainHead(newStoredBlock);
+            archive(block, filtered);
             log.debug("Chain is now {} blocks high, running listeners", newStoredBlock.getHeight());
             informListenersForNewBlock(block, NewBlockType.BEST_CHAIN, filteredTxHashList, filteredTxn, newStoredBlock);
         } else {
@@ -575,7 +697,7 @@ public abstract class AbstractBlockChain {
             if (haveNewBestChain) {
                 log.info("Block is causing a re-organize");
             } else {
-                StoredBlock splitPoint = findSplit(newBlock, head, blockStore);
+                StoredBlock splitPoint = bestChainIndex.findSplit(newBlock, blockStore);
                 if (splitPoint != null && splitPoint.equals(newBlock)) {
                     // newStoredBlock is a part of the same chain, there's no fork. This happens when we receive a block
                     // that we already saw and linked into the chain previously, which isn't the chain head.
@@ -599,6 +721,8 @@ public abstract class AbstractBlockChain {
                 }
             }
             
+            archive(block, filtered);
+
             // We may not have any transactions if we received only a header, which can happen during fast catchup.
             // If we do, send them to the wallet but state that they are on a side chain so it knows not to try and
             // spend them until they become activated.
@@ -611,6 +735,30 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    // The block is part of the chain already, so failing to archive it must not keep it from the listeners.
+    private void archive(Block block, boolean filtered) {
+        BlockArchive archive = blockArchive;
+        if (archive == null || filtered || block.transactions == null)
+            return;
+        try {
+            archive.put(block);
+        } catch (BlockStoreException e) {
+            log.error("Could not archive block " + block.getHashAsString(), e);
+        }
+    }
+
+    // Rejects a version 2 or 3 block once a supermajority of recent blocks has a higher version.
+    private void checkVersionNotOutdated(Block block) throws VerificationException {
+        if (block.getVersion() == Block.BLOCK_VERSION_BIP34
+            || block.getVersion() == Block.BLOCK_VERSION_BIP66) {
+            final Integer count = versionTally.getCountAtOrAbove(block.getVersion() + 1);
+            if (count != null
+                && count >= params.getMajorityRejectBlockOutdated()) {
+                throw new VerificationException.BlockVersionOutOfDate(block.getVersion());
+            }
+        }
+    }
+
     private void informListenersForNewBlock(final Block block, final NewBlockType newBlockType,
                                             @Nullable final List<Sha256Hash> filteredTxHashList,
                                             @Nullable final Map<Sha256Hash, Transaction> filteredTxn,
@@ -748,13 +896,13 @@ public abstract class AbstractBlockChain {
         // Firstly, calculate the block at which the chain diverged. We only need to examine the
         // chain from beyond this block to find differences.
         StoredBlock head = getChainHead();
-        final StoredBlock splitPoint = findSplit(newChainHead, head, blockStore);
+        final StoredBlock splitPoint = bestChainIndex.findSplit(newChainHead, blockStore);
         log.info("Re-organize after split at height {}", splitPoint.getHeight());
         log.info("Old chain head: {}", head.getHeader().getHashAsString());
         log.info("New chain head: {}", newChainHead.getHeader().getHashAsString());
         log.info("Split at block: {}", splitPoint.getHeader().getHashAsString());
         // Then build a list of all blocks in the old part of the chain and the new part.
-        final LinkedList<StoredBlock> oldBlocks = getPartialChain(head, splitPoint, blockStore);
+        final LinkedList<StoredBlock> oldBlocks = getPartialBestChain(head, splitPoint);
         final LinkedList<StoredBlock> newBlocks = getPartialChain(newChainHead, splitPoint, blockStore);
         // Disconnect each transaction in the previous main chain that is no longer in the new main chain
         StoredBlock storedNewHead = splitPoint;
@@ -813,6 +961,18 @@ public abstract class AbstractBlockChain {
         setChainHead(storedNewHead);
     }
 
+    /**
+     * Like {@link #getPartialChain(StoredBlock, StoredBlock, BlockStore)}, for a stretch of the current best chain
+     * which is read from the {@link BestChainIndex} instead of the store.
+     */
+    private LinkedList<StoredBlock> getPartialBestChain(StoredBlock higher, StoredBlock lower) throws BlockStoreException {
+        checkArgument(higher.getHeight() > lower.getHeight(), "higher and lower are reversed");
+        LinkedList<StoredBlock> results = new LinkedList<>();
+        for (int height = higher.getHeight(); height > lower.getHeight(); height--)
+            results.add(checkNotNull(bestChainIndex.get(height, blockStore), "Ran off the end of the chain"));
+        return results;
+    }
+
     /**
      * Returns the set of contiguous blocks between 'higher' and 'lower'. Higher is included, lower is not.
      */
@@ -829,30 +989,11 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * Locates the point in the chain at which newStoredBlock and chainHead diverge. Returns null if no split point was
-     * found (ie they are not part of the same chain). Returns newChainHead or chainHead if they don't actually diverge
-     * but are part of the same chain.
+     * Returns the index of the best chain by height, which can look up blocks of the best chain without going to the
+     * block store.
      */
-    private static StoredBlock findSplit(StoredBlock newChainHead, StoredBlock oldChainHead,
-                                         BlockStore store) throws BlockStoreException {
-        StoredBlock currentChainCursor = oldChainHead;
-        StoredBlock newChainCursor = newChainHead;
-        // Loop until we find the block both chains have in common. Example:
-        //
-        //    A -> B -> C -> D
-        //         \--> E -> F -> G
-        //
-        // findSplit will return block B. oldChainHead = D and newChainHead = G.
-        while (!currentChainCursor.equals(newChainCursor)) {
-            if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
-                currentChainCursor = currentChainCursor.getPrev(store);
-                checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
-            } else {
-                newChainCursor = newChainCursor.getPrev(store);
-                checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
-            }
-        }
-        return currentChainCursor;
+    public BestChainIndex getBestChainIndex() {
+        return bestChainIndex;
     }
 
     /**
@@ -895,43 +1036,45 @@ public abstract class AbstractBlockChain {
         synchronized (chainHeadLock) {
             this.chainHead = chainHead;
         }
+        bestChainIndex.setChainHead(chainHead, blockStore);
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphans which were waiting for the given block, then the orphans waiting for those, and so on.
+     * An orphan that fails verification is dropped and the others are still connected, then the first failure is
+     * thrown. Orphans are only removed from the pool once connected, so on other errors the rest stay there.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connectedHash) throws VerificationException, BlockStoreException,
+            PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("Orphan block {} is not connectable right now", orphanBlock.block.getHash());
+        ArrayDeque<Sha256Hash> parents = new ArrayDeque<>();
+        parents.add(connectedHash);
+        int blocksConnected = 0;
+        VerificationException failure = null;
+        while (!parents.isEmpty()) {
+            for (OrphanBlockPool.OrphanBlock orphanBlock : orphanBlocks.getChildren(parents.poll())) {
+                try {
+                    // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+                    add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+                } catch (VerificationException e) {
+                    // Its children can't connect either, they are evicted from the pool in time.
+                    log.warn("Dropping orphan {} which failed verification", orphanBlock.block.getHash());
+                    orphanBlocks.remove(orphanBlock);
+                    if (failure == null)
+                        failure = e;
                     continue;
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+                orphanBlocks.remove(orphanBlock);
                 log.info("Connected orphan {}", orphanBlock.block.getHash());
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
+                parents.add(orphanBlock.block.getHash());
+                blocksConnected++;
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
-            }
-        } while (blocksConnectedThisRound > 0);
+        }
+        if (blocksConnected > 0) {
+            log.info("Connected {} orphan blocks.", blocksConnected);
+        }
+        if (failure != null)
+            throw failure;
     }
 
     /**
@@ -956,10 +1099,10 @@ public abstract class AbstractBlockChain {
     public Block getOrphanRoot(Sha256Hash from) {
         lock.lock();
         try {
-            OrphanBlock cursor = orphanBlocks.get(from);
+            OrphanBlockPool.OrphanBlock cursor = orphanBlocks.get(from);
             if (cursor == null)
                 return null;
-            OrphanBlock tmp;
+            OrphanBlockPool.OrphanBlock tmp;
             while ((tmp = orphanBlocks.get(cursor.block.getPrevBlockHash())) != null) {
                 cursor = tmp;
             }
@@ -969,11 +1112,18 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * Returns the pool of orphan blocks, for its statistics and to adjust its memory budget.
+     */
+    public OrphanBlockPool getOrphanBlockPool() {
+        return orphanBlocks;
+    }
+
     /** Returns true if the given block is currently in the orphan blocks list. */
     public boolean isOrphan(Sha256Hash block) {
         lock.lock();
         try {
-            return orphanBlocks.containsKey(block);
+            return orphanBlocks.contains(block);
         } finally {
             lock.unlock();
         }
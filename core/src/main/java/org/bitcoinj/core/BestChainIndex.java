@@ -0,0 +1,217 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An in-memory index of the best chain by height, maintained by {@link AbstractBlockChain} as its chain head moves.
+ * It answers "which block is at height N of the best chain" without touching the {@link BlockStore}, which turns the
+ * backwards walks done at difficulty transitions, when building block locators and when looking for the split point
+ * of a fork into array lookups.</p>
+ *
+ * <p>Blocks are kept in their {@link StoredBlock#serializeCompact(ByteBuffer) compact form}, 96 bytes each, in chunks
+ * of {@value #CHUNK_SIZE} heights. The index starts out holding only the chain head. Whenever a lookup needs a lower
+ * height it is extended downwards from the store, once; after that such lookups are free. Blocks on side branches are
+ * not indexed: a walk from a side branch block follows its parents through the store until it reaches the best chain,
+ * which for the short forks seen in practice is a handful of steps.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class BestChainIndex {
+    private static final int CHUNK_SIZE = 2048;
+    private static final int ENTRY_SIZE = StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final int LOCATOR_BLOCKS = 100;
+
+    private final NetworkParameters params;
+    // Chunk i holds heights [i * CHUNK_SIZE, (i + 1) * CHUNK_SIZE), allocated on demand.
+    private final ArrayList<byte[]> chunks = new ArrayList<>();
+    // Heights [lowHeight, tipHeight] are valid. The index is empty while tipHeight < 0.
+    private int lowHeight = -1, tipHeight = -1;
+    @Nullable private Sha256Hash tipHash;
+
+    public BestChainIndex(NetworkParameters params) {
+        this.params = params;
+    }
+
+    /**
+     * Moves the tip of the index to the given block, which becomes the new chain head. Blocks which are no longer on
+     * the best chain are dropped, and the blocks between the new head and the part of the index that is still valid
+     * are looked up in the store.
+     */
+    public synchronized void setChainHead(StoredBlock head, BlockStore store) throws BlockStoreException {
+        if (tipHash != null && head.getHeight() == tipHeight + 1 && head.getHeader().getPrevBlockHash().equals(tipHash)) {
+            put(head);
+            tipHeight = head.getHeight();
+            tipHash = head.getHeader().getHash();
+            return;
+        }
+        // A re-organize or rollback. Walk back from the new head until we meet the index.
+        LinkedList<StoredBlock> newBlocks = new LinkedList<>();
+        StoredBlock cursor = head;
+        boolean reset = false;
+        while (!isIndexed(cursor)) {
+            newBlocks.addFirst(cursor);
+            if (tipHeight < 0 || cursor.getHeight() <= lowHeight) {
+                // We went below everything we know, so the index has nothing in common with the new chain.
+                reset = true;
+                break;
+            }
+            cursor = cursor.getPrev(store);
+            if (cursor == null) {
+                reset = true;
+                break;
+            }
+        }
+        if (reset)
+            lowHeight = newBlocks.getFirst().getHeight();
+        for (StoredBlock block : newBlocks)
+            put(block);
+        tipHeight = head.getHeight();
+        tipHash = head.getHeader().getHash();
+    }
+
+    /** Returns the height of the chain head, or -1 if no chain head was set yet. */
+    public synchronized int getHeight() {
+        return tipHeight;
+    }
+
+    /**
+     * Returns the best chain block at the given height, or null if the height is above the chain head or the store
+     * does not go back that far.
+     */
+    @Nullable
+    public synchronized StoredBlock get(int height, BlockStore store) throws BlockStoreException {
+        if (height < 0 || height > tipHeight)
+            return null;
+        if (height < lowHeight) {
+            StoredBlock cursor = read(lowHeight);
+            while (lowHeight > height) {
+                cursor = cursor.getPrev(store);
+                if (cursor == null)
+                    return null;
+                put(cursor);
+            }
+            return cursor;
+        }
+        return read(height);
+    }
+
+    /** Returns true if the given block is part of the best chain, as far as the index reaches. */
+    public synchronized boolean contains(StoredBlock block) {
+        return isIndexed(block);
+    }
+
+    /**
+     * Returns the ancestor of the given block at the given height, which may be the block itself. Works for blocks on
+     * side branches too. Returns null if the chain cannot be followed back that far.
+     */
+    @Nullable
+    public synchronized StoredBlock getAncestor(StoredBlock block, int height, BlockStore store)
+            throws BlockStoreException {
+        checkArgument(height <= block.getHeight(), "Ancestor height above block");
+        StoredBlock cursor = block;
+        while (cursor.getHeight() > height && !isIndexed(cursor)) {
+            cursor = cursor.getPrev(store);
+            if (cursor == null)
+                return null;
+        }
+        return cursor.getHeight() == height ? cursor : get(height, store);
+    }
+
+    /**
+     * Returns the last block the chain ending in the given block has in common with the best chain. That is the block
+     * itself if it is part of the best chain, and the chain head if the block builds on top of it. Returns null if no
+     * common block can be found.
+     */
+    @Nullable
+    public synchronized StoredBlock findSplit(StoredBlock block, BlockStore store) throws BlockStoreException {
+        StoredBlock cursor = block;
+        while (cursor != null) {
+            if (cursor.getHeight() <= tipHeight) {
+                if (cursor.getHeight() < lowHeight)
+                    get(cursor.getHeight(), store);
+                if (isIndexed(cursor))
+                    return cursor;
+            }
+            cursor = cursor.getPrev(store);
+        }
+        return null;
+    }
+
+    /**
+     * Returns a block locator for the best chain: the hashes of up to 100 blocks counting down from the chain head,
+     * followed by the genesis block if the chain is longer than that.
+     */
+    public synchronized List<Sha256Hash> getLocator(BlockStore store) throws BlockStoreException {
+        List<Sha256Hash> locator = new ArrayList<>(LOCATOR_BLOCKS + 1);
+        for (int height = tipHeight; height >= 0; height--) {
+            StoredBlock block = get(height, store);
+            if (block == null)
+                break;
+            if (locator.size() == LOCATOR_BLOCKS) {
+                locator.add(params.getGenesisBlock().getHash());
+                break;
+            }
+            locator.add(block.getHeader().getHash());
+        }
+        return locator;
+    }
+
+    private boolean isIndexed(StoredBlock block) {
+        int height = block.getHeight();
+        if (height < lowHeight || height > tipHeight)
+            return false;
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+        block.serializeCompact(buffer);
+        byte[] chunk = chunks.get(height / CHUNK_SIZE);
+        int offset = (height % CHUNK_SIZE) * ENTRY_SIZE;
+        return Arrays.equals(buffer.array(), Arrays.copyOfRange(chunk, offset, offset + ENTRY_SIZE));
+    }
+
+    private StoredBlock read(int height) {
+        byte[] chunk = chunks.get(height / CHUNK_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, (height % CHUNK_SIZE) * ENTRY_SIZE, ENTRY_SIZE);
+        return StoredBlock.deserializeCompact(params, buffer);
+    }
+
+    private void put(StoredBlock block) {
+        int height = block.getHeight();
+        int chunkIndex = height / CHUNK_SIZE;
+        while (chunks.size() <= chunkIndex)
+            chunks.add(null);
+        byte[] chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE * ENTRY_SIZE];
+            chunks.set(chunkIndex, chunk);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, (height % CHUNK_SIZE) * ENTRY_SIZE, ENTRY_SIZE);
+        block.serializeCompact(buffer);
+        if (lowHeight < 0 || height < lowHeight)
+            lowHeight = height;
+    }
+}
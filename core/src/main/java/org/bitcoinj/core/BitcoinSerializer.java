@@ -24,9 +24,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.HashMap;
 import java.util.Map;
 
+import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoinj.core.Utils.*;
 
 /**
@@ -90,6 +92,16 @@ public class BitcoinSerializer extends MessageSerializer {
     @Override
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        writeHeader(name, message, header);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    // Writes the packet header of the message to the start of the given array.
+    private void writeHeader(String name, byte[] message, byte[] header) {
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
         // The header array is initialized to zero by Java so we don't have to worry about
@@ -102,11 +114,6 @@ public class BitcoinSerializer extends MessageSerializer {
 
         byte[] hash = Sha256Hash.hashTwice(message);
         System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
     }
 
     /**
@@ -114,11 +121,31 @@ public class BitcoinSerializer extends MessageSerializer {
      */
     @Override
     public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getCommand(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * Returns the message with its header in one array, without going through a growing stream.
+     */
+    @Override
+    public byte[] serialize(Message message) {
+        String name = getCommand(message);
+        byte[] payload = message.bitcoinSerialize();
+        byte[] bytes = new byte[4 + COMMAND_LEN + 4 + 4 + payload.length];
+        writeHeader(name, payload, bytes);
+        System.arraycopy(payload, 0, bytes, 4 + COMMAND_LEN + 4 + 4, payload.length);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(bytes));
+        return bytes;
+    }
+
+    private String getCommand(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
     }
 
     /**
@@ -163,10 +190,20 @@ public class BitcoinSerializer extends MessageSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, Sha256Hash.hashTwice(payloadBytes));
+    }
+
+    /**
+     * Deserialize a payload read by the given reader. The payload was hashed as it was read, so unlike
+     * {@link #deserializePayload(BitcoinPacketHeader, ByteBuffer)} this neither copies nor hashes it again.
+     */
+    @Override
+    public Message deserializePayload(PayloadReader reader) throws ProtocolException {
+        return deserializePayload(reader.getHeader(), reader.getPayload(), reader.getHash());
+    }
 
+    private Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = Sha256Hash.hashTwice(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -341,6 +378,57 @@ public class BitcoinSerializer extends MessageSerializer {
     }
 
 
+    /**
+     * Collects the payload of a message as its bytes arrive, for messages too large to wait for in the connection's
+     * read buffer. The payload is hashed along the way, so it is ready to be deserialized, without copying it again,
+     * as soon as the last byte is in.
+     */
+    public static class PayloadReader {
+        private final BitcoinPacketHeader header;
+        private final byte[] payload;
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private int position;
+        private byte[] hash;
+
+        public PayloadReader(BitcoinPacketHeader header) {
+            this.header = header;
+            this.payload = new byte[header.size];
+        }
+
+        /**
+         * Reads as many bytes of the payload as the buffer has, or needs to complete it.
+         * @return Whether the payload is complete.
+         */
+        public boolean read(ByteBuffer in) {
+            int length = Math.min(in.remaining(), payload.length - position);
+            in.get(payload, position, length);
+            digest.update(payload, position, length);
+            position += length;
+            return isComplete();
+        }
+
+        public boolean isComplete() {
+            return position == payload.length;
+        }
+
+        public BitcoinPacketHeader getHeader() {
+            return header;
+        }
+
+        /** Returns the payload, which is only fully read once {@link #isComplete()}. */
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /** Returns the double SHA-256 hash of the complete payload. */
+        public byte[] getHash() {
+            checkState(isComplete(), "Payload not complete");
+            if (hash == null)
+                hash = Sha256Hash.hash(digest.digest());
+            return hash;
+        }
+    }
+
     public static class BitcoinPacketHeader {
         /** The largest number of bytes that a header can represent */
         public static final int HEADER_LENGTH = COMMAND_LEN + 4 + 4;
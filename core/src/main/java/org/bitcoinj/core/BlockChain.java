@@ -19,10 +19,12 @@ package org.bitcoinj.core;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
+import org.bitcoinj.store.BatchBlockStore;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.wallet.Wallet;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,6 +38,7 @@ import java.util.List;
 public class BlockChain extends AbstractBlockChain {
     /** Keeps a map of block hashes to StoredBlocks. */
     protected final BlockStore blockStore;
+    private final boolean storesHeaderRuns;
 
     /**
      * <p>Constructs a BlockChain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
@@ -75,6 +78,7 @@ public class BlockChain extends AbstractBlockChain {
     public BlockChain(Context params, List<? extends Wallet> wallets, BlockStore blockStore) throws BlockStoreException {
         super(params, wallets, blockStore);
         this.blockStore = blockStore;
+        this.storesHeaderRuns = blockStore instanceof BatchBlockStore && !overridesStoreHooks(getClass());
     }
 
     /** See {@link #BlockChain(Context, List, BlockStore)} */
@@ -82,6 +86,26 @@ public class BlockChain extends AbstractBlockChain {
         this(Context.getOrCreate(params), wallets, blockStore);
     }
 
+    // Runs of headers bypass addToBlockStore and doSetChainHead, so subclasses which override them get headers one by one.
+    private static boolean overridesStoreHooks(Class<?> clazz) {
+        for (Class<?> c = clazz; c != BlockChain.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.getName().equals("addToBlockStore") || method.getName().equals("doSetChainHead"))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the store is a {@link BatchBlockStore} and this class doesn't override how blocks and the chain
+     * head are stored. See {@link AbstractBlockChain#addHeaders(List)}.
+     */
+    @Override
+    protected boolean canStoreHeaderRuns() {
+        return storesHeaderRuns;
+    }
+
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block blockHeader, TransactionOutputChanges txOutChanges)
             throws BlockStoreException, VerificationException {
@@ -0,0 +1,471 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.jcip.annotations.GuardedBy;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Spreads the download of the block chain over several peers. The download peer still finds out which blocks we
+ * are missing, with getblocks and the inventories it is sent back, but instead of asking for all of them itself it hands
+ * them to the scheduler. The scheduler keeps a window of requests in flight on each of the peers it uses, so a slow
+ * peer only holds up the blocks it was asked for, and gives requests a peer doesn't answer in time to another peer.</p>
+ *
+ * <p>Blocks arrive in any order, but are handed back to the download peer in the order they were announced in, so the
+ * block chain sees them as if they all came from one peer. The last block of each inventory is always asked from the
+ * peer that announced it, as the remote node only announces the next batch of blocks to the peer fetching the last
+ * block of the previous one.</p>
+ *
+ * <p>When the download peer changes, the blocks it requested are handed to the new download peer instead, so the
+ * ones already received or in flight aren't asked for again.</p>
+ *
+ * <p>The scheduler is only used while {@link #getMaxPeers()} is above one. A {@link PeerGroup} has one, see
+ * {@link PeerGroup#setMaxBlockDownloadPeers(int)}.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** The default number of blocks requested from a peer at a time. */
+    public static final int DEFAULT_WINDOW = 16;
+    /** The default time after which a block that was not received is asked from another peer. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 10 * 1000;
+
+    private final ReentrantLock lock = Threading.lock("blockdownloadscheduler");
+    // Held while handing blocks back to download peers, so they reach the block chain in order. Taken before lock.
+    private final ReentrantLock deliveryLock = Threading.lock("blockdownloadscheduler-delivery");
+
+    // Requests in the order the blocks were announced, until the block was handed back.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Request> requests = new LinkedHashMap<>();
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new LinkedHashMap<>();
+    @GuardedBy("lock") private int maxPeers = 1;
+    @GuardedBy("lock") private int window = DEFAULT_WINDOW;
+    @GuardedBy("lock") private long stallTimeoutMillis = DEFAULT_STALL_TIMEOUT_MILLIS;
+
+    private static class Request {
+        final Sha256Hash hash;
+        // The download peer the block is handed back to, or null while there is none.
+        @Nullable Peer requester;
+        final boolean filtered;
+        // Must be asked from the requester, see the class documentation.
+        boolean pinned;
+        @Nullable Peer assignee;
+        long requestTimeMillis;
+        @Nullable Block block;
+        @Nullable FilteredBlock filteredBlock;
+
+        Request(Sha256Hash hash, Peer requester, boolean filtered, boolean pinned) {
+            this.hash = hash;
+            this.requester = requester;
+            this.filtered = filtered;
+            this.pinned = pinned;
+        }
+
+        boolean isReceived() {
+            return block != null || filteredBlock != null;
+        }
+    }
+
+    private static class PeerState {
+        final Peer peer;
+        int inFlight;
+        long blocksReceived, bytesReceived, stalls;
+        long busyMillis, busySinceMillis;
+        // A peer that stalled is not asked for more blocks until then.
+        long penaltyUntilMillis;
+
+        PeerState(Peer peer) {
+            this.peer = peer;
+        }
+
+        void addInFlight(long now) {
+            if (inFlight++ == 0)
+                busySinceMillis = now;
+        }
+
+        void removeInFlight(long now) {
+            if (--inFlight == 0)
+                busyMillis += now - busySinceMillis;
+        }
+
+        boolean canServe(boolean filtered) {
+            VersionMessage version = peer.getPeerVersionMessage();
+            if (filtered)
+                return version.isBloomFilteringSupported() && peer.getBloomFilter() != null;
+            return version.hasBlockChain();
+        }
+    }
+
+    /**
+     * Sets how many peers blocks are downloaded from at the same time. Blocks are only downloaded in parallel if this
+     * is above one, which it isn't by default.
+     */
+    public void setMaxPeers(int maxPeers) {
+        checkArgument(maxPeers > 0);
+        lock.lock();
+        try {
+            this.maxPeers = maxPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxPeers() {
+        lock.lock();
+        try {
+            return maxPeers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether blocks are downloaded from several peers, that is whether {@link #getMaxPeers()} is above one. */
+    public boolean isEnabled() {
+        return getMaxPeers() > 1;
+    }
+
+    /** Sets how many blocks are requested from a peer at a time, defaults to {@link #DEFAULT_WINDOW}. */
+    public void setWindow(int window) {
+        checkArgument(window > 0);
+        lock.lock();
+        try {
+            this.window = window;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWindow() {
+        lock.lock();
+        try {
+            return window;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the time after which a block a peer was asked for but didn't send is asked from another peer, defaults to
+     * {@link #DEFAULT_STALL_TIMEOUT_MILLIS}.
+     */
+    public void setStallTimeoutMillis(long stallTimeoutMillis) {
+        checkArgument(stallTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.stallTimeoutMillis = stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getStallTimeoutMillis() {
+        lock.lock();
+        try {
+            return stallTimeoutMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes blocks be requested from the given peer. */
+    void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (!peers.containsKey(peer))
+                peers.put(peer, new PeerState(peer));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops requesting blocks from the given peer. Blocks it was asked for are asked from other peers, and blocks it
+     * requested as the download peer are kept for the next download peer, see {@link #setDownloadPeer(Peer)}.
+     */
+    void removePeer(Peer peer) {
+        Map<Peer, List<Request>> assigned;
+        lock.lock();
+        try {
+            if (peers.remove(peer) == null)
+                return;
+            for (Request request : requests.values()) {
+                if (request.requester == peer) {
+                    request.requester = null;
+                    request.pinned = false;
+                }
+                if (request.assignee == peer && !request.isReceived())
+                    request.assignee = null;
+            }
+            assigned = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(assigned);
+        deliver();
+    }
+
+    /**
+     * Hands the blocks requested by earlier download peers to the given one, once they are received. Requests are not
+     * sent again, and only the new download peer's own announcements are asked from it alone. Doesn't send or hand
+     * back anything itself, so it can be called with the lock of the {@link PeerGroup} held.
+     */
+    void setDownloadPeer(@Nullable Peer downloadPeer) {
+        lock.lock();
+        try {
+            for (Request request : requests.values()) {
+                if (request.requester != downloadPeer) {
+                    request.requester = downloadPeer;
+                    request.pinned = false;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Requests the given blocks, in the order they were announced to the requester, which the blocks are handed back
+     * to once received. Blocks that are already requested are not asked for again, but are handed to this requester.
+     */
+    void request(Peer requester, List<Sha256Hash> hashes, boolean filtered) {
+        Map<Peer, List<Request>> assigned;
+        lock.lock();
+        try {
+            for (int i = 0; i < hashes.size(); i++) {
+                Sha256Hash hash = hashes.get(i);
+                boolean pinned = i == hashes.size() - 1;
+                Request request = requests.get(hash);
+                if (request == null) {
+                    requests.put(hash, new Request(hash, requester, filtered, pinned));
+                } else {
+                    request.requester = requester;
+                    if (pinned && !request.pinned && !request.isReceived()) {
+                        // The next announcement only comes to the peer fetching this block, so it must be this one,
+                        // even if that means asking for it a second time.
+                        if (request.assignee != null && request.assignee != requester)
+                            unassign(request, Utils.currentTimeMillis());
+                        request.pinned = true;
+                    }
+                }
+            }
+            assigned = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(assigned);
+        deliver();
+    }
+
+    /**
+     * Called by a peer that received a block. If the block was requested by the scheduler, it is held until the blocks
+     * announced before it arrived too, and then handed back to the peer that requested it.
+     *
+     * @return whether the block was requested by the scheduler, so the peer should not handle it itself.
+     */
+    boolean received(Peer peer, Block block, @Nullable FilteredBlock filteredBlock) {
+        Map<Peer, List<Request>> assigned;
+        lock.lock();
+        try {
+            Request request = requests.get(block.getHash());
+            if (request == null)
+                return false;
+            if (request.isReceived())
+                return true;  // Sent by a peer it was asked from again after stalling.
+            long now = Utils.currentTimeMillis();
+            request.block = block;
+            request.filteredBlock = filteredBlock;
+            if (request.assignee != null)
+                unassign(request, now);
+            PeerState state = peers.get(peer);
+            if (state != null) {
+                Message message = filteredBlock != null ? filteredBlock : block;
+                state.blocksReceived++;
+                state.bytesReceived += Math.max(0, message.length);
+            }
+            assigned = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(assigned);
+        deliver();
+        return true;
+    }
+
+    /** Asks other peers for the blocks which a peer did not send within the stall timeout. */
+    void checkStalls() {
+        Map<Peer, List<Request>> assigned;
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Request request : requests.values()) {
+                // Pinned requests can only come from the requester. If it stalls, the PeerGroup replaces it.
+                if (request.assignee == null || request.isReceived() || request.pinned
+                        || now - request.requestTimeMillis < stallTimeoutMillis)
+                    continue;
+                PeerState state = peers.get(request.assignee);
+                log.info("{}: Stalled on block {}, asking another peer", request.assignee, request.hash);
+                unassign(request, now);
+                if (state != null) {
+                    state.stalls++;
+                    state.penaltyUntilMillis = now + stallTimeoutMillis;
+                }
+            }
+            assigned = assign();
+        } finally {
+            lock.unlock();
+        }
+        send(assigned);
+    }
+
+    /** Returns the download statistics of each peer. */
+    public List<PeerDownloadStats> getStats() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            List<PeerDownloadStats> stats = new ArrayList<>(peers.size());
+            for (PeerState state : peers.values()) {
+                long busyMillis = state.busyMillis + (state.inFlight > 0 ? now - state.busySinceMillis : 0);
+                stats.add(new PeerDownloadStats(state.peer.getAddress(), state.inFlight, state.blocksReceived,
+                        state.bytesReceived, state.stalls, busyMillis));
+            }
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks requested but not handed back yet. */
+    public int getPendingBlocks() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void unassign(Request request, long now) {
+        PeerState state = peers.get(request.assignee);
+        if (state != null)
+            state.removeInFlight(now);
+        request.assignee = null;
+    }
+
+    // Gives requests that aren't in flight to peers with room in their window, in the order the blocks are needed in.
+    @GuardedBy("lock")
+    private Map<Peer, List<Request>> assign() {
+        Map<Peer, List<Request>> assigned = new LinkedHashMap<>();
+        long now = Utils.currentTimeMillis();
+        int busyPeers = 0;
+        for (PeerState state : peers.values())
+            if (state.inFlight > 0)
+                busyPeers++;
+        for (Request request : requests.values()) {
+            if (request.assignee != null || request.isReceived())
+                continue;
+            PeerState target = null;
+            if (request.pinned) {
+                PeerState state = peers.get(request.requester);
+                if (state != null && state.inFlight < window)
+                    target = state;
+            } else {
+                for (PeerState state : peers.values()) {
+                    if (state.inFlight >= window || state.penaltyUntilMillis > now || !state.canServe(request.filtered))
+                        continue;
+                    if (state.inFlight == 0 && busyPeers >= maxPeers)
+                        continue;
+                    if (target == null || state.inFlight < target.inFlight)
+                        target = state;
+                }
+            }
+            if (target == null)
+                continue;
+            if (target.inFlight == 0)
+                busyPeers++;
+            target.addInFlight(now);
+            request.assignee = target.peer;
+            request.requestTimeMillis = now;
+            List<Request> list = assigned.get(target.peer);
+            if (list == null) {
+                list = new ArrayList<>();
+                assigned.put(target.peer, list);
+            }
+            list.add(request);
+        }
+        return assigned;
+    }
+
+    private void send(Map<Peer, List<Request>> assigned) {
+        for (Map.Entry<Peer, List<Request>> entry : assigned.entrySet()) {
+            List<Sha256Hash> blocks = new ArrayList<>();
+            List<Sha256Hash> filteredBlocks = new ArrayList<>();
+            for (Request request : entry.getValue())
+                (request.filtered ? filteredBlocks : blocks).add(request.hash);
+            if (!blocks.isEmpty())
+                entry.getKey().requestBlocks(blocks, false);
+            if (!filteredBlocks.isEmpty())
+                entry.getKey().requestBlocks(filteredBlocks, true);
+        }
+    }
+
+    // Hands received blocks back to their requesters, up to the first block that didn't arrive yet.
+    private void deliver() {
+        deliveryLock.lock();
+        try {
+            Request request;
+            while ((request = nextReceived()) != null) {
+                if (request.filteredBlock != null)
+                    request.requester.processDownloadedFilteredBlock(request.filteredBlock);
+                else
+                    request.requester.processDownloadedBlock(request.block);
+            }
+        } finally {
+            deliveryLock.unlock();
+        }
+    }
+
+    @Nullable
+    private Request nextReceived() {
+        lock.lock();
+        try {
+            Iterator<Request> it = requests.values().iterator();
+            if (!it.hasNext())
+                return null;
+            Request request = it.next();
+            // Blocks wait for a download peer to take them, see setDownloadPeer.
+            if (!request.isReceived() || request.requester == null || !request.requester.isDownloadData())
+                return null;
+            it.remove();
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A read-only view of a serialized block, backed by a slice of the buffer it was read from. Header fields are
+ * decoded when they are asked for, and the transactions are only split up into {@link TransactionView}s the first time
+ * they are needed, without copying them. Block and transaction hashes are computed straight from the buffer.</p>
+ *
+ * <p>A view does no verification beyond what it takes to find the transactions. Use {@link #toBlock()} to get a full,
+ * mutable {@link Block}, for example to pass it to a block chain.</p>
+ *
+ * <p>The underlying bytes must not change while the view is in use. Instances are not thread safe.</p>
+ */
+public class BlockView {
+    private final NetworkParameters params;
+    private final ByteBuffer buffer;
+    @Nullable private Sha256Hash hash;
+    @Nullable private List<TransactionView> transactions;
+
+    /**
+     * Creates a view of the block that takes up the remaining bytes of the given buffer, which may be only the 80 byte
+     * header. The position of the buffer is not changed.
+     *
+     * @throws ProtocolException if the buffer is too short to hold a header.
+     */
+    public BlockView(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < Block.HEADER_SIZE)
+            throw new ProtocolException("Block is shorter than its header: " + buffer.remaining() + " bytes");
+        this.params = params;
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /** Returns the hash of the block header, computed the first time it is asked for. */
+    public Sha256Hash getHash() {
+        if (hash == null) {
+            ByteBuffer header = buffer.duplicate();
+            header.limit(Block.HEADER_SIZE);
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(header);
+            hash = Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+        }
+        return hash;
+    }
+
+    public long getVersion() {
+        return buffer.getInt(0) & 0xffffffffL;
+    }
+
+    public Sha256Hash getPrevBlockHash() {
+        return TransactionView.readHash(buffer, 4);
+    }
+
+    public Sha256Hash getMerkleRoot() {
+        return TransactionView.readHash(buffer, 36);
+    }
+
+    public long getTimeSeconds() {
+        return buffer.getInt(68) & 0xffffffffL;
+    }
+
+    public long getDifficultyTarget() {
+        return buffer.getInt(72) & 0xffffffffL;
+    }
+
+    public long getNonce() {
+        return buffer.getInt(76) & 0xffffffffL;
+    }
+
+    /** Returns the length of the viewed bytes. */
+    public int getMessageSize() {
+        return buffer.limit();
+    }
+
+    /** Returns true if the viewed bytes hold more than the header. */
+    public boolean hasTransactions() {
+        return buffer.limit() > Block.HEADER_SIZE;
+    }
+
+    /**
+     * Returns the number of transactions, read from the buffer without looking at the transactions themselves.
+     *
+     * @throws ProtocolException if the count is truncated or implausible.
+     */
+    public int getTransactionCount() throws ProtocolException {
+        if (!hasTransactions())
+            return 0;
+        if (transactions != null)
+            return transactions.size();
+        return readTransactionCount();
+    }
+
+    private int readTransactionCount() throws ProtocolException {
+        long count;
+        try {
+            count = TransactionView.readVarInt(buffer, Block.HEADER_SIZE);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        if (count < 0 || count > Block.MAX_BLOCK_SIZE / 60)
+            throw new ProtocolException("Implausible transaction count: " + count);
+        return (int) count;
+    }
+
+    /**
+     * Returns views of the transactions of the block, or an empty list if only the header is viewed. The bytes of the
+     * transactions are scanned once to find where each starts, the first time this is called.
+     *
+     * @throws ProtocolException if the transactions are malformed.
+     */
+    public List<TransactionView> getTransactions() throws ProtocolException {
+        if (transactions == null) {
+            if (!hasTransactions())
+                return Collections.emptyList();
+            int count = readTransactionCount();
+            ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            in.position(Block.HEADER_SIZE + VarInt.sizeOf(count));
+            List<TransactionView> views = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                views.add(new TransactionView(params, in));
+            transactions = Collections.unmodifiableList(views);
+        }
+        return transactions;
+    }
+
+    /** Computes the merkle root of the viewed transactions, to compare with {@link #getMerkleRoot()}. */
+    public Sha256Hash calculateMerkleRoot() throws ProtocolException {
+        List<TransactionView> views = getTransactions();
+        List<Sha256Hash> hashes = new ArrayList<>(views.size());
+        for (TransactionView view : views)
+            hashes.add(view.getHash());
+        return MerkleHasher.root(hashes);
+    }
+
+    /** Returns a read-only slice holding the viewed bytes. */
+    public ByteBuffer asReadOnlyBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /** Parses the viewed bytes into a full {@link Block}. */
+    public Block toBlock() throws ProtocolException {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.duplicate().get(bytes);
+        return params.getDefaultSerializer().makeBlock(bytes);
+    }
+
+    @Override
+    public String toString() {
+        String transactionCount;
+        try {
+            transactionCount = Integer.toString(getTransactionCount());
+        } catch (ProtocolException e) {
+            transactionCount = "malformed";
+        }
+        return "BlockView{" + getHash() + ", " + transactionCount + " transactions}";
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link ScriptVerificationEngine} backed by a long-lived {@link ForkJoinPool}. Work is split per input rather
+ * than per transaction: each transaction added to a batch is submitted as one task, which recursively splits its range
+ * of inputs so idle workers can steal halves of it. A block dominated by one huge transaction therefore still keeps
+ * every core busy.</p>
+ *
+ * <p>A failing input only cancels the remaining work of its own batch; the pool and its threads survive and are
+ * reused for the next block.</p>
+ */
+public class ForkJoinScriptVerificationEngine implements ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ForkJoinScriptVerificationEngine.class);
+
+    private final ForkJoinPool pool;
+
+    private final AtomicLong inputsVerified = new AtomicLong();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // Wall clock time during which at least one batch was in progress, used for the throughput figure.
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    /** Creates an engine with one worker thread per available processor. */
+    public ForkJoinScriptVerificationEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an engine with the given number of worker threads.
+     */
+    public ForkJoinScriptVerificationEngine(int parallelism) {
+        checkArgument(parallelism > 0, "parallelism must be positive");
+        this.pool = new ForkJoinPool(parallelism, new WorkerThreadFactory(), Threading.uncaughtExceptionHandler, false);
+    }
+
+    /** Returns the number of worker threads. */
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    @Override
+    public Batch newBatch() {
+        checkState(!pool.isShutdown(), "Engine has been shut down");
+        return new ForkJoinBatch();
+    }
+
+    @Override
+    public long getInputsVerified() {
+        return inputsVerified.get();
+    }
+
+    @Override
+    public double getInputsPerSecond() {
+        long nanos = busyNanos.get();
+        return nanos == 0 ? 0 : inputsVerified.get() * 1e9 / nanos;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ForkJoinScriptVerificationEngine{parallelism=%d, verified=%d, queued=%d, %.1f inputs/sec}",
+                getParallelism(), getInputsVerified(), getQueueDepth(), getInputsPerSecond());
+    }
+
+    private class ForkJoinBatch implements Batch {
+        private final List<InputRangeTask> tasks = new ArrayList<>();
+        private final AtomicReference<VerificationException> failure = new AtomicReference<>();
+        private volatile boolean cancelled;
+        private boolean finished;
+        private final long startNanos = System.nanoTime();
+
+        @Override
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            int numInputs = tx.getInputs().size();
+            checkArgument(prevOutScripts.size() == numInputs, "Need one connected script per input");
+            if (numInputs == 0)
+                return;
+            // Prime the serialization cache before inputs are hashed concurrently, so the workers only ever read it.
+            tx.unsafeBitcoinSerialize();
+            InputRangeTask task = new InputRangeTask(this, tx, prevOutScripts.toArray(new Script[numInputs]),
+                    verifyFlags, 0, numInputs);
+            queueDepth.addAndGet(numInputs);
+            tasks.add(task);
+            pool.execute(task);
+        }
+
+        @Override
+        public void verify() throws VerificationException {
+            try {
+                for (InputRangeTask task : tasks)
+                    task.join();
+            } finally {
+                recordBusyTime();
+            }
+            VerificationException e = failure.get();
+            if (e != null)
+                throw e;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            // Inputs that are already running can't be interrupted, so wait for them to notice the cancellation.
+            for (InputRangeTask task : tasks)
+                task.quietlyJoin();
+            recordBusyTime();
+        }
+
+        // A failed batch is verified and then cancelled, so its time must only be counted the first time.
+        private void recordBusyTime() {
+            if (!finished) {
+                finished = true;
+                busyNanos.addAndGet(System.nanoTime() - startNanos);
+            }
+        }
+
+        private boolean isDone() {
+            return cancelled || failure.get() != null;
+        }
+
+        private void fail(VerificationException e) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * Verifies inputs [from, to) of a transaction, splitting the range in half until a single input remains.
+     */
+    private class InputRangeTask extends RecursiveAction {
+        private final ForkJoinBatch batch;
+        private final Transaction tx;
+        private final Script[] prevOutScripts;
+        private final Set<VerifyFlag> verifyFlags;
+        private final int from, to;
+
+        InputRangeTask(ForkJoinBatch batch, Transaction tx, Script[] prevOutScripts, Set<VerifyFlag> verifyFlags,
+                       int from, int to) {
+            this.batch = batch;
+            this.tx = tx;
+            this.prevOutScripts = prevOutScripts;
+            this.verifyFlags = verifyFlags;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new InputRangeTask(batch, tx, prevOutScripts, verifyFlags, from, mid),
+                        new InputRangeTask(batch, tx, prevOutScripts, verifyFlags, mid, to));
+                return;
+            }
+            if (batch.isDone()) {
+                queueDepth.decrementAndGet();
+                return;
+            }
+            try {
+                tx.getInput(from).getScriptSig().correctlySpends(tx, from, prevOutScripts[from], verifyFlags);
+            } catch (VerificationException e) {
+                batch.fail(e);
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                batch.fail(new VerificationException(
+                        "Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            } finally {
+                inputsVerified.incrementAndGet();
+                queueDepth.decrementAndGet();
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            final Context context = Context.get();
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                @Override
+                protected void onStart() {
+                    super.onStart();
+                    Context.propagate(context);
+                }
+            };
+            thread.setName("Script verification " + counter.incrementAndGet());
+            return thread;
+        }
+    }
+}
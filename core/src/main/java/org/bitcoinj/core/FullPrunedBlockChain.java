@@ -19,21 +19,26 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
-import org.bitcoinj.utils.*;
 import org.bitcoinj.wallet.Wallet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -55,6 +60,33 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     // Whether or not to execute scriptPubKeys before accepting a transaction (i.e. check signatures).
     private boolean runScripts = true;
 
+    // The scripts of this block and its ancestors are not run, once a header chain with at least minimumChainWork
+    // shows them to be ancestors. Guarded by the chain lock.
+    @Nullable private Sha256Hash assumeValidBlockHash;
+    private int assumeValidBlockHeight;
+    private BigInteger minimumChainWork;
+    @Nullable private AbstractBlockChain headerChain;
+    private volatile long scriptVerifiedBlocks, assumedValidBlocks;
+
+    // Runs the input scripts of connected blocks. Long-lived, so it survives blocks that fail verification.
+    private volatile ScriptVerificationEngine scriptVerificationEngine = new ForkJoinScriptVerificationEngine();
+    // Whether scriptVerificationEngine is the default one this chain created, which nobody else shuts down.
+    private boolean ownsScriptVerificationEngine = true;
+
+    // Blocks we were told to expect next, keyed by the hash of the block they build on.
+    private static final int MAX_UPCOMING_BLOCK_HINTS = 16;
+    private final Map<Sha256Hash, Block> upcomingBlocks = Collections.synchronizedMap(
+            new LinkedHashMap<Sha256Hash, Block>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Block> eldest) {
+                    return size() > MAX_UPCOMING_BLOCK_HINTS;
+                }
+            });
+    // Outputs spent by the block with hash prefetchedBlockHash, looked up while its parent's scripts were verified.
+    // Only valid if that block is the next one to be connected. Guarded by the chain lock.
+    @Nullable private Sha256Hash prefetchedBlockHash;
+    @Nullable private Map<TransactionOutPoint, UTXO> prefetchedOutputs;
+
     /**
      * Constructs a block chain connected to the given wallet and store. To obtain a {@link Wallet} you can construct
      * one from scratch, or you can deserialize a saved wallet from disk using
@@ -96,6 +128,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.blockStore = blockStore;
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
+        this.assumeValidBlockHash = params.getAssumeValidBlockHash();
+        this.assumeValidBlockHeight = params.getAssumeValidBlockHeight();
+        this.minimumChainWork = params.getMinimumChainWork();
     }
 
     /**
@@ -143,41 +178,197 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
+    /**
+     * <p>Sets a block that is trusted to be part of a valid chain, usually one taken from a release of the software.
+     * The scripts of that block and of all blocks below it are then not run, which removes most of the cost of
+     * catching up with the chain. Everything else is still checked in full: proof of work, merkle roots, the spending
+     * of unspent outputs, values and fees.</p>
+     *
+     * <p>Only blocks known to be ancestors of the trusted block skip their scripts. That is known from a header chain
+     * whose best chain contains the trusted block at the given height and has at least the
+     * {@link #setMinimumChainWork(BigInteger) minimum work}: the chain set with {@link #setHeaderChain(AbstractBlockChain)},
+     * which is usually synced ahead of this one, or else this chain itself once it connected the trusted block. Blocks
+     * whose ancestry can't be shown that way, including a different block at the given height, are verified in full.
+     * Pass null to run all scripts. Defaults to {@link NetworkParameters#getAssumeValidBlockHash()}.</p>
+     */
+    public void setAssumeValidBlock(@Nullable Sha256Hash hash, int height) {
+        lock.lock();
+        try {
+            this.assumeValidBlockHash = hash;
+            this.assumeValidBlockHeight = hash != null ? height : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    /**
+     * Sets the least total work the header chain must have before blocks it shows to be ancestors of the assume-valid
+     * block skip their scripts. Defaults to {@link NetworkParameters#getMinimumChainWork()}.
+     */
+    public void setMinimumChainWork(BigInteger minimumChainWork) {
+        lock.lock();
+        try {
+            this.minimumChainWork = checkNotNull(minimumChainWork);
+        } finally {
+            lock.unlock();
+        }
+    }
 
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Sets a chain of block headers, for example a {@link BlockChain} synced ahead of this one, which is used to tell
+     * whether blocks are ancestors of the assume-valid block before this chain reaches it. See
+     * {@link #setAssumeValidBlock(Sha256Hash, int)}. Pass null to only use this chain.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
+    public void setHeaderChain(@Nullable AbstractBlockChain headerChain) {
+        lock.lock();
+        try {
+            this.headerChain = headerChain;
+        } finally {
+            lock.unlock();
         }
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
-                }
-            } catch (VerificationException e) {
-                return e;
-            }
-            return null;
+    /** Returns the number of blocks connected since this chain was created whose scripts were verified. */
+    public long getScriptVerifiedBlockCount() {
+        return scriptVerifiedBlocks;
+    }
+
+    /**
+     * Returns the number of blocks connected since this chain was created whose scripts were not run because they are
+     * ancestors of the assume-valid block.
+     */
+    public long getAssumedValidBlockCount() {
+        return assumedValidBlocks;
+    }
+
+    // Returns true if the block at the given height is shown to be the assume-valid block or one of its ancestors, by
+    // the header chain if there is one, or else by this chain. When ancestry can't be shown the scripts are run.
+    private boolean isAssumedValid(int height, Sha256Hash hash) throws BlockStoreException {
+        if (assumeValidBlockHash == null || height > assumeValidBlockHeight)
+            return false;
+        if (height == assumeValidBlockHeight && !hash.equals(assumeValidBlockHash))
+            return false;
+        AbstractBlockChain headers = headerChain;
+        if (headers != null && isAncestorOfAssumeValidBlock(headers, height, hash))
+            return true;
+        return isAncestorOfAssumeValidBlock(this, height, hash);
+    }
+
+    private boolean isAncestorOfAssumeValidBlock(AbstractBlockChain headers, int height, Sha256Hash hash)
+            throws BlockStoreException {
+        if (headers.getChainHead().getChainWork().compareTo(minimumChainWork) < 0)
+            return false;
+        BlockStore store = headers.getBlockStore();
+        StoredBlock assumeValidBlock = store.get(assumeValidBlockHash);
+        if (assumeValidBlock == null || assumeValidBlock.getHeight() != assumeValidBlockHeight)
+            return false;
+        BestChainIndex index = headers.getBestChainIndex();
+        if (!index.contains(assumeValidBlock))
+            return false;
+        StoredBlock ancestor = index.getAncestor(assumeValidBlock, height, store);
+        return ancestor != null && ancestor.getHeader().getHash().equals(hash);
+    }
+
+    private void recordScriptVerification(int height, Sha256Hash hash, boolean assumedValid, boolean verified) {
+        if (assumedValid) {
+            if (assumedValidBlocks++ == 0)
+                log.info("Not running scripts of blocks up to assume-valid block {} at height {}",
+                        assumeValidBlockHash, assumeValidBlockHeight);
+            log.debug("Scripts of block {} at height {} assumed valid", hash, height);
+            if (height == assumeValidBlockHeight)
+                log.info("Reached assume-valid block at height {}, running scripts from now on", height);
+        } else if (verified) {
+            scriptVerifiedBlocks++;
+            log.debug("Scripts of block {} at height {} verified", hash, height);
+        } else {
+            log.debug("Scripts of block {} at height {} not run", hash, height);
         }
     }
 
+    /**
+     * Replaces the engine used to verify input scripts, for example to configure its parallelism. The default engine
+     * the chain created is shut down once replaced. Engines set with this method are not, as they may be shared with
+     * other chains.
+     */
+    public void setScriptVerificationEngine(ScriptVerificationEngine engine) {
+        checkNotNull(engine);
+        lock.lock();
+        try {
+            ScriptVerificationEngine previous = this.scriptVerificationEngine;
+            if (engine == previous)
+                return;
+            this.scriptVerificationEngine = engine;
+            // Scripts are only verified under the lock, so the default engine has no batch in progress.
+            if (ownsScriptVerificationEngine)
+                previous.shutdown();
+            ownsScriptVerificationEngine = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the engine used to verify input scripts, which also reports verification throughput. */
+    public ScriptVerificationEngine getScriptVerificationEngine() {
+        return scriptVerificationEngine;
+    }
+
+    /**
+     * Tells the chain which block is expected to be added right after the block it builds on, for example by a
+     * block importer that reads ahead. When that parent connects, the outputs spent by the upcoming block are looked
+     * up in one batch while the parent's scripts are still being verified, so the lookup is off the critical path
+     * when the upcoming block itself is connected. Hints for blocks that never arrive are harmless.
+     */
+    public void hintUpcomingBlock(Block block) {
+        if (block.transactions != null)
+            upcomingBlocks.put(block.getPrevBlockHash(), block);
+    }
+
+    /**
+     * Looks up the outputs spent by the given transactions, except those created by the transactions themselves, with
+     * a single call to {@link FullPrunedBlockStore#getTransactionOutputs(List)}. Outputs which are not found are not
+     * part of the result.
+     */
+    private Map<TransactionOutPoint, UTXO> getSpentOutputs(List<Transaction> transactions) throws BlockStoreException {
+        Set<Sha256Hash> createdHere = new HashSet<>(transactions.size());
+        for (Transaction tx : transactions)
+            createdHere.add(tx.getHash());
+        List<TransactionOutPoint> outPoints = new ArrayList<>();
+        for (Transaction tx : transactions) {
+            if (tx.isCoinBase())
+                continue;
+            for (TransactionInput in : tx.getInputs())
+                if (!createdHere.contains(in.getOutpoint().getHash()))
+                    outPoints.add(in.getOutpoint());
+        }
+        List<UTXO> found = blockStore.getTransactionOutputs(outPoints);
+        Map<TransactionOutPoint, UTXO> spentOutputs = new HashMap<>(outPoints.size());
+        for (int i = 0; i < outPoints.size(); i++)
+            if (found.get(i) != null)
+                spentOutputs.put(outPoints.get(i), found.get(i));
+        return spentOutputs;
+    }
+
+    /**
+     * Returns the output spent by the given input. Outputs found in spentOutputs are taken out of it, so that a second
+     * spend of the same output within a block goes to the store, which has already seen the first one.
+     */
+    @Nullable
+    private UTXO getSpentOutput(TransactionInput in, Map<TransactionOutPoint, UTXO> spentOutputs)
+            throws BlockStoreException {
+        TransactionOutPoint outPoint = in.getOutpoint();
+        UTXO prevOut = spentOutputs.remove(outPoint);
+        if (prevOut == null)
+            prevOut = blockStore.getTransactionOutput(outPoint.getHash(), outPoint.getIndex());
+        return prevOut;
+    }
+
+    private void discardPrefetchedOutputs() {
+        prefetchedBlockHash = null;
+        prefetchedOutputs = null;
+    }
+
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -214,17 +405,20 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
+        final boolean assumedValid = isAssumedValid(height, block.getHash());
+        final boolean verifyScripts = runScripts && !assumedValid;
 
         blockStore.beginDatabaseBatchWrite();
 
+        // Use the outputs prefetched while the parent block was verified, if that's the block we're building on.
+        Map<TransactionOutPoint, UTXO> spentOutputs = block.getHash().equals(prefetchedBlockHash) ? prefetchedOutputs : null;
+        discardPrefetchedOutputs();
+
         LinkedList<UTXO> txOutsSpent = new LinkedList<>();
         LinkedList<UTXO> txOutsCreated = new LinkedList<>();
         long sigOps = 0;
 
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.transactions.size());
+        ScriptVerificationEngine.Batch scriptVerification = scriptVerificationEngine.newBatch();
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -241,6 +435,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         sigOps += tx.getSigOpCount();
                 }
             }
+            if (spentOutputs == null)
+                spentOutputs = getSpentOutputs(block.transactions);
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
             for (final Transaction tx : block.transactions) {
@@ -254,8 +450,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
+                        UTXO prevOut = getSpentOutput(in, spentOutputs);
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -306,37 +501,33 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
 
-                if (!isCoinBase && runScripts) {
+                if (!isCoinBase && verifyScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptVerification.add(tx, prevOutScripts, verifyFlags);
                 }
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
+            // While the scripts run, look up what the next block spends. This thread already sees the changes made
+            // by this block, so the result is exact once this block is committed.
+            Block upcoming = upcomingBlocks.remove(block.getHash());
+            if (upcoming != null) {
+                prefetchedOutputs = getSpentOutputs(upcoming.transactions);
+                prefetchedBlockHash = upcoming.getHash();
             }
+            scriptVerification.verify();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
+            discardPrefetchedOutputs();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
+            discardPrefetchedOutputs();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
+        recordScriptVerification(height, block.getHash(), assumedValid, verifyScripts);
         return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
     }
 
@@ -349,7 +540,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
+        final boolean assumedValid = isAssumedValid(newBlock.getHeight(), newBlock.getHeader().getHash());
 
+        discardPrefetchedOutputs();
         blockStore.beginDatabaseBatchWrite();
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
         if (block == null) {
@@ -358,6 +551,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.Batch scriptVerification = scriptVerificationEngine.newBatch();
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -375,9 +569,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
+                Map<TransactionOutPoint, UTXO> spentOutputs = getSpentOutputs(transactions);
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -389,8 +581,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
+                            final UTXO prevOut = getSpentOutput(in, spentOutputs);
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -437,30 +628,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
 
-                    if (!isCoinBase) {
+                    if (!isCoinBase && !assumedValid) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptVerification.add(tx, prevOutScripts, verifyFlags);
                     }
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.verify();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -475,14 +652,17 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
+        // Blocks replayed from their stored output changes do not run scripts again.
+        recordScriptVerification(newBlock.getHeight(), newBlock.getHeader().getHash(), assumedValid,
+                !assumedValid && block.getTransactions() != null);
         return txOutChanges;
     }
 
@@ -493,6 +673,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        discardPrefetchedOutputs();
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -520,6 +701,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     @Override
     protected void notSettingChainHead() throws BlockStoreException {
+        discardPrefetchedOutputs();
         blockStore.abortDatabaseBatchWrite();
     }
 
@@ -0,0 +1,194 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Computes merkle tree hashes for {@link Block} and {@link PartialMerkleTree}. Nodes are hashed in place in a flat
+ * buffer, one level after the other, so computing a root allocates nothing but that buffer, which is kept per thread
+ * and reused.</p>
+ *
+ * <p>For trees with at least {@value #PARALLEL_THRESHOLD} leaves the lower levels are split into subtrees of
+ * {@value #SUBTREE_LEAVES} leaves, which are hashed in parallel. Their roots are then combined on the calling thread.
+ * </p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class MerkleHasher {
+    /** The number of leaves from which the lower levels of the tree are hashed in parallel. */
+    public static final int PARALLEL_THRESHOLD = 4096;
+
+    private static final int SUBTREE_HEIGHT = 10;
+    private static final int SUBTREE_LEAVES = 1 << SUBTREE_HEIGHT;
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+
+    private static final ThreadLocal<Hasher> hashers = new ThreadLocal<Hasher>() {
+        @Override
+        protected Hasher initialValue() {
+            return new Hasher();
+        }
+    };
+
+    // Created when the first large tree is hashed.
+    private static class PoolHolder {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new WorkerThreadFactory(), null, false);
+    }
+
+    private MerkleHasher() {
+    }
+
+    /**
+     * Returns the merkle root of the tree with the given leaves, duplicating the last node of every level with an odd
+     * number of nodes as Bitcoin does.
+     */
+    public static Sha256Hash root(List<Sha256Hash> leaves) {
+        int size = leaves.size();
+        checkArgument(size > 0, "A merkle tree needs at least one leaf");
+        Hasher hasher = hashers.get();
+        byte[] tree = hasher.buffer(size);
+        // Nodes are kept in the internal byte order, which is what gets hashed.
+        for (int i = 0; i < size; i++)
+            reverseInto(leaves.get(i).getBytes(), tree, i * HASH_LENGTH);
+        if (size >= PARALLEL_THRESHOLD && PoolHolder.POOL.getParallelism() > 1) {
+            int subtrees = (size + SUBTREE_LEAVES - 1) / SUBTREE_LEAVES;
+            PoolHolder.POOL.invoke(new SubtreeTask(tree, size, 0, subtrees));
+            // Move the subtree roots next to each other, to form the level above them.
+            for (int i = 1; i < subtrees; i++)
+                System.arraycopy(tree, i * SUBTREE_LEAVES * HASH_LENGTH, tree, i * HASH_LENGTH, HASH_LENGTH);
+            size = subtrees;
+        }
+        for (int levelSize = size; levelSize > 1; levelSize = (levelSize + 1) / 2)
+            hasher.hashLevel(tree, 0, levelSize);
+        byte[] root = new byte[HASH_LENGTH];
+        reverseInto(tree, 0, root);
+        return Sha256Hash.wrap(root);
+    }
+
+    /** Returns the hash of the inner node with the given children. */
+    public static Sha256Hash combine(Sha256Hash left, Sha256Hash right) {
+        Hasher hasher = hashers.get();
+        byte[] pair = hasher.buffer(2);
+        reverseInto(left.getBytes(), pair, 0);
+        reverseInto(right.getBytes(), pair, HASH_LENGTH);
+        hasher.hashPair(pair, 0, pair, 0);
+        byte[] result = new byte[HASH_LENGTH];
+        reverseInto(pair, 0, result);
+        return Sha256Hash.wrap(result);
+    }
+
+    private static void reverseInto(byte[] hash, byte[] buffer, int offset) {
+        for (int i = 0; i < HASH_LENGTH; i++)
+            buffer[offset + i] = hash[HASH_LENGTH - 1 - i];
+    }
+
+    private static void reverseInto(byte[] buffer, int offset, byte[] hash) {
+        for (int i = 0; i < HASH_LENGTH; i++)
+            hash[i] = buffer[offset + HASH_LENGTH - 1 - i];
+    }
+
+    // The per thread state: a digest, scratch space and the buffer holding the tree.
+    private static class Hasher {
+        private final MessageDigest digest = Sha256Hash.newDigest();
+        private final byte[] scratch = new byte[HASH_LENGTH];
+        private byte[] buffer = new byte[0];
+
+        // Room for the given number of nodes, plus one for pairing an odd last node with itself.
+        byte[] buffer(int nodes) {
+            if (buffer.length < (nodes + 1) * HASH_LENGTH)
+                buffer = new byte[Math.max(nodes + 1, 64) * HASH_LENGTH];
+            return buffer;
+        }
+
+        // Replaces the level of levelSize nodes starting at offset with the level above it, in place.
+        void hashLevel(byte[] tree, int offset, int levelSize) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int position = offset + left * HASH_LENGTH;
+                if (left + 1 == levelSize) {
+                    // An odd node out is paired with itself.
+                    System.arraycopy(tree, position, tree, position + HASH_LENGTH, HASH_LENGTH);
+                }
+                hashPair(tree, position, tree, offset + (left / 2) * HASH_LENGTH);
+            }
+        }
+
+        // Double SHA-256 of the 64 bytes at from, written to to. The two ranges may overlap.
+        void hashPair(byte[] from, int fromOffset, byte[] to, int toOffset) {
+            try {
+                digest.update(from, fromOffset, 2 * HASH_LENGTH);
+                digest.digest(scratch, 0, HASH_LENGTH);
+                digest.update(scratch, 0, HASH_LENGTH);
+                digest.digest(to, toOffset, HASH_LENGTH);
+            } catch (DigestException e) {
+                throw new RuntimeException(e);  // Cannot happen.
+            }
+        }
+    }
+
+    // Hashes subtrees [from, to) down to their roots, each left in place of its first leaf.
+    private static class SubtreeTask extends RecursiveAction {
+        private final byte[] tree;
+        private final int leaves, from, to;
+
+        SubtreeTask(byte[] tree, int leaves, int from, int to) {
+            this.tree = tree;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SubtreeTask(tree, leaves, from, middle), new SubtreeTask(tree, leaves, middle, to));
+                return;
+            }
+            Hasher hasher = hashers.get();
+            int offset = from * SUBTREE_LEAVES * HASH_LENGTH;
+            int levelSize = Math.min(SUBTREE_LEAVES, leaves - from * SUBTREE_LEAVES);
+            // Always go up the full height: the last subtree may be short, but its nodes are still paired with
+            // themselves on the way up, as they are in the whole tree.
+            for (int level = 0; level < SUBTREE_HEIGHT; level++) {
+                hasher.hashLevel(tree, offset, levelSize);
+                levelSize = (levelSize + 1) / 2;
+            }
+        }
+    }
+
+    private static class WorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+            };
+            thread.setName("Merkle hashing " + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
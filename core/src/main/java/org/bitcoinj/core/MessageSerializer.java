@@ -23,6 +23,8 @@ import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Generic interface for classes which serialize/deserialize messages. Implementing
  * classes should be immutable.
@@ -46,6 +48,15 @@ public abstract class MessageSerializer {
      */
     public abstract Message deserializePayload(BitcoinSerializer.BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException, UnsupportedOperationException;
 
+    /**
+     * Deserialize a payload which was collected by a {@link BitcoinSerializer.PayloadReader} as it arrived. By default
+     * this hands the payload to {@link #deserializePayload(BitcoinSerializer.BitcoinPacketHeader, ByteBuffer)}.
+     */
+    public Message deserializePayload(BitcoinSerializer.PayloadReader reader) throws ProtocolException, UnsupportedOperationException {
+        checkState(reader.isComplete(), "Payload not complete");
+        return deserializePayload(reader.getHeader(), ByteBuffer.wrap(reader.getPayload()));
+    }
+
     /**
      * Whether the serializer will produce cached mode Messages
      */
@@ -163,5 +174,18 @@ public abstract class MessageSerializer {
      * it does not support serializing the given message.
      */
     public abstract void serialize(Message message, OutputStream out) throws IOException, UnsupportedOperationException;
-    
+
+    /**
+     * Returns the message as {@link #serialize(Message, OutputStream)} writes it, in an array of exactly that size.
+     * 
+     * @throws UnsupportedOperationException if this serializer/deserializer
+     * does not support serialization. This can occur either because it's a dummy
+     * serializer (i.e. for messages with no network parameters), or because
+     * it does not support serializing the given message.
+     */
+    public byte[] serialize(Message message) throws IOException, UnsupportedOperationException {
+        UnsafeByteArrayOutputStream out = new UnsafeByteArrayOutputStream();
+        serialize(message, out);
+        return out.toByteArray();
+    }
 }
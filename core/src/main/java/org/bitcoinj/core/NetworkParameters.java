@@ -105,6 +105,11 @@ public abstract class NetworkParameters {
     protected int[] addrSeeds;
     protected HttpDiscovery.Details[] httpSeeds = {};
     protected Map<Integer, Sha256Hash> checkpoints = new HashMap<>();
+    // Ancestors of this block, and the block itself, skip script verification in a FullPrunedBlockChain. Null if unset.
+    @Nullable protected Sha256Hash assumeValidBlockHash;
+    protected int assumeValidBlockHeight = -1;
+    // The least work a header chain must have for its ancestors of the assume-valid block to skip verification.
+    protected BigInteger minimumChainWork = BigInteger.ZERO;
     protected transient MessageSerializer defaultSerializer = null;
 
     protected NetworkParameters() {
@@ -253,9 +258,25 @@ public abstract class NetworkParameters {
      * Throws an exception if the block's difficulty is not correct.
      *
      * @throws VerificationException if the block's difficulty is not correct.
+     * @deprecated Use {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore, BestChainIndex)}, which is
+     * what the block chain calls.
      */
+    @Deprecated
     public abstract void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore) throws VerificationException, BlockStoreException;
 
+    /**
+     * Throws an exception if the block's difficulty is not correct. The given index, if any, may be used to find
+     * ancestors of storedPrev without walking the block store. This is the method the block chain calls and the one
+     * subclasses should override. The default implementation ignores the index and calls the deprecated three
+     * argument version.
+     *
+     * @throws VerificationException if the block's difficulty is not correct.
+     */
+    public void checkDifficultyTransitions(StoredBlock storedPrev, Block next, final BlockStore blockStore,
+            @Nullable BestChainIndex bestChainIndex) throws VerificationException, BlockStoreException {
+        checkDifficultyTransitions(storedPrev, next, blockStore);
+    }
+
     /**
      * Returns true if the block height is either not a checkpoint, or is a checkpoint and the hash matches.
      */
@@ -272,6 +293,29 @@ public abstract class NetworkParameters {
         return checkpointHash != null;
     }
 
+    /**
+     * Returns the hash of a block that is trusted to be part of a valid chain, or null if there is none. A
+     * {@link FullPrunedBlockChain} does not run the scripts of this block and its ancestors, see
+     * {@link FullPrunedBlockChain#setAssumeValidBlock(Sha256Hash, int)}.
+     */
+    @Nullable
+    public Sha256Hash getAssumeValidBlockHash() {
+        return assumeValidBlockHash;
+    }
+
+    /** Returns the height of the block returned by {@link #getAssumeValidBlockHash()}, or -1 if there is none. */
+    public int getAssumeValidBlockHeight() {
+        return assumeValidBlockHeight;
+    }
+
+    /**
+     * Returns the least total work a header chain must have before the blocks it shows to be ancestors of the
+     * assume-valid block skip script verification, see {@link FullPrunedBlockChain#setMinimumChainWork(BigInteger)}.
+     */
+    public BigInteger getMinimumChainWork() {
+        return minimumChainWork;
+    }
+
     public int getSubsidyDecreaseBlockCount() {
         return subsidyDecreaseBlockCount;
     }
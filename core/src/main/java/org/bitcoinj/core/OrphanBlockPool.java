@@ -0,0 +1,186 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Holds the blocks an {@link AbstractBlockChain} has received but cannot connect yet, because their parent is not
+ * known. Orphans are indexed by their own hash and by the hash of their parent, so when a block connects, its waiting
+ * children are found without looking at any other orphan.</p>
+ *
+ * <p>The pool has a budget for the serialized size of the blocks it holds. When adding an orphan takes it over
+ * budget, the oldest orphans are evicted until it fits again. An evicted block is simply downloaded again later if it
+ * is still needed.</p>
+ *
+ * <p>Instances are guarded by the lock of the chain that owns them; only the statistics may be read from any thread.</p>
+ */
+public class OrphanBlockPool {
+    private static final Logger log = LoggerFactory.getLogger(OrphanBlockPool.class);
+
+    /** The default budget, enough for a few dozen full blocks or many thousands of filtered ones. */
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    // Holds a block header and, optionally, a list of tx hashes or block's transactions
+    static class OrphanBlock {
+        final Block block;
+        final List<Sha256Hash> filteredTxHashes;
+        final Map<Sha256Hash, Transaction> filteredTxn;
+        final int size;
+        OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
+            final boolean filtered = filteredTxHashes != null && filteredTxn != null;
+            Preconditions.checkArgument((block.transactions == null && filtered)
+                                        || (block.transactions != null && !filtered));
+            this.block = block;
+            this.filteredTxHashes = filteredTxHashes;
+            this.filteredTxn = filteredTxn;
+            int size = block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * Sha256Hash.LENGTH;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.unsafeBitcoinSerialize().length;
+            }
+            this.size = size;
+        }
+    }
+
+    // In insertion order, so the first entry is the oldest orphan.
+    private final LinkedHashMap<Sha256Hash, OrphanBlock> byHash = new LinkedHashMap<>();
+    private final HashMap<Sha256Hash, List<OrphanBlock>> byPrevHash = new HashMap<>();
+
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long bytes;
+    private volatile int size;
+    private volatile long evictions;
+
+    /** Adds an orphan, evicting the oldest orphans if the pool goes over its budget. */
+    void add(OrphanBlock orphan) {
+        Sha256Hash hash = orphan.block.getHash();
+        if (byHash.containsKey(hash))
+            return;
+        byHash.put(hash, orphan);
+        Sha256Hash prevHash = orphan.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = byPrevHash.get(prevHash);
+        if (siblings == null) {
+            siblings = new ArrayList<>(1);
+            byPrevHash.put(prevHash, siblings);
+        }
+        siblings.add(orphan);
+        bytes += orphan.size;
+        size = byHash.size();
+        // Keep the newest orphan even if it is over budget on its own.
+        Iterator<OrphanBlock> oldest = byHash.values().iterator();
+        while (bytes > maxBytes && byHash.size() > 1) {
+            OrphanBlock evicted = oldest.next();
+            oldest.remove();
+            unlinkFromParent(evicted);
+            evictions++;
+            log.info("Evicted orphan block {} to stay within {} bytes", evicted.block.getHash(), maxBytes);
+        }
+    }
+
+    @Nullable
+    OrphanBlock get(Sha256Hash hash) {
+        return byHash.get(hash);
+    }
+
+    boolean contains(Sha256Hash hash) {
+        return byHash.containsKey(hash);
+    }
+
+    /** Returns the orphans whose parent is the given block, oldest first. They stay in the pool. */
+    List<OrphanBlock> getChildren(Sha256Hash prevHash) {
+        List<OrphanBlock> children = byPrevHash.get(prevHash);
+        if (children == null)
+            return Collections.emptyList();
+        return new ArrayList<>(children);
+    }
+
+    /** Removes the given orphan, if it is still in the pool. */
+    void remove(OrphanBlock orphan) {
+        if (byHash.remove(orphan.block.getHash()) != null)
+            unlinkFromParent(orphan);
+    }
+
+    /** Removes all orphans and returns their hashes. */
+    Set<Sha256Hash> drain() {
+        Set<Sha256Hash> hashes = new HashSet<>(byHash.keySet());
+        byHash.clear();
+        byPrevHash.clear();
+        bytes = 0;
+        size = 0;
+        return hashes;
+    }
+
+    private void unlinkFromParent(OrphanBlock orphan) {
+        Sha256Hash prevHash = orphan.block.getPrevBlockHash();
+        List<OrphanBlock> siblings = byPrevHash.get(prevHash);
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            byPrevHash.remove(prevHash);
+        bytes -= orphan.size;
+        size = byHash.size();
+    }
+
+    /** Returns the number of orphan blocks in the pool. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the estimated serialized size of the orphan blocks in the pool. */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /** Returns the number of orphans evicted to keep the pool within its budget, since it was created. */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the budget for the serialized size of the orphans in the pool. Takes effect when the next orphan is
+     * added.
+     */
+    public void setMaxBytes(long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d orphan blocks, %d of %d bytes, %d evictions", size, bytes, maxBytes, evictions);
+    }
+}
@@ -167,7 +167,7 @@ public class PartialMerkleTree extends Message {
         } else {
             right = left;
         }
-        return combineLeftRight(left.getBytes(), right.getBytes());
+        return MerkleHasher.combine(left, right);
     }
 
     // helper function to efficiently calculate the number of nodes at given height in the merkle tree
@@ -199,24 +199,19 @@ public class PartialMerkleTree extends Message {
             return hash;
         } else {
             // otherwise, descend into the subtrees to extract matched txids and hashes
-            byte[] left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes).getBytes(), right;
+            Sha256Hash left = recursiveExtractHashes(height - 1, pos * 2, used, matchedHashes), right;
             if (pos * 2 + 1 < getTreeWidth(transactionCount, height-1)) {
-                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes).getBytes();
-                if (Arrays.equals(right, left))
+                right = recursiveExtractHashes(height - 1, pos * 2 + 1, used, matchedHashes);
+                if (right.equals(left))
                     throw new VerificationException("Invalid merkle tree with duplicated left/right branches");
             } else {
                 right = left;
             }
             // and combine them before returning
-            return combineLeftRight(left, right);
+            return MerkleHasher.combine(left, right);
         }
     }
 
-    private static Sha256Hash combineLeftRight(byte[] left, byte[] right) {
-        return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
-            reverseBytes(left), 0, 32,
-            reverseBytes(right), 0, 32));
-    }
 
     /**
      * Extracts tx hashes that are in this merkle tree
@@ -124,6 +124,8 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<>();
+    // Set by the PeerGroup to download blocks from several peers at once, see BlockDownloadScheduler.
+    @Nullable private volatile BlockDownloadScheduler vBlockDownloadScheduler;
     // Keep references to TransactionConfidence objects for transactions that were announced by a remote peer, but
     // which we haven't downloaded yet. These objects are de-duplicated by the TxConfidenceTable class.
     // Once the tx is downloaded (by some peer), the Transaction object that is created will have a reference to
@@ -154,6 +156,28 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<PendingPing> pendingPings;
     private static final int PING_MOVING_AVERAGE_WINDOW = 20;
 
+    // Measurements that go into the score of the peer, see getScore().
+    private final ReentrantLock scoreLock = new ReentrantLock();
+    // The getdata each block we are waiting for was asked for in, to measure how long the peer takes to send them.
+    @GuardedBy("scoreLock") private final Map<Sha256Hash, BlockRequest> blockRequests = new HashMap<>();
+    @GuardedBy("scoreLock") private double getDataLatencyMillis = -1;
+    @GuardedBy("scoreLock") private long blocksReceived, blockBytesReceived, busyMillis, busySinceMillis;
+    @GuardedBy("scoreLock") private long itemsRequested, notFoundItems, rejectsReceived;
+    private static final int GETDATA_LATENCY_AVERAGE_WINDOW = 20;
+    // Block requests that weren't answered in this time are forgotten, the peer is counted as busy until then.
+    private static final long BLOCK_REQUEST_EXPIRY_MILLIS = 60 * 1000;
+
+    // A getdata asking for blocks. Only the first block answering it is a latency sample, the others were queued behind
+    // it and their wait is counted as transfer time instead.
+    private static class BlockRequest {
+        final long timeMillis;
+        boolean answered;
+
+        BlockRequest(long timeMillis) {
+            this.timeMillis = timeMillis;
+        }
+    }
+
     private volatile VersionMessage vPeerVersionMessage;
 
     // A settable future which completes (with this) when the connection is open
@@ -512,6 +536,7 @@ public class Peer extends PeerSocketHandler {
             processUTXOMessage((UTXOsMessage) m);
         } else if (m instanceof RejectMessage) {
             log.error("{} {}: Received {}", this, getPeerVersionMessage().subVer, m);
+            recordReject();
         } else {
             log.warn("{}: Received unhandled message: {}", this, m);
         }
@@ -612,6 +637,7 @@ public class Peer extends PeerSocketHandler {
         // FilteredBlock) or when a tx that isn't needed by that block is found. A ping message is sent after
         // a getblocks, to force the non-tx message path.
         currentFilteredBlock = m;
+        recordBlockReceived(m.getHash(), m);
         // Potentially refresh the server side filter. Because the remote node adds hits back into the filter
         // to save round-tripping back through us, the filter degrades over time as false positives get added,
         // triggering yet more false positives. We refresh it every so often to get the FP rate back down.
@@ -622,6 +648,7 @@ public class Peer extends PeerSocketHandler {
     }
 
     protected void processNotFoundMessage(NotFoundMessage m) {
+        recordNotFound(m);
         // This is received when we previously did a getdata but the peer couldn't find what we requested in it's
         // memory pool. Typically, because we are downloading dependencies of a relevant transaction and reached
         // the bottom of the dependency tree (where the unconfirmed transactions connect to transactions that are
@@ -680,44 +707,51 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header, null);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
-                    lock.lock();
-                    try {
-                        log.info(
-                                "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
-                                Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
-                                m.getBlockHeaders().size() - i);
-                        this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
-                    } finally {
-                        lock.unlock();
-                    }
+            List<Block> headers = m.getBlockHeaders();
+            // Process headers until we pass the fast catchup time, or are about to catch up with the head of the chain
+            // - always process the last block as a full/filtered block to kick us out of the fast catchup mode (in
+            // which we ignore new blocks).
+            final int startHeight = blockChain.getBestChainHeight();
+            final long peerHeight = vPeerVersionMessage.bestHeight;
+            int count = 0;
+            while (count < headers.size() && headers.get(count).getTimeSeconds() < fastCatchupTimeSecs
+                    && startHeight + count < peerHeight)
+                count++;
+            if (count > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
                     return;
                 }
+                // The headers are stored together, which is much cheaper than adding them one at a time.
+                int added = blockChain.addHeaders(headers.subList(0, count));
+                // Notify the user of our progress.
+                for (int i = 0; i < added; i++)
+                    invokeOnBlocksDownloaded(headers.get(i), null,
+                            Math.max(0, (int) (peerHeight - (startHeight + i + 1))));
+                if (added < count) {
+                    // This block is unconnected - we don't know how to get from it back to the genesis block yet.
+                    // That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected header from peer: " +
+                            headers.get(added).getHashAsString());
+                }
+            }
+            if (count < headers.size()) {
+                lock.lock();
+                try {
+                    log.info(
+                            "Passed the fast catchup time ({}) at height {}, discarding {} headers and requesting full blocks",
+                            Utils.dateTimeFormat(fastCatchupTimeSecs * 1000), blockChain.getBestChainHeight() + 1,
+                            headers.size() - count);
+                    this.downloadBlockBodies = true;
+                    // Prevent this request being seen as a duplicate.
+                    this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
@@ -957,6 +991,7 @@ public class Peer extends PeerSocketHandler {
                 }
             });
             // Start the operation.
+            recordGetData(getdata);
             sendMessage(getdata);
         } catch (Exception e) {
             log.error("{}: Couldn't send getdata in downloadDependencies({})", this, tx.getHash(), e);
@@ -972,18 +1007,28 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast block {}", getAddress(), m.getHashAsString());
         }
+        recordBlockReceived(m.getHash(), m);
         // Was this block requested by getBlock()?
         if (maybeHandleRequestedData(m)) return;
         if (blockChain == null) {
             log.debug("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        // Was this block requested by the scheduler, on behalf of the download peer?
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.received(this, m, null)) return;
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHashAsString());
             return;
         }
         pendingBlockDownloads.remove(m.getHash());
+        processDownloadedBlock(m);
+    }
+
+    // Adds a block downloaded as part of the chain download to the chain, and continues the download if it is an
+    // orphan. Also called by the BlockDownloadScheduler with blocks other peers downloaded for this one.
+    void processDownloadedBlock(Block m) {
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -1033,6 +1078,9 @@ public class Peer extends PeerSocketHandler {
     protected void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        // Was this block requested by the scheduler, on behalf of the download peer?
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && scheduler.received(this, m.getBlockHeader(), m)) return;
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1045,6 +1093,11 @@ public class Peer extends PeerSocketHandler {
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
         pendingBlockDownloads.remove(m.getBlockHeader().getHash());
+        processDownloadedFilteredBlock(m);
+    }
+
+    // The counterpart of processDownloadedBlock for filtered blocks.
+    void processDownloadedFilteredBlock(FilteredBlock m) {
         try {
             // It's a block sent to us because the peer thought we needed it, so maybe add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -1154,7 +1207,11 @@ public class Peer extends PeerSocketHandler {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
-        final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
+        invokeOnBlocksDownloaded(block, fb,
+                Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight()));
+    }
+
+    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb, final int blocksLeft) {
         for (final ListenerRegistration<BlocksDownloadedEventListener> registration : blocksDownloadedEventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -1233,6 +1290,13 @@ public class Peer extends PeerSocketHandler {
         // end to the final FilteredBlock's transactions (in the form of a pong) sent to us
         boolean pingAfterGetData = false;
 
+        // When downloading from several peers, the blocks are requested through the scheduler instead.
+        BlockDownloadScheduler scheduler = vBlockDownloadScheduler;
+        if (scheduler != null && !scheduler.isEnabled())
+            scheduler = null;
+        List<Sha256Hash> scheduledBlocks = new LinkedList<>();
+        boolean scheduleFilteredBlocks = false;
+
         lock.lock();
         try {
             if (blocks.size() > 0 && downloadData && blockChain != null) {
@@ -1258,7 +1322,11 @@ public class Peer extends PeerSocketHandler {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But Bitcoin Core may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
+                        if (scheduler != null && downloadBlockBodies) {
+                            // The scheduler skips blocks it already requested itself.
+                            scheduledBlocks.add(item.hash);
+                            scheduleFilteredBlocks = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+                        } else if (!pendingBlockDownloads.contains(item.hash)) {
                             if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
                                 getdata.addFilteredBlock(item.hash);
                                 pingAfterGetData = true;
@@ -1281,11 +1349,36 @@ public class Peer extends PeerSocketHandler {
 
         if (!getdata.getItems().isEmpty()) {
             // This will cause us to receive a bunch of block or tx messages.
+            recordGetData(getdata);
             sendMessage(getdata);
         }
 
         if (pingAfterGetData)
             sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+
+        if (!scheduledBlocks.isEmpty())
+            scheduler.request(this, scheduledBlocks, scheduleFilteredBlocks);
+    }
+
+    /** Asks the remote peer for the given blocks, on behalf of the {@link BlockDownloadScheduler}. */
+    void requestBlocks(List<Sha256Hash> hashes, boolean filtered) {
+        GetDataMessage getdata = new GetDataMessage(params);
+        for (Sha256Hash hash : hashes) {
+            if (filtered)
+                getdata.addFilteredBlock(hash);
+            else
+                getdata.addBlock(hash);
+        }
+        recordGetData(getdata);
+        sendMessage(getdata);
+        // As in processInv, the pong marks the end of the transactions of the last filtered block.
+        if (filtered)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
+    /** Sets the scheduler that blocks are downloaded through when downloading from several peers. */
+    void setBlockDownloadScheduler(@Nullable BlockDownloadScheduler scheduler) {
+        this.vBlockDownloadScheduler = scheduler;
     }
 
     /**
@@ -1329,6 +1422,7 @@ public class Peer extends PeerSocketHandler {
         Preconditions.checkArgument(getdata.getItems().size() == 1);
         GetDataRequest req = new GetDataRequest(getdata.getItems().get(0).hash, SettableFuture.create());
         getDataFutures.add(req);
+        recordGetData(getdata);
         sendMessage(getdata);
         return req.future;
     }
@@ -1426,8 +1520,6 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<>(51);
         // For now we don't do the exponential thinning as suggested here:
         //
         //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
@@ -1449,19 +1541,14 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled())
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     this, toHash, chainHead.getHeader().getHashAsString());
-        StoredBlock cursor = chainHead;
-        for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
-            try {
-                cursor = cursor.getPrev(store);
-            } catch (BlockStoreException e) {
-                log.error("Failed to walk the block chain whilst constructing a locator");
-                throw new RuntimeException(e);
-            }
+        // The best chain index serves the locator from memory once it has been walked for the first time.
+        List<Sha256Hash> blockLocator;
+        try {
+            blockLocator = blockChain.getBestChainIndex().getLocator(store);
+        } catch (BlockStoreException e) {
+            log.error("Failed to walk the block chain whilst constructing a locator");
+            throw new RuntimeException(e);
         }
-        // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
-        if (cursor != null)
-            blockLocator.add(params.getGenesisBlock().getHash());
 
         // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
         // block being solved during chain download.
@@ -1530,6 +1617,105 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    private void recordGetData(GetDataMessage getdata) {
+        long now = Utils.currentTimeMillis();
+        scoreLock.lock();
+        try {
+            expireBlockRequests(now);
+            itemsRequested += getdata.getItems().size();
+            BlockRequest request = new BlockRequest(now);
+            for (InventoryItem item : getdata.getItems()) {
+                if (item.type != InventoryItem.Type.Block && item.type != InventoryItem.Type.FilteredBlock)
+                    continue;
+                if (blockRequests.isEmpty())
+                    busySinceMillis = now;
+                if (!blockRequests.containsKey(item.hash))
+                    blockRequests.put(item.hash, request);
+            }
+        } finally {
+            scoreLock.unlock();
+        }
+    }
+
+    private void recordBlockReceived(Sha256Hash hash, Message m) {
+        long now = Utils.currentTimeMillis();
+        scoreLock.lock();
+        try {
+            BlockRequest request = blockRequests.remove(hash);
+            if (request == null)
+                return;  // Not asked for, or the request expired.
+            if (!request.answered) {
+                request.answered = true;
+                long sample = now - request.timeMillis;
+                if (getDataLatencyMillis < 0)
+                    getDataLatencyMillis = sample;
+                else
+                    getDataLatencyMillis += (sample - getDataLatencyMillis) / GETDATA_LATENCY_AVERAGE_WINDOW;
+            }
+            blocksReceived++;
+            blockBytesReceived += Math.max(0, m.length);
+            if (blockRequests.isEmpty())
+                busyMillis += now - busySinceMillis;
+        } finally {
+            scoreLock.unlock();
+        }
+    }
+
+    private void recordNotFound(NotFoundMessage m) {
+        long now = Utils.currentTimeMillis();
+        scoreLock.lock();
+        try {
+            notFoundItems += m.getItems().size();
+            boolean busy = !blockRequests.isEmpty();
+            for (InventoryItem item : m.getItems())
+                blockRequests.remove(item.hash);
+            if (busy && blockRequests.isEmpty())
+                busyMillis += now - busySinceMillis;
+        } finally {
+            scoreLock.unlock();
+        }
+    }
+
+    private void recordReject() {
+        scoreLock.lock();
+        try {
+            rejectsReceived++;
+        } finally {
+            scoreLock.unlock();
+        }
+    }
+
+    @GuardedBy("scoreLock")
+    private void expireBlockRequests(long now) {
+        if (blockRequests.isEmpty())
+            return;
+        Iterator<BlockRequest> it = blockRequests.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().timeMillis >= BLOCK_REQUEST_EXPIRY_MILLIS)
+                it.remove();
+        }
+        if (blockRequests.isEmpty())
+            busyMillis += now - busySinceMillis;
+    }
+
+    /**
+     * Returns how well the peer has been serving us so far: its ping time, how long it takes to send the blocks we ask
+     * for, how fast it sends them and how often it fails requests. See {@link PeerScore}.
+     */
+    public PeerScore getScore() {
+        long pingMillis = getPingTime();
+        long now = Utils.currentTimeMillis();
+        scoreLock.lock();
+        try {
+            expireBlockRequests(now);
+            long busy = busyMillis + (blockRequests.isEmpty() ? 0 : now - busySinceMillis);
+            return new PeerScore(pingMillis, Math.round(getDataLatencyMillis), blocksReceived, blockBytesReceived,
+                    busy, itemsRequested, notFoundItems, rejectsReceived);
+        } finally {
+            scoreLock.unlock();
+        }
+    }
+
     /** Adds a ping time sample to the averaging window. */
     private void addPingTimeData(long sample) {
         lastPingTimesLock.lock();
@@ -1759,6 +1945,7 @@ public class Peer extends PeerSocketHandler {
                     lock.unlock();
 
                     log.info("Restarting chain download");
+                    recordGetData(getdata);
                     sendMessage(getdata);
                     // TODO: This bizarre ping-after-getdata hack probably isn't necessary.
                     // It's to ensure we know when the end of a filtered block stream of txns is, but we should just be
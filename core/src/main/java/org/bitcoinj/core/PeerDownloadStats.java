@@ -0,0 +1,84 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of how fast one peer served the blocks a {@link BlockDownloadScheduler} asked it for. Throughput is
+ * measured over the time the peer had requests in flight, so it isn't diluted by the time it was waiting for work.
+ */
+public class PeerDownloadStats {
+    private final PeerAddress address;
+    private final int blocksInFlight;
+    private final long blocksReceived;
+    private final long bytesReceived;
+    private final long stalls;
+    private final long busyMillis;
+
+    PeerDownloadStats(PeerAddress address, int blocksInFlight, long blocksReceived, long bytesReceived, long stalls,
+                      long busyMillis) {
+        this.address = address;
+        this.blocksInFlight = blocksInFlight;
+        this.blocksReceived = blocksReceived;
+        this.bytesReceived = bytesReceived;
+        this.stalls = stalls;
+        this.busyMillis = busyMillis;
+    }
+
+    public PeerAddress getAddress() {
+        return address;
+    }
+
+    /** Returns the number of blocks the peer was asked for and didn't send yet. */
+    public int getBlocksInFlight() {
+        return blocksInFlight;
+    }
+
+    public long getBlocksReceived() {
+        return blocksReceived;
+    }
+
+    /** Returns the size of the blocks received, not counting the transactions sent along with filtered blocks. */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    /** Returns how many blocks were asked from another peer because this one didn't send them in time. */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /** Returns the time the peer had blocks in flight. */
+    public long getBusyMillis() {
+        return busyMillis;
+    }
+
+    public double getBlocksPerSecond() {
+        return busyMillis == 0 ? 0 : blocksReceived * 1000.0 / busyMillis;
+    }
+
+    public double getBytesPerSecond() {
+        return busyMillis == 0 ? 0 : bytesReceived * 1000.0 / busyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d blocks in flight, %d blocks received (%.1f/sec), %.1f KB/sec, %d stalls",
+                address, blocksInFlight, blocksReceived, getBlocksPerSecond(), getBytesPerSecond() / 1024, stalls);
+    }
+}
@@ -28,6 +28,8 @@ import org.bitcoinj.core.listeners.*;
 import org.bitcoinj.net.*;
 import org.bitcoinj.net.discovery.*;
 import org.bitcoinj.script.*;
+import org.bitcoinj.store.BlockArchive;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.*;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
@@ -284,6 +286,11 @@ public class PeerGroup implements TransactionBroadcaster {
     /** Whether bloom filter support is enabled when using a non FullPrunedBlockchain*/
     private volatile boolean vBloomFilteringEnabled = true;
 
+    @Nullable private volatile BlockArchive blockArchive;
+
+    // Spreads the chain download over several peers, once enabled with setMaxBlockDownloadPeers.
+    private final BlockDownloadScheduler blockDownloadScheduler = new BlockDownloadScheduler();
+
     /** See {@link #PeerGroup(Context)} */
     public PeerGroup(NetworkParameters params) {
         this(params, null);
@@ -537,13 +544,32 @@ public class PeerGroup implements TransactionBroadcaster {
     }
 
     private List<Message> handleGetData(GetDataMessage m) {
-        // Scans the wallets and memory pool for transactions in the getdata message and returns them.
-        // Runs on peer threads.
+        // Scans the wallets and memory pool for transactions in the getdata message and returns them, along with the
+        // blocks found in the block archive. Runs on peer threads.
+        LinkedList<Message> transactions = new LinkedList<>();
+        LinkedList<InventoryItem> items = new LinkedList<>(m.getItems());
+        BlockArchive archive = blockArchive;
+        Iterator<InventoryItem> it = items.iterator();
+        while (it.hasNext()) {
+            InventoryItem item = it.next();
+            if (archive == null || item.type != InventoryItem.Type.Block)
+                continue;
+            // Read from disk without holding the lock. The block keeps the bytes it was parsed from, so it is sent
+            // exactly as stored rather than serialized again.
+            try {
+                byte[] bytes = archive.getBlockBytes(item.hash);
+                if (bytes != null)
+                    transactions.add(params.getSerializer(true).makeBlock(bytes));
+            } catch (BlockStoreException e) {
+                log.warn("Could not read block {} from the archive", item.hash, e);
+            } catch (ProtocolException e) {
+                log.warn("Corrupt block {} in the archive", item.hash, e);
+            }
+            it.remove();
+        }
         lock.lock();
         try {
-            LinkedList<Message> transactions = new LinkedList<>();
-            LinkedList<InventoryItem> items = new LinkedList<>(m.getItems());
-            Iterator<InventoryItem> it = items.iterator();
+            it = items.iterator();
             while (it.hasNext()) {
                 InventoryItem item = it.next();
                 // Check the wallets.
@@ -1065,6 +1091,8 @@ public class PeerGroup implements TransactionBroadcaster {
                     channels.awaitRunning();
                     triggerConnections();
                     setupPinging();
+                    setupBlockDownloadStallChecks();
+                    setupPeerScoreChecks();
                 } catch (Throwable e) {
                     log.error("Exception when starting up", e);  // The executor swallows exceptions :(
                 }
@@ -1524,6 +1552,8 @@ public class PeerGroup implements TransactionBroadcaster {
             // OK because it helps improve wallet privacy. Old nodes will just ignore the message.
             if (bloomFilterMerger.getLastFilter() != null) peer.setBloomFilter(bloomFilterMerger.getLastFilter());
             peer.setDownloadData(false);
+            peer.setBlockDownloadScheduler(blockDownloadScheduler);
+            blockDownloadScheduler.addPeer(peer);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
@@ -1599,6 +1629,108 @@ public class PeerGroup implements TransactionBroadcaster {
         }, getPingIntervalMsec(), getPingIntervalMsec(), TimeUnit.MILLISECONDS);
     }
 
+    private void setupBlockDownloadStallChecks() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blockDownloadScheduler.checkStalls();
+                } catch (Throwable e) {
+                    log.error("Exception when checking for stalled block downloads", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void setupPeerScoreChecks() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkPeerScores();
+                } catch (Throwable e) {
+                    log.error("Exception when checking peer scores", e);  // The executor swallows exceptions :(
+                }
+            }
+        }, PEER_SCORE_CHECK_INTERVAL_SECS, PEER_SCORE_CHECK_INTERVAL_SECS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compares the scores of the connected peers that sent us blocks, see {@link Peer#getScore()}. While catching up
+     * with the chain, the download peer is replaced by a peer that scores much better. Peers that score far below the
+     * others check after check are disconnected, so that faster peers are connected instead.
+     */
+    @VisibleForTesting
+    void checkPeerScores() {
+        if (!vPeerScoringEnabled)
+            return;
+        List<Peer> slowPeers = new ArrayList<>();
+        lock.lock();
+        try {
+            // Only peers that sent blocks are scored, the ping alone says little about how fast a peer serves blocks.
+            Map<Peer, Double> scores = new HashMap<>();
+            List<Double> knownScores = new ArrayList<>();
+            for (Peer peer : peers) {
+                PeerScore score = peer.getScore();
+                if (score.hasBlockSamples() && score.getScore() > 0) {
+                    scores.put(peer, score.getScore());
+                    knownScores.add(score.getScore());
+                }
+            }
+            slowPeerChecks.keySet().retainAll(peers);
+            maybeRotateDownloadPeer(scores);
+            if (knownScores.size() < MIN_PEERS_FOR_SLOW_PEER_CHECK)
+                return;
+            Collections.sort(knownScores);
+            double medianScore = knownScores.get(knownScores.size() / 2);
+            for (Peer peer : peers) {
+                Double score = scores.get(peer);
+                // The download peer is replaced by maybeRotateDownloadPeer instead, unscored peers get a chance first.
+                if (peer == downloadPeer || score == null || score >= medianScore * SLOW_PEER_SCORE_FRACTION) {
+                    slowPeerChecks.remove(peer);
+                    continue;
+                }
+                Integer checks = slowPeerChecks.get(peer);
+                checks = checks == null ? 1 : checks + 1;
+                if (checks >= SLOW_PEER_CHECKS) {
+                    slowPeerChecks.remove(peer);
+                    slowPeers.add(peer);
+                } else {
+                    slowPeerChecks.put(peer, checks);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Peer peer : slowPeers) {
+            log.info("{}: Disconnecting persistently slow peer, {}", peer, peer.getScore());
+            peer.close();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void maybeRotateDownloadPeer(Map<Peer, Double> scores) {
+        if (downloadPeer == null || downloadListener == null || chain == null)
+            return;
+        // Only while catching up with the chain, and not too often.
+        if (chain.getBestChainHeight() >= getMostCommonChainHeight(peers))
+            return;
+        if (Utils.currentTimeMillis() - downloadPeerSinceMillis < MIN_DOWNLOAD_PEER_MILLIS)
+            return;
+        Peer candidate = selectDownloadPeer(peers);
+        if (candidate == null || candidate == downloadPeer || !scores.containsKey(downloadPeer)
+                || !scores.containsKey(candidate))
+            return;
+        double downloadPeerScore = scores.get(downloadPeer);
+        double candidateScore = scores.get(candidate);
+        if (candidateScore <= downloadPeerScore * DOWNLOAD_PEER_ROTATION_FACTOR)
+            return;
+        log.info("Replacing download peer {} (score {}) with {} (score {})", downloadPeer, downloadPeerScore,
+                candidate, candidateScore);
+        // The old download peer stays connected, the blocks it requested are handed to the candidate by setDownloadPeer.
+        startBlockChainDownloadFromPeer(candidate);
+    }
+
     private void setDownloadPeer(@Nullable Peer peer) {
         lock.lock();
         try {
@@ -1612,6 +1744,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 downloadPeer.setDownloadData(false);
             }
             downloadPeer = peer;
+            downloadPeerSinceMillis = Utils.currentTimeMillis();
             if (downloadPeer != null) {
                 log.info("Setting download peer: {}", downloadPeer);
                 if (downloadListener != null) {
@@ -1621,6 +1754,8 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (chain != null)
                     downloadPeer.setDownloadParameters(fastCatchupTimeSecs, bloomFilterMerger.getLastFilter() != null);
             }
+            // Blocks the previous download peer requested go to the new one, rather than being downloaded again.
+            blockDownloadScheduler.setDownloadPeer(downloadPeer);
         } finally {
             lock.unlock();
         }
@@ -1669,6 +1804,10 @@ public class PeerGroup implements TransactionBroadcaster {
         // Peer deaths can occur during startup if a connect attempt after peer discovery aborts immediately.
         if (!isRunning()) return;
 
+        // Outside the lock, as other peers are asked for the blocks the dead one didn't send. Before a new download peer
+        // is picked, so that it takes over the blocks the dead one requested.
+        blockDownloadScheduler.removePeer(peer);
+
         int numPeers;
         int numConnectedPeers = 0;
         lock.lock();
@@ -1743,6 +1882,34 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /** How often the scores of the peers are compared, see {@link #setPeerScoringEnabled(boolean)}. */
+    public static final int PEER_SCORE_CHECK_INTERVAL_SECS = 30;
+    // The download peer is replaced by a peer scoring this many times better, but not sooner than this after it was set.
+    private static final double DOWNLOAD_PEER_ROTATION_FACTOR = 2.0;
+    private static final long MIN_DOWNLOAD_PEER_MILLIS = 60 * 1000;
+    // A peer scoring below this share of the median score in this many checks in a row is disconnected, as long as
+    // there are enough scored peers to tell.
+    private static final double SLOW_PEER_SCORE_FRACTION = 0.1;
+    private static final int SLOW_PEER_CHECKS = 3;
+    private static final int MIN_PEERS_FOR_SLOW_PEER_CHECK = 3;
+    private volatile boolean vPeerScoringEnabled = true;
+    @GuardedBy("lock") private long downloadPeerSinceMillis;
+    @GuardedBy("lock") private final Map<Peer, Integer> slowPeerChecks = new HashMap<>();
+
+    /**
+     * Sets whether the scores of the peers (see {@link Peer#getScore()}) are compared every
+     * {@link #PEER_SCORE_CHECK_INTERVAL_SECS} seconds, to replace a download peer that is much slower than another
+     * peer while catching up with the chain, and to disconnect peers that are persistently much slower than the
+     * others. Defaults to true.
+     */
+    public void setPeerScoringEnabled(boolean peerScoringEnabled) {
+        this.vPeerScoringEnabled = peerScoringEnabled;
+    }
+
+    public boolean isPeerScoringEnabled() {
+        return vPeerScoringEnabled;
+    }
+
     @GuardedBy("lock") private int stallPeriodSeconds = 10;
     @GuardedBy("lock") private int stallMinSpeedBytesSec = Block.HEADER_SIZE * 20;
 
@@ -2195,7 +2362,9 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
-        //  - Randomly, to try and spread the load.
+        //  - The best score of the peers that sent blocks, see Peer.getScore()
+        //  - The best ping if no peer sent blocks yet
+        //  - Randomly if no peer was pinged yet, to try and spread the load.
         if (peers.isEmpty())
             return null;
         // Make sure we don't select a peer that is behind/synchronizing itself.
@@ -2221,6 +2390,23 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
+        // Scores with block samples can't be compared to ping-only scores, so those only count if no peer has them.
+        Peer best = null, bestPinged = null;
+        double bestScore = 0, bestPingedScore = 0;
+        for (Peer peer : candidates2) {
+            PeerScore score = peer.getScore();
+            if (score.hasBlockSamples() && score.getScore() > bestScore) {
+                best = peer;
+                bestScore = score.getScore();
+            } else if (!score.hasBlockSamples() && score.getScore() > bestPingedScore) {
+                bestPinged = peer;
+                bestPingedScore = score.getScore();
+            }
+        }
+        if (best != null)
+            return best;
+        if (bestPinged != null)
+            return bestPinged;
         int index = (int) (Math.random() * candidates2.size());
         return candidates2.get(index);
     }
@@ -2297,4 +2483,43 @@ public class PeerGroup implements TransactionBroadcaster {
     public boolean isBloomFilteringEnabled() {
         return vBloomFilteringEnabled;
     }
+
+    /**
+     * Sets an archive to answer requests of peers for full blocks from, or null to not serve blocks. Usually this is
+     * the archive the block chain writes to, see {@link AbstractBlockChain#setBlockArchive(BlockArchive)}.
+     */
+    public void setBlockArchive(@Nullable BlockArchive blockArchive) {
+        this.blockArchive = blockArchive;
+    }
+
+    /** Returns the archive blocks are served from, or null if none was set. */
+    @Nullable
+    public BlockArchive getBlockArchive() {
+        return blockArchive;
+    }
+
+    /**
+     * Sets how many peers blocks are downloaded from at the same time during chain download. By default this is one,
+     * and the download peer fetches all blocks itself. Above one, the download peer still asks for the inventories
+     * of missing blocks, but the blocks themselves are requested from several peers at once, with a window of blocks
+     * in flight on each of them, see {@link BlockDownloadScheduler}.
+     */
+    public void setMaxBlockDownloadPeers(int maxPeers) {
+        blockDownloadScheduler.setMaxPeers(maxPeers);
+    }
+
+    /** Returns how many peers blocks are downloaded from at the same time, see {@link #setMaxBlockDownloadPeers(int)}. */
+    public int getMaxBlockDownloadPeers() {
+        return blockDownloadScheduler.getMaxPeers();
+    }
+
+    /** Returns the scheduler used to download blocks from several peers, to tune its window and stall timeout. */
+    public BlockDownloadScheduler getBlockDownloadScheduler() {
+        return blockDownloadScheduler;
+    }
+
+    /** Returns how fast each connected peer served the blocks it was asked for by the block download scheduler. */
+    public List<PeerDownloadStats> getBlockDownloadStats() {
+        return blockDownloadScheduler.getStats();
+    }
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.Locale;
+
+/**
+ * <p>A snapshot of how well a {@link Peer} has been serving us, as returned by {@link Peer#getScore()}. It is made of
+ * the average ping time, how long the peer takes to answer getdata requests for blocks, how fast it delivers blocks
+ * while it has requests outstanding, and how often it answers with notfound or reject messages.</p>
+ *
+ * <p>These are combined into {@link #getScore()}, which is roughly how many requests a second the peer answers
+ * successfully, and is only meaningful compared to the scores of other peers. {@link PeerGroup} uses it to choose the
+ * download peer and to replace peers that are persistently much slower than the others.</p>
+ */
+public class PeerScore {
+    // Failures are counted against at least this many requests, so a single early notfound doesn't ruin a peer.
+    private static final int MIN_REQUESTS_FOR_FAILURE_RATE = 10;
+
+    private final long pingMillis;
+    private final long getDataLatencyMillis;
+    private final long blocksReceived;
+    private final long blockBytesReceived;
+    private final long busyMillis;
+    private final long itemsRequested;
+    private final long notFound;
+    private final long rejects;
+
+    PeerScore(long pingMillis, long getDataLatencyMillis, long blocksReceived, long blockBytesReceived,
+              long busyMillis, long itemsRequested, long notFound, long rejects) {
+        this.pingMillis = pingMillis;
+        this.getDataLatencyMillis = getDataLatencyMillis;
+        this.blocksReceived = blocksReceived;
+        this.blockBytesReceived = blockBytesReceived;
+        this.busyMillis = busyMillis;
+        this.itemsRequested = itemsRequested;
+        this.notFound = notFound;
+        this.rejects = rejects;
+    }
+
+    /** Returns the average ping time, or Long.MAX_VALUE if the peer was not pinged yet. See {@link Peer#getPingTime()}. */
+    public long getPingMillis() {
+        return pingMillis;
+    }
+
+    /**
+     * Returns the moving average of the time between sending the peer a getdata for blocks and receiving the first of
+     * them, or -1 if no block was received yet.
+     */
+    public long getGetDataLatencyMillis() {
+        return getDataLatencyMillis;
+    }
+
+    public long getBlocksReceived() {
+        return blocksReceived;
+    }
+
+    /**
+     * Returns true if the peer sent blocks we asked for, so that the getdata latency and time per block are measured.
+     * Only the scores of such peers are compared with each other.
+     */
+    public boolean hasBlockSamples() {
+        return blocksReceived > 0 && getDataLatencyMillis >= 0;
+    }
+
+    /** Returns the speed blocks were received at, over the time there were requests for blocks outstanding. */
+    public double getBytesPerSecond() {
+        return busyMillis == 0 ? 0 : blockBytesReceived * 1000.0 / busyMillis;
+    }
+
+    /** Returns the average time the peer spent per block while there were requests for blocks outstanding. */
+    public long getMillisPerBlock() {
+        return blocksReceived == 0 ? 0 : busyMillis / blocksReceived;
+    }
+
+    /** Returns the number of items asked from the peer with getdata. */
+    public long getItemsRequested() {
+        return itemsRequested;
+    }
+
+    /** Returns the number of requested items the peer said it didn't have. */
+    public long getNotFound() {
+        return notFound;
+    }
+
+    /** Returns the number of reject messages the peer sent. */
+    public long getRejects() {
+        return rejects;
+    }
+
+    /** Returns the share of requests that failed, counting reject messages as failed requests. */
+    public double getFailureRate() {
+        return Math.min(1.0, (double) (notFound + rejects) / Math.max(MIN_REQUESTS_FOR_FAILURE_RATE, itemsRequested));
+    }
+
+    /**
+     * Returns the score of the peer, higher is better. It is the number of requests a second the peer would answer if
+     * each took a ping, the getdata latency and the time per block, reduced by the failure rate. Peers that were not
+     * pinged yet score zero. For peers without {@link #hasBlockSamples() block samples} the score is based on the ping
+     * alone, and can't be compared to the score of a peer that sent blocks.
+     */
+    public double getScore() {
+        if (pingMillis == Long.MAX_VALUE)
+            return 0;
+        long millis = pingMillis + Math.max(0, getDataLatencyMillis) + getMillisPerBlock();
+        return (1 - getFailureRate()) * 1000.0 / Math.max(1, millis);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "score %.2f: ping %d ms, getdata latency %d ms, %d blocks (%.1f KB/sec), %d requested, %d not found, %d rejects",
+                getScore(), pingMillis == Long.MAX_VALUE ? -1 : pingMillis, getDataLatencyMillis, blocksReceived,
+                getBytesPerSecond() / 1024, itemsRequested, notFound, rejects);
+    }
+}
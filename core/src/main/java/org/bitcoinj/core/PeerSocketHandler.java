@@ -24,7 +24,6 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -51,10 +50,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BitcoinSerializer.BitcoinPacketHeader header;
+    // messages which are larger than the read buffer, we collect its payload as it arrives, hashing it along the way.
+    private BitcoinSerializer.PayloadReader largeReader;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
@@ -83,11 +80,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBytes(serializer.serialize(message));
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -129,19 +123,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             boolean firstMessage = true;
             while (true) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
+                if (largeReader != null) {
                     // This can only happen in the first iteration
                     checkState(firstMessage);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
+                    // Read new bytes into the largeReader, processing a message if it is complete
+                    if (largeReader.read(buff)) {
+                        BitcoinSerializer.PayloadReader reader = largeReader;
+                        largeReader = null;
+                        processMessage(serializer.deserializePayload(reader));
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -152,21 +141,19 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 try {
                     message = serializer.deserialize(buff);
                 } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
+                    // If we went through the whole buffer without a full message, we need to use the largeReader
                     if (firstMessage && buff.limit() == buff.capacity()) {
                         // ...so reposition the buffer to 0 and read the next message header
                         buff.position(0);
                         try {
                             serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(buff);
+                            // Start the largeReader on the next message and fill it with any bytes left in buff
+                            largeReader = new BitcoinSerializer.PayloadReader(header);
+                            largeReader.read(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
+                            // In cases where the buff is just really small, we could create a second buffer
                             // that we use to deserialize the magic+header, but that is rather complicated when the buff
                             // should probably be at least that big anyway (for efficiency)
                             throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
@@ -0,0 +1,82 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>A ScriptVerificationEngine runs the input scripts of transactions being connected by a
+ * {@link FullPrunedBlockChain}. The chain opens a {@link Batch} per block, adds every non-coinbase transaction to it
+ * as soon as the spent outputs have been looked up, and finally waits for the verdict with {@link Batch#verify()}.
+ * Implementations are free to start checking inputs as soon as they are added, so script execution overlaps with the
+ * UTXO bookkeeping the chain does for the rest of the block.</p>
+ *
+ * <p>An engine is long-lived and shared across blocks. A failed or cancelled batch must not affect the engine itself
+ * or any other batch. The default implementation is {@link ForkJoinScriptVerificationEngine}.</p>
+ */
+public interface ScriptVerificationEngine {
+    /** Starts a new batch of input scripts to verify. */
+    Batch newBatch();
+
+    /**
+     * Returns the total number of inputs this engine has verified (successfully or not) since it was created.
+     */
+    long getInputsVerified();
+
+    /**
+     * Returns the average number of inputs per second verified while at least one batch was in progress.
+     */
+    double getInputsPerSecond();
+
+    /** Returns the number of inputs that have been added to a batch but not yet verified. */
+    int getQueueDepth();
+
+    /** Stops any worker threads owned by this engine. The engine cannot be used afterwards. */
+    void shutdown();
+
+    /**
+     * A set of input scripts belonging to one block. Not thread safe: a batch is filled and verified by one thread.
+     */
+    interface Batch {
+        /**
+         * Adds all inputs of the given transaction to the batch. The transaction must not be modified afterwards
+         * until {@link #verify()} or {@link #cancel()} returned.
+         *
+         * @param tx the spending transaction
+         * @param prevOutScripts the scriptPubKeys of the spent outputs, in input order
+         * @param verifyFlags the script verification flags to apply
+         */
+        void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags);
+
+        /**
+         * Waits for all inputs added so far to be verified.
+         *
+         * @throws VerificationException the failure of the first failing input found
+         */
+        void verify() throws VerificationException;
+
+        /**
+         * Abandons the batch. Inputs which are not yet verified will be skipped; inputs already being verified are
+         * waited for, so no work on the batch is left running once this returns.
+         */
+        void cancel();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>A read-only view of a serialized transaction, backed by a slice of the buffer it was read from. Unlike
+ * {@link Transaction}, which copies its payload into inputs, outputs and scripts when it is parsed, a view decodes a
+ * field only when it is asked for, and hands out scripts as slices of the same buffer. It suits code that only needs
+ * to hash or scan transactions, such as filtering or pruning blocks.</p>
+ *
+ * <p>Creating a view walks the transaction once to find where it ends. The positions of the inputs and outputs are
+ * recorded the first time one of them is accessed. Use {@link #toTransaction()} to get a full, mutable transaction.
+ * </p>
+ *
+ * <p>The underlying bytes must not change while the view is in use. Instances are not thread safe.</p>
+ */
+public class TransactionView {
+    private final NetworkParameters params;
+    private final ByteBuffer buffer;
+    private final int inputCount, outputCount;
+    // Start of the first input and the first output.
+    private final int inputsStart, outputsStart;
+    // Start of each input and output, filled in on first access.
+    @Nullable private int[] inputOffsets, outputOffsets;
+    @Nullable private Sha256Hash hash;
+
+    /**
+     * Creates a view of the transaction that starts at the position of the given buffer. The position of the buffer is
+     * moved past the transaction.
+     *
+     * @throws ProtocolException if the buffer does not hold a complete transaction.
+     */
+    public TransactionView(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
+        this.params = params;
+        ByteBuffer in = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            int cursor = 4;
+            long inputs = readVarInt(in, cursor);
+            this.inputCount = checkCount(inputs);
+            cursor += VarInt.sizeOf(inputs);
+            this.inputsStart = cursor;
+            for (int i = 0; i < inputCount; i++)
+                cursor = skipInput(in, cursor);
+            long outputs = readVarInt(in, cursor);
+            this.outputCount = checkCount(outputs);
+            cursor += VarInt.sizeOf(outputs);
+            this.outputsStart = cursor;
+            for (int i = 0; i < outputCount; i++)
+                cursor = skipOutput(in, cursor);
+            cursor += 4;
+            if (cursor > in.limit())
+                throw new ProtocolException("Transaction is truncated");
+            in.limit(cursor);
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        }
+        this.buffer = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + this.buffer.limit());
+    }
+
+    /** Returns the hash of the transaction, computed from the serialized bytes the first time it is asked for. */
+    public Sha256Hash getHash() {
+        if (hash == null) {
+            MessageDigest digest = Sha256Hash.newDigest();
+            digest.update(buffer.duplicate());
+            hash = Sha256Hash.wrapReversed(digest.digest(digest.digest()));
+        }
+        return hash;
+    }
+
+    /** Returns the length of the serialized transaction in bytes. */
+    public int getMessageSize() {
+        return buffer.limit();
+    }
+
+    public long getVersion() {
+        return buffer.getInt(0) & 0xffffffffL;
+    }
+
+    public long getLockTime() {
+        return buffer.getInt(buffer.limit() - 4) & 0xffffffffL;
+    }
+
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    public int getOutputCount() {
+        return outputCount;
+    }
+
+    /** Returns true if this is a coinbase transaction, which has a single input that spends no output. */
+    public boolean isCoinBase() {
+        if (inputCount != 1)
+            return false;
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            if (buffer.get(inputsStart + i) != 0)
+                return false;
+        return getOutPointIndex(0) == 0xffffffffL;
+    }
+
+    /** Returns the hash of the transaction whose output is spent by the given input. */
+    public Sha256Hash getOutPointHash(int input) {
+        return readHash(buffer, inputOffset(input));
+    }
+
+    /** Returns the index of the output spent by the given input. */
+    public long getOutPointIndex(int input) {
+        return buffer.getInt(inputOffset(input) + Sha256Hash.LENGTH) & 0xffffffffL;
+    }
+
+    /** Returns a read-only slice holding the script of the given input. */
+    public ByteBuffer getInputScript(int input) {
+        return scriptSlice(inputOffset(input) + TransactionOutPoint.MESSAGE_LENGTH);
+    }
+
+    public long getInputSequenceNumber(int input) {
+        int offset = inputOffset(input) + TransactionOutPoint.MESSAGE_LENGTH;
+        long scriptLength = readVarInt(buffer, offset);
+        return buffer.getInt(offset + VarInt.sizeOf(scriptLength) + (int) scriptLength) & 0xffffffffL;
+    }
+
+    public Coin getOutputValue(int output) {
+        return Coin.valueOf(buffer.getLong(outputOffset(output)));
+    }
+
+    /** Returns a read-only slice holding the script of the given output. */
+    public ByteBuffer getOutputScript(int output) {
+        return scriptSlice(outputOffset(output) + 8);
+    }
+
+    /** Returns a read-only slice holding the serialized transaction. */
+    public ByteBuffer asReadOnlyBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /** Parses the viewed bytes into a full {@link Transaction}. */
+    public Transaction toTransaction() throws ProtocolException {
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.duplicate().get(bytes);
+        return params.getDefaultSerializer().makeTransaction(bytes, 0, bytes.length, getHash().getReversedBytes());
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionView{" + getHash() + ", " + inputCount + " inputs, " + outputCount + " outputs}";
+    }
+
+    private int inputOffset(int input) {
+        checkElementIndex(input, inputCount);
+        if (inputOffsets == null) {
+            inputOffsets = new int[inputCount];
+            int cursor = inputsStart;
+            for (int i = 0; i < inputCount; i++) {
+                inputOffsets[i] = cursor;
+                cursor = skipInput(buffer, cursor);
+            }
+        }
+        return inputOffsets[input];
+    }
+
+    private int outputOffset(int output) {
+        checkElementIndex(output, outputCount);
+        if (outputOffsets == null) {
+            outputOffsets = new int[outputCount];
+            int cursor = outputsStart;
+            for (int i = 0; i < outputCount; i++) {
+                outputOffsets[i] = cursor;
+                cursor = skipOutput(buffer, cursor);
+            }
+        }
+        return outputOffsets[output];
+    }
+
+    // A script is a var int length followed by that many bytes.
+    private ByteBuffer scriptSlice(int offset) {
+        long length = readVarInt(buffer, offset);
+        ByteBuffer script = buffer.duplicate();
+        script.position(offset + VarInt.sizeOf(length));
+        script.limit(script.position() + (int) length);
+        return script.slice().asReadOnlyBuffer();
+    }
+
+    private static int skipInput(ByteBuffer in, int cursor) {
+        cursor += TransactionOutPoint.MESSAGE_LENGTH;
+        long scriptLength = readLength(in, cursor);
+        return checkOffset(in, cursor + VarInt.sizeOf(scriptLength) + scriptLength + 4);
+    }
+
+    private static int skipOutput(ByteBuffer in, int cursor) {
+        cursor += 8;
+        long scriptLength = readLength(in, cursor);
+        return checkOffset(in, cursor + VarInt.sizeOf(scriptLength) + scriptLength);
+    }
+
+    // Reads a length prefix. A length that doesn't fit in the buffer, including one of 0xff prefixed var ints which
+    // reads as negative, is reported like reading past the end, which the constructor turns into a ProtocolException.
+    private static long readLength(ByteBuffer in, int offset) {
+        long length = readVarInt(in, offset);
+        if (length < 0 || length > in.limit() - offset)
+            throw new IndexOutOfBoundsException("Length " + length + " at offset " + offset + " past end of "
+                    + in.limit() + " bytes");
+        return length;
+    }
+
+    private static int checkOffset(ByteBuffer in, long offset) {
+        if (offset < 0 || offset > in.limit())
+            throw new IndexOutOfBoundsException("Offset " + offset + " past end of " + in.limit() + " bytes");
+        return (int) offset;
+    }
+
+    private static int checkCount(long count) throws ProtocolException {
+        if (count < 0 || count > Message.MAX_SIZE)
+            throw new ProtocolException("Implausible count: " + count);
+        return (int) count;
+    }
+
+    /** Reads the var int at the given offset of a little endian buffer, without moving its position. */
+    static long readVarInt(ByteBuffer in, int offset) {
+        int first = in.get(offset) & 0xff;
+        if (first < 253)
+            return first;
+        else if (first == 253)
+            return in.getShort(offset + 1) & 0xffff;
+        else if (first == 254)
+            return in.getInt(offset + 1) & 0xffffffffL;
+        else
+            return in.getLong(offset + 1);
+    }
+
+    /** Reads the hash at the given offset, which is serialized in little endian order. */
+    static Sha256Hash readHash(ByteBuffer in, int offset) {
+        byte[] bytes = new byte[Sha256Hash.LENGTH];
+        for (int i = 0; i < Sha256Hash.LENGTH; i++)
+            bytes[Sha256Hash.LENGTH - 1 - i] = in.get(offset + i);
+        return Sha256Hash.wrap(bytes);
+    }
+}
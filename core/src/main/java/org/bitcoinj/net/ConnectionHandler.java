@@ -28,9 +28,8 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -51,6 +50,11 @@ class ConnectionHandler implements MessageWriteTarget {
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
 
+    // Outbound bytes are copied into these, which lets the socket write them without first copying them out of the heap.
+    static final DirectBufferPool writeBufferPool = new DirectBufferPool(16 * 1024, 1024);
+    // The most buffers handed to the channel in one gathering write.
+    private static final int MAX_GATHERED_BUFFERS = 64;
+
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
     private final ReentrantLock lock = Threading.lock("nioConnectionHandler");
@@ -61,18 +65,25 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<>();
+    // Pooled buffers ready to be read from, the last one is appended to as long as it has room.
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<>();
+    @GuardedBy("lock") private final ByteBuffer[] gatheredBuffers = new ByteBuffer[MAX_GATHERED_BUFFERS];
+    // When the socket last stopped taking all the bytes we had for it, or zero if we are not waiting for it.
+    @GuardedBy("lock") private long writeStallStart = 0;
+    @GuardedBy("lock") private long writeStalls = 0, writeStallNanos = 0;
 
+    private final SelectorLoop loop;
     private Set<ConnectionHandler> connectedHandlers;
 
-    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key) throws IOException {
-        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key);
+    public ConnectionHandler(StreamConnectionFactory connectionFactory, SelectionKey key, SelectorLoop loop) throws IOException {
+        this(connectionFactory.getNewConnection(((SocketChannel) key.channel()).socket().getInetAddress(), ((SocketChannel) key.channel()).socket().getPort()), key, loop);
         if (connection == null)
             throw new IOException("Parser factory.getNewConnection returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamConnection connection, SelectionKey key, SelectorLoop loop) {
         this.key = key;
+        this.loop = checkNotNull(loop);
         this.channel = checkNotNull(((SocketChannel)key.channel()));
         if (connection == null) {
             readBuff = null;
@@ -84,8 +95,9 @@ class ConnectionHandler implements MessageWriteTarget {
         connectedHandlers = null;
     }
 
-    public ConnectionHandler(StreamConnection connection, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(connection), key);
+    public ConnectionHandler(StreamConnection connection, SelectionKey key, SelectorLoop loop,
+                             Set<ConnectionHandler> connectedHandlers) {
+        this(checkNotNull(connection), key, loop);
 
         // closeConnection() may have already happened because we invoked the other c'tor above, which called
         // connection.setWriteTarget which might have re-entered already. In this case we shouldn't add ourselves
@@ -108,29 +120,81 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
-    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
-    private void tryWriteBytes() throws IOException {
+    // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked), returns the bytes written
+    private long tryWriteBytes() throws IOException {
+        long written = 0;
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound queue as possible into the OS' network buffer, handing it several buffers
+            // at a time.
+            while (!bytesToWrite.isEmpty()) {
+                int count = 0;
+                for (ByteBuffer buff : bytesToWrite) {
+                    gatheredBuffers[count++] = buff;
+                    if (count == gatheredBuffers.length)
+                        break;
+                }
+                long bytes = channel.write(gatheredBuffers, 0, count);
+                Arrays.fill(gatheredBuffers, 0, count, null);
+                bytesToWriteRemaining -= bytes;
+                written += bytes;
+                int drained = 0;
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peekFirst().hasRemaining()) {
+                    writeBufferPool.release(bytesToWrite.pollFirst());
+                    drained++;
+                }
+                if (drained < count) {
+                    // The OS buffer is full, wait until it has room again
+                    if (writeStallStart == 0) {
+                        writeStallStart = System.nanoTime();
+                        writeStalls++;
+                    }
                     setWriteOps();
                     break;
                 }
             }
             // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
+            if (bytesToWrite.isEmpty()) {
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                endWriteStall();
+            }
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
             lock.unlock();
         }
+        return written;
+    }
+
+    @GuardedBy("lock")
+    private void endWriteStall() {
+        if (writeStallStart != 0) {
+            long elapsed = System.nanoTime() - writeStallStart;
+            writeStallNanos += elapsed;
+            loop.addWriteStall(elapsed);
+            writeStallStart = 0;
+        }
+    }
+
+    // Copies the bytes to the end of the outbound queue, filling up the last buffer before taking new ones
+    @GuardedBy("lock")
+    private void queueBytes(byte[] message) {
+        ByteBuffer last = bytesToWrite.peekLast();
+        int offset = 0;
+        while (offset < message.length) {
+            if (last == null || last.limit() == last.capacity()) {
+                last = writeBufferPool.acquire();
+                last.limit(0);
+                bytesToWrite.offer(last);
+            }
+            int position = last.position(), end = last.limit();
+            int length = Math.min(message.length - offset, last.capacity() - end);
+            last.limit(end + length);
+            last.position(end);
+            last.put(message, offset, length);
+            last.position(position);
+            offset += length;
+        }
+        bytesToWriteRemaining += message.length;
     }
 
     @Override
@@ -139,17 +203,16 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of pooled direct
+            // ByteBuffers and just append to it when we want to send a message. The selector thread then lets
+            // tryWriteBytes() send as much of the queue as it can, registering to wake up when there is free
+            // outbound buffer space again.
 
             if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Registering first fails on a closed connection before buffers are taken for it
             setWriteOps();
+            queueBytes(message);
         } catch (IOException e) {
             lock.unlock();
             andUnlock = false;
@@ -190,12 +253,57 @@ class ConnectionHandler implements MessageWriteTarget {
             lock.unlock();
         }
         if (callClosed) {
+            releaseWriteBuffers();
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
             connection.connectionClosed();
         }
     }
 
-    // Handle a SelectionKey which was selected
+    // Gives the buffers of bytes that will never be written back to the pool
+    private void releaseWriteBuffers() {
+        lock.lock();
+        try {
+            for (ByteBuffer buff : bytesToWrite)
+                writeBufferPool.release(buff);
+            bytesToWrite.clear();
+            bytesToWriteRemaining = 0;
+            endWriteStall();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of bytes waiting to be written to the socket. */
+    public long getQueuedBytes() {
+        lock.lock();
+        try {
+            return bytesToWriteRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times the socket stopped taking bytes before all of them were written. */
+    public long getWriteStalls() {
+        lock.lock();
+        try {
+            return writeStalls;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total time bytes waited for the socket to take them, after it stopped taking them. */
+    public long getWriteStallNanos() {
+        lock.lock();
+        try {
+            return writeStallNanos + (writeStallStart != 0 ? System.nanoTime() - writeStallStart : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Handle a SelectionKey which was selected, counting the bytes moved in the loop of the connection
     // Runs unlocked as the caller is single-threaded (or if not, should enforce that handleKey is only called
     // atomically for a given ConnectionHandler)
     public static void handleKey(SelectionKey key) {
@@ -217,6 +325,7 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
+                handler.loop.addBytesRead(read);
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
                 handler.readBuff.flip();
                 // Use connection.receiveBytes's return value as a check that it stopped reading at the right location
@@ -227,7 +336,7 @@ class ConnectionHandler implements MessageWriteTarget {
                 handler.readBuff.compact();
             }
             if (key.isWritable())
-                handler.tryWriteBytes();
+                handler.loop.addBytesWritten(handler.tryWriteBytes());
         } catch (Exception e) {
             // This can happen eg if the channel closes while the thread is about to get killed
             // (ClosedByInterruptException), or if handler.connection.receiveBytes throws something
@@ -0,0 +1,69 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A pool of direct buffers of one size, shared by all threads. Allocating direct memory is slow and only freed by the
+ * garbage collector, so buffers are kept for reuse, up to a limit beyond which released buffers are left to it.
+ */
+class DirectBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    DirectBufferPool(int bufferSize, int maxPooled) {
+        checkArgument(bufferSize > 0 && maxPooled >= 0);
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /** Returns an empty buffer, cleared for writing. */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(bufferSize);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives a buffer back to the pool. It must not be used afterwards. */
+    void release(ByteBuffer buffer) {
+        checkArgument(buffer.isDirect() && buffer.capacity() == bufferSize);
+        if (pooled.incrementAndGet() <= maxPooled)
+            pool.offer(buffer);
+        else
+            pooled.decrementAndGet();
+    }
+
+    /** Returns the number of buffers waiting in the pool. */
+    int getPooledBuffers() {
+        return pooled.get();
+    }
+}
@@ -32,7 +32,7 @@ public class NioClient implements MessageWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
-    private final NioClientManager manager = new NioClientManager();
+    private final NioClientManager manager = new NioClientManager(1);
 
     class Handler extends AbstractTimeoutHandler implements StreamConnection {
         private final StreamConnection upstreamConnection;
@@ -25,18 +25,22 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * fixed number of network processing threads, each with its own selector, spreading the connections over them.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    // The first loop runs on the service thread, the others on threads of their own.
+    private final ClientLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,53 +50,70 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamConnection connection, SocketAddress address) { this.sc = sc; this.connection = connection; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
-        // We could have a !isValid() key here if the connection is already closed at this point
-        if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
-            // Create a ConnectionHandler and hook everything together
-            PendingConnect data = (PendingConnect) key.attachment();
-            StreamConnection connection = data.connection;
-            SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(connection, key, connectedHandlers);
-            try {
-                if (sc.finishConnect()) {
-                    log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
-                    connection.connectionOpened();
-                    data.future.set(data.address);
-                } else {
-                    log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
-                    handler.closeConnection(); // Failed to connect for some reason
-                    data.future.setException(new ConnectException("Unknown reason"));
+    private class ClientLoop extends SelectorLoop {
+        ClientLoop(int number) throws IOException {
+            super(number);
+        }
+
+        // Handle a SelectionKey which was selected
+        @Override
+        void handleKey(SelectionKey key) throws IOException {
+            // We could have a !isValid() key here if the connection is already closed at this point
+            if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
+                // Create a ConnectionHandler and hook everything together
+                PendingConnect data = (PendingConnect) key.attachment();
+                StreamConnection connection = data.connection;
+                SocketChannel sc = (SocketChannel) key.channel();
+                ConnectionHandler handler = new ConnectionHandler(connection, key, this, connectedHandlers);
+                try {
+                    if (sc.finishConnect()) {
+                        log.info("Connected to {}", sc.socket().getRemoteSocketAddress());
+                        key.interestOps((key.interestOps() | SelectionKey.OP_READ) & ~SelectionKey.OP_CONNECT).attach(handler);
+                        connection.connectionOpened();
+                        data.future.set(data.address);
+                    } else {
+                        log.warn("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
+                        handler.closeConnection(); // Failed to connect for some reason
+                        data.future.setException(new ConnectException("Unknown reason"));
+                        data.future = null;
+                    }
+                } catch (Exception e) {
+                    // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
+                    // may cause this. Otherwise it may be any arbitrary kind of connection failure.
+                    // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
+                    Throwable cause = Throwables.getRootCause(e);
+                    log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
+                    handler.closeConnection();
+                    data.future.setException(cause);
                     data.future = null;
                 }
-            } catch (Exception e) {
-                // If e is a CancelledKeyException, there is a race to get to interestOps after finishConnect() which
-                // may cause this. Otherwise it may be any arbitrary kind of connection failure.
-                // Calling sc.socket().getRemoteSocketAddress() here throws an exception, so we can only log the error itself
-                Throwable cause = Throwables.getRootCause(e);
-                log.warn("Failed to connect with exception: {}: {}", cause.getClass().getName(), cause.getMessage(), e);
-                handler.closeConnection();
-                data.future.setException(cause);
-                data.future = null;
-            }
-        } else // Process bytes read
-            ConnectionHandler.handleKey(key);
+            } else // Process bytes read
+                ConnectionHandler.handleKey(key);
+        }
     }
 
     /**
-     * Creates a new client manager which uses Java NIO for socket management. Uses a single thread to handle all select
-     * calls.
+     * Creates a new client manager which uses Java NIO for socket management, with as many selector threads as there
+     * are processors.
      */
     public NioClientManager() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management. Uses the given number of threads to
+     * handle select calls, each of them reading, writing and calling back for the connections it was given.
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
+        loops = new ClientLoop[selectorThreads];
         try {
-            selector = SelectorProvider.provider().openSelector();
+            for (int i = 0; i < selectorThreads; i++)
+                loops[i] = new ClientLoop(i);
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
@@ -100,47 +121,29 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void run() {
-        try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        List<Thread> threads = new ArrayList<>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final ClientLoop loop = loops[i];
+            Thread thread = new ContextPropagatingThreadFactory("NioClientManager-" + i, Thread.MIN_PRIORITY).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run();
+                    // A loop only stops early on an unexpected error, take the others down with it.
+                    if (isRunning())
+                        stopAsync();
                 }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            for (ClientLoop loop : loops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
         }
     }
 
@@ -153,9 +156,27 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, connection, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, connection, serverAddress);
+            final ClientLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = data.sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    } catch (ClosedSelectorException e) {
+                        // The loop stopped before the channel could be registered.
+                        try {
+                            data.sc.close();
+                        } catch (IOException x) {
+                            log.warn("Error closing channel", x);
+                        }
+                        data.future.setException(e);
+                    }
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +185,21 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        for (ClientLoop loop : loops)
+            loop.stop();
+    }
+
+    /** Returns the number of threads connections are spread over. */
+    public int getSelectorThreads() {
+        return loops.length;
+    }
+
+    /** Returns how busy each of the selector threads has been so far. */
+    public List<SelectorLoopStats> getLoopStats() {
+        List<SelectorLoopStats> stats = new ArrayList<>(loops.length);
+        for (ClientLoop loop : loops)
+            stats.add(loop.getStats());
+        return stats;
     }
 
     @Override
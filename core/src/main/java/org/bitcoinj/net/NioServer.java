@@ -19,17 +19,23 @@ package org.bitcoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamConnection} to
- * process data.
+ * process data. Connections are accepted by the service thread and spread over a fixed number of selector threads,
+ * the service thread being one of them.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -37,17 +43,60 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamConnectionFactory connectionFactory;
 
     private final ServerSocketChannel sc;
+    // The first loop runs on the service thread and accepts connections, the others run on threads of their own.
+    private final ServerLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
     @VisibleForTesting final Selector selector;
 
-    // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
-        if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a stream connection as an attachment
-            SocketChannel newChannel = sc.accept();
-            newChannel.configureBlocking(false);
+    private class ServerLoop extends SelectorLoop {
+        ServerLoop(int number) throws IOException {
+            super(number);
+        }
+
+        // Handle a SelectionKey which was selected
+        @Override
+        void handleKey(SelectionKey key) throws IOException {
+            if (key.isValid() && key.isAcceptable()) {
+                // Accept a new connection, and hand it to the next loop
+                SocketChannel newChannel = sc.accept();
+                if (newChannel == null)
+                    return;
+                newChannel.configureBlocking(false);
+                ServerLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+                if (loop == this)
+                    loop.register(newChannel);
+                else
+                    loop.execute(loop.registerTask(newChannel));
+            } else { // Got a closing channel or a channel to a client connection
+                ConnectionHandler.handleKey(key);
+            }
+        }
+
+        private Runnable registerTask(final SocketChannel newChannel) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        register(newChannel);
+                    } catch (IOException e) {
+                        log.error("Error registering new connection", e);
+                    } catch (ClosedSelectorException e) {
+                        // The loop stopped before the channel could be registered.
+                        try {
+                            newChannel.close();
+                        } catch (IOException x) {
+                            log.warn("Error closing channel", x);
+                        }
+                    }
+                }
+            };
+        }
+
+        // Register the channel, giving it a stream connection as an attachment
+        private void register(SocketChannel newChannel) throws IOException {
             SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
             try {
-                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey);
+                ConnectionHandler handler = new ConnectionHandler(connectionFactory, newKey, this);
                 newKey.attach(handler);
                 handler.connection.connectionOpened();
             } catch (IOException e) {
@@ -55,63 +104,66 @@ public class NioServer extends AbstractExecutionThreadService {
                 log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
                 newKey.channel().close();
             }
-        } else { // Got a closing channel or a channel to a client connection
-            ConnectionHandler.handleKey(key);
         }
     }
 
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
-     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}
+     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}, with as many selector
+     * threads as there are processors.
      *
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress) throws IOException {
+        this(connectionFactory, bindAddress, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new server which is capable of listening for incoming connections and processing client provided data
+     * using {@link StreamConnection}s created by the given {@link StreamConnectionFactory}, spreading the connections
+     * over the given number of selector threads.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamConnectionFactory connectionFactory, InetSocketAddress bindAddress,
+                     int selectorThreads) throws IOException {
+        checkArgument(selectorThreads > 0, "selectorThreads must be positive");
         this.connectionFactory = connectionFactory;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
+        loops = new ServerLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++)
+            loops[i] = new ServerLoop(i);
+        selector = loops[0].selector;
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
-        try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
+        List<Thread> threads = new ArrayList<>(loops.length - 1);
+        for (int i = 1; i < loops.length; i++) {
+            final ServerLoop loop = loops[i];
+            Thread thread = new ContextPropagatingThreadFactory("NioServer-" + i).newThread(new Runnable() {
+                @Override
+                public void run() {
+                    loop.run();
+                    // A loop only stops early on an unexpected error, take the others down with it.
+                    if (isRunning())
+                        stopAsync();
                 }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        try {
+            loops[0].run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
+            for (ServerLoop loop : loops)
+                loop.stop();
+            for (Thread thread : threads)
+                Uninterruptibles.joinUninterruptibly(thread);
             try {
                 sc.close();
             } catch (IOException e) {
@@ -120,6 +172,14 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    /** Returns how busy each of the selector threads has been so far. */
+    public List<SelectorLoopStats> getLoopStats() {
+        List<SelectorLoopStats> stats = new ArrayList<>(loops.length);
+        for (ServerLoop loop : loops)
+            stats.add(loop.getStats());
+        return stats;
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -127,7 +187,8 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selectors and let the selection threads break their loops
+        for (ServerLoop loop : loops)
+            loop.stop();
     }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A selector and the thread that selects on it, one of the event loops of a {@link NioClientManager} or
+ * {@link NioServer}. Channels are only ever registered on the loop's own thread, as registering blocks while the
+ * selector is selecting; other threads hand that work over with {@link #execute(Runnable)}. Tasks handed over while
+ * the loop stops still run, and find the selector closed.
+ */
+abstract class SelectorLoop implements Runnable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(SelectorLoop.class);
+
+    final Selector selector;
+    private final int number;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean stopped;
+
+    // Only written by the loop thread, so increments don't get lost.
+    private volatile int keys;
+    private volatile long iterations, selectedKeys, bytesRead, bytesWritten, busyNanos, maxIterationNanos;
+    // Also written by threads closing a connection, which ends its write stall.
+    private final AtomicLong writeStalls = new AtomicLong(), writeStallNanos = new AtomicLong();
+
+    SelectorLoop(int number) throws IOException {
+        this.number = number;
+        this.selector = SelectorProvider.provider().openSelector();
+    }
+
+    /** Handles a key the selector selected, on the loop thread. */
+    abstract void handleKey(SelectionKey key) throws IOException;
+
+    /** Runs the task on the loop thread, before it next selects. */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /** Makes the loop close its channels and return from {@link #run()}. */
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    void addBytesRead(long bytes) {
+        bytesRead += bytes;
+    }
+
+    void addBytesWritten(long bytes) {
+        bytesWritten += bytes;
+    }
+
+    // Called once a connection that had to wait for its socket to take more bytes wrote all of them.
+    void addWriteStall(long nanos) {
+        writeStalls.incrementAndGet();
+        writeStallNanos.addAndGet(nanos);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null)
+            task.run();
+    }
+
+    // Runs the tasks handed over while the loop was closing. The selector is closed by then, so they can't register.
+    private void runLateTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("Error running task after the loop stopped", e);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                runTasks();
+                keys = selector.keys().size();
+
+                selector.select();
+
+                long start = System.nanoTime();
+                Set<SelectionKey> selected = selector.selectedKeys();
+                int count = selected.size();
+                Iterator<SelectionKey> keyIterator = selected.iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+                long elapsed = System.nanoTime() - start;
+                iterations++;
+                selectedKeys += count;
+                busyNanos += elapsed;
+                if (elapsed > maxIterationNanos)
+                    maxIterationNanos = elapsed;
+            }
+        } catch (Exception e) {
+            log.warn("Error trying to open/read from connection: ", e);
+        } finally {
+            // Register what was handed over meanwhile, so it gets closed below.
+            runTasks();
+            // Go through and close everything, without letting IOExceptions get in our way
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    log.warn("Error closing channel", e);
+                }
+                key.cancel();
+                if (key.attachment() instanceof ConnectionHandler)
+                    ConnectionHandler.handleKey(key); // Close connection if relevant
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.warn("Error closing selector", e);
+            }
+            runLateTasks();
+            keys = 0;
+        }
+    }
+
+    /** Returns the counters of the loop so far. */
+    SelectorLoopStats getStats() {
+        return new SelectorLoopStats(number, keys, iterations, selectedKeys, bytesRead, bytesWritten, busyNanos,
+                maxIterationNanos, writeStalls.get(), writeStallNanos.get());
+    }
+}
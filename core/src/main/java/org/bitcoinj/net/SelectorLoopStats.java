@@ -0,0 +1,113 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.util.Locale;
+
+/**
+ * A snapshot of the counters of one selector thread of a {@link NioClientManager} or {@link NioServer}, showing how
+ * the connections and the work are spread over the threads. An iteration is one return from the selector, and its time
+ * is the time spent handling the selected keys, which includes reading, writing and the connection's callbacks but not
+ * waiting in the selector.
+ */
+public class SelectorLoopStats {
+    private final int loop;
+    private final int keys;
+    private final long iterations;
+    private final long selectedKeys;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long busyNanos;
+    private final long maxIterationNanos;
+    private final long writeStalls;
+    private final long writeStallNanos;
+
+    SelectorLoopStats(int loop, int keys, long iterations, long selectedKeys, long bytesRead, long bytesWritten,
+                      long busyNanos, long maxIterationNanos, long writeStalls, long writeStallNanos) {
+        this.loop = loop;
+        this.keys = keys;
+        this.iterations = iterations;
+        this.selectedKeys = selectedKeys;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.busyNanos = busyNanos;
+        this.maxIterationNanos = maxIterationNanos;
+        this.writeStalls = writeStalls;
+        this.writeStallNanos = writeStallNanos;
+    }
+
+    /** Returns the number of the selector thread, counting from zero. */
+    public int getLoop() {
+        return loop;
+    }
+
+    /** Returns the number of channels registered with the selector, as of its last iteration. */
+    public int getKeys() {
+        return keys;
+    }
+
+    public long getIterations() {
+        return iterations;
+    }
+
+    /** Returns the number of keys selected over all iterations. */
+    public long getSelectedKeys() {
+        return selectedKeys;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Returns the time spent handling selected keys over all iterations. */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    public long getAverageIterationNanos() {
+        return iterations == 0 ? 0 : busyNanos / iterations;
+    }
+
+    public long getMaxIterationNanos() {
+        return maxIterationNanos;
+    }
+
+    /**
+     * Returns how many times a connection had to wait for its socket to take more bytes, counting those that have
+     * caught up since.
+     */
+    public long getWriteStalls() {
+        return writeStalls;
+    }
+
+    /** Returns the total time connections waited for their sockets in the stalls counted by {@link #getWriteStalls()}. */
+    public long getWriteStallNanos() {
+        return writeStallNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "loop %d: %d keys, %d iterations, %d selected keys, %d bytes read, %d bytes written, %.3f ms busy, %d us/iteration (max %d us), %d write stalls (%.3f ms)",
+                loop, keys, iterations, selectedKeys, bytesRead, bytesWritten, busyNanos / 1e6,
+                getAverageIterationNanos() / 1000, maxIterationNanos / 1000, writeStalls, writeStallNanos / 1e6);
+    }
+}
@@ -22,6 +22,7 @@ import static com.google.common.base.Preconditions.checkState;
 import java.math.BigInteger;
 import java.util.concurrent.TimeUnit;
 
+import org.bitcoinj.core.BestChainIndex;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.NetworkParameters;
@@ -36,6 +37,8 @@ import org.bitcoinj.store.BlockStoreException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Stopwatch;
 
 import org.bitcoinj.core.BitcoinSerializer;
@@ -53,8 +56,24 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
 
     private static final Logger log = LoggerFactory.getLogger(AbstractBitcoinNetParams.class);
 
+    private final boolean overridesLegacyDifficultyCheck;
+
     public AbstractBitcoinNetParams() {
         super();
+        overridesLegacyDifficultyCheck = overridesLegacyDifficultyCheck(getClass());
+    }
+
+    // Subclasses written against the three argument checkDifficultyTransitions still get their rules applied.
+    private static boolean overridesLegacyDifficultyCheck(Class<?> clazz) {
+        for (Class<?> c = clazz; c != AbstractBitcoinNetParams.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("checkDifficultyTransitions", StoredBlock.class, Block.class, BlockStore.class);
+                return true;
+            } catch (NoSuchMethodException x) {
+                // Keep looking in the superclass.
+            }
+        }
+        return false;
     }
 
     /**
@@ -75,9 +94,29 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         return ((height + 1) % this.getInterval()) == 0;
     }
 
+    /**
+     * @deprecated Override {@link #checkDifficultyTransitions(StoredBlock, Block, BlockStore, BestChainIndex)}
+     * instead. Overrides of this method are still called, but without the index.
+     */
     @Override
+    @Deprecated
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
     	final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        verifyDifficulty(storedPrev, nextBlock, blockStore, null);
+    }
+
+    @Override
+    public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
+        final BlockStore blockStore, @Nullable final BestChainIndex bestChainIndex)
+        throws VerificationException, BlockStoreException {
+        if (overridesLegacyDifficultyCheck)
+            checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+        else
+            verifyDifficulty(storedPrev, nextBlock, blockStore, bestChainIndex);
+    }
+
+    private void verifyDifficulty(final StoredBlock storedPrev, final Block nextBlock, final BlockStore blockStore,
+        @Nullable final BestChainIndex bestChainIndex) throws VerificationException, BlockStoreException {
         final Block prev = storedPrev.getHeader();
 
         // Is this supposed to be a difficulty transition point?
@@ -94,17 +133,24 @@ public abstract class AbstractBitcoinNetParams extends NetworkParameters {
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         final Stopwatch watch = Stopwatch.createStarted();
-        Sha256Hash hash = prev.getHash();
         StoredBlock cursor = null;
         final int interval = this.getInterval();
-        for (int i = 0; i < interval; i++) {
-            cursor = blockStore.get(hash);
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
+        if (bestChainIndex != null) {
+            cursor = bestChainIndex.getAncestor(storedPrev, storedPrev.getHeight() - interval + 1, blockStore);
+            if (cursor == null)
                 throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
+                        "Difficulty transition point but we did not find a way back to the last transition point.");
+        } else {
+            Sha256Hash hash = prev.getHash();
+            for (int i = 0; i < interval; i++) {
+                cursor = blockStore.get(hash);
+                if (cursor == null) {
+                    // This should never happen. If it does, it means we are following an incorrect or busted chain.
+                    throw new VerificationException(
+                            "Difficulty transition point but we did not find a way back to the last transition point. Not found: " + hash);
+                }
+                hash = cursor.getHeader().getPrevBlockHash();
             }
-            hash = cursor.getHeader().getPrevBlockHash();
         }
         checkState(cursor != null && isDifficultyTransitionPoint(cursor.getHeight() - 1),
                 "Didn't arrive at a transition point.");
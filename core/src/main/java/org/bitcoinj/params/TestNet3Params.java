@@ -20,6 +20,9 @@ package org.bitcoinj.params;
 import java.math.BigInteger;
 import java.util.Date;
 
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.BestChainIndex;
 import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.StoredBlock;
@@ -91,7 +94,8 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
 
     @Override
     public void checkDifficultyTransitions(final StoredBlock storedPrev, final Block nextBlock,
-        final BlockStore blockStore) throws VerificationException, BlockStoreException {
+        final BlockStore blockStore, @Nullable final BestChainIndex bestChainIndex)
+        throws VerificationException, BlockStoreException {
         if (!isDifficultyTransitionPoint(storedPrev.getHeight()) && nextBlock.getTime().after(testnetDiffDate)) {
             Block prev = storedPrev.getHeader();
 
@@ -108,7 +112,9 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
         	while (!cursor.getHeader().equals(getGenesisBlock()) &&
                        cursor.getHeight() % getInterval() != 0 &&
                        cursor.getHeader().getDifficultyTargetAsInteger().equals(getMaxTarget()))
-                    cursor = cursor.getPrev(blockStore);
+                    cursor = bestChainIndex != null
+                            ? bestChainIndex.getAncestor(cursor, cursor.getHeight() - 1, blockStore)
+                            : cursor.getPrev(blockStore);
         	BigInteger cursorTarget = cursor.getHeader().getDifficultyTargetAsInteger();
         	BigInteger newTarget = nextBlock.getDifficultyTargetAsInteger();
         	if (!cursorTarget.equals(newTarget))
@@ -117,7 +123,7 @@ public class TestNet3Params extends AbstractBitcoinNetParams {
                 	Long.toHexString(nextBlock.getDifficultyTarget()));
             }
         } else {
-            super.checkDifficultyTransitions(storedPrev, nextBlock, blockStore);
+            super.checkDifficultyTransitions(storedPrev, nextBlock, blockStore, bestChainIndex);
         }
     }
 }
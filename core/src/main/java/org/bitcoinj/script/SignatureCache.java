@@ -0,0 +1,198 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.VarInt;
+
+import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers signatures that were found to be valid, so a transaction whose scripts are run more than once, for
+ * example when it is first received and again when its block is connected, only pays for each signature check once.
+ * {@link Script} consults the {@link #getDefault() default cache} before calling
+ * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])}.</p>
+ *
+ * <p>An entry is the SHA-256 hash of a random per-cache salt followed by the signature hash and the length prefixed
+ * public key and signature, so an attacker cannot predict where entries land and crowd out the ones of other
+ * transactions. Only valid signatures are remembered. The cache is set associative: each entry may live in one of a
+ * few slots, and when they are all taken the oldest is replaced. Memory is allocated in stripes as they are first
+ * used, up to the configured limit.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class SignatureCache {
+    /** The memory limit of the default cache, enough for about a quarter million signatures. */
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static final int ENTRY_LONGS = Sha256Hash.LENGTH / 8;
+    private static final int ENTRY_BYTES = Sha256Hash.LENGTH;
+    private static final int WAYS = 4;
+    private static final int STRIPES = 256;
+
+    @Nullable private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_BYTES);
+
+    private final byte[] salt = new byte[32];
+    private final long maxBytes;
+    private final int bucketsPerStripe;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private static class Stripe {
+        // Allocated on first insert. Each bucket holds WAYS entries of ENTRY_LONGS longs, all zero while unused.
+        @Nullable long[] entries;
+        // The way of each bucket that is replaced next.
+        @Nullable byte[] nextWay;
+    }
+
+    /** Creates a cache using at most about the given number of bytes. */
+    public SignatureCache(long maxBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.bucketsPerStripe = (int) Math.max(1, Math.min(Integer.MAX_VALUE / (WAYS * ENTRY_LONGS),
+                maxBytes / ((long) STRIPES * WAYS * ENTRY_BYTES)));
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /** Returns the cache used by {@link Script}, or null if signature caching is disabled. */
+    @Nullable
+    public static SignatureCache getDefault() {
+        return defaultCache;
+    }
+
+    /** Sets the cache used by {@link Script}. Pass null to disable signature caching. */
+    public static void setDefault(@Nullable SignatureCache cache) {
+        defaultCache = cache;
+    }
+
+    /**
+     * Verifies the given signature against the signature hash using the public key, unless it is already known to
+     * be valid. The signature is given both decoded and as the bytes it was decoded from, which identify it in the
+     * cache.
+     */
+    public boolean verify(Sha256Hash sigHash, ECKey.ECDSASignature signature, byte[] signatureBytes, byte[] pubKey) {
+        long[] key = key(sigHash, pubKey, signatureBytes);
+        if (contains(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        // Fake signatures are only valid while faking is enabled, so they must not be remembered.
+        if (valid && !ECKey.FAKE_SIGNATURES)
+            add(key);
+        return valid;
+    }
+
+    /** Returns true if the given signature is known to be valid for the signature hash and public key. */
+    public boolean contains(Sha256Hash sigHash, byte[] pubKey, byte[] signatureBytes) {
+        return contains(key(sigHash, pubKey, signatureBytes));
+    }
+
+    /** Records that the given signature is valid for the signature hash and public key. */
+    public void add(Sha256Hash sigHash, byte[] pubKey, byte[] signatureBytes) {
+        add(key(sigHash, pubKey, signatureBytes));
+    }
+
+    private long[] key(Sha256Hash sigHash, byte[] pubKey, byte[] signatureBytes) {
+        MessageDigest digest = Sha256Hash.newDigest();
+        digest.update(salt);
+        digest.update(sigHash.getBytes());
+        // Length prefixes keep a byte at the end of the key from being read as the start of the signature.
+        digest.update(new VarInt(pubKey.length).encode());
+        digest.update(pubKey);
+        digest.update(new VarInt(signatureBytes.length).encode());
+        digest.update(signatureBytes);
+        byte[] hash = digest.digest();
+        long[] key = new long[ENTRY_LONGS];
+        for (int i = 0; i < hash.length; i++)
+            key[i / 8] = (key[i / 8] << 8) | (hash[i] & 0xff);
+        return key;
+    }
+
+    private Stripe stripe(long[] key) {
+        return stripes[(int) (key[0] >>> 56)];
+    }
+
+    private int bucket(long[] key) {
+        return (int) ((key[1] & Long.MAX_VALUE) % bucketsPerStripe);
+    }
+
+    private boolean contains(long[] key) {
+        Stripe stripe = stripe(key);
+        int bucket = bucket(key);
+        synchronized (stripe) {
+            long[] entries = stripe.entries;
+            if (entries == null)
+                return false;
+            for (int way = 0; way < WAYS; way++) {
+                int offset = (bucket * WAYS + way) * ENTRY_LONGS;
+                if (entries[offset] == key[0] && entries[offset + 1] == key[1] && entries[offset + 2] == key[2]
+                        && entries[offset + 3] == key[3])
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private void add(long[] key) {
+        Stripe stripe = stripe(key);
+        int bucket = bucket(key);
+        synchronized (stripe) {
+            if (stripe.entries == null) {
+                stripe.entries = new long[bucketsPerStripe * WAYS * ENTRY_LONGS];
+                stripe.nextWay = new byte[bucketsPerStripe];
+            }
+            int way = stripe.nextWay[bucket];
+            stripe.nextWay[bucket] = (byte) ((way + 1) % WAYS);
+            System.arraycopy(key, 0, stripe.entries, (bucket * WAYS + way) * ENTRY_LONGS, ENTRY_LONGS);
+        }
+    }
+
+    /** Returns the number of signature checks answered by the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns the number of signature checks that had to be verified. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the number of signatures the cache can hold. */
+    public long getCapacity() {
+        return (long) STRIPES * bucketsPerStripe * WAYS;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Signature cache of %d entries: %d hits, %d misses", getCapacity(), getHits(),
+                getMisses());
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2011 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.StoredBlock;
+
+import java.util.List;
+
+/**
+ * A {@link BlockStore} that can save a run of blocks in one go. A {@link org.bitcoinj.core.BlockChain} uses it while
+ * catching up with block headers, see {@link org.bitcoinj.core.AbstractBlockChain#addHeaders(List)}. Stores that don't
+ * implement it get the headers one {@link #put(StoredBlock)} at a time.
+ */
+public interface BatchBlockStore extends BlockStore {
+    /**
+     * Saves the given blocks and then sets the chain head, as if {@link #put(StoredBlock)} had been called for each
+     * block in order followed by {@link #setChainHead(StoredBlock)}. Implementations apply the whole run as a single
+     * write where the underlying storage supports it, which makes catching up with a long run of headers much cheaper
+     * than storing them one at a time.
+     */
+    void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException;
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockView;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>An archive of full blocks on disk, so that wallets can be rescanned and peers can be served blocks without
+ * downloading them again. Blocks are appended to flat files in the same format as the ones of the reference client,
+ * which {@link org.bitcoinj.utils.BlockFileLoader} can also read: the network magic, the length of the block as a
+ * little endian uint32, and then the block itself. A new file is started once the current one is full.</p>
+ *
+ * <p>An index file holds the hash, the hash of the previous block and the location of every block, in the order they
+ * were written, and is kept in memory while the archive is open. Neither file is forced to disk after every block, so
+ * when opening the archive the index is checked against the block files, and blocks written to the last file but
+ * missing from the index are added to it. Both the block file and the index are forced when a new block file is
+ * started, so only blocks of the last file can be missing.</p>
+ *
+ * <p>Blocks are read with positional reads of the files, either parsed or as the bytes they were stored as. They are
+ * never removed. This class is thread-safe.</p>
+ */
+public class BlockArchive {
+    private static final Logger log = LoggerFactory.getLogger(BlockArchive.class);
+
+    /** The default size at which a new block file is started. */
+    public static final int DEFAULT_MAX_FILE_SIZE = 128 * 1024 * 1024;
+
+    private static final String INDEX_FILE = "index.dat";
+    // Hash, previous hash, file number and offset.
+    private static final int INDEX_RECORD_SIZE = 32 + 32 + 4 + 4;
+    // Network magic and length.
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int maxFileSize;
+    private final int magic;
+
+    // The location of each block, the file number in the high and the offset in the low 32 bits.
+    private final Map<Sha256Hash, Long> locations = new HashMap<>();
+    // The block most recently written on top of each block, to replay a chain in order.
+    private final Map<Sha256Hash, Sha256Hash> next = new HashMap<>();
+    private final List<FileChannel> files = new ArrayList<>();
+    private FileChannel index;
+    private boolean closed;
+
+    /**
+     * Opens the archive in the given directory, creating it if needed.
+     */
+    public BlockArchive(NetworkParameters params, File directory) throws BlockStoreException {
+        this(params, directory, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    /**
+     * Opens the archive in the given directory, creating it if needed.
+     * @param maxFileSize The size at which a new block file is started.
+     */
+    public BlockArchive(NetworkParameters params, File directory, int maxFileSize) throws BlockStoreException {
+        checkArgument(maxFileSize > BLOCK_HEADER_SIZE, "maxFileSize too small");
+        this.params = params;
+        this.directory = directory;
+        this.maxFileSize = maxFileSize;
+        this.magic = (int) params.getPacketMagic();
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new BlockStoreException("Could not create directory " + directory);
+        try {
+            for (int i = 0; blockFile(i).exists(); i++)
+                files.add(new RandomAccessFile(blockFile(i), "rw").getChannel());
+            if (files.isEmpty())
+                files.add(new RandomAccessFile(blockFile(0), "rw").getChannel());
+            index = new RandomAccessFile(new File(directory, INDEX_FILE), "rw").getChannel();
+            loadIndex();
+            recoverLastFile();
+        } catch (IOException e) {
+            closeFiles();
+            throw new BlockStoreException("Could not open block archive in " + directory, e);
+        } catch (BlockStoreException e) {
+            closeFiles();
+            throw e;
+        }
+        log.info("Opened block archive {} with {} blocks in {} files", directory, locations.size(), files.size());
+    }
+
+    private File blockFile(int number) {
+        return new File(directory, String.format(Locale.US, "blk%05d.dat", number));
+    }
+
+    private static long location(int file, int offset) {
+        return ((long) file << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    // Reads the index, dropping any records at its end that point past the end of their block file.
+    private void loadIndex() throws IOException {
+        long size = index.size() - index.size() % INDEX_RECORD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_RECORD_SIZE * 1024);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            while (buffer.hasRemaining())
+                if (index.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of " + INDEX_FILE);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                // Wrapped below, so these can't be reused.
+                byte[] hash = new byte[32], prev = new byte[32];
+                buffer.get(hash);
+                buffer.get(prev);
+                int file = buffer.getInt();
+                int offset = buffer.getInt();
+                // Only the last file can have been cut short.
+                boolean valid = file >= 0 && file < files.size() && (file < files.size() - 1
+                        ? offset >= 0 && offset < files.get(file).size() : isComplete(files.get(file), offset));
+                if (!valid) {
+                    log.warn("Block archive index points past the end of the block files, dropping {} records",
+                            (size - position) / INDEX_RECORD_SIZE);
+                    index.truncate(position);
+                    return;
+                }
+                add(Sha256Hash.wrap(hash), Sha256Hash.wrap(prev), location(file, offset));
+                position += INDEX_RECORD_SIZE;
+            }
+        }
+        index.truncate(size);
+    }
+
+    // Whether a whole block was written at the offset.
+    private boolean isComplete(FileChannel file, int offset) throws IOException {
+        if (offset < 0 || (long) offset + BLOCK_HEADER_SIZE > file.size())
+            return false;
+        ByteBuffer header = readFully(file, offset, BLOCK_HEADER_SIZE);
+        return header.getInt(0) == magic
+                && (long) offset + BLOCK_HEADER_SIZE + readLength(header) <= file.size();
+    }
+
+    // Indexes the blocks following the last indexed one in the last file, and cuts off a block only partly written.
+    private void recoverLastFile() throws IOException, BlockStoreException {
+        int number = files.size() - 1;
+        FileChannel file = files.get(number);
+        long offset = 0;
+        for (long location : locations.values())
+            if ((int) (location >>> 32) == number)
+                offset = Math.max(offset, (location & 0xFFFFFFFFL) + BLOCK_HEADER_SIZE
+                        + readLength(readFully(file, location & 0xFFFFFFFFL, BLOCK_HEADER_SIZE)));
+        int recovered = 0;
+        while (offset < file.size() && isComplete(file, (int) offset)) {
+            int length = readLength(readFully(file, offset, BLOCK_HEADER_SIZE));
+            BlockView header;
+            try {
+                header = new BlockView(params, readFully(file, offset + BLOCK_HEADER_SIZE, Block.HEADER_SIZE));
+            } catch (ProtocolException e) {
+                throw new BlockStoreException(e); // Can't happen, a whole header was read.
+            }
+            Sha256Hash hash = header.getHash();
+            Sha256Hash prev = header.getPrevBlockHash();
+            if (!locations.containsKey(hash)) {
+                writeIndexRecord(hash, prev, number, (int) offset);
+                add(hash, prev, location(number, (int) offset));
+                recovered++;
+            }
+            offset += BLOCK_HEADER_SIZE + length;
+        }
+        if (offset < file.size()) {
+            log.warn("Cutting off {} bytes of an incomplete block at the end of {}", file.size() - offset,
+                    blockFile(number));
+            file.truncate(offset);
+        }
+        if (recovered > 0)
+            log.info("Recovered {} blocks missing from the block archive index", recovered);
+    }
+
+    private static int readLength(ByteBuffer header) {
+        return header.order(ByteOrder.LITTLE_ENDIAN).getInt(4);
+    }
+
+    private static ByteBuffer readFully(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+            if (file.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of block file");
+        buffer.flip();
+        return buffer;
+    }
+
+    private void add(Sha256Hash hash, Sha256Hash prev, long location) {
+        locations.put(hash, location);
+        next.put(prev, hash);
+    }
+
+    private void writeIndexRecord(Sha256Hash hash, Sha256Hash prev, int file, int offset) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(INDEX_RECORD_SIZE);
+        record.put(hash.getBytes()).put(prev.getBytes()).putInt(file).putInt(offset).flip();
+        long position = index.size();
+        while (record.hasRemaining())
+            index.write(record, position + record.position());
+    }
+
+    /**
+     * Appends a block to the archive, unless it is already there.
+     * @return Whether the block was added.
+     * @throws IllegalArgumentException If the block has no transactions.
+     */
+    public synchronized boolean put(Block block) throws BlockStoreException {
+        checkState(!closed, "BlockArchive is closed");
+        checkArgument(block.getTransactions() != null, "Only full blocks can be archived");
+        Sha256Hash hash = block.getHash();
+        if (locations.containsKey(hash))
+            return false;
+        byte[] bytes = block.bitcoinSerialize();
+        try {
+            int number = files.size() - 1;
+            FileChannel file = files.get(number);
+            if (file.size() > 0 && file.size() + BLOCK_HEADER_SIZE + bytes.length > maxFileSize) {
+                // Only the last file is recovered on open, so the index must hold all blocks of this one.
+                file.force(false);
+                index.force(false);
+                number++;
+                file = new RandomAccessFile(blockFile(number), "rw").getChannel();
+                files.add(file);
+            }
+            int offset = (int) file.size();
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + bytes.length);
+            buffer.putInt(magic).order(ByteOrder.LITTLE_ENDIAN).putInt(bytes.length).put(bytes).flip();
+            while (buffer.hasRemaining())
+                file.write(buffer, offset + buffer.position());
+            writeIndexRecord(hash, block.getPrevBlockHash(), number, offset);
+            add(hash, block.getPrevBlockHash(), location(number, offset));
+            return true;
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not archive block " + hash, e);
+        }
+    }
+
+    /** Returns whether the block with the given hash is in the archive. */
+    public synchronized boolean contains(Sha256Hash hash) {
+        return locations.containsKey(hash);
+    }
+
+    /** Returns the number of blocks in the archive. */
+    public synchronized int size() {
+        return locations.size();
+    }
+
+    /**
+     * Returns the hash of the block most recently archived on top of the given one, or null if there is none. Going
+     * from block to block this way follows the chain the blocks were connected in.
+     */
+    @Nullable
+    public synchronized Sha256Hash getNextBlockHash(Sha256Hash hash) {
+        return next.get(hash);
+    }
+
+    // Where the bytes of a block are.
+    private static class Extent {
+        final FileChannel file;
+        final long position;
+        final int length;
+
+        Extent(FileChannel file, long position, int length) {
+            this.file = file;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    // The file is read outside of the lock, positional reads don't interfere with each other or with appends.
+    @Nullable
+    private Extent find(Sha256Hash hash) throws IOException {
+        FileChannel file;
+        long offset;
+        synchronized (this) {
+            checkState(!closed, "BlockArchive is closed");
+            Long location = locations.get(hash);
+            if (location == null)
+                return null;
+            file = files.get((int) (location >>> 32));
+            offset = location & 0xFFFFFFFFL;
+        }
+        int length = readLength(readFully(file, offset, BLOCK_HEADER_SIZE));
+        return new Extent(file, offset + BLOCK_HEADER_SIZE, length);
+    }
+
+    /** Returns the serialized block with the given hash, or null if it is not in the archive. */
+    @Nullable
+    public byte[] getBlockBytes(Sha256Hash hash) throws BlockStoreException {
+        try {
+            Extent extent = find(hash);
+            if (extent == null)
+                return null;
+            return readFully(extent.file, extent.position, extent.length).array();
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not read block " + hash, e);
+        }
+    }
+
+    /** Returns the block with the given hash, or null if it is not in the archive. */
+    @Nullable
+    public Block get(Sha256Hash hash) throws BlockStoreException {
+        byte[] bytes = getBlockBytes(hash);
+        if (bytes == null)
+            return null;
+        try {
+            return params.getDefaultSerializer().makeBlock(bytes);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException("Corrupt block " + hash + " in archive", e);
+        }
+    }
+
+    /** Forces everything written so far to disk. */
+    public synchronized void flush() throws BlockStoreException {
+        checkState(!closed, "BlockArchive is closed");
+        try {
+            files.get(files.size() - 1).force(false);
+            index.force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Forces everything written to disk and closes the files. */
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        try {
+            flush();
+        } finally {
+            closed = true;
+            closeFiles();
+        }
+    }
+
+    private void closeFiles() {
+        List<FileChannel> channels = new ArrayList<>(files);
+        if (index != null)
+            channels.add(index);
+        for (FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.error("Could not close block archive file", e);
+            }
+        }
+    }
+}
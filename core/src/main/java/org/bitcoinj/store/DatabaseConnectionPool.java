@@ -0,0 +1,411 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded pool of JDBC connections, used by {@link DatabaseFullPrunedBlockStore}. Connections are opened on
+ * demand up to a maximum, handed out by {@link #acquire()} and given back with {@link #release(PooledConnection)}.
+ * When all of them are in use, callers wait for one to be released, up to a timeout.</p>
+ *
+ * <p>Each connection keeps its own cache of prepared statements. Connections that were closed underneath the pool
+ * are dropped when they are released or next handed out, and a connection released in the middle of a transaction is
+ * rolled back first.</p>
+ */
+public class DatabaseConnectionPool {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseConnectionPool.class);
+
+    /** The maximum number of prepared statements kept open for each connection. */
+    public static final int MAX_CACHED_STATEMENTS = 64;
+
+    /** Opens new connections for the pool. */
+    public interface ConnectionFactory {
+        Connection createConnection() throws SQLException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxConnections;
+    private final long acquireTimeoutMillis;
+
+    private final ReentrantLock lock = Threading.lock("DatabaseConnectionPool");
+    private final Condition released = lock.newCondition();
+    // Most recently released first, so that the connections with warm statement caches get reused.
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private final Set<PooledConnection> leased = new HashSet<>();
+    private int creating;
+
+    private long acquireCount, waitCount, timeoutCount, createdCount, discardedCount;
+    private long waitNanos;
+
+    /**
+     * @param factory Opens the connections.
+     * @param maxConnections The most connections that are open at the same time.
+     * @param acquireTimeoutMillis How long {@link #acquire()} waits for a connection to become free.
+     */
+    public DatabaseConnectionPool(ConnectionFactory factory, int maxConnections, long acquireTimeoutMillis) {
+        checkArgument(maxConnections > 0, "maxConnections must be positive");
+        this.factory = factory;
+        this.maxConnections = maxConnections;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    /**
+     * Takes an idle connection, opens a new one if the pool is not full, or else waits for one to be released.
+     * @throws SQLTimeoutException If no connection became free in time.
+     * @throws SQLException If a new connection could not be opened, or the thread was interrupted while waiting.
+     */
+    public PooledConnection acquire() throws SQLException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        lock.lock();
+        try {
+            boolean waited = false;
+            long waitStart = 0;
+            while (true) {
+                PooledConnection connection = idle.pollFirst();
+                if (connection != null) {
+                    if (connection.isClosed()) {
+                        discardedCount++;
+                        continue;
+                    }
+                    leased.add(connection);
+                    acquireCount++;
+                    if (waited)
+                        waitNanos += System.nanoTime() - waitStart;
+                    return connection;
+                }
+                if (leased.size() + creating < maxConnections) {
+                    creating++;
+                    if (waited)
+                        waitNanos += System.nanoTime() - waitStart;
+                    break;
+                }
+                if (!waited) {
+                    waited = true;
+                    waitCount++;
+                    waitStart = System.nanoTime();
+                }
+                if (remaining <= 0) {
+                    timeoutCount++;
+                    waitNanos += System.nanoTime() - waitStart;
+                    throw new SQLTimeoutException("Timed out waiting for one of " + maxConnections
+                            + " database connections to be released");
+                }
+                try {
+                    remaining = released.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Interrupted while waiting for a database connection", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Connecting may take a while, so other threads can use the pool meanwhile.
+        PooledConnection connection = null;
+        try {
+            connection = new PooledConnection(factory.createConnection());
+        } finally {
+            lock.lock();
+            try {
+                creating--;
+                if (connection != null) {
+                    leased.add(connection);
+                    acquireCount++;
+                    createdCount++;
+                } else {
+                    released.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Gives a connection back to the pool. A transaction still open on it is rolled back, and a connection that was
+     * closed is dropped.
+     */
+    public void release(PooledConnection connection) {
+        boolean reusable = connection.reset();
+        lock.lock();
+        try {
+            if (!leased.remove(connection)) {
+                // The pool was closed while the connection was in use.
+                reusable = false;
+            } else if (reusable) {
+                idle.addFirst(connection);
+            } else {
+                discardedCount++;
+            }
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (!reusable)
+            connection.close();
+    }
+
+    /**
+     * Closes all connections, idle or in use, rolling back any open transaction. The pool can still be used
+     * afterwards, and will open new connections as needed.
+     */
+    public void close() {
+        List<PooledConnection> connections;
+        lock.lock();
+        try {
+            connections = new ArrayList<>(idle);
+            connections.addAll(leased);
+            idle.clear();
+            leased.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (PooledConnection connection : connections)
+            connection.close();
+    }
+
+    /** Closes the cached statements of all idle connections, for example after the tables they use were dropped. */
+    public void clearIdleStatements() {
+        lock.lock();
+        try {
+            for (PooledConnection connection : idle)
+                connection.clearStatements();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /** Returns the number of connections currently open, both idle and in use. */
+    public int getOpenConnections() {
+        lock.lock();
+        try {
+            return idle.size() + leased.size() + creating;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of connections currently in use. */
+    public int getActiveConnections() {
+        lock.lock();
+        try {
+            return leased.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times a connection was handed out. */
+    public long getAcquireCount() {
+        lock.lock();
+        try {
+            return acquireCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times {@link #acquire()} had to wait because all connections were in use. */
+    public long getWaitCount() {
+        lock.lock();
+        try {
+            return waitCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times {@link #acquire()} gave up waiting. */
+    public long getTimeoutCount() {
+        lock.lock();
+        try {
+            return timeoutCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the total time spent waiting for a connection, in milliseconds. */
+    public long getWaitTimeMillis() {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many connections were opened. */
+    public long getCreatedCount() {
+        lock.lock();
+        try {
+            return createdCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many connections were dropped because they had been closed or could not be reset. */
+    public long getDiscardedCount() {
+        lock.lock();
+        try {
+            return discardedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return String.format("Database connections: %d active, %d idle of at most %d, %d acquired, %d waits "
+                    + "(%d ms), %d timeouts, %d created, %d discarded", leased.size(), idle.size(), maxConnections,
+                    acquireCount, waitCount, TimeUnit.NANOSECONDS.toMillis(waitNanos), timeoutCount, createdCount,
+                    discardedCount);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A connection of the pool together with its prepared statements. It must only be used by one thread at a time,
+     * between acquiring and releasing it.
+     */
+    public static class PooledConnection {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements =
+                new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                        if (size() <= MAX_CACHED_STATEMENTS)
+                            return false;
+                        closeStatement(eldest.getValue());
+                        return true;
+                    }
+                };
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        /**
+         * Returns a prepared statement for the given SQL, preparing it only the first time it is asked for. The
+         * statement stays open for reuse, so the caller must not close it.
+         */
+        public PreparedStatement getPreparedStatement(String sql) throws SQLException {
+            PreparedStatement s = statements.get(sql);
+            if (s == null || s.isClosed()) {
+                s = connection.prepareStatement(sql);
+                statements.put(sql, s);
+            }
+            return s;
+        }
+
+        /** Closes all cached statements. */
+        public void clearStatements() {
+            for (PreparedStatement s : statements.values())
+                closeStatement(s);
+            statements.clear();
+        }
+
+        private boolean isClosed() {
+            try {
+                return connection.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        }
+
+        // Ends any transaction left open, returning false if the connection can't be used any more.
+        private boolean reset() {
+            try {
+                if (connection.isClosed())
+                    return false;
+                if (!connection.getAutoCommit()) {
+                    log.warn("Rolling back transaction left open on a released database connection");
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                return true;
+            } catch (SQLException e) {
+                log.warn("Failed to reset database connection", e);
+                return false;
+            }
+        }
+
+        private void close() {
+            try {
+                if (!connection.isClosed()) {
+                    if (!connection.getAutoCommit())
+                        connection.rollback();
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                log.warn("Failed to close database connection", e);
+            }
+        }
+
+        private static void closeStatement(PreparedStatement s) {
+            try {
+                s.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close PreparedStatement", e);
+            }
+        }
+    }
+}
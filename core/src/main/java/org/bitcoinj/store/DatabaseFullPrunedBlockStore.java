@@ -32,6 +32,8 @@ import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
  * certain table structures for the block store.</p>
@@ -86,7 +88,7 @@ import java.util.*;
  * </p>
  *
  */
-public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore {
+public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockStore, BatchBlockStore {
     private static final Logger log = LoggerFactory.getLogger(DatabaseFullPrunedBlockStore.class);
 
     private static final String CHAIN_HEAD_SETTING                              = "chainhead";
@@ -114,6 +116,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_OPENOUTPUTS_BATCH_SQL                    = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
@@ -125,6 +129,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_DUMP_OPENOUTPUTS_SQL                     = "SELECT value, scriptbytes FROM openoutputs";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_BATCH_SQL            = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress IN ";
 
     // Select the balance of an address SQL.
     private static final String SELECT_BALANCE_SQL                              = "select sum(value) from openoutputs where toaddress = ?";
@@ -135,18 +140,32 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     // Compatibility SQL.
     private static final String SELECT_COMPATIBILITY_COINBASE_SQL               = "SELECT coinbase FROM openoutputs WHERE 1 = 2";
 
+    // Maximum number of transaction hashes bound to a single batched openoutputs query.
+    protected static final int MAX_BATCH_LOOKUP_HASHES = 500;
+    // The number of rows fetched at a time when reading all outputs.
+    private static final int ALL_OUTPUTS_FETCH_SIZE = 10000;
+
+    /** The default maximum number of connections open to the database at the same time. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+    /** How long an operation waits for a free connection before it fails. */
+    protected static final long CONNECTION_ACQUIRE_TIMEOUT_MILLIS = 60 * 1000;
+
     protected Sha256Hash chainHeadHash;
     protected StoredBlock chainHeadBlock;
     protected Sha256Hash verifiedChainHeadHash;
     protected StoredBlock verifiedChainHeadBlock;
     protected NetworkParameters params;
+    // The connection the current thread holds between acquireConnection() and releaseConnection().
     protected ThreadLocal<Connection> conn;
-    protected List<Connection> allConnections;
+    protected DatabaseConnectionPool connectionPool;
     protected String connectionURL;
     protected int fullStoreDepth;
     protected String username;
     protected String password;
     protected String schemaName;
+    // The pooled connection held by each thread, and the outputs added and removed in its current batch.
+    private ThreadLocal<Lease> lease;
+    private ThreadLocal<PendingOutputs> pendingOutputs;
 
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
@@ -162,6 +181,25 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public DatabaseFullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
                                         @Nullable String username, @Nullable String password, @Nullable String schemaName) throws BlockStoreException {
+        this(params, connectionURL, fullStoreDepth, username, password, schemaName, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
+     * optionally allowing a schema to be specified, and opening at most the given number of connections.</p>
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param connectionURL The jdbc url to connect to the database.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param username The database username.
+     * @param password The password to the database.
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @param maxConnections The maximum number of connections open to the database at the same time.
+     * @throws BlockStoreException If there is a failure to connect and/or initialise the database.
+     */
+    public DatabaseFullPrunedBlockStore(NetworkParameters params, String connectionURL, int fullStoreDepth,
+                                        @Nullable String username, @Nullable String password, @Nullable String schemaName,
+                                        int maxConnections) throws BlockStoreException {
         this.params = params;
         this.fullStoreDepth = fullStoreDepth;
         this.connectionURL = connectionURL;
@@ -169,7 +207,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.username = username;
         this.password = password;
         this.conn = new ThreadLocal<>();
-        this.allConnections = new LinkedList<>();
+        this.lease = new ThreadLocal<>();
+        this.pendingOutputs = new ThreadLocal<>();
+        this.connectionPool = new DatabaseConnectionPool(new DatabaseConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                return connect();
+            }
+        }, maxConnections, CONNECTION_ACQUIRE_TIMEOUT_MILLIS);
 
         try {
             Class.forName(getDatabaseDriverClass());
@@ -178,8 +223,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             log.error("check CLASSPATH for database driver jar ", e);
         }
 
-        maybeConnect();
-
+        acquireConnection();
         try {
             // Create tables if needed
             if (!tablesExists()) {
@@ -190,6 +234,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             initFromDatabase();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -259,6 +305,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the transaction outputs of a number of addresses at once. The statement must take exactly
+     * the given number of address parameters, and return the same columns as {@link #getTransactionOutputSelectSQL()}.
+     * @param count The number of addresses.
+     * @return The SQL prepared statement.
+     */
+    protected String getTransactionOutputsSelectBatchSQL(int count) {
+        return SELECT_TRANSACTION_OUTPUTS_BATCH_SQL + getInClause(count);
+    }
+
     /**
      * Get the SQL to drop all the tables (DDL).
      * @return The SQL drop statements.
@@ -360,6 +416,37 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select all openoutputs records of a number of transactions at once. The statement must take
+     * exactly the given number of transaction hash parameters.
+     * @param count The number of transaction hashes.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsBatchSQL(int count) {
+        return SELECT_OPENOUTPUTS_BATCH_SQL + getInClause(count);
+    }
+
+    /**
+     * Get the SQL to select all openoutputs records, with the same columns as {@link #getSelectOpenoutputsBatchSQL(int)}.
+     * @return The SQL select statement.
+     */
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
+    /**
+     * Builds the parameter list of a SQL IN clause, i.e. <tt>(?, ?, ?)</tt>.
+     * @param count The number of parameters.
+     * @return The parenthesized parameter list.
+     */
+    protected static String getInClause(int count) {
+        StringBuilder sb = new StringBuilder(count * 3 + 1);
+        sb.append('(');
+        for (int i = 0; i < count; i++)
+            sb.append(i == 0 ? "?" : ", ?");
+        return sb.append(')').toString();
+    }
+
     /**
      * Get the SQL to select count of openoutputs.
      * @return The SQL select statement.
@@ -417,54 +504,92 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     }
 
     /**
-     * <p>If there isn't a connection on the {@link ThreadLocal} then create and store it.</p>
+     * <p>Opens a new connection to the database for the pool.</p>
      * <p>This will also automatically set up the schema if it does not exist within the DB.</p>
-     * @throws BlockStoreException if successful connection to the DB couldn't be made.
+     * @throws java.sql.SQLException if successful connection to the DB couldn't be made.
      */
-    protected synchronized final void maybeConnect() throws BlockStoreException {
-        try {
-            if (conn.get() != null && !conn.get().isClosed())
-                return;
-
-            if (username == null || password == null) {
-                conn.set(DriverManager.getConnection(connectionURL));
-            } else {
-                Properties props = new Properties();
-                props.setProperty("user", this.username);
-                props.setProperty("password", this.password);
-                conn.set(DriverManager.getConnection(connectionURL, props));
-            }
-            allConnections.add(conn.get());
-            Connection connection = conn.get();
-            // set the schema if one is needed
-            if (schemaName != null) {
-                Statement s = connection.createStatement();
-                for (String sql : getCreateSchemeSQL()) {
-                    s.execute(sql);
-                }
+    private Connection connect() throws SQLException {
+        Connection connection;
+        if (username == null || password == null) {
+            connection = DriverManager.getConnection(connectionURL);
+        } else {
+            Properties props = new Properties();
+            props.setProperty("user", this.username);
+            props.setProperty("password", this.password);
+            connection = DriverManager.getConnection(connectionURL, props);
+        }
+        // set the schema if one is needed
+        if (schemaName != null) {
+            Statement s = connection.createStatement();
+            for (String sql : getCreateSchemeSQL()) {
+                s.execute(sql);
             }
-            log.info("Made a new connection to database " + connectionURL);
-        } catch (SQLException ex) {
-            throw new BlockStoreException(ex);
+            s.close();
         }
+        log.info("Made a new connection to database " + connectionURL);
+        return connection;
     }
 
-    @Override
-    public synchronized void close() {
-        for (Connection conn : allConnections) {
+    /**
+     * <p>Takes a connection from the pool for the current thread, or keeps using the one the thread already holds, and
+     * makes it available through {@link #conn}. Every call must be paired with a call to {@link #releaseConnection()}.
+     * A batch write holds on to its connection from {@link #beginDatabaseBatchWrite()} until it is committed or
+     * aborted.</p>
+     * @throws BlockStoreException If no connection could be had from the pool.
+     */
+    protected final void acquireConnection() throws BlockStoreException {
+        Lease current = lease.get();
+        if (current == null) {
             try {
-                if (!conn.getAutoCommit()) {
-                    conn.rollback();
-                }
-                conn.close();
-                if (conn == this.conn.get()) {
-                    this.conn.set(null);
-                }
-            } catch (SQLException ex) {
-                throw new RuntimeException(ex);
+                current = new Lease(connectionPool.acquire());
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
             }
+            lease.set(current);
+            conn.set(current.connection.getConnection());
         }
-        allConnections.clear();
+        current.depth++;
+    }
+
+    /**
+     * <p>Gives the connection of the current thread back to the pool, once every {@link #acquireConnection()} has been
+     * matched.</p>
+     */
+    protected final void releaseConnection() {
+        Lease current = lease.get();
+        checkState(current != null, "No database connection held by this thread");
+        if (--current.depth > 0)
+            return;
+        lease.remove();
+        conn.remove();
+        connectionPool.release(current.connection);
+    }
+
+    /** Returns the pool of connections to the database, which also keeps statistics on their use. */
+    public DatabaseConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public void close() {
+        pendingOutputs.remove();
+        connectionPool.close();
+    }
+
+    /**
+     * <p>Returns a prepared statement for the given SQL on the connection held by the current thread. Statements are
+     * prepared once per connection and then reused, so the caller must not close it.</p>
+     * @throws java.sql.SQLException If the statement could not be prepared.
+     */
+    protected PreparedStatement getPreparedStatement(String sql) throws SQLException {
+        Lease current = lease.get();
+        checkState(current != null, "No database connection held by this thread");
+        return current.connection.getPreparedStatement(sql);
+    }
+
+    private void clearStatementCache() {
+        lease.get().connection.clearStatements();
+        connectionPool.clearIdleStatements();
     }
 
     /**
@@ -612,8 +737,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getInsertHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -623,38 +747,51 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if  (!(e.getSQLState().equals(getDuplicateKeyErrorCode())) || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement(getUpdateHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getUpdateHeadersSQL());
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
-            s.close();
         }
     }
 
     @Override
     public void put(StoredBlock storedBlock) throws BlockStoreException {
-        maybeConnect();
+        acquireConnection();
         try {
             putUpdateStoredBlock(storedBlock, false);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    @Override
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        beginDatabaseBatchWrite();
+        try {
+            for (StoredBlock block : blocks)
+                put(block);
+            setChainHead(chainHead);
+            commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            abortDatabaseBatchWrite();
+            throw e;
         }
     }
 
 
     @Override
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
-        maybeConnect();
         // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -681,10 +818,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             throw new BlockStoreException(e);
         }
 
+        acquireConnection();
         try {
             try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+                PreparedStatement s = getPreparedStatement(getInsertUndoableBlocksSQL());
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
                 if (transactions == null) {
@@ -695,7 +832,6 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(4, transactions);
                 }
                 s.executeUpdate();
-                s.close();
                 try {
                     putUpdateStoredBlock(storedBlock, true);
                 } catch (SQLException e) {
@@ -706,8 +842,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     throw new BlockStoreException(e);
 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                PreparedStatement s = getPreparedStatement(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
                 if (transactions == null) {
                     s.setBytes(1, txOutChanges);
@@ -717,10 +852,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
             }
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -730,16 +866,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             return chainHeadBlock;
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
-        maybeConnect();
-        PreparedStatement s = null;
+        acquireConnection();
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getSelectHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -764,13 +899,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
+            releaseConnection();
         }
     }
 
@@ -786,17 +916,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        acquireConnection();
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectUndoableBlocksSQL());
+            PreparedStatement s = getPreparedStatement(getSelectUndoableBlocksSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
 
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -838,13 +967,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
+            releaseConnection();
         }
     }
 
@@ -858,16 +982,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
-        maybeConnect();
+        acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -881,31 +1005,29 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
-        maybeConnect();
+        acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
+            if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
+                setChainHead(chainHead);
+            removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } finally {
+            releaseConnection();
         }
-        if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
-            setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
     }
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteUndoableBlocksSQL());
             s.setInt(1, height);
             if (log.isDebugEnabled())
                 log.debug("Deleting undoable undoable block with height <= " + height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -913,15 +1035,23 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            UTXO added = pending.added.get(key);
+            if (added != null)
+                return added;
+            if (pending.removed.containsKey(key))
+                return null;
+        }
+        acquireConnection();
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -942,130 +1072,278 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
+            closeResultSet(results);
+            releaseConnection();
+        }
+    }
+
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        // Query by transaction hash only, which every database can do with a plain IN clause on the primary key
+        // prefix, and pick out the wanted indexes as the rows come back.
+        Map<TransactionOutPoint, Integer> positions = new HashMap<>(outPoints.size());
+        Set<Sha256Hash> uniqueHashes = new LinkedHashSet<>();
+        for (int i = 0; i < outPoints.size(); i++) {
+            positions.put(outPoints.get(i), i);
+            uniqueHashes.add(outPoints.get(i).getHash());
+        }
+        List<Sha256Hash> hashes = new ArrayList<>(uniqueHashes);
+        UTXO[] results = new UTXO[outPoints.size()];
+        acquireConnection();
+        try {
+            for (List<Sha256Hash> chunk : Lists.partition(hashes, MAX_BATCH_LOOKUP_HASHES)) {
+                PreparedStatement s = null;
                 try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+                    s = conn.get().prepareStatement(getSelectOpenoutputsBatchSQL(chunk.size()));
+                    for (int i = 0; i < chunk.size(); i++)
+                        s.setBytes(i + 1, chunk.get(i).getBytes());
+                    ResultSet rs = s.executeQuery();
+                    while (rs.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                        // index is actually an unsigned int
+                        long index = rs.getInt(2) & 0xFFFFFFFFL;
+                        Integer position = positions.get(new TransactionOutPoint(params, index, hash));
+                        if (position == null)
+                            continue;
+                        results[position] = new UTXO(hash,
+                                index,
+                                Coin.valueOf(rs.getLong(4)),
+                                rs.getInt(3),
+                                rs.getBoolean(6),
+                                new Script(rs.getBytes(5)),
+                                rs.getString(7));
+                    }
+                    rs.close();
+                } catch (SQLException ex) {
+                    throw new BlockStoreException(ex);
+                } finally {
+                    if (s != null) {
+                        try {
+                            s.close();
+                        } catch (SQLException e) {
+                            throw new BlockStoreException("Failed to close PreparedStatement");
+                        }
+                    }
                 }
             }
+        } finally {
+            releaseConnection();
+        }
+        // The same outpoint may be asked for more than once.
+        PendingOutputs pending = pendingOutputs.get();
+        List<UTXO> list = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            UTXO result = results[positions.get(outPoint)];
+            if (pending != null) {
+                StoredTransactionOutPoint key = new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex());
+                if (pending.added.containsKey(key))
+                    result = pending.added.get(key);
+                else if (pending.removed.containsKey(key))
+                    result = null;
+            }
+            list.add(result);
         }
+        return list;
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            // Written with the rest of the batch when it is committed.
+            pending.add(out);
+            return;
+        }
+        acquireConnection();
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScript().getProgram());
-            s.setString(6, out.getAddress());
-            s.setInt(7, out.getScript().getScriptType().ordinal());
-            s.setBoolean(8, out.isCoinbase());
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+            setOpenoutputsParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
                 throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
+            releaseConnection();
         }
     }
 
     @Override
     public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
-        maybeConnect();
+        PendingOutputs pending = pendingOutputs.get();
+        // An output created earlier in the same batch never has to reach the database.
+        if (pending != null && pending.cancelAdd(out))
+            return;
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+        if (pending != null) {
+            pending.remove(out);
+            return;
+        }
+        acquireConnection();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+            setDeleteOpenoutputsParameters(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    private void setOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    private void setDeleteOpenoutputsParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+    }
+
+    /**
+     * Writes the outputs added and removed in the current batch with one JDBC batch for each kind. Removals go first,
+     * so that an output removed and then added again within the batch ends up stored.
+     */
+    private void flushPendingOutputs() throws SQLException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending == null)
+            return;
+        if (!pending.removed.isEmpty()) {
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+            for (UTXO out : pending.removed.values()) {
+                setDeleteOpenoutputsParameters(s, out);
+                s.addBatch();
+            }
+            s.executeBatch();
+        }
+        if (!pending.added.isEmpty()) {
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+            for (UTXO out : pending.added.values()) {
+                setOpenoutputsParameters(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                    throw e;
+                // One of the outputs was already stored, which fails the batch. Insert them one by one and skip the
+                // duplicates, as addUnspentTransactionOutput does outside of a batch.
+                s.clearBatch();
+                for (UTXO out : pending.added.values()) {
+                    try {
+                        setOpenoutputsParameters(s, out);
+                        s.executeUpdate();
+                    } catch (SQLException e2) {
+                        if (!getDuplicateKeyErrorCode().equals(e2.getSQLState()))
+                            throw e2;
+                    }
+                }
+            }
         }
+        pending.clear();
     }
 
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        if (pendingOutputs.get() != null) {
+            log.debug("Already in a database batch write");
+            return;
+        }
+        // The connection stays with this thread until the batch is committed or aborted.
+        acquireConnection();
         if (log.isDebugEnabled())
             log.debug("Starting database batch write with connection: " + conn.get().toString());
         try {
             conn.get().setAutoCommit(false);
+            pendingOutputs.set(new PendingOutputs());
         } catch (SQLException e) {
+            releaseConnection();
             throw new BlockStoreException(e);
         }
     }
 
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        if (pendingOutputs.get() == null) {
+            log.warn("Warning: Commit attempt without transaction");
+            return;
+        }
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
         try {
+            flushPendingOutputs();
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            pendingOutputs.remove();
+            releaseConnection();
         }
     }
 
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
-        maybeConnect();
+        if (pendingOutputs.get() == null) {
+            log.warn("Warning: Rollback attempt without transaction");
+            return;
+        }
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
         try {
-            if (!conn.get().getAutoCommit()) {
-                conn.get().rollback();
-                conn.get().setAutoCommit(true);
-            } else {
-                log.warn("Warning: Rollback attempt without transaction");
-            }
+            conn.get().rollback();
+            conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            pendingOutputs.remove();
+            releaseConnection();
         }
     }
 
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null && pending.hasAdded(hash))
+            return true;
+        acquireConnection();
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            if (pending != null)
+                count -= pending.countRemoved(hash);
+            return count > 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
+            closeResultSet(results);
+            releaseConnection();
+        }
+    }
+
+    private static void closeResultSet(@Nullable ResultSet results) {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                log.warn("Failed to close ResultSet", e);
             }
         }
     }
@@ -1089,13 +1367,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If the tables couldn't be cleared and initialised.
      */
     public void resetStore() throws BlockStoreException {
-        maybeConnect();
+        acquireConnection();
         try {
             deleteStore();
             createTables();
             initFromDatabase();
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -1104,7 +1384,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If tables couldn't be deleted.
      */
     public void deleteStore() throws BlockStoreException {
-        maybeConnect();
+        acquireConnection();
+        clearStatementCache();
         try {
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
@@ -1113,6 +1394,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.close();
         } catch (SQLException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            releaseConnection();
         }
     }
 
@@ -1131,12 +1414,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * @throws BlockStoreException If there is an error getting the balance.
      */
     public BigInteger calculateBalanceForAddress(Address address) throws BlockStoreException {
-        maybeConnect();
-        PreparedStatement s = null;
+        acquireConnection();
+        ResultSet rs = null;
         try {
-            s = conn.get().prepareStatement(getBalanceSelectSQL());
+            flushPendingOutputs();
+            PreparedStatement s = getPreparedStatement(getBalanceSelectSQL());
             s.setString(1, address.toString());
-            ResultSet rs = s.executeQuery();
+            rs = s.executeQuery();
             BigInteger balance = BigInteger.ZERO;
             if (rs.next()) {
                 return BigInteger.valueOf(rs.getLong(1));
@@ -1145,56 +1429,106 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
+            closeResultSet(rs);
+            releaseConnection();
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        final List<UTXO> outputs = new ArrayList<>();
+        getOpenTransactionOutputs(addresses, new UTXOHandler() {
+            @Override
+            public void onOutput(UTXO output) {
+                outputs.add(output);
+            }
+        });
+        return outputs;
+    }
+
+    @Override
+    public void getAllOpenTransactionOutputs(UTXOHandler handler) throws BlockStoreException {
+        if (pendingOutputs.get() != null)
+            throw new BlockStoreException("Cannot read all outputs during a batch write");
+        acquireConnection();
+        Connection connection = conn.get();
+        Statement s = null;
+        ResultSet rs = null;
+        try {
+            // In a transaction, so the rows are read from one consistent state, and drivers which otherwise load the
+            // whole result at once use a cursor.
+            connection.setAutoCommit(false);
+            s = connection.createStatement();
+            s.setFetchSize(ALL_OUTPUTS_FETCH_SIZE);
+            rs = s.executeQuery(getSelectAllOpenoutputsSQL());
+            while (rs.next()) {
+                handler.onOutput(new UTXO(Sha256Hash.wrap(rs.getBytes(1)),
+                        rs.getInt(2) & 0xFFFFFFFFL,
+                        Coin.valueOf(rs.getLong(4)),
+                        rs.getInt(3),
+                        rs.getBoolean(6),
+                        new Script(rs.getBytes(5)),
+                        rs.getString(7)));
+            }
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            closeResultSet(rs);
+            try {
+                if (s != null)
                     s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Could not close statement");
-                }
+                // Nothing was written, so there is nothing to commit.
+                connection.rollback();
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.warn("Failed to end transaction after reading all outputs", e);
             }
+            releaseConnection();
         }
     }
 
     @Override
-    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        PreparedStatement s = null;
-        List<UTXO> outputs = new ArrayList<>();
+    public void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler)
+            throws UTXOProviderException {
         try {
-            maybeConnect();
-            s = conn.get().prepareStatement(getTransactionOutputSelectSQL());
-            for (Address address : addresses) {
-                s.setString(1, address.toString());
+            acquireConnection();
+        } catch (BlockStoreException bse) {
+            throw new UTXOProviderException(bse);
+        }
+        try {
+            flushPendingOutputs();
+            // One query per chunk of addresses, using the toaddress index. The last chunk is padded by repeating an
+            // address up to a power of two, so only a few statements of different sizes get prepared.
+            Set<String> distinct = new LinkedHashSet<>();
+            for (Address address : addresses)
+                distinct.add(address.toString());
+            List<String> wanted = new ArrayList<>(distinct);
+            for (List<String> chunk : Lists.partition(wanted, MAX_BATCH_LOOKUP_HASHES)) {
+                int count = Math.min(Integer.highestOneBit(chunk.size() * 2 - 1), MAX_BATCH_LOOKUP_HASHES);
+                PreparedStatement s = getPreparedStatement(getTransactionOutputsSelectBatchSQL(count));
+                for (int i = 0; i < count; i++)
+                    s.setString(i + 1, chunk.get(Math.min(i, chunk.size() - 1)));
                 ResultSet rs = s.executeQuery();
-                while (rs.next()) {
-                    Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
-                    Coin amount = Coin.valueOf(rs.getLong(2));
-                    byte[] scriptBytes = rs.getBytes(3);
-                    int height = rs.getInt(4);
-                    int index = rs.getInt(5);
-                    boolean coinbase = rs.getBoolean(6);
-                    String toAddress = rs.getString(7);
-                    UTXO output = new UTXO(hash,
-                            index,
-                            amount,
-                            height,
-                            coinbase,
-                            new Script(scriptBytes),
-                            toAddress);
-                    outputs.add(output);
+                try {
+                    while (rs.next()) {
+                        Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                        Coin amount = Coin.valueOf(rs.getLong(2));
+                        byte[] scriptBytes = rs.getBytes(3);
+                        int height = rs.getInt(4);
+                        int index = rs.getInt(5);
+                        boolean coinbase = rs.getBoolean(6);
+                        String toAddress = rs.getString(7);
+                        handler.onOutput(new UTXO(hash, index, amount, height, coinbase, new Script(scriptBytes),
+                                toAddress));
+                    }
+                } finally {
+                    closeResultSet(rs);
                 }
             }
-            return outputs;
         } catch (SQLException ex) {
             throw new UTXOProviderException(ex);
-        } catch (BlockStoreException bse) {
-            throw new UTXOProviderException(bse);
         } finally {
-            if (s != null)
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new UTXOProviderException("Could not close statement", e);
-                }
+            releaseConnection();
         }
     }
 
@@ -1204,8 +1538,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      * This does not take database indexes into account.
      */
     public void dumpSizes() throws SQLException, BlockStoreException {
-        maybeConnect();
-        Statement s = conn.get().createStatement();
+        acquireConnection();
+        try {
+            dumpSizes(conn.get());
+        } finally {
+            releaseConnection();
+        }
+    }
+
+    private void dumpSizes(Connection connection) throws SQLException {
+        Statement s = connection.createStatement();
         long size = 0;
         long totalSize = 0;
         int count = 0;
@@ -1268,4 +1610,72 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
         s.close();
     }
+
+    private static class Lease {
+        final DatabaseConnectionPool.PooledConnection connection;
+        // How many operations of the thread, nested in each other, are using the connection.
+        int depth;
+
+        Lease(DatabaseConnectionPool.PooledConnection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * The outputs added and removed since {@link #beginDatabaseBatchWrite()}, which are only written to the database
+     * when the batch is committed. Reads made within the batch look here first.
+     */
+    private static class PendingOutputs {
+        final Map<StoredTransactionOutPoint, UTXO> added = new LinkedHashMap<>();
+        // Outputs that are in the database.
+        final Map<StoredTransactionOutPoint, UTXO> removed = new LinkedHashMap<>();
+        private final Map<Sha256Hash, Integer> addedPerHash = new HashMap<>();
+        private final Map<Sha256Hash, Integer> removedPerHash = new HashMap<>();
+
+        void add(UTXO out) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            // Adding an output twice keeps the first one, like the duplicate key does in the database.
+            if (!added.containsKey(key)) {
+                added.put(key, out);
+                count(addedPerHash, out.getHash(), 1);
+            }
+        }
+
+        boolean cancelAdd(UTXO out) {
+            if (added.remove(new StoredTransactionOutPoint(out)) == null)
+                return false;
+            count(addedPerHash, out.getHash(), -1);
+            return true;
+        }
+
+        void remove(UTXO out) {
+            if (removed.put(new StoredTransactionOutPoint(out), out) == null)
+                count(removedPerHash, out.getHash(), 1);
+        }
+
+        boolean hasAdded(Sha256Hash hash) {
+            return addedPerHash.containsKey(hash);
+        }
+
+        int countRemoved(Sha256Hash hash) {
+            Integer count = removedPerHash.get(hash);
+            return count == null ? 0 : count;
+        }
+
+        void clear() {
+            added.clear();
+            removed.clear();
+            addedPerHash.clear();
+            removedPerHash.clear();
+        }
+
+        private static void count(Map<Sha256Hash, Integer> counts, Sha256Hash hash, int delta) {
+            Integer count = counts.get(hash);
+            int updated = (count == null ? 0 : count) + delta;
+            if (updated == 0)
+                counts.remove(hash);
+            else
+                counts.put(hash, updated);
+        }
+    }
 }
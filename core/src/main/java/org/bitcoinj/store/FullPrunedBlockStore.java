@@ -18,6 +18,7 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.List;
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -75,6 +76,16 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * Gets a {@link org.bitcoinj.core.UTXO} with the given hash and index, or null if none is found
      */
     UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException;
+
+    /**
+     * <p>Gets the {@link org.bitcoinj.core.UTXO}s for many outpoints at once. The result has the same size and order
+     * as the given list, with a null entry for every outpoint that is not found. The result must be the same as
+     * calling {@link #getTransactionOutput(Sha256Hash, long)} for each outpoint in turn.</p>
+     *
+     * <p>Implementations should answer this with as few reads or round-trips to the underlying storage as they can,
+     * as it is used when connecting a block to look up all the outputs it spends.</p>
+     */
+    List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException;
     
     /**
      * Adds a {@link org.bitcoinj.core.UTXO} to the list of unspent TransactionOutputs
@@ -93,6 +104,31 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @param numOutputs the number of outputs the given transaction has
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
+
+    /**
+     * Receives the outputs found by {@link #getOpenTransactionOutputs(List, UTXOHandler)}, one at a time.
+     */
+    interface UTXOHandler {
+        void onOutput(UTXO output);
+    }
+
+    /**
+     * <p>Finds the unspent outputs paying any of the given addresses, like
+     * {@link UTXOProvider#getOpenTransactionOutputs(List)}, but passes each one to the handler as it is found instead of
+     * collecting them all in a list first.</p>
+     *
+     * <p>Implementations answer all addresses in as few passes over their address index as they can, so this is the
+     * way to query many addresses at once. The handler is called on the calling thread while the store may hold a lock
+     * or a database connection, so it should not call back into the store.</p>
+     */
+    void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler) throws UTXOProviderException;
+
+    /**
+     * Passes every unspent output in the store to the handler, in no particular order, for example to write a
+     * {@link UTXOSnapshot}. Stores which do not keep the address of an output may leave it out. The store must not be
+     * changed until this returns.
+     */
+    void getAllOpenTransactionOutputs(UTXOHandler handler) throws BlockStoreException;
     
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
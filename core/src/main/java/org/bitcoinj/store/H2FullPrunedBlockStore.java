@@ -117,12 +117,15 @@ public class H2FullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     public H2FullPrunedBlockStore(NetworkParameters params, String dbName, int fullStoreDepth, int cacheSize)
             throws BlockStoreException {
         this(params, dbName, fullStoreDepth);
+        acquireConnection();
         try {
             Statement s = conn.get().createStatement();
             s.executeUpdate("SET CACHE_SIZE " + cacheSize);
             s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
         }
     }
 
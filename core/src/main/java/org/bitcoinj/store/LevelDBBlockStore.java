@@ -23,6 +23,7 @@ import org.iq80.leveldb.*;
 import javax.annotation.*;
 import java.io.*;
 import java.nio.*;
+import java.util.List;
 
 /**
  * An SPV block store that writes every header it sees to a <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>.
@@ -30,7 +31,7 @@ import java.nio.*;
  * usage than the {@link SPVBlockStore}. If all you want is a regular wallet you don't need this class: it exists for
  * specialised applications where you need to quickly verify a standalone SPV proof.
  */
-public class LevelDBBlockStore implements BlockStore {
+public class LevelDBBlockStore implements BatchBlockStore {
     private static final byte[] CHAIN_HEAD_KEY = "chainhead".getBytes();
 
     private final Context context;
@@ -101,6 +102,27 @@ public class LevelDBBlockStore implements BlockStore {
         db.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
     }
 
+    @Override
+    public synchronized void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        try {
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                for (StoredBlock block : blocks) {
+                    // The batch may keep a reference to the value, so every block needs its own array.
+                    ByteBuffer bytes = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+                    block.serializeCompact(bytes);
+                    batch.put(block.getHeader().getHash().getBytes(), bytes.array());
+                }
+                batch.put(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+                db.write(batch);
+            } finally {
+                batch.close();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
     @Override
     public synchronized void close() throws BlockStoreException {
         try {
@@ -16,14 +16,15 @@
 
 package org.bitcoinj.store;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 import java.io.*;
 import java.nio.ByteBuffer;
@@ -36,6 +37,7 @@ import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.StoredUndoableBlock;
 import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutputChanges;
 import org.bitcoinj.core.UTXO;
 import org.bitcoinj.core.UTXOProviderException;
@@ -49,6 +51,7 @@ import static org.fusesource.leveldbjni.JniDBFactory.*;
 
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 /**
  * <p>
@@ -60,7 +63,7 @@ import com.google.common.collect.Lists;
  * </p>
  */
 
-public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore, BatchBlockStore {
     private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
 
     NetworkParameters params;
@@ -88,12 +91,15 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
                    // block!
     // ONLY used for performance benchmarking.
 
-    // LRU Cache for getTransactionOutput
-    protected Map<ByteBuffer, UTXO> utxoCache;
-    // Additional cache to cope with case when transactions are rolled back
-    // e.g. when block fails to verify.
-    protected Map<ByteBuffer, UTXO> utxoUncommittedCache;
-    protected Set<ByteBuffer> utxoUncommittedDeletedCache;
+    // Write-back cache of unspent outputs. Created and spent outputs, and
+    // their address index entries, only reach the db when the cache is
+    // flushed, in the same write as the chain heads. So the heads on disk
+    // always match the outputs on disk, whenever we crash.
+    protected WriteBackUTXOCache utxoCache;
+    // Transactions whose outputs cannot be in the db yet, as the bloom filter
+    // had never seen them when their first output was added since the last
+    // flush. Spending such an output never needs to reach the db.
+    private Set<Sha256Hash> freshTransactions = new HashSet<>();
 
     // Database folder
     protected String filename;
@@ -111,8 +117,10 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     protected long leveldbReadCache;
     protected int leveldbWriteCache;
 
-    // Size of cache for getTransactionOutput
-    protected int openOutCache;
+    // Memory used by the cache of unspent outputs, and how much of it may be
+    // dirty before it is flushed.
+    protected long utxoCacheBytes;
+    protected long utxoFlushBytes;
     // Bloomfilter for caching calls to hasUnspentOutputs
     protected BloomFilter bloom;
 
@@ -120,22 +128,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     static final long LEVELDB_READ_CACHE_DEFAULT = 100 * 1048576; // 100 meg
     static final int LEVELDB_WRITE_CACHE_DEFAULT = 10 * 1048576; // 10 meg
     static final int OPENOUT_CACHE_DEFAULT = 100000;
-
-    // LRUCache
-    public class LRUCache extends LinkedHashMap<ByteBuffer, UTXO> {
-        private static final long serialVersionUID = 1L;
-        private int capacity;
-
-        public LRUCache(int capacity, float loadFactor) {
-            super(capacity, loadFactor, true);
-            this.capacity = capacity;
-        }
-
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, UTXO> eldest) {
-            return size() > this.capacity;
-        }
-    }
+    static final long UTXO_CACHE_BYTES_DEFAULT = 64 * 1048576; // 64 meg
+    static final long UTXO_FLUSH_BYTES_DEFAULT = 32 * 1048576; // 32 meg
+    // Rough memory use of a cached output, to turn a number of outputs into
+    // bytes.
+    private static final int UTXO_BYTES_ESTIMATE = 256;
 
     // Simple bloomfilter. We take advantage of fact that a Transaction Hash
     // can be split into 3 30bit numbers that are all random and uncorrelated
@@ -250,11 +247,27 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount) {
         this(params, filename, blockCount, LEVELDB_READ_CACHE_DEFAULT, LEVELDB_WRITE_CACHE_DEFAULT,
-                OPENOUT_CACHE_DEFAULT, false, Integer.MAX_VALUE);
+                UTXO_CACHE_BYTES_DEFAULT, UTXO_FLUSH_BYTES_DEFAULT, false, Integer.MAX_VALUE);
     }
 
+    /**
+     * Creates a store whose cache of unspent outputs holds about openOutCache outputs, and is flushed once half of
+     * that is dirty.
+     */
     public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
             int leveldbWriteCache, int openOutCache, boolean instrument, int exitBlock) {
+        this(params, filename, blockCount, leveldbReadCache, leveldbWriteCache,
+                (long) openOutCache * UTXO_BYTES_ESTIMATE, (long) openOutCache * UTXO_BYTES_ESTIMATE / 2,
+                instrument, exitBlock);
+    }
+
+    /**
+     * Creates a store whose cache of unspent outputs uses about utxoCacheBytes of memory. Created and spent outputs
+     * are kept in the cache and written to the database, together with the chain heads, once they take up
+     * utxoFlushBytes, or when the store is closed.
+     */
+    public LevelDBFullPrunedBlockStore(NetworkParameters params, String filename, int blockCount, long leveldbReadCache,
+            int leveldbWriteCache, long utxoCacheBytes, long utxoFlushBytes, boolean instrument, int exitBlock) {
         this.params = params;
         fullStoreDepth = blockCount;
         this.instrument = instrument;
@@ -266,7 +279,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         this.filename = filename;
         this.leveldbReadCache = leveldbReadCache;
         this.leveldbWriteCache = leveldbWriteCache;
-        this.openOutCache = openOutCache;
+        this.utxoCacheBytes = utxoCacheBytes;
+        this.utxoFlushBytes = utxoFlushBytes;
         bloom = new BloomFilter();
         totalStopwatch = Stopwatch.createStarted();
         openDB();
@@ -290,7 +304,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             throw new RuntimeException("Can not open DB", e);
         }
 
-        utxoCache = new LRUCache(openOutCache, 0.75f);
+        utxoCache = new WriteBackUTXOCache(utxoCacheBytes, utxoFlushBytes);
         try {
             if (batchGet(getKey(KeyType.CREATED)) == null) {
                 createNewStore(params);
@@ -374,6 +388,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         double hitrate = (hit + 0.0) / (hit + miss + 0.0);
         log.info("Cache size:" + utxoCache.size() + " hit:" + hit + " miss:" + miss + " rate:"
                 + String.format("%.2f", hitrate));
+        log.info(utxoCache.toString());
         bloom.printStat();
         log.info("hasTxOut call:" + hasCall + " True:" + hasTrue + " False:" + hasFalse);
         log.info("Wall:" + totalStopwatch + " percent:" + String.format("%.2f", dbproportion));
@@ -387,6 +402,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         putUpdateStoredBlock(block, false);
     }
 
+    @Override
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        beginDatabaseBatchWrite();
+        try {
+            for (StoredBlock block : blocks)
+                put(block);
+            setChainHead(chainHead);
+            commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            abortDatabaseBatchWrite();
+            throw e;
+        }
+    }
+
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         return chainHeadBlock;
@@ -399,7 +428,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.chainHeadHash = hash;
         this.chainHeadBlock = chainHead;
-        batchPut(getKey(KeyType.CHAIN_HEAD_SETTING), hash.getBytes());
+        // Written when the cache is flushed, see writeUTXOCache.
+        if (autoCommit)
+            maybeFlushUTXOCache();
         if (instrument)
             endMethod("setChainHead");
     }
@@ -407,6 +438,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
     @Override
     public void close() throws BlockStoreException {
         try {
+            if (autoCommit && !utxoCache.isClean())
+                flushUTXOCache();
             db.close();
         } catch (IOException e) {
             throw new BlockStoreException("Could not close db", e);
@@ -420,61 +453,126 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        // Run this on a snapshot of database so internally consistent result
-        // This is critical or if one address paid another could get incorrect
-        // results
-
-        List<UTXO> results = new LinkedList<>();
-        for (Address a : addresses) {
-            ByteBuffer bb = ByteBuffer.allocate(21);
-            bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-            bb.put(a.getHash160());
-
-            ReadOptions ro = new ReadOptions();
-            Snapshot sn = db.getSnapshot();
-            ro.snapshot(sn);
-
-            // Scanning over iterator very fast
+        final List<UTXO> results = new ArrayList<>();
+        getOpenTransactionOutputs(addresses, new UTXOHandler() {
+            @Override
+            public void onOutput(UTXO output) {
+                results.add(output);
+            }
+        });
+        return results;
+    }
 
-            DBIterator iterator = db.iterator(ro);
-            for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
-                ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
-                bbKey.get(); // remove the address_hashindex byte.
-                byte[] addressKey = new byte[20];
-                bbKey.get(addressKey);
-                if (!Arrays.equals(addressKey, a.getHash160())) {
+    @Override
+    public void getAllOpenTransactionOutputs(UTXOHandler handler) throws BlockStoreException {
+        // Outputs of a batch still in the cache are not in the database yet.
+        if (!autoCommit)
+            throw new BlockStoreException("Cannot read all outputs during a batch write");
+        if (!utxoCache.isClean())
+            flushUTXOCache();
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            byte[] key = getKey(KeyType.OPENOUT_ALL);
+            for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+                Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+                if (entry.getKey()[0] != key[0])
                     break;
-                }
-                byte[] hashBytes = new byte[32];
-                bbKey.get(hashBytes);
-                int index = bbKey.getInt();
-                Sha256Hash hash = Sha256Hash.wrap(hashBytes);
-                UTXO txout;
-                try {
-                    // TODO this should be on the SNAPSHOT too......
-                    // this is really a BUG.
-                    txout = getTransactionOutput(hash, index);
-                } catch (BlockStoreException e) {
-                    throw new UTXOProviderException("block store execption", e);
-                }
-                if (txout != null) {
-                    Script sc = txout.getScript();
-                    Address address = sc.getToAddress(params, true);
-                    UTXO output = new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(), txout.getHeight(),
-                            txout.isCoinbase(), txout.getScript(), address.toString());
-                    results.add(output);
+                handler.onOutput(new UTXO(new ByteArrayInputStream(entry.getValue())));
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (DBException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            try {
+                iterator.close();
+                sn.close();
+            } catch (IOException e) {
+                log.error("Error closing snapshot/iterator?", e);
+            }
+        }
+    }
+
+    @Override
+    public void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler)
+            throws UTXOProviderException {
+        // The address index only knows about flushed outputs.
+        if (autoCommit && !utxoCache.isClean())
+            flushUTXOCache();
+
+        // Look the addresses up in key order, so a single iterator only ever
+        // seeks forward, and read everything from one snapshot so that the
+        // result is internally consistent even if one address paid another
+        // in the meantime.
+        TreeMap<byte[], List<Address>> byHash = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (Address a : addresses) {
+            List<Address> sameHash = byHash.get(a.getHash160());
+            if (sameHash == null) {
+                sameHash = new ArrayList<>(1);
+                byHash.put(a.getHash160(), sameHash);
+            }
+            if (!sameHash.contains(a))
+                sameHash.add(a);
+        }
+        ReadOptions ro = new ReadOptions();
+        Snapshot sn = db.getSnapshot();
+        ro.snapshot(sn);
+        DBIterator iterator = db.iterator(ro);
+        try {
+            for (Map.Entry<byte[], List<Address>> wanted : byHash.entrySet()) {
+                byte[] addressHash = wanted.getKey();
+                ByteBuffer bb = ByteBuffer.allocate(21);
+                bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
+                bb.put(addressHash);
+                for (iterator.seek(bb.array()); iterator.hasNext(); iterator.next()) {
+                    ByteBuffer bbKey = ByteBuffer.wrap(iterator.peekNext().getKey());
+                    bbKey.get(); // remove the address_hashindex byte.
+                    byte[] addressKey = new byte[20];
+                    bbKey.get(addressKey);
+                    if (!Arrays.equals(addressKey, addressHash))
+                        break;
+                    byte[] hashBytes = new byte[32];
+                    bbKey.get(hashBytes);
+                    int index = bbKey.getInt();
+                    byte[] key = getTxKey(KeyType.OPENOUT_ALL, Sha256Hash.wrap(hashBytes), index);
+                    // Within a batch the cache may have spent outputs the
+                    // snapshot still has.
+                    WriteBackUTXOCache.Entry entry = utxoCache.get(ByteBuffer.wrap(key));
+                    if (entry != null && entry.spent)
+                        continue;
+                    byte[] value = db.get(key, ro);
+                    if (value == null)
+                        continue;
+                    UTXO txout = new UTXO(new ByteArrayInputStream(value));
+                    Address address;
+                    try {
+                        address = txout.getScript().getToAddress(params, true);
+                    } catch (ScriptException e) {
+                        continue;
+                    }
+                    // Pay to script hash and pay to pubkey hash addresses
+                    // share the index entries of their hash.
+                    if (!wanted.getValue().contains(address))
+                        continue;
+                    handler.onOutput(new UTXO(txout.getHash(), txout.getIndex(), txout.getValue(),
+                            txout.getHeight(), txout.isCoinbase(), txout.getScript(), address.toString()));
                 }
             }
+        } catch (IOException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } catch (DBException e) {
+            throw new UTXOProviderException("block store exception", e);
+        } finally {
             try {
                 iterator.close();
-                ro = null;
                 sn.close();
-                sn = null;
             } catch (IOException e) {
                 log.error("Error closing snapshot/iterator?", e);
             }
         }
-        return results;
     }
 
     @Override
@@ -706,36 +804,18 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("getTransactionOutput");
 
         try {
-            UTXO result = null;
             byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash, (int) index);
-            // Use cache
-            if (autoCommit) {
-                // Simple case of auto commit on so cache is consistent.
-                result = utxoCache.get(ByteBuffer.wrap(key));
-            } else {
-                // Check if we have an uncommitted delete.
-                if (utxoUncommittedDeletedCache.contains(ByteBuffer.wrap(key))) {
-                    // has been deleted so return null;
-                    hit++;
-                    if (instrument)
-                        endMethod("getTransactionOutput");
-                    return result;
-                }
-                // Check if we have an uncommitted entry
-                result = utxoUncommittedCache.get(ByteBuffer.wrap(key));
-                if (result == null)
-                    result = utxoCache.get(ByteBuffer.wrap(key));
-                // And lastly above check if we have a committed cached entry
-
-            }
-            if (result != null) {
+            ByteBuffer bbKey = ByteBuffer.wrap(key);
+            // The cache knows about every output created or spent since the
+            // last flush, so only its misses have to hit the database.
+            WriteBackUTXOCache.Entry entry = utxoCache.get(bbKey);
+            if (entry != null) {
                 hit++;
                 if (instrument)
                     endMethod("getTransactionOutput");
-                return result;
+                return entry.spent ? null : entry.utxo;
             }
             miss++;
-            // If we get here have to hit the database.
             byte[] inbytes = batchGet(key);
             if (inbytes == null) {
                 if (instrument)
@@ -744,6 +824,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             }
             ByteArrayInputStream bis = new ByteArrayInputStream(inbytes);
             UTXO txout = new UTXO(bis);
+            utxoCache.putClean(bbKey, txout, inbytes.length);
 
             if (instrument)
                 endMethod("getTransactionOutput");
@@ -760,12 +841,85 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         throw new BlockStoreException("problem");
     }
 
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        if (instrument)
+            beginMethod("getTransactionOutputs");
+
+        UTXO[] results = new UTXO[outPoints.size()];
+        // Serve what we can from the cache, exactly as getTransactionOutput does, and collect the misses.
+        TreeMap<byte[], List<Integer>> misses = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (int i = 0; i < outPoints.size(); i++) {
+            TransactionOutPoint outPoint = outPoints.get(i);
+            byte[] key = getTxKey(KeyType.OPENOUT_ALL, outPoint.getHash(), (int) outPoint.getIndex());
+            WriteBackUTXOCache.Entry cached = utxoCache.get(ByteBuffer.wrap(key));
+            if (cached != null) {
+                hit++;
+                results[i] = cached.spent ? null : cached.utxo;
+                continue;
+            }
+            miss++;
+            List<Integer> positions = misses.get(key);
+            if (positions == null) {
+                positions = new ArrayList<>(1);
+                misses.put(key, positions);
+            }
+            positions.add(i);
+        }
+
+        // LevelDB has no multi-get, but reading the keys in sorted order through a single iterator walks each table
+        // file once and front to back, instead of doing one independent random lookup per key.
+        if (!misses.isEmpty()) {
+            DBIterator iterator = db.iterator();
+            try {
+                for (Map.Entry<byte[], List<Integer>> entry : misses.entrySet()) {
+                    byte[] key = entry.getKey();
+                    byte[] value = null;
+                    iterator.seek(key);
+                    if (iterator.hasNext()) {
+                        Map.Entry<byte[], byte[]> next = iterator.peekNext();
+                        if (Arrays.equals(key, next.getKey()))
+                            value = next.getValue();
+                    }
+                    if (value == null)
+                        continue;
+                    UTXO txout = new UTXO(new ByteArrayInputStream(value));
+                    utxoCache.putClean(ByteBuffer.wrap(key), txout, value.length);
+                    for (int position : entry.getValue())
+                        results[position] = txout;
+                }
+            } catch (DBException e) {
+                log.error("Exception in getTransactionOutputs.", e);
+                throw new BlockStoreException(e);
+            } catch (IOException e) {
+                log.error("Exception in getTransactionOutputs.", e);
+                throw new BlockStoreException(e);
+            } finally {
+                try {
+                    iterator.close();
+                } catch (IOException e) {
+                    log.error("Error closing iterator", e);
+                }
+                if (instrument)
+                    endMethod("getTransactionOutputs");
+            }
+        } else if (instrument) {
+            endMethod("getTransactionOutputs");
+        }
+        return Arrays.asList(results);
+    }
+
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
 
         if (instrument)
             beginMethod("addUnspentTransactionOutput");
 
+        // If the bloom filter has never seen the transaction none of its
+        // outputs are in the db, so spending them can stay in the cache too.
+        boolean fresh = freshTransactions.contains(out.getHash()) || !bloom.wasAdded(out.getHash());
+        if (fresh)
+            freshTransactions.add(out.getHash());
         // Add to bloom filter - is very fast to add.
         bloom.add(out.getHash());
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -776,40 +930,11 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         }
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
-        batchPut(key, bos.toByteArray());
-
-        if (autoCommit) {
-            utxoCache.put(ByteBuffer.wrap(key), out);
-        } else {
-            utxoUncommittedCache.put(ByteBuffer.wrap(key), out);
-            // leveldb just stores the last key/value added.
-            // So if we do an add must remove any previous deletes.
-            utxoUncommittedDeletedCache.remove(ByteBuffer.wrap(key));
-        }
-
-        // Could run this in parallel with above too.
-        // Should update instrumentation to see if worth while.
-        Address a;
-        if (out.getAddress() == null || out.getAddress().equals("")) {
-            if (instrument)
-                endMethod("addUnspentTransactionOutput");
-            return;
-        } else {
-            try {
-                a = Address.fromBase58(params, out.getAddress());
-            } catch (AddressFormatException e) {
-                if (instrument)
-                    endMethod("addUnspentTransactionOutput");
-                return;
-            }
-        }
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
-        bb.put(a.getHash160());
-        bb.put(out.getHash().getBytes());
-        bb.putInt((int) out.getIndex());
-        byte[] value = new byte[0];
-        batchPut(bb.array(), value);
+        // The output and its address index entry are written when the cache
+        // is flushed.
+        utxoCache.add(ByteBuffer.wrap(key), out, bos.toByteArray(), fresh);
+        if (autoCommit)
+            maybeFlushUTXOCache();
         if (instrument)
             endMethod("addUnspentTransactionOutput");
     }
@@ -868,50 +993,100 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             beginMethod("removeUnspentTransactionOutput");
 
         byte[] key = getTxKey(KeyType.OPENOUT_ALL, out.getHash(), (int) out.getIndex());
+        // The output and its address index entry are deleted when the cache
+        // is flushed, unless it was never written in the first place.
+        utxoCache.spend(ByteBuffer.wrap(key), out);
+        if (autoCommit)
+            maybeFlushUTXOCache();
+        if (instrument)
+            endMethod("removeUnspentTransactionOutput");
+    }
 
-        if (autoCommit) {
-            utxoCache.remove(ByteBuffer.wrap(key));
-        } else {
-            utxoUncommittedDeletedCache.add(ByteBuffer.wrap(key));
-            utxoUncommittedCache.remove(ByteBuffer.wrap(key));
-        }
-
-        batchDelete(key);
-        // could run this and the above in parallel
-        // Need to update instrumentation to check if worth the effort
-
+    // Returns the address index key of an output, or null if it has none.
+    // Outputs are only indexed by their address string, but when removing we
+    // also try the script, as we always did.
+    private byte[] getAddressKey(UTXO out, boolean tryScript) {
         // TODO storing as byte[] hash to save space. But think should just
         // store as String of address. Might be faster. Need to test.
-        ByteBuffer bb = ByteBuffer.allocate(57);
-        Address a;
-        byte[] hashBytes = null;
+        byte[] hashBytes;
         try {
             String address = out.getAddress();
             if (address == null || address.equals("")) {
-                Script sc = out.getScript();
-                a = sc.getToAddress(params);
-                hashBytes = a.getHash160();
+                if (!tryScript)
+                    return null;
+                hashBytes = out.getScript().getToAddress(params).getHash160();
             } else {
-                a = Address.fromBase58(params, out.getAddress());
-                hashBytes = a.getHash160();
+                hashBytes = Address.fromBase58(params, address).getHash160();
             }
         } catch (AddressFormatException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
+            return null;
         } catch (ScriptException e) {
-            if (instrument)
-                endMethod("removeUnspentTransactionOutput");
-            return;
+            return null;
         }
+        ByteBuffer bb = ByteBuffer.allocate(57);
         bb.put((byte) KeyType.ADDRESS_HASHINDEX.ordinal());
         bb.put(hashBytes);
         bb.put(out.getHash().getBytes());
         bb.putInt((int) out.getIndex());
-        batchDelete(bb.array());
+        return bb.array();
+    }
 
-        if (instrument)
-            endMethod("removeUnspentTransactionOutput");
+    // Adds the dirty outputs of the cache, their address index entries and
+    // the chain heads to the given batch, and prunes undo blocks no longer
+    // needed below the verified head. Returns the start time of the flush.
+    // Once the batch is written markFlushed must be called.
+    private long writeUTXOCache(final WriteBatch target) {
+        long start = System.nanoTime();
+        utxoCache.writeDirty(new WriteBackUTXOCache.Writer() {
+            @Override
+            public void put(ByteBuffer key, UTXO utxo, byte[] value) {
+                target.put(key.array(), value);
+                byte[] addressKey = getAddressKey(utxo, false);
+                if (addressKey != null)
+                    target.put(addressKey, new byte[0]);
+            }
+
+            @Override
+            public void delete(ByteBuffer key, UTXO utxo) {
+                target.delete(key.array());
+                byte[] addressKey = getAddressKey(utxo, true);
+                if (addressKey != null)
+                    target.delete(addressKey);
+            }
+        });
+        target.put(getKey(KeyType.CHAIN_HEAD_SETTING), chainHeadHash.getBytes());
+        target.put(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), verifiedChainHeadHash.getBytes());
+        removeUndoableBlocksWhereHeightIsLessThan(verifiedChainHeadBlock.getHeight() - fullStoreDepth, target);
+        return start;
+    }
+
+    private void markFlushed(long start) {
+        utxoCache.markFlushed(System.nanoTime() - start);
+        // Flushed outputs are in the db now.
+        freshTransactions.clear();
+    }
+
+    // Flushes the cache outside of a batch write.
+    private void flushUTXOCache() {
+        WriteBatch flushBatch = db.createWriteBatch();
+        try {
+            long start = writeUTXOCache(flushBatch);
+            db.write(flushBatch);
+            markFlushed(start);
+        } finally {
+            try {
+                flushBatch.close();
+            } catch (IOException e) {
+                log.error("Error closing batch", e);
+            }
+        }
+    }
+
+    // Outside of a batch write we flush once the cache holds enough changes,
+    // or if there are none so the chain heads are written right away.
+    private void maybeFlushUTXOCache() {
+        if (utxoCache.needsFlush() || utxoCache.isClean())
+            flushUTXOCache();
     }
 
     // Instrumentation of bloom filter to check theory
@@ -932,34 +1107,32 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             hasFalse++;
             return false;
         }
-        // no index is fine as will find any entry with any index...
-        // TODO should I be checking uncommitted inserts/deletes???
-        byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
-        byte[] subResult = new byte[key.length];
-        DBIterator iterator = db.iterator();
-        for (iterator.seek(key); iterator.hasNext();) {
-            byte[] result = iterator.peekNext().getKey();
-            System.arraycopy(result, 0, subResult, 0, subResult.length);
-            if (Arrays.equals(key, subResult)) {
+        // Outputs created since the last flush are only in the cache.
+        for (int i = 0; i < numOutputs; i++) {
+            WriteBackUTXOCache.Entry entry = utxoCache
+                    .peek(ByteBuffer.wrap(getTxKey(KeyType.OPENOUT_ALL, hash, i)));
+            if (entry != null && !entry.spent) {
                 hasTrue++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
                 if (instrument)
                     endMethod("hasUnspentOutputs");
                 return true;
-            } else {
-                hasFalse++;
-                try {
-                    iterator.close();
-                } catch (IOException e) {
-                    log.error("Error closing iterator", e);
-                }
-                if (instrument)
-                    endMethod("hasUnspentOutputs");
-                return false;
+            }
+        }
+        // no index is fine as will find any entry with any index...
+        // But skip those the cache knows are spent.
+        byte[] key = getTxKey(KeyType.OPENOUT_ALL, hash);
+        byte[] subResult = new byte[key.length];
+        boolean result = false;
+        DBIterator iterator = db.iterator();
+        for (iterator.seek(key); iterator.hasNext(); iterator.next()) {
+            byte[] found = iterator.peekNext().getKey();
+            System.arraycopy(found, 0, subResult, 0, subResult.length);
+            if (!Arrays.equals(key, subResult))
+                break;
+            WriteBackUTXOCache.Entry entry = utxoCache.peek(ByteBuffer.wrap(found));
+            if (entry == null || !entry.spent) {
+                result = true;
+                break;
             }
         }
         try {
@@ -967,10 +1140,13 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (IOException e) {
             log.error("Error closing iterator", e);
         }
-        hasFalse++;
+        if (result)
+            hasTrue++;
+        else
+            hasFalse++;
         if (instrument)
             endMethod("hasUnspentOutputs");
-        return false;
+        return result;
     }
 
     @Override
@@ -985,15 +1161,17 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = chainHead.getHeader().getHash();
         this.verifiedChainHeadHash = hash;
         this.verifiedChainHeadBlock = chainHead;
-        batchPut(getKey(KeyType.VERIFIED_CHAIN_HEAD_SETTING), hash.getBytes());
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        // Written, and old undo blocks pruned, when the cache is flushed, see
+        // writeUTXOCache.
+        if (autoCommit)
+            maybeFlushUTXOCache();
         if (instrument)
             endMethod("setVerifiedChainHead");
     }
 
-    void removeUndoableBlocksWhereHeightIsLessThan(int height) {
+    void removeUndoableBlocksWhereHeightIsLessThan(int height, WriteBatch target) {
         if (height < 0)
             return;
         DBIterator iterator = db.iterator();
@@ -1014,8 +1192,8 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             if (keyHeight > height)
                 break;
 
-            batchDelete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
-            batchDelete(bytekey);
+            target.delete(getKey(KeyType.UNDOABLEBLOCKS_ALL, hashbytes));
+            target.delete(bytekey);
         }
         try {
             iterator.close();
@@ -1041,8 +1219,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         batch = db.createWriteBatch();
         uncommited = new HashMap<>();
         uncommitedDeletes = new HashSet<>();
-        utxoUncommittedCache = new HashMap<>();
-        utxoUncommittedDeletedCache = new HashSet<>();
+        utxoCache.beginBatch();
         autoCommit = false;
         if (instrument)
             endMethod("beginDatabaseBatchWrite");
@@ -1050,24 +1227,20 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public void commitDatabaseBatchWrite() throws BlockStoreException {
-        uncommited = null;
-        uncommitedDeletes = null;
         if (instrument)
             beginMethod("commitDatabaseBatchWrite");
 
+        // The cache keeps the changes of this batch. Once it holds enough of
+        // them, or none so the chain heads can be written right away, they go
+        // into the same write as the rest of the batch.
+        boolean flush = utxoCache.needsFlush() || utxoCache.isClean();
+        utxoCache.commitBatch();
+        long start = flush ? writeUTXOCache(batch) : 0;
         db.write(batch);
-        // order of these is not important as we only allow entry to be in one
-        // or the other.
-        // must update cache with uncommitted adds/deletes.
-        for (Map.Entry<ByteBuffer, UTXO> entry : utxoUncommittedCache.entrySet()) {
-
-            utxoCache.put(entry.getKey(), entry.getValue());
-        }
-        utxoUncommittedCache = null;
-        for (ByteBuffer entry : utxoUncommittedDeletedCache) {
-            utxoCache.remove(entry);
-        }
-        utxoUncommittedDeletedCache = null;
+        if (flush)
+            markFlushed(start);
+        uncommited = null;
+        uncommitedDeletes = null;
 
         autoCommit = true;
 
@@ -1097,8 +1270,9 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
         try {
             uncommited = null;
             uncommitedDeletes = null;
-            utxoUncommittedCache = null;
-            utxoUncommittedDeletedCache = null;
+            if (!autoCommit)
+                utxoCache.abortBatch();
+            freshTransactions.clear();
             autoCommit = true;
             if (batch != null) {
                 batch.close();
@@ -1118,7 +1292,7 @@ public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
             uncommitedDeletes = null;
             autoCommit = true;
             bloom = new BloomFilter();
-            utxoCache = new LRUCache(openOutCache, 0.75f);
+            freshTransactions.clear();
         } catch (IOException e) {
             log.error("Exception in resetStore.", e);
         }
@@ -0,0 +1,997 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.core.UTXOProviderException;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} in pure Java, which keeps headers, undo blocks and unspent outputs in a log of
+ * append-only, memory mapped segment files in a directory, with an index in memory of where the latest record of each
+ * is. Unlike {@link LevelDBFullPrunedBlockStore} it needs no native code, and unlike
+ * {@link MemoryFullPrunedBlockStore} only the index has to fit on the heap.</p>
+ *
+ * <p>Every change is appended as a record with a checksum. The changes made between
+ * {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are kept in memory until the commit, and
+ * then appended together, followed by a commit record holding the chain heads. Changes made outside of a batch are
+ * committed one by one. When the store is opened the segments are replayed in order, and only changes followed by a
+ * commit record are applied, so a crash loses at most the batch that was being written. A segment that is full gets
+ * an end record and is forced to disk before the next one is started. Other writes are only forced to disk on close and
+ * by compaction, so, as with LevelDB, a power failure may lose recent commits, but cannot leave a partial one. A
+ * segment other than the last one which doesn't end with an end record is corrupt, and the store refuses to open.</p>
+ *
+ * <p>Records that were overwritten or deleted are garbage. A background thread compacts segments that are mostly
+ * garbage by appending their live records to the log again, then deleting the segment. A deletion is kept for as long
+ * as the segment holding the record it deleted still exists.</p>
+ */
+public class LogFullPrunedBlockStore implements FullPrunedBlockStore, BatchBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogFullPrunedBlockStore.class);
+
+    /** The default size of a segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    // Segments where fewer bytes than this are live get compacted.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    // Record format:
+    //   4 bytes length of the record, zero after the last record of a segment
+    //   4 bytes CRC32 of the rest of the record
+    //   1 byte kind, PUT, DELETE, COMMIT or END
+    //   1 byte key length
+    //   the key, starting with its namespace
+    //   the value: the data for PUT, the segment that held the deleted record for DELETE, and the chain head and
+    //   verified chain head hashes for COMMIT, nothing for END, which is the last record of a full segment
+    private static final int RECORD_HEADER = 10;
+    private static final byte PUT = 1, DELETE = 2, COMMIT = 3, END = 4;
+    private static final byte HEADER = 0, UNDO = 1, OUTPUT = 2;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final RandomAccessFile randomAccessFile;
+        MappedByteBuffer buffer;
+        // Where the next record goes, or where the records of a sealed segment end.
+        int end;
+        // The bytes of records the index points at, and of deletions still hiding a record in an older segment.
+        long liveBytes;
+
+        Segment(int id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                if (randomAccessFile.length() < size)
+                    randomAccessFile.setLength(size);
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                        randomAccessFile.length());
+            } catch (IOException e) {
+                randomAccessFile.close();
+                throw e;
+            }
+        }
+
+        void close() throws IOException {
+            buffer.force();
+            if (System.getProperty("os.name").toLowerCase().contains("win"))
+                WindowsMMapHack.forceRelease(buffer);
+            buffer = null;
+            randomAccessFile.close();
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int segmentSize;
+    private final int fullStoreDepth;
+
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    // Where the latest record of each key is, the segment id in the high and the offset in the low 32 bits.
+    private final HashMap<ByteBuffer, Long> index = new HashMap<>();
+    // The unspent outputs by the address they pay, for getOpenTransactionOutputs.
+    private final UTXOAddressIndex addressIndex = new UTXOAddressIndex();
+    // The locations of the deletion records hiding a record in each segment, which stop being live once it is gone.
+    private final HashMap<Integer, List<Long>> deletionsBySegment = new HashMap<>();
+    // The hashes of the undo blocks stored at each height, for pruning.
+    private final TreeMap<Integer, Set<Sha256Hash>> undoHeights = new TreeMap<>();
+    // The changes of the current batch, null values for deletions, or null outside of a batch.
+    @Nullable private LinkedHashMap<ByteBuffer, byte[]> pending;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    private final ExecutorService compactor;
+    private boolean compactionScheduled;
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, or creates it.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param directory The directory holding the segment files
+     * @param fullStoreDepth The depth of blocks to keep undo blocks for
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, directory, fullStoreDepth, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, or creates it, starting new segment files at the given size. Records
+     * larger than that get a segment of their own.
+     */
+    public LogFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth, int segmentSize)
+            throws BlockStoreException {
+        checkArgument(segmentSize >= 1024, "segmentSize too small");
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.segmentSize = segmentSize;
+        compactor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("LogFullPrunedBlockStore compactor"));
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            recover();
+            if (chainHead == null)
+                createNewStore();
+        } catch (IOException e) {
+            closeSegments();
+            throw new BlockStoreException(e);
+        } catch (BlockStoreException e) {
+            closeSegments();
+            throw e;
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(),
+                    genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    // Replays the segments in order, applying every batch that was completely written, and discards what follows
+    // the last one.
+    private void recover() throws IOException, BlockStoreException {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        LinkedHashMap<ByteBuffer, Long> batch = new LinkedHashMap<>();
+        // The deletions of the batch, by location, with the segment holding the record each deleted.
+        LinkedHashMap<Long, Integer> batchDeletions = new LinkedHashMap<>();
+        byte[] heads = null;
+        Segment lastCommitSegment = null;
+        int lastCommitEnd = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean last = i == ids.size() - 1;
+            Segment segment = new Segment(id, segmentFile(id), segmentSize);
+            segments.put(id, segment);
+            int offset = 0;
+            while (true) {
+                byte[] body = offset + 4 <= segment.buffer.capacity() && segment.buffer.getInt(offset) != 0
+                        ? readRecord(segment, offset) : null;
+                if (body == null) {
+                    // Only the last segment may end without an end record: full segments are forced to disk after it
+                    // is written, so anything else means the segment was damaged, and replaying the segments after
+                    // it could apply part of a batch.
+                    if (!last)
+                        throw new BlockStoreException("Corrupt block store - " + segment.file + " ends at " + offset
+                                + " without an end record, but is followed by later segments");
+                    if (offset + 4 <= segment.buffer.capacity() && segment.buffer.getInt(offset) != 0)
+                        log.warn("Incomplete or corrupt record in {} at {}", segment.file, offset);
+                    break;
+                }
+                int recordEnd = offset + body.length + 8;
+                if (body[0] == END) {
+                    offset = recordEnd;
+                    break;
+                }
+                if (body[0] == COMMIT) {
+                    for (Map.Entry<ByteBuffer, Long> change : batch.entrySet()) {
+                        if (change.getValue() != null)
+                            indexPut(change.getKey(), change.getValue());
+                        else
+                            indexRemove(change.getKey());
+                    }
+                    for (Map.Entry<Long, Integer> deletion : batchDeletions.entrySet())
+                        trackDeletion(deletion.getKey(), deletion.getValue());
+                    batch.clear();
+                    batchDeletions.clear();
+                    heads = Arrays.copyOfRange(body, 2, body.length);
+                    lastCommitSegment = segment;
+                    lastCommitEnd = recordEnd;
+                } else {
+                    int keyLength = body[1] & 0xff;
+                    ByteBuffer key = ByteBuffer.wrap(Arrays.copyOfRange(body, 2, 2 + keyLength));
+                    if (body[0] == PUT) {
+                        batch.put(key, location(id, offset));
+                    } else {
+                        batch.put(key, null);
+                        batchDeletions.put(location(id, offset), ByteBuffer.wrap(body, 2 + keyLength, 4).getInt());
+                    }
+                }
+                offset = recordEnd;
+            }
+            segment.end = offset;
+        }
+
+        // Whatever follows the last commit is a batch that was not completely written.
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (lastCommitSegment == null || segment.id > lastCommitSegment.id) {
+                log.info("Discarding uncommitted segment {}", segment.file);
+                deleteSegment(segment);
+            }
+        }
+        if (lastCommitSegment == null) {
+            active = openSegment(0, segmentSize);
+            return;
+        }
+        active = lastCommitSegment;
+        active.end = lastCommitEnd;
+        active.buffer.putInt(lastCommitEnd, 0);
+
+        Sha256Hash chainHeadHash = Sha256Hash.wrap(Arrays.copyOfRange(heads, 0, 32));
+        Sha256Hash verifiedChainHeadHash = Sha256Hash.wrap(Arrays.copyOfRange(heads, 32, 64));
+        chainHead = get(chainHeadHash);
+        verifiedChainHead = get(verifiedChainHeadHash);
+        if (chainHead == null || verifiedChainHead == null)
+            throw new BlockStoreException("Corrupt block store - chain head not found");
+        log.info("Opened {} with {} segments and {} records, chain head at {}", directory, segments.size(),
+                index.size(), chainHead.getHeight());
+    }
+
+    // Returns the record at the given offset without its length and checksum, or null if it is incomplete or corrupt.
+    @Nullable
+    private static byte[] readRecord(Segment segment, int offset) {
+        int capacity = segment.buffer.capacity();
+        if (offset + RECORD_HEADER > capacity)
+            return null;
+        int length = segment.buffer.getInt(offset);
+        if (length < RECORD_HEADER || length > capacity - offset)
+            return null;
+        byte[] body = new byte[length - 8];
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + 8);
+        buffer.get(body);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        if ((int) crc.getValue() != segment.buffer.getInt(offset + 4))
+            return null;
+        if (2 + (body[1] & 0xff) > body.length)
+            return null;
+        return body;
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    // The value of the record at the given location.
+    private byte[] readValue(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        int offset = (int) location;
+        int length = segment.buffer.getInt(offset);
+        int keyLength = segment.buffer.get(offset + 9) & 0xff;
+        byte[] value = new byte[length - RECORD_HEADER - keyLength];
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset + RECORD_HEADER + keyLength);
+        buffer.get(value);
+        return value;
+    }
+
+    private void indexPut(ByteBuffer key, long location) {
+        Long previous = index.put(key, location);
+        if (previous != null)
+            release(key, previous);
+        // An outpoint always has the same script, so only new ones have to be added to the address index.
+        else if (key.get(0) == OUTPUT)
+            addressIndex.add(outPoint(key), outputScript(location));
+        Segment segment = segments.get((int) (location >>> 32));
+        int offset = (int) location;
+        segment.liveBytes += segment.buffer.getInt(offset);
+        if (key.get(0) == UNDO) {
+            int height = segment.buffer.getInt(offset + RECORD_HEADER + key.capacity());
+            Set<Sha256Hash> hashes = undoHeights.get(height);
+            if (hashes == null) {
+                hashes = new HashSet<>();
+                undoHeights.put(height, hashes);
+            }
+            hashes.add(undoHash(key));
+        }
+    }
+
+    private void indexRemove(ByteBuffer key) {
+        Long previous = index.remove(key);
+        if (previous != null) {
+            if (key.get(0) == OUTPUT)
+                addressIndex.remove(outPoint(key), outputScript(previous));
+            release(key, previous);
+        }
+    }
+
+    private Script outputScript(long location) {
+        try {
+            return new UTXO(new ByteArrayInputStream(readValue(location))).getScript();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen, the record was checked when it was read or written.
+        }
+    }
+
+    // Accounts for a record the index no longer points at.
+    private void release(ByteBuffer key, long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        int offset = (int) location;
+        segment.liveBytes -= segment.buffer.getInt(offset);
+        if (key.get(0) == UNDO) {
+            int height = segment.buffer.getInt(offset + RECORD_HEADER + key.capacity());
+            Set<Sha256Hash> hashes = undoHeights.get(height);
+            if (hashes != null) {
+                hashes.remove(undoHash(key));
+                if (hashes.isEmpty())
+                    undoHeights.remove(height);
+            }
+        }
+    }
+
+    // Counts a deletion record as live for as long as the segment holding the record it deleted exists, so compaction
+    // only carries it over while it is still needed.
+    private void trackDeletion(long location, int deletedSegment) {
+        if (!segments.containsKey(deletedSegment))
+            return;
+        Segment segment = segments.get((int) (location >>> 32));
+        segment.liveBytes += segment.buffer.getInt((int) location);
+        List<Long> locations = deletionsBySegment.get(deletedSegment);
+        if (locations == null) {
+            locations = new ArrayList<>();
+            deletionsBySegment.put(deletedSegment, locations);
+        }
+        locations.add(location);
+    }
+
+    private Segment openSegment(int id, int size) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id), size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        segments.remove(segment.id);
+        // The deletions of records in it are garbage now, unless they were compacted away already.
+        List<Long> deletions = deletionsBySegment.remove(segment.id);
+        if (deletions != null) {
+            for (long location : deletions) {
+                Segment holder = segments.get((int) (location >>> 32));
+                if (holder != null)
+                    holder.liveBytes -= holder.buffer.getInt((int) location);
+            }
+        }
+        segment.close();
+        if (!segment.file.delete())
+            log.warn("Could not delete {}", segment.file);
+    }
+
+    // Ends the active segment with an end record and forces it to disk, so that no later segment can be written
+    // before it is complete, then starts the next one.
+    private void sealActiveSegment(int nextSize) throws IOException {
+        writeRecord(END, new byte[0], null);
+        active.buffer.force();
+        active = openSegment(active.id + 1, nextSize);
+    }
+
+    // Appends a record to the active segment, starting a new one if it does not fit, and returns its location.
+    private long appendRecord(byte kind, byte[] key, @Nullable byte[] value) throws IOException {
+        int length = RECORD_HEADER + key.length + (value != null ? value.length : 0);
+        // Leave room for the end record and the zero length after it.
+        if (active.end + length + RECORD_HEADER + 4 > active.buffer.capacity())
+            sealActiveSegment(Math.max(segmentSize, length + RECORD_HEADER + 4));
+        return writeRecord(kind, key, value);
+    }
+
+    private long writeRecord(byte kind, byte[] key, @Nullable byte[] value) {
+        int length = RECORD_HEADER + key.length + (value != null ? value.length : 0);
+        byte[] body = new byte[length - 8];
+        body[0] = kind;
+        body[1] = (byte) key.length;
+        System.arraycopy(key, 0, body, 2, key.length);
+        if (value != null)
+            System.arraycopy(value, 0, body, 2 + key.length, value.length);
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        // The length goes last, so the record is only seen once it is complete.
+        int offset = active.end;
+        MappedByteBuffer buffer = active.buffer;
+        buffer.putInt(offset + length, 0);
+        ByteBuffer bodyBuffer = buffer.duplicate();
+        bodyBuffer.position(offset + 8);
+        bodyBuffer.put(body);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, length);
+        active.end = offset + length;
+        return location(active.id, offset);
+    }
+
+    private void append(Map<ByteBuffer, byte[]> changes) throws BlockStoreException {
+        append(changes, Collections.<ByteBuffer, Integer>emptyMap());
+    }
+
+    // Appends the given changes followed by a commit record with the chain heads, then applies them to the index.
+    // The deletions are ones carried over by compaction, with the segment holding the record they deleted.
+    private void append(Map<ByteBuffer, byte[]> changes, Map<ByteBuffer, Integer> deletions)
+            throws BlockStoreException {
+        checkState(!closed, "LogFullPrunedBlockStore is closed");
+        Segment startSegment = active;
+        int startEnd = active.end;
+        long[] locations = new long[changes.size()];
+        // The deletion records written, with the segment holding the record each deleted.
+        LinkedHashMap<Long, Integer> deletionRecords = new LinkedHashMap<>();
+        try {
+            int i = 0;
+            for (Map.Entry<ByteBuffer, byte[]> change : changes.entrySet()) {
+                byte[] key = change.getKey().array();
+                byte[] value = change.getValue();
+                Long previous = index.get(change.getKey());
+                if (value != null) {
+                    locations[i] = appendRecord(PUT, key, value);
+                } else if (previous != null) {
+                    // Remember which segment has to be gone before this deletion can be forgotten.
+                    int previousSegment = (int) (previous >>> 32);
+                    locations[i] = appendRecord(DELETE, key, ByteBuffer.allocate(4).putInt(previousSegment).array());
+                    deletionRecords.put(locations[i], previousSegment);
+                }
+                i++;
+            }
+            for (Map.Entry<ByteBuffer, Integer> deletion : deletions.entrySet())
+                deletionRecords.put(appendRecord(DELETE, deletion.getKey().array(),
+                        ByteBuffer.allocate(4).putInt(deletion.getValue()).array()), deletion.getValue());
+            byte[] heads = new byte[64];
+            System.arraycopy(chainHead.getHeader().getHash().getBytes(), 0, heads, 0, 32);
+            System.arraycopy(verifiedChainHead.getHeader().getHash().getBytes(), 0, heads, 32, 32);
+            appendRecord(COMMIT, new byte[0], heads);
+        } catch (IOException e) {
+            // Forget the partly written batch.
+            try {
+                while (active != startSegment) {
+                    Segment segment = active;
+                    active = segments.get(segments.lowerKey(segment.id));
+                    deleteSegment(segment);
+                }
+            } catch (IOException e2) {
+                log.error("Could not discard partly written batch", e2);
+            }
+            active.end = startEnd;
+            active.buffer.putInt(startEnd, 0);
+            throw new BlockStoreException(e);
+        }
+        int i = 0;
+        for (Map.Entry<ByteBuffer, byte[]> change : changes.entrySet()) {
+            if (change.getValue() != null)
+                indexPut(change.getKey(), locations[i]);
+            else
+                indexRemove(change.getKey());
+            i++;
+        }
+        for (Map.Entry<Long, Integer> deletion : deletionRecords.entrySet())
+            trackDeletion(deletion.getKey(), deletion.getValue());
+        maybeScheduleCompaction();
+    }
+
+    @Nullable
+    private byte[] read(ByteBuffer key) {
+        checkState(!closed, "LogFullPrunedBlockStore is closed");
+        if (pending != null && pending.containsKey(key))
+            return pending.get(key);
+        Long location = index.get(key);
+        return location != null ? readValue(location) : null;
+    }
+
+    private boolean contains(ByteBuffer key) {
+        if (pending != null && pending.containsKey(key))
+            return pending.get(key) != null;
+        return index.containsKey(key);
+    }
+
+    // Puts or, for a null value, deletes. Outside of a batch the change is committed right away.
+    private void write(ByteBuffer key, @Nullable byte[] value) throws BlockStoreException {
+        if (pending != null) {
+            pending.put(key, value);
+        } else {
+            Map<ByteBuffer, byte[]> change = new HashMap<>(1);
+            change.put(key, value);
+            append(change);
+        }
+    }
+
+    private static ByteBuffer key(byte namespace, Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = namespace;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return ByteBuffer.wrap(key);
+    }
+
+    private static ByteBuffer outputKey(Sha256Hash hash, long index) {
+        byte[] key = new byte[37];
+        key[0] = OUTPUT;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        ByteBuffer.wrap(key, 33, 4).putInt((int) index);
+        return ByteBuffer.wrap(key);
+    }
+
+    private static StoredTransactionOutPoint outPoint(ByteBuffer key) {
+        return new StoredTransactionOutPoint(Sha256Hash.wrap(Arrays.copyOfRange(key.array(), 1, 33)),
+                key.getInt(33) & 0xFFFFFFFFL);
+    }
+
+    private static Sha256Hash undoHash(ByteBuffer key) {
+        return Sha256Hash.wrap(Arrays.copyOfRange(key.array(), 1, 33));
+    }
+
+    private static byte[] serialize(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        block.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        return buffer.array();
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        write(key(HEADER, block.getHeader().getHash()), serialize(block, false));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(ByteBuffer.allocate(4).putInt(storedBlock.getHeight()).array());
+            if (undoableBlock.getTxOutChanges() != null) {
+                bos.write(0);
+                undoableBlock.getTxOutChanges().serializeToStream(bos);
+            } else {
+                bos.write(1);
+                bos.write(ByteBuffer.allocate(4).putInt(undoableBlock.getTransactions().size()).array());
+                for (Transaction tx : undoableBlock.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        boolean inBatch = pending != null;
+        if (!inBatch)
+            beginDatabaseBatchWrite();
+        write(key(UNDO, hash), bos.toByteArray());
+        write(key(HEADER, hash), serialize(storedBlock, true));
+        if (!inBatch)
+            commitDatabaseBatchWrite();
+    }
+
+    @Override
+    public synchronized void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        boolean inBatch = pending != null;
+        if (!inBatch)
+            beginDatabaseBatchWrite();
+        for (StoredBlock block : blocks)
+            put(block);
+        setChainHead(chainHead);
+        if (!inBatch)
+            commitDatabaseBatchWrite();
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        byte[] value = read(key(HEADER, hash));
+        if (value == null || (wasUndoableOnly && value[StoredBlock.COMPACT_SERIALIZED_SIZE] != 1))
+            return null;
+        return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(value));
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] value = read(key(UNDO, hash));
+        if (value == null)
+            return null;
+        try {
+            if (value[4] == 0)
+                return new StoredUndoableBlock(hash,
+                        new TransactionOutputChanges(new ByteArrayInputStream(value, 5, value.length - 5)));
+            int numTransactions = ByteBuffer.wrap(value, 5, 4).getInt();
+            List<Transaction> transactions = new LinkedList<>();
+            int offset = 9;
+            for (int i = 0; i < numTransactions; i++) {
+                Transaction tx = new Transaction(params, value, offset);
+                transactions.add(tx);
+                offset += tx.getMessageSize();
+            }
+            return new StoredUndoableBlock(hash, transactions);
+        } catch (IOException e) {
+            // Corrupted store.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        // The heads are part of every commit record.
+        if (pending == null)
+            append(new HashMap<ByteBuffer, byte[]>());
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        boolean inBatch = pending != null;
+        if (!inBatch)
+            beginDatabaseBatchWrite();
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // Undo blocks too deep to be needed for a reorganize.
+        List<Sha256Hash> prune = new ArrayList<>();
+        for (Set<Sha256Hash> hashes : undoHeights.headMap(chainHead.getHeight() - fullStoreDepth, true).values())
+            prune.addAll(hashes);
+        for (Sha256Hash hash : prune)
+            write(key(UNDO, hash), null);
+        if (!inBatch)
+            commitDatabaseBatchWrite();
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] value = read(outputKey(hash, index));
+        try {
+            return value != null ? new UTXO(new ByteArrayInputStream(value)) : null;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints)
+            throws BlockStoreException {
+        List<UTXO> results = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            results.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return results;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            out.serializeToStream(bos);
+        } catch (IOException e) {
+            throw new BlockStoreException("problem serialising utxo", e);
+        }
+        write(outputKey(out.getHash(), out.getIndex()), bos.toByteArray());
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        ByteBuffer key = outputKey(out.getHash(), out.getIndex());
+        if (!contains(key))
+            throw new BlockStoreException("Tried to remove a UTXO from LogFullPrunedBlockStore that it didn't have!");
+        write(key, null);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        for (int i = 0; i < numOutputs; i++)
+            if (contains(outputKey(hash, i)))
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        // Batches do not nest, a second call is ignored.
+        if (pending == null)
+            pending = new LinkedHashMap<>();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (pending == null)
+            return;
+        Map<ByteBuffer, byte[]> changes = pending;
+        pending = null;
+        append(changes);
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        pending = null;
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        final List<UTXO> foundOutputs = new ArrayList<>();
+        getOpenTransactionOutputs(addresses, new UTXOHandler() {
+            @Override
+            public void onOutput(UTXO output) {
+                foundOutputs.add(output);
+            }
+        });
+        return foundOutputs;
+    }
+
+    @Override
+    public synchronized void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler)
+            throws UTXOProviderException {
+        checkState(!closed, "LogFullPrunedBlockStore is closed");
+        try {
+            for (Address address : addresses) {
+                for (StoredTransactionOutPoint outPoint : addressIndex.get(address)) {
+                    Long location = index.get(outputKey(outPoint.getHash(), outPoint.getIndex()));
+                    if (location == null)
+                        continue;
+                    UTXO output = new UTXO(new ByteArrayInputStream(readValue(location)));
+                    // The index only narrows down the outputs, and the address is not stored with them.
+                    Address to;
+                    try {
+                        to = output.getScript().getToAddress(params, true);
+                    } catch (ScriptException e) {
+                        continue;
+                    }
+                    if (address.equals(to))
+                        handler.onOutput(new UTXO(output.getHash(), output.getIndex(), output.getValue(),
+                                output.getHeight(), output.isCoinbase(), output.getScript(), to.toString()));
+                }
+            }
+        } catch (IOException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public synchronized void getAllOpenTransactionOutputs(UTXOHandler handler) throws BlockStoreException {
+        checkState(!closed, "LogFullPrunedBlockStore is closed");
+        try {
+            for (Map.Entry<ByteBuffer, Long> entry : index.entrySet())
+                if (entry.getKey().get(0) == OUTPUT)
+                    handler.onOutput(new UTXO(new ByteArrayInputStream(readValue(entry.getValue()))));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Returns the number of segment files the store currently has. */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    private void maybeScheduleCompaction() {
+        if (compactionScheduled || findCompactionCandidate() == null)
+            return;
+        compactionScheduled = true;
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LogFullPrunedBlockStore.this) {
+                    compactionScheduled = false;
+                    // The chain heads of a batch must not be committed before it is, so wait for the commit,
+                    // which schedules compaction again.
+                    if (closed || pending != null)
+                        return;
+                    Segment segment = findCompactionCandidate();
+                    if (segment == null)
+                        return;
+                    try {
+                        compact(segment);
+                    } catch (Exception e) {
+                        log.error("Could not compact " + segment.file, e);
+                        return;
+                    }
+                    maybeScheduleCompaction();
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private Segment findCompactionCandidate() {
+        for (Segment segment : segments.values())
+            if (segment != active && segment.liveBytes < segment.end * COMPACTION_THRESHOLD)
+                return segment;
+        return null;
+    }
+
+    /** Compacts every segment that is mostly garbage right away, rather than in the background. */
+    public synchronized void compact() throws BlockStoreException {
+        checkState(!closed, "LogFullPrunedBlockStore is closed");
+        checkState(pending == null, "Cannot compact during a batch");
+        Segment segment;
+        while ((segment = findCompactionCandidate()) != null)
+            compact(segment);
+    }
+
+    // Appends the live records of the segment again, and the deletions that still hide a record in an older
+    // segment, then deletes it.
+    private void compact(Segment segment) throws BlockStoreException {
+        LinkedHashMap<ByteBuffer, byte[]> live = new LinkedHashMap<>();
+        LinkedHashMap<ByteBuffer, Integer> deletions = new LinkedHashMap<>();
+        for (int offset = 0; offset < segment.end; ) {
+            byte[] body = readRecord(segment, offset);
+            if (body == null)
+                throw new BlockStoreException("Corrupt record in " + segment.file + " at " + offset);
+            int keyLength = body[1] & 0xff;
+            ByteBuffer key = ByteBuffer.wrap(Arrays.copyOfRange(body, 2, 2 + keyLength));
+            if (body[0] == PUT) {
+                Long location = index.get(key);
+                if (location != null && location == location(segment.id, offset))
+                    live.put(key, Arrays.copyOfRange(body, 2 + keyLength, body.length));
+            } else if (body[0] == DELETE && !index.containsKey(key)) {
+                int deletedSegment = ByteBuffer.wrap(body, 2 + keyLength, 4).getInt();
+                if (deletedSegment != segment.id && segments.containsKey(deletedSegment))
+                    deletions.put(key, deletedSegment);
+            }
+            offset += body.length + 8;
+        }
+        append(live, deletions);
+        try {
+            // Segments filled up by the copies were forced when they were sealed, so this makes all of them durable.
+            active.buffer.force();
+            log.info("Compacted {}, {} records kept", segment.file, live.size() + deletions.size());
+            deleteSegment(segment);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        closed = true;
+        pending = null;
+        compactor.shutdown();
+        try {
+            for (Segment segment : segments.values())
+                segment.close();
+        } catch (IOException e) {
+            throw new BlockStoreException("Could not close " + directory, e);
+        } finally {
+            segments.clear();
+        }
+    }
+
+    private void closeSegments() {
+        closed = true;
+        compactor.shutdown();
+        for (Segment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.error("Could not close " + segment.file, e);
+            }
+        }
+        segments.clear();
+    }
+}
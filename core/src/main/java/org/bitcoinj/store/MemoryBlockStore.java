@@ -19,12 +19,13 @@ package org.bitcoinj.store;
 import org.bitcoinj.core.*;
 
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Keeps {@link org.bitcoinj.core.StoredBlock}s in memory. Used primarily for unit testing.
  */
-public class MemoryBlockStore implements BlockStore {
+public class MemoryBlockStore implements BatchBlockStore {
     private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
@@ -73,6 +74,14 @@ public class MemoryBlockStore implements BlockStore {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         this.chainHead = chainHead;
     }
+
+    @Override
+    public synchronized void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        for (StoredBlock block : blocks)
+            blockMap.put(block.getHeader().getHash(), block);
+        this.chainHead = chainHead;
+    }
     
     @Override
     public void close() {
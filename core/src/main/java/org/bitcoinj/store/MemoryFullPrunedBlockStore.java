@@ -21,7 +21,12 @@ import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 
+import com.google.common.base.Charsets;
+
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -103,10 +108,10 @@ class TransactionalHashMap<KeyType, ValueType> {
     public void commitDatabaseBatchWrite() {
         if (tempSetRemoved.get() != null)
             for(KeyType key : tempSetRemoved.get())
-                map.remove(key);
+                removeCommitted(key);
         if (tempMap.get() != null)
             for (Map.Entry<KeyType, ValueType> entry : tempMap.get().entrySet())
-                map.put(entry.getKey(), entry.getValue());
+                putCommitted(entry.getKey(), entry.getValue());
         abortDatabaseBatchWrite();
     }
 
@@ -127,12 +132,12 @@ class TransactionalHashMap<KeyType, ValueType> {
             if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
                 return null;
         }
-        return map.get(key);
+        return getCommitted(key);
     }
 
     public List<ValueType> values() {
         List<ValueType> valueTypes = new ArrayList<>();
-        for (KeyType keyType : map.keySet()) {
+        for (KeyType keyType : committedKeys()) {
             valueTypes.add(get(keyType));
         }
         return valueTypes;
@@ -146,14 +151,14 @@ class TransactionalHashMap<KeyType, ValueType> {
                 tempMap.set(new HashMap<KeyType, ValueType>());
             tempMap.get().put(key, value);
         }else{
-            map.put(key, value);
+            putCommitted(key, value);
         }
     }
     
     @Nullable
     public ValueType remove(KeyType key) {
         if (Boolean.TRUE.equals(inTransaction.get())) {
-            ValueType retVal = map.get(key);
+            ValueType retVal = getCommitted(key);
             if (retVal != null) {
                 if (tempSetRemoved.get() == null)
                     tempSetRemoved.set(new HashSet<KeyType>());
@@ -166,9 +171,135 @@ class TransactionalHashMap<KeyType, ValueType> {
             }
             return retVal;
         }else{
-            return map.remove(key);
+            return removeCommitted(key);
         }
     }
+
+    // Access to the committed entries, which subclasses may keep elsewhere.
+
+    @Nullable
+    protected ValueType getCommitted(KeyType key) {
+        return map.get(key);
+    }
+
+    protected void putCommitted(KeyType key, ValueType value) {
+        map.put(key, value);
+    }
+
+    @Nullable
+    protected ValueType removeCommitted(KeyType key) {
+        return map.remove(key);
+    }
+
+    protected Iterable<KeyType> committedKeys() {
+        return map.keySet();
+    }
+}
+
+/**
+ * A {@link TransactionalHashMap} of unspent outputs which keeps a {@link UTXOAddressIndex} of its committed entries.
+ * Subclasses keeping the entries elsewhere override {@link #storeCommitted} and {@link #deleteCommitted}.
+ */
+class TransactionalUTXOMap extends TransactionalHashMap<StoredTransactionOutPoint, UTXO> {
+    final UTXOAddressIndex addressIndex = new UTXOAddressIndex();
+
+    @Override
+    protected final void putCommitted(StoredTransactionOutPoint key, UTXO value) {
+        // An outpoint is never reused for a different script, so an entry it replaces needs no removal from the index.
+        storeCommitted(key, value);
+        addressIndex.add(key, value.getScript());
+    }
+
+    @Nullable
+    @Override
+    protected final UTXO removeCommitted(StoredTransactionOutPoint key) {
+        UTXO value = deleteCommitted(key);
+        if (value != null)
+            addressIndex.remove(key, value.getScript());
+        return value;
+    }
+
+    protected void storeCommitted(StoredTransactionOutPoint key, UTXO value) {
+        super.putCommitted(key, value);
+    }
+
+    @Nullable
+    protected UTXO deleteCommitted(StoredTransactionOutPoint key) {
+        return super.removeCommitted(key);
+    }
+}
+
+/**
+ * A {@link TransactionalUTXOMap} whose committed entries are kept serialized in an {@link OffHeapUTXOMap}, rather
+ * than as objects on the heap. Uncommitted changes are still kept on the heap.
+ */
+class OffHeapTransactionalUTXOMap extends TransactionalUTXOMap {
+    final OffHeapUTXOMap outputs = new OffHeapUTXOMap();
+
+    private static byte[] key(StoredTransactionOutPoint outPoint) {
+        byte[] key = new byte[OffHeapUTXOMap.KEY_LENGTH];
+        System.arraycopy(outPoint.getHash().getBytes(), 0, key, 0, 32);
+        Utils.uint32ToByteArrayBE(outPoint.getIndex(), key, 32);
+        return key;
+    }
+
+    @Nullable
+    @Override
+    protected UTXO getCommitted(StoredTransactionOutPoint key) {
+        byte[] value = outputs.get(key(key));
+        if (value == null)
+            return null;
+        try {
+            // The address is not part of the serialized output, so it follows it, after a byte saying if there is one.
+            ByteArrayInputStream in = new ByteArrayInputStream(value);
+            UTXO utxo = new UTXO(in);
+            String address = null;
+            if (in.read() == 1) {
+                byte[] addressBytes = new byte[in.available()];
+                in.read(addressBytes, 0, addressBytes.length);
+                address = new String(addressBytes, Charsets.UTF_8);
+            }
+            return new UTXO(utxo.getHash(), utxo.getIndex(), utxo.getValue(), utxo.getHeight(), utxo.isCoinbase(),
+                    utxo.getScript(), address);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    protected void storeCommitted(StoredTransactionOutPoint key, UTXO value) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            value.serializeToStream(bos);
+            if (value.getAddress() != null) {
+                bos.write(1);
+                bos.write(value.getAddress().getBytes(Charsets.UTF_8));
+            } else {
+                bos.write(0);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        outputs.put(key(key), bos.toByteArray());
+    }
+
+    @Nullable
+    @Override
+    protected UTXO deleteCommitted(StoredTransactionOutPoint key) {
+        UTXO value = getCommitted(key);
+        if (value != null)
+            outputs.remove(key(key));
+        return value;
+    }
+
+    @Override
+    protected Iterable<StoredTransactionOutPoint> committedKeys() {
+        List<StoredTransactionOutPoint> keys = new ArrayList<>(outputs.size());
+        for (byte[] key : outputs.keys())
+            keys.add(new StoredTransactionOutPoint(Sha256Hash.wrap(Arrays.copyOf(key, 32)),
+                    Utils.readUint32BE(key, 32)));
+        return keys;
+    }
 }
 
 /**
@@ -232,7 +363,7 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link org.bitcoinj.core.UTXO}s in memory.
  * Used primarily for unit testing.
  */
-public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore, BatchBlockStore {
     protected static class StoredBlockAndWasUndoableFlag {
         public StoredBlock block;
         public boolean wasUndoable;
@@ -240,8 +371,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, UTXO> transactionOutputMap;
+    private TransactionalUTXOMap transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -253,9 +383,22 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
      * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
      */
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, false);
+    }
+
+    /**
+     * Set up the MemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param offHeapOutputs Whether to keep the unspent outputs serialized outside of the Java heap, which takes a
+     *                       fraction of the memory and no garbage collection time, but costs a little time on access.
+     *                       That memory counts against {@code -XX:MaxDirectMemorySize}, which defaults to the maximum
+     *                       heap size, so raise it to hold a large set of outputs, such as that of the main network
+     */
+    public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, boolean offHeapOutputs) {
         blockMap = new TransactionalHashMap<>();
         fullBlockMap = new TransactionalMultiKeyHashMap<>();
-        transactionOutputMap = new TransactionalHashMap<>();
+        transactionOutputMap = offHeapOutputs ? new OffHeapTransactionalUTXOMap() : new TransactionalUTXOMap();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -280,6 +423,13 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         Sha256Hash hash = block.getHeader().getHash();
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(block, false));
     }
+
+    @Override
+    public synchronized void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        for (StoredBlock block : blocks)
+            put(block);
+        setChainHead(chainHead);
+    }
     
     @Override
     public synchronized final void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
@@ -355,6 +505,15 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
     }
 
+    @Override
+    public synchronized List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        List<UTXO> results = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            results.add(transactionOutputMap.get(new StoredTransactionOutPoint(outPoint.getHash(), outPoint.getIndex())));
+        return results;
+    }
+
     @Override
     public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
@@ -402,6 +561,35 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         return params;
     }
 
+    /** Returns the number of unspent outputs, not counting changes of a batch that was not committed. */
+    public synchronized int getUnspentOutputCount() {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        if (transactionOutputMap instanceof OffHeapTransactionalUTXOMap)
+            return ((OffHeapTransactionalUTXOMap) transactionOutputMap).outputs.size();
+        return transactionOutputMap.map.size();
+    }
+
+    /**
+     * Returns the memory allocated outside of the heap for the unspent outputs, or zero if they are kept on the heap.
+     */
+    public synchronized long getOffHeapBytesAllocated() {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        if (transactionOutputMap instanceof OffHeapTransactionalUTXOMap)
+            return ((OffHeapTransactionalUTXOMap) transactionOutputMap).outputs.getOffHeapBytes();
+        return 0;
+    }
+
+    /**
+     * Returns the part of {@link #getOffHeapBytesAllocated()} taken by the unspent outputs themselves, the rest being
+     * the hash table and space freed by spent outputs.
+     */
+    public synchronized long getOffHeapBytesUsed() {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        if (transactionOutputMap instanceof OffHeapTransactionalUTXOMap)
+            return ((OffHeapTransactionalUTXOMap) transactionOutputMap).outputs.getLiveBytes();
+        return 0;
+    }
+
     @Override
     public int getChainHeadHeight() throws UTXOProviderException {
         try {
@@ -413,17 +601,38 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
 
     @Override
     public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
-        // This is *NOT* optimal: We go through all the outputs and select the ones we are looking for.
-        // If someone uses this store for production then they have a lot more to worry about than an inefficient impl :)
-        List<UTXO> foundOutputs = new ArrayList<>();
-        List<UTXO> outputsList = transactionOutputMap.values();
-        for (UTXO output : outputsList) {
-            for (Address address : addresses) {
-                if (output.getAddress().equals(address.toString())) {
-                    foundOutputs.add(output);
-                }
+        final List<UTXO> foundOutputs = new ArrayList<>();
+        getOpenTransactionOutputs(addresses, new UTXOHandler() {
+            @Override
+            public void onOutput(UTXO output) {
+                foundOutputs.add(output);
             }
-        }
+        });
         return foundOutputs;
     }
+
+    @Override
+    public synchronized void getAllOpenTransactionOutputs(UTXOHandler handler) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (StoredTransactionOutPoint outPoint : transactionOutputMap.committedKeys()) {
+            UTXO output = transactionOutputMap.get(outPoint);
+            if (output != null)
+                handler.onOutput(output);
+        }
+    }
+
+    @Override
+    public synchronized void getOpenTransactionOutputs(List<Address> addresses, UTXOHandler handler)
+            throws UTXOProviderException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        for (Address address : addresses) {
+            String addressString = address.toString();
+            for (StoredTransactionOutPoint outPoint : transactionOutputMap.addressIndex.get(address)) {
+                // The index only narrows down the outputs, and doesn't know about this thread's pending removals.
+                UTXO output = transactionOutputMap.get(outPoint);
+                if (output != null && addressString.equals(output.getAddress()))
+                    handler.onOutput(output);
+            }
+        }
+    }
 }
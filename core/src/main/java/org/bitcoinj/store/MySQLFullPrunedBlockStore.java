@@ -31,6 +31,8 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String MYSQL_DUPLICATE_KEY_ERROR_CODE = "23000";
     private static final String DATABASE_DRIVER_CLASS = "com.mysql.jdbc.Driver";
     private static final String DATABASE_CONNECTION_URL_PREFIX = "jdbc:mysql://";
+    // Lets the driver send the batched output inserts of a block as multi-row INSERT statements.
+    private static final String DATABASE_CONNECTION_URL_OPTIONS = "?rewriteBatchedStatements=true";
 
     // create table SQL
     private static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings (\n" +
@@ -77,10 +79,13 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
 
     // SQL involving index column (table openOutputs) overridden as it is a reserved word and must be back ticked in MySQL.
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
+    private static final String SELECT_OPENOUTPUTS_BATCH_SQL                    = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, `index`, height, value, scriptbytes, coinbase, toaddress FROM openoutputs";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
+    private static final String SELECT_TRANSACTION_OUTPUTS_BATCH_SQL            = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress IN ";
 
     /**
      * Creates a new MySQLFullPrunedBlockStore.
@@ -95,7 +100,25 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
      */
     public MySQLFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, String hostname, String dbName,
                                      String username, String password) throws BlockStoreException {
-        super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName, fullStoreDepth, username, password, null);
+        this(params, fullStoreDepth, hostname, dbName, username, password, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Creates a new MySQLFullPrunedBlockStore which opens at most the given number of connections to the server.
+     *
+     * @param params A copy of the NetworkParameters used
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @param hostname The hostname of the database to connect to
+     * @param dbName The database to connect to
+     * @param username The database username
+     * @param password The password to the database
+     * @param maxConnections The maximum number of connections open to the database at the same time
+     * @throws BlockStoreException if the database fails to open for any reason
+     */
+    public MySQLFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, String hostname, String dbName,
+                                     String username, String password, int maxConnections) throws BlockStoreException {
+        super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName + DATABASE_CONNECTION_URL_OPTIONS,
+                fullStoreDepth, username, password, null, maxConnections);
     }
 
     @Override
@@ -108,6 +131,16 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectOpenoutputsBatchSQL(int count) {
+        return SELECT_OPENOUTPUTS_BATCH_SQL + getInClause(count);
+    }
+
+    @Override
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     @Override
     protected String getInsertOpenoutputsSQL() {
         return INSERT_OPENOUTPUTS_SQL;
@@ -123,6 +156,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_TRANSACTION_OUTPUTS_SQL;
     }
 
+    @Override
+    protected String getTransactionOutputsSelectBatchSQL(int count) {
+        return SELECT_TRANSACTION_OUTPUTS_BATCH_SQL + getInClause(count);
+    }
+
     @Override
     protected List<String> getCreateTablesSQL() {
         List<String> sqlStatements = new ArrayList<>();
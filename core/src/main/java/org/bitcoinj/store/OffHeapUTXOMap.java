@@ -0,0 +1,273 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A hash table from 36 byte outpoints, the transaction hash followed by the output index, to serialized outputs,
+ * which keeps keys and values in direct buffers outside of the Java heap. Millions of outputs then cost the garbage
+ * collector nothing, and take the size of their serialized form plus a few bytes each.</p>
+ *
+ * <p>Entries are appended to chunks of memory, as the key, the length of the value and the value. The table itself
+ * uses open addressing with linear probing, each slot holding the location of an entry plus one, or zero if it is
+ * empty. Removed entries leave garbage in their chunk, which is reclaimed by copying the live entries to new chunks
+ * once it outweighs them. This class is not thread-safe.</p>
+ *
+ * <p>Direct buffers count against the limit set with {@code -XX:MaxDirectMemorySize}, which defaults to the maximum
+ * heap size. Running out of it throws an {@link OutOfMemoryError} saying how much was allocated already.</p>
+ */
+class OffHeapUTXOMap {
+    static final int KEY_LENGTH = 36;
+    private static final int ENTRY_HEADER = KEY_LENGTH + 4;
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final double MAX_LOAD = 0.7;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size;
+    private List<ByteBuffer> chunks = new ArrayList<>();
+    // Bytes of all entries still in the table, and of all entries ever appended to the current chunks.
+    private long liveBytes, allocatedBytes;
+
+    OffHeapUTXOMap() {
+        this(1024);
+    }
+
+    OffHeapUTXOMap(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity) * 2 - 1);
+        slots = allocate(capacity * 8);
+        mask = capacity - 1;
+    }
+
+    /** Returns the value stored for the given key, or null. */
+    @Nullable
+    byte[] get(byte[] key) {
+        checkArgument(key.length == KEY_LENGTH);
+        int slot = find(key);
+        if (slot < 0)
+            return null;
+        long location = slots.getLong(slot * 8) - 1;
+        ByteBuffer chunk = chunks.get((int) (location >>> 32));
+        int offset = (int) location;
+        byte[] value = new byte[chunk.getInt(offset + KEY_LENGTH)];
+        ByteBuffer buffer = chunk.duplicate();
+        buffer.position(offset + ENTRY_HEADER);
+        buffer.get(value);
+        return value;
+    }
+
+    boolean containsKey(byte[] key) {
+        checkArgument(key.length == KEY_LENGTH);
+        return find(key) >= 0;
+    }
+
+    /** Stores the value for the given key, replacing any previous one. */
+    void put(byte[] key, byte[] value) {
+        checkArgument(key.length == KEY_LENGTH);
+        int slot = find(key);
+        if (slot >= 0) {
+            release(slots.getLong(slot * 8) - 1);
+        } else {
+            if (size + 1 > (mask + 1) * MAX_LOAD)
+                resize((mask + 1) * 2);
+            slot = home(key);
+            while (slots.getLong(slot * 8) != 0)
+                slot = (slot + 1) & mask;
+            size++;
+        }
+        slots.putLong(slot * 8, append(key, value) + 1);
+        maybeCompact();
+    }
+
+    /** Removes the entry for the given key, returning false if there was none. */
+    boolean remove(byte[] key) {
+        checkArgument(key.length == KEY_LENGTH);
+        int slot = find(key);
+        if (slot < 0)
+            return false;
+        release(slots.getLong(slot * 8) - 1);
+        size--;
+        // Move later entries of the probe sequence into the gap, unless they would end up before their home slot.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; slots.getLong(next * 8) != 0; next = (next + 1) & mask) {
+            int home = home(slots.getLong(next * 8) - 1);
+            boolean homeInRange = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+            if (!homeInRange) {
+                slots.putLong(gap * 8, slots.getLong(next * 8));
+                gap = next;
+            }
+        }
+        slots.putLong(gap * 8, 0);
+        maybeCompact();
+        return true;
+    }
+
+    /** Returns all keys, in no particular order. */
+    List<byte[]> keys() {
+        List<byte[]> keys = new ArrayList<>(size);
+        for (int slot = 0; slot <= mask; slot++) {
+            long location = slots.getLong(slot * 8) - 1;
+            if (location < 0)
+                continue;
+            byte[] key = new byte[KEY_LENGTH];
+            ByteBuffer buffer = chunks.get((int) (location >>> 32)).duplicate();
+            buffer.position((int) location);
+            buffer.get(key);
+            keys.add(key);
+        }
+        return keys;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** Returns the memory allocated outside of the heap, for the table and the chunks. */
+    long getOffHeapBytes() {
+        long bytes = slots != null ? slots.capacity() : 0;
+        for (ByteBuffer chunk : chunks)
+            bytes += chunk.capacity();
+        return bytes;
+    }
+
+    /** Returns the bytes taken by the entries in the table, including their keys. */
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    // Returns the slot holding the given key, or -1.
+    private int find(byte[] key) {
+        for (int slot = home(key); ; slot = (slot + 1) & mask) {
+            long location = slots.getLong(slot * 8) - 1;
+            if (location < 0)
+                return -1;
+            if (keyEquals(location, key))
+                return slot;
+        }
+    }
+
+    private boolean keyEquals(long location, byte[] key) {
+        ByteBuffer chunk = chunks.get((int) (location >>> 32));
+        int offset = (int) location;
+        // Compare the last bytes first, the output index and the end of the hash differ most often.
+        for (int i = KEY_LENGTH - 1; i >= 0; i--)
+            if (chunk.get(offset + i) != key[i])
+                return false;
+        return true;
+    }
+
+    // Transaction hashes are random, so some of their bytes mixed with the output index are a good enough hash.
+    private int home(byte[] key) {
+        int hash = (key[0] & 0xff) << 24 | (key[1] & 0xff) << 16 | (key[2] & 0xff) << 8 | (key[3] & 0xff);
+        int index = (key[32] & 0xff) << 24 | (key[33] & 0xff) << 16 | (key[34] & 0xff) << 8 | (key[35] & 0xff);
+        return spread(hash, index);
+    }
+
+    private int home(long location) {
+        ByteBuffer chunk = chunks.get((int) (location >>> 32));
+        int offset = (int) location;
+        return spread(chunk.getInt(offset), chunk.getInt(offset + 32));
+    }
+
+    private int spread(int hash, int index) {
+        return ((hash ^ index * 0x9E3779B9) * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(mask + 1));
+    }
+
+    private ByteBuffer allocate(int bytes) {
+        try {
+            return ByteBuffer.allocateDirect(bytes);
+        } catch (OutOfMemoryError e) {
+            OutOfMemoryError error = new OutOfMemoryError("Could not allocate " + bytes + " bytes of direct memory for "
+                    + "unspent outputs, with " + getOffHeapBytes() + " bytes allocated already. The limit is set with "
+                    + "-XX:MaxDirectMemorySize, and defaults to the maximum heap size.");
+            error.initCause(e);
+            throw error;
+        }
+    }
+
+    // Appends an entry to the last chunk, or a new one, and returns its location.
+    private long append(byte[] key, byte[] value) {
+        int length = ENTRY_HEADER + value.length;
+        ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (chunk == null || chunk.remaining() < length) {
+            int chunkSize = (int) Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, allocatedBytes));
+            chunk = allocate(Math.max(chunkSize, length));
+            chunks.add(chunk);
+        }
+        long location = (long) (chunks.size() - 1) << 32 | chunk.position();
+        chunk.put(key);
+        chunk.putInt(value.length);
+        chunk.put(value);
+        liveBytes += length;
+        allocatedBytes += length;
+        return location;
+    }
+
+    private void release(long location) {
+        liveBytes -= ENTRY_HEADER + chunks.get((int) (location >>> 32)).getInt((int) location + KEY_LENGTH);
+    }
+
+    private void resize(int capacity) {
+        ByteBuffer old = slots;
+        slots = allocate(capacity * 8);
+        mask = capacity - 1;
+        for (int i = 0; i < old.capacity(); i += 8) {
+            long entry = old.getLong(i);
+            if (entry == 0)
+                continue;
+            int slot = home(entry - 1);
+            while (slots.getLong(slot * 8) != 0)
+                slot = (slot + 1) & mask;
+            slots.putLong(slot * 8, entry);
+        }
+    }
+
+    // Copies the live entries to new chunks once the garbage left by removed ones outweighs them.
+    private void maybeCompact() {
+        long garbage = allocatedBytes - liveBytes;
+        if (garbage < MAX_CHUNK_SIZE || garbage < liveBytes)
+            return;
+        List<ByteBuffer> old = chunks;
+        chunks = new ArrayList<>();
+        liveBytes = allocatedBytes = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            long location = slots.getLong(slot * 8) - 1;
+            if (location < 0)
+                continue;
+            ByteBuffer chunk = old.get((int) (location >>> 32)).duplicate();
+            int offset = (int) location;
+            byte[] key = new byte[KEY_LENGTH];
+            byte[] value = new byte[chunk.getInt(offset + KEY_LENGTH)];
+            chunk.position(offset);
+            chunk.get(key);
+            chunk.position(offset + ENTRY_HEADER);
+            chunk.get(value);
+            slots.putLong(slot * 8, append(key, value) + 1);
+        }
+    }
+}
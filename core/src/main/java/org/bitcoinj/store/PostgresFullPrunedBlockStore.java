@@ -126,6 +126,28 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName, fullStoreDepth, username, password, schemaName);
     }
 
+    /**
+     * <p>Create a new PostgresFullPrunedBlockStore, storing the tables in the schema specified and opening at most the
+     * given number of connections to the server. Operations on other threads wait for a connection when all of them
+     * are in use.</p>
+     *
+     * @param params A copy of the NetworkParameters used.
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe).
+     * @param hostname The hostname of the database to connect to.
+     * @param dbName The database to connect to.
+     * @param username The database username.
+     * @param password The password to the database.
+     * @param schemaName The name of the schema to put the tables in.  May be null if no schema is being used.
+     * @param maxConnections The maximum number of connections open to the database at the same time.
+     * @throws BlockStoreException If the database fails to open for any reason.
+     */
+    public PostgresFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, String hostname, String dbName,
+                                        String username, String password, @Nullable String schemaName,
+                                        int maxConnections) throws BlockStoreException {
+        super(params, DATABASE_CONNECTION_URL_PREFIX + hostname + "/" + dbName, fullStoreDepth, username, password,
+                schemaName, maxConnections);
+    }
+
     @Override
     protected String getDuplicateKeyErrorCode() {
         return POSTGRES_DUPLICATE_KEY_ERROR_CODE;
@@ -167,7 +189,6 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
 
     @Override
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
-        maybeConnect();
         // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
@@ -194,24 +215,24 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
             throw new BlockStoreException(e);
         }
 
-
+        acquireConnection();
         try {
             if (log.isDebugEnabled())
                 log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
 
-            PreparedStatement findS = conn.get().prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
+            PreparedStatement findS = getPreparedStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
             findS.setBytes(1, hashBytes);
 
             ResultSet rs = findS.executeQuery();
-            if (rs.next())
+            boolean exists = rs.next();
+            rs.close();
+            if (exists)
             {
                 // We already have this output, update it.
-                findS.close();
 
                 // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
                 // seems to work for bitcoinj
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                PreparedStatement s = getPreparedStatement(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
 
                 if (log.isDebugEnabled())
@@ -225,13 +246,11 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                     s.setBytes(2, transactions);
                 }
                 s.executeUpdate();
-                s.close();
 
                 return;
             }
 
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+            PreparedStatement s = getPreparedStatement(getInsertUndoableBlocksSQL());
             s.setBytes(1, hashBytes);
             s.setInt(2, height);
 
@@ -246,7 +265,6 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
                 s.setBytes(4, transactions);
             }
             s.executeUpdate();
-            s.close();
             try {
                 putUpdateStoredBlock(storedBlock, true);
             } catch (SQLException e) {
@@ -255,7 +273,8 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         } catch (SQLException e) {
             if (!e.getSQLState().equals(POSTGRES_DUPLICATE_KEY_ERROR_CODE))
                 throw new BlockStoreException(e);
+        } finally {
+            releaseConnection();
         }
-
     }
 }
\ No newline at end of file
@@ -21,6 +21,8 @@ import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 
 import javax.annotation.*;
 import java.io.*;
@@ -34,11 +36,15 @@ import static com.google.common.base.Preconditions.*;
 // TODO: Lose the mmap in this class. There are too many platform bugs that require odd workarounds.
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Reads may run concurrently: the chain head is kept in a volatile field, recently used blocks in concurrent
+ * caches, and the ring buffer is only ever read at absolute offsets, under the read lock. Writes take the write lock,
+ * so each put and chain head change is atomic with respect to readers.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements BatchBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -49,7 +55,11 @@ public class SPVBlockStore implements BlockStore {
     protected final int capacity;
     protected final NetworkParameters params;
 
-    protected ReentrantLock lock = Threading.lock("SPVBlockStore");
+    /**
+     * Guards the ring buffer. This used to be a ReentrantLock; subclasses that took it to exclude the store's own
+     * operations must now take the write lock, and may read the buffer under the read lock.
+     */
+    protected ReentrantReadWriteLock lock = Threading.readWriteLock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
     // faulted in. Unfortunately, in theory practice and theory are the same. In practice they aren't.
@@ -58,28 +68,27 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    //
+    // The caches used to be LinkedHashMaps guarded by the lock. They are now Guava caches, which readers use without
+    // taking the lock, so subclasses must use them through the Cache interface as well.
+    protected Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker. Entries are only added under the read
+    // lock, so a put, which removes the entry under the write lock, cannot be missed.
     private static final Object NOT_FOUND_MARKER = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
+    // Finds records without scanning the ring, if the store was opened with an index.
+    @Nullable private SPVBlockStoreIndex index;
 
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} blocks. Will create the given
@@ -99,6 +108,23 @@ public class SPVBlockStore implements BlockStore {
      * @throws BlockStoreException if something goes wrong
      */
     public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
+        this(params, file, capacity, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that can hold a given amount of blocks. Will create the given file if
+     * it's missing. This operation will block on disk.
+     *
+     * <p>If indexed is true, a hash table kept in the {@link #getIndexFile(File) index file} next to the store is used
+     * to find blocks that are not cached, instead of scanning the whole ring buffer. The index file is created, or
+     * rebuilt from the store if it is out of date, for example after a crash.</p>
+     * @param file file to use for the block store
+     * @param capacity custom capacity
+     * @param indexed whether to keep an index of the stored blocks
+     * @throws BlockStoreException if something goes wrong
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity, boolean indexed)
+            throws BlockStoreException {
         checkNotNull(file);
         this.params = checkNotNull(params);
         checkArgument(capacity > 0);
@@ -135,11 +161,14 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, Charsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
-            } else {
-                initNewStore(params);
             }
+            if (indexed)
+                index = new SPVBlockStoreIndex(getIndexFile(file), capacity, buffer);
+            if (!exists)
+                initNewStore(params);
         } catch (Exception e) {
             try {
+                if (index != null) index.abandon();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -153,11 +182,11 @@ public class SPVBlockStore implements BlockStore {
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
         // Insert the genesis block.
-        lock.lock();
+        lock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            lock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -165,6 +194,11 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /** Returns the file that holds the index of the given store file, if it is opened with one. */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".index");
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public static final int getFileSize(int capacity) {
         return RECORD_SIZE * capacity + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
@@ -175,21 +209,50 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
-            int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize(capacity)) {
-                // Wrapped around.
-                cursor = FILE_PROLOGUE_BYTES;
-            }
-            buffer.position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            writeRecord(buffer, block);
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    @Override
+    public void putAll(List<StoredBlock> blocks, StoredBlock chainHead) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.writeLock().lock();
+        try {
+            for (StoredBlock block : blocks)
+                writeRecord(buffer, block);
+            writeChainHead(buffer, chainHead);
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    private void writeRecord(MappedByteBuffer buffer, StoredBlock block) {
+        int cursor = getRingCursor(buffer);
+        if (cursor == getFileSize(capacity)) {
+            // Wrapped around.
+            cursor = FILE_PROLOGUE_BYTES;
+        }
+        Sha256Hash hash = block.getHeader().getHash();
+        byte[] hashBytes = hash.getBytes();
+        if (index != null) {
+            // Forget the block that is about to be overwritten. Records that were never written are all zeros.
+            byte[] evicted = new byte[32];
+            for (int i = 0; i < evicted.length; i++)
+                evicted[i] = buffer.get(cursor + i);
+            index.remove(evicted, cursor);
+        }
+        notFoundCache.invalidate(hash);
+        // Write through a duplicate, so the position of the shared buffer never changes.
+        ByteBuffer record = buffer.duplicate();
+        record.position(cursor);
+        record.put(hashBytes);
+        block.serializeCompact(record);
+        setRingCursor(buffer, record.position());
+        if (index != null)
+            index.insert(hashBytes, cursor, buffer);
+        blockCache.put(hash, block);
     }
 
     @Override
@@ -198,66 +261,81 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
+
+        lock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            int offset = index != null ? index.find(hash.getBytes(), buffer) : findRecord(buffer, hash.getBytes());
+            if (offset < 0) {
+                notFoundCache.put(hash, NOT_FOUND_MARKER);
                 return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize(capacity);
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, NOT_FOUND_MARKER);
-            return null;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + 32);
+            StoredBlock storedBlock = StoredBlock.deserializeCompact(params, record);
+            blockCache.put(hash, storedBlock);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { lock.readLock().unlock(); }
+    }
+
+    // Returns the offset of the record holding the given hash, or -1 if there is none.
+    private int findRecord(ByteBuffer buffer, byte[] targetHashBytes) {
+        // Starting from the current tip of the ring work backwards until we have either found the block or
+        // wrapped around.
+        int cursor = getRingCursor(buffer);
+        final int startingPoint = cursor;
+        final int fileSize = getFileSize(capacity);
+        do {
+            cursor -= RECORD_SIZE;
+            if (cursor < FILE_PROLOGUE_BYTES) {
+                // We hit the start, so wrap around.
+                cursor = fileSize - RECORD_SIZE;
+            }
+            // Cursor is now at the start of the next record to check, so compare its hash.
+            if (hashEquals(buffer, cursor, targetHashBytes))
+                return cursor;
+        } while (cursor != startingPoint);
+        return -1;
     }
 
-    protected StoredBlock lastChainHead = null;
+    static boolean hashEquals(ByteBuffer buffer, int offset, byte[] hash) {
+        for (int i = 0; i < hash.length; i++)
+            if (buffer.get(offset + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
+        lock.readLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                for (int i = 0; i < headHash.length; i++)
+                    headHash[i] = buffer.get(8 + i);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
                     throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+                // Set while holding the read lock, so a concurrent setChainHead cannot be overwritten.
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { lock.readLock().unlock(); }
     }
 
     @Override
@@ -265,20 +343,31 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        lock.writeLock().lock();
         try {
-            lastChainHead = chainHead;
-            byte[] headHash = chainHead.getHeader().getHash().getBytes();
-            buffer.position(8);
-            buffer.put(headHash);
-        } finally { lock.unlock(); }
+            writeChainHead(buffer, chainHead);
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    private void writeChainHead(MappedByteBuffer buffer, StoredBlock chainHead) {
+        byte[] headHash = chainHead.getHeader().getHash().getBytes();
+        for (int i = 0; i < headHash.length; i++)
+            buffer.put(8 + i, headHash[i]);
+        lastChainHead = chainHead;
     }
 
     @Override
     public void close() throws BlockStoreException {
+        lock.writeLock().lock();
         try {
             buffer.force();
-            if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            boolean windows = System.getProperty("os.name").toLowerCase().contains("win");
+            if (index != null) {
+                // Only once the ring is on disk can the index be marked as matching it.
+                index.close(buffer, windows);
+                index = null;
+            }
+            if (windows) {
                 log.info("Windows mmap hack: Forcing buffer cleaning");
                 WindowsMMapHack.forceRelease(buffer);
             }
@@ -286,6 +375,8 @@ public class SPVBlockStore implements BlockStore {
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
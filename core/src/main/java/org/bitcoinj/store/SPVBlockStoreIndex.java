@@ -0,0 +1,256 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * <p>A memory mapped hash table from block hash to record of an {@link SPVBlockStore} ring buffer, so looking up a
+ * block, or finding out that it is not stored, takes a few probes rather than a scan of the whole ring.</p>
+ *
+ * <p>The table uses open addressing with linear probing. Each slot holds four bytes of the block hash, which pick the
+ * slot the probing starts at, and the number of the record plus one, or zero for an empty slot. As hashes can share
+ * those four bytes, a candidate is only accepted once the full hash in the ring matches. When the ring wraps around
+ * the block that is overwritten is removed from the table by shifting later entries of its probe sequence back, so no
+ * tombstones build up.</p>
+ *
+ * <p>The file is marked dirty while the store is open and clean only after both files were flushed on close, together
+ * with the ring cursor and chain head at that point. If the store crashed, or the file does not match the ring, the
+ * table is rebuilt from the ring when the store is opened. Lookups may run concurrently, modifications need exclusive
+ * access, which the store arranges.</p>
+ */
+class SPVBlockStoreIndex {
+    private static final Logger log = LoggerFactory.getLogger(SPVBlockStoreIndex.class);
+
+    static final String HEADER_MAGIC = "SPVI";
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of slots
+    //   4 bytes state, STATE_CLEAN if the table matched the ring when it was last closed
+    //   4 bytes ring cursor at the last clean close
+    //  32 bytes chain head hash at the last clean close
+    //
+    // For each slot (8 bytes)
+    //   4 bytes of the block hash
+    //   4 bytes record number plus one, zero if the slot is empty
+    private static final int STATE_OFFSET = 8;
+    private static final int CURSOR_OFFSET = 12;
+    private static final int CHAIN_HEAD_OFFSET = 16;
+    private static final int SLOTS_OFFSET = 64;
+    private static final int SLOT_SIZE = 8;
+    private static final int STATE_DIRTY = 0, STATE_CLEAN = 1;
+
+    private final RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private final int slots, mask;
+    private final int capacity;
+    private final byte[] scratch = new byte[32];
+
+    /**
+     * Opens or creates the index file for a ring of the given capacity. If the file cannot be trusted to match the
+     * ring, the table is rebuilt from it.
+     */
+    SPVBlockStoreIndex(File file, int capacity, ByteBuffer ring) throws IOException {
+        this.capacity = capacity;
+        this.slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+        this.mask = slots - 1;
+        long fileSize = SLOTS_OFFSET + (long) slots * SLOT_SIZE;
+        boolean exists = file.exists();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = exists && randomAccessFile.length() == fileSize;
+            randomAccessFile.setLength(fileSize);
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            if (valid) {
+                byte[] magic = new byte[4];
+                buffer.position(0);
+                buffer.get(magic);
+                valid = new String(magic, Charsets.US_ASCII).equals(HEADER_MAGIC)
+                        && buffer.getInt(4) == slots
+                        && buffer.getInt(STATE_OFFSET) == STATE_CLEAN
+                        && buffer.getInt(CURSOR_OFFSET) == ring.getInt(4)
+                        && matchesChainHead(ring);
+            }
+            if (!valid) {
+                if (exists)
+                    log.info("Rebuilding SPV block store index {}", file);
+                rebuild(ring);
+            }
+            // Until the next clean close, the table may get ahead of or fall behind what is on disk in the ring.
+            buffer.putInt(STATE_OFFSET, STATE_DIRTY);
+            buffer.force();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private boolean matchesChainHead(ByteBuffer ring) {
+        for (int i = 0; i < 32; i++)
+            if (buffer.get(CHAIN_HEAD_OFFSET + i) != ring.get(8 + i))
+                return false;
+        return true;
+    }
+
+    // Inserts every record of the ring, from the oldest to the newest, so a block stored more than once ends up
+    // pointing at its latest record.
+    private void rebuild(ByteBuffer ring) {
+        buffer.position(0);
+        buffer.put(HEADER_MAGIC.getBytes(Charsets.US_ASCII));
+        buffer.putInt(slots);
+        for (int i = STATE_OFFSET; i < SLOTS_OFFSET + slots * SLOT_SIZE; i += 4)
+            buffer.putInt(i, 0);
+        int cursor = ring.getInt(4);
+        if (cursor < SPVBlockStore.FILE_PROLOGUE_BYTES)
+            return;  // A store that is being initialized.
+        int record = (cursor - SPVBlockStore.FILE_PROLOGUE_BYTES) / SPVBlockStore.RECORD_SIZE;
+        for (int i = 0; i < capacity; i++) {
+            int offset = recordOffset((record + i) % capacity);
+            if (readHash(ring, offset))
+                insert(scratch.clone(), offset, ring);
+        }
+    }
+
+    /**
+     * Returns the ring offset of the record holding the given block, or -1 if it is not stored. Unlike the methods
+     * that modify the table, this one may be called by several threads at once.
+     */
+    int find(byte[] hash, ByteBuffer ring) {
+        int tag = tag(hash);
+        for (int slot = home(tag); ; slot = (slot + 1) & mask) {
+            int record = recordAt(slot);
+            if (record < 0)
+                return -1;
+            if (tagAt(slot) == tag) {
+                int offset = recordOffset(record);
+                if (SPVBlockStore.hashEquals(ring, offset, hash))
+                    return offset;
+            }
+        }
+    }
+
+    /** Records that the block with the given hash is stored at the given ring offset. */
+    void insert(byte[] hash, int offset, ByteBuffer ring) {
+        int tag = tag(hash);
+        int slot = home(tag);
+        for (; recordAt(slot) >= 0; slot = (slot + 1) & mask) {
+            if (tagAt(slot) == tag && readHash(ring, recordOffset(recordAt(slot))) && Arrays.equals(scratch, hash))
+                break;  // Stored again, keep the newer record.
+        }
+        setSlot(slot, tag, recordNumber(offset));
+    }
+
+    /** Forgets the block with the given hash, if the table points at the given ring offset for it. */
+    void remove(byte[] hash, int offset) {
+        int tag = tag(hash);
+        int record = recordNumber(offset);
+        int slot = home(tag);
+        for (; ; slot = (slot + 1) & mask) {
+            int current = recordAt(slot);
+            if (current < 0)
+                return;
+            if (current == record && tagAt(slot) == tag)
+                break;
+        }
+        // Move later entries of the probe sequence into the gap, unless they would end up before their home slot.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; recordAt(next) >= 0; next = (next + 1) & mask) {
+            int home = home(tagAt(next));
+            boolean homeInRange = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+            if (!homeInRange) {
+                setSlot(gap, tagAt(next), recordAt(next));
+                gap = next;
+            }
+        }
+        setSlot(gap, 0, -1);
+    }
+
+    /**
+     * Flushes the table and marks it as matching the ring, which must already be flushed, then releases the file.
+     */
+    void close(ByteBuffer ring, boolean releaseMapping) throws IOException {
+        buffer.putInt(CURSOR_OFFSET, ring.getInt(4));
+        for (int i = 0; i < 32; i++)
+            buffer.put(CHAIN_HEAD_OFFSET + i, ring.get(8 + i));
+        buffer.force();
+        buffer.putInt(STATE_OFFSET, STATE_CLEAN);
+        buffer.force();
+        if (releaseMapping)
+            WindowsMMapHack.forceRelease(buffer);
+        buffer = null;
+        randomAccessFile.close();
+    }
+
+    /** Releases the file without marking it clean, so the table is rebuilt the next time. */
+    void abandon() throws IOException {
+        buffer = null;
+        randomAccessFile.close();
+    }
+
+    // Reads the hash of the record at the given offset into scratch. Returns false for a record never written.
+    private boolean readHash(ByteBuffer ring, int offset) {
+        boolean written = false;
+        for (int i = 0; i < 32; i++) {
+            scratch[i] = ring.get(offset + i);
+            written |= scratch[i] != 0;
+        }
+        return written;
+    }
+
+    // The last bytes of a hash, as the first are often zeros in Bitcoin.
+    private static int tag(byte[] hash) {
+        return (hash[28] & 0xff) << 24 | (hash[29] & 0xff) << 16 | (hash[30] & 0xff) << 8 | (hash[31] & 0xff);
+    }
+
+    private int home(int tag) {
+        return (tag * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(slots));
+    }
+
+    private int tagAt(int slot) {
+        return buffer.getInt(SLOTS_OFFSET + slot * SLOT_SIZE);
+    }
+
+    // The record number stored in the slot, or -1 if it is empty.
+    private int recordAt(int slot) {
+        return buffer.getInt(SLOTS_OFFSET + slot * SLOT_SIZE + 4) - 1;
+    }
+
+    private void setSlot(int slot, int tag, int record) {
+        buffer.putInt(SLOTS_OFFSET + slot * SLOT_SIZE, tag);
+        buffer.putInt(SLOTS_OFFSET + slot * SLOT_SIZE + 4, record + 1);
+    }
+
+    private static int recordNumber(int offset) {
+        return (offset - SPVBlockStore.FILE_PROLOGUE_BYTES) / SPVBlockStore.RECORD_SIZE;
+    }
+
+    private static int recordOffset(int record) {
+        return SPVBlockStore.FILE_PROLOGUE_BYTES + record * SPVBlockStore.RECORD_SIZE;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.script.Script;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>An in-memory index from addresses to the unspent outputs that pay them, which the stores without an index of their
+ * own keep up to date as outputs are added and removed.</p>
+ *
+ * <p>Outputs are indexed by the hash160 in their script: the public key hash, the script hash, or the hash of the
+ * public key of a pay-to-pubkey output. To keep the index small only the first eight bytes of it are used, and most
+ * addresses have a single unspent output which is stored without a set around it. A lookup may therefore return
+ * outputs of other addresses as well, which the caller has to filter out. This class is not thread-safe.</p>
+ */
+class UTXOAddressIndex {
+    private final Map<Long, Object> index = new HashMap<>();
+    private int size;
+
+    /** Returns the hash160 an output script is indexed by, or null if it does not pay to an address. */
+    @Nullable
+    static byte[] getAddressHash(Script script) {
+        try {
+            if (script.isSentToAddress() || script.isPayToScriptHash())
+                return script.getPubKeyHash();
+            if (script.isSentToRawPubKey())
+                return Utils.sha256hash160(script.getPubKey());
+        } catch (ScriptException e) {
+            // Not one of the forms above after all.
+        }
+        return null;
+    }
+
+    private static long key(byte[] addressHash) {
+        return Utils.readInt64(addressHash, 0);
+    }
+
+    /** Adds an output, unless its script does not pay to an address. */
+    void add(StoredTransactionOutPoint outPoint, Script script) {
+        byte[] addressHash = getAddressHash(script);
+        if (addressHash == null)
+            return;
+        long key = key(addressHash);
+        Object entry = index.get(key);
+        if (entry == null) {
+            index.put(key, outPoint);
+        } else if (entry instanceof StoredTransactionOutPoint) {
+            if (entry.equals(outPoint))
+                return;
+            Set<StoredTransactionOutPoint> set = new HashSet<>(4);
+            set.add((StoredTransactionOutPoint) entry);
+            set.add(outPoint);
+            index.put(key, set);
+        } else {
+            @SuppressWarnings("unchecked")
+            Set<StoredTransactionOutPoint> set = (Set<StoredTransactionOutPoint>) entry;
+            if (!set.add(outPoint))
+                return;
+        }
+        size++;
+    }
+
+    /** Removes an output, given the script it was added with. */
+    void remove(StoredTransactionOutPoint outPoint, Script script) {
+        byte[] addressHash = getAddressHash(script);
+        if (addressHash == null)
+            return;
+        long key = key(addressHash);
+        Object entry = index.get(key);
+        if (entry == null) {
+            return;
+        } else if (entry instanceof StoredTransactionOutPoint) {
+            if (!entry.equals(outPoint))
+                return;
+            index.remove(key);
+        } else {
+            @SuppressWarnings("unchecked")
+            Set<StoredTransactionOutPoint> set = (Set<StoredTransactionOutPoint>) entry;
+            if (!set.remove(outPoint))
+                return;
+            if (set.size() == 1)
+                index.put(key, set.iterator().next());
+        }
+        size--;
+    }
+
+    /** Returns the outputs that may pay the given address. */
+    List<StoredTransactionOutPoint> get(Address address) {
+        Object entry = index.get(key(address.getHash160()));
+        if (entry == null)
+            return Collections.emptyList();
+        if (entry instanceof StoredTransactionOutPoint)
+            return Collections.singletonList((StoredTransactionOutPoint) entry);
+        @SuppressWarnings("unchecked")
+        Set<StoredTransactionOutPoint> set = (Set<StoredTransactionOutPoint>) entry;
+        return new ArrayList<>(set);
+    }
+
+    /** Returns the number of outputs in the index. */
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        index.clear();
+        size = 0;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.StoredUndoableBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutputChanges;
+import org.bitcoinj.core.UTXO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Writes the state of a {@link FullPrunedBlockStore} at its verified chain head to a stream, and loads it into
+ * another, possibly different kind of, store. A new fully validating node can then start from the snapshot instead
+ * of replaying every block since the genesis block, as long as the snapshot comes from a trusted source: its outputs
+ * are taken as they are, so its hash should be checked against a known value when loading.</p>
+ *
+ * <p>The file format consists of the string "UTXO SNAPSHOT 1", the id of the network parameters and an int32 with the
+ * number of headers. Enough headers are written for difficulty transitions to be checked and for the most recent
+ * blocks to be reorganized. Each header is a {@link StoredBlock} in its compact form, followed by a zero byte, or by a
+ * one byte and its undo block. Then every unspent output follows: a one byte, the output as written by
+ * {@link UTXO#serializeToStream}, and its address. A zero byte ends the list. Finally come the number of outputs as an
+ * int64 and the SHA-256 hash of everything before it, which is the hash of the snapshot. Undo blocks and outputs are
+ * preceded by their length as an int32, strings are written as by {@link DataOutputStream#writeUTF}.</p>
+ *
+ * <p>The order of the outputs depends on the store written from, so snapshots of the same chain taken from different
+ * kinds of stores have different hashes.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    private static final String MAGIC = "UTXO SNAPSHOT 1";
+    // How many outputs are loaded in each batch write.
+    private static final int OUTPUTS_PER_BATCH = 10000;
+    // Median time past looks at this many previous blocks.
+    private static final int MEDIAN_TIME_BLOCKS = 11;
+
+    /**
+     * Writes a snapshot of the given store at its verified chain head. The store must not be changed meanwhile, so
+     * the block chain using it should be stopped.
+     * @param undoDepth How many of the most recent blocks to write the undo blocks of, if the store still has them.
+     * @return The hash of the snapshot.
+     */
+    public static Sha256Hash write(FullPrunedBlockStore store, int undoDepth, OutputStream outputStream)
+            throws BlockStoreException, IOException {
+        return write(store, store.getVerifiedChainHead().getHeight(), undoDepth, outputStream);
+    }
+
+    /**
+     * Writes a snapshot of the given store at the given height, which must be the height of its verified chain head:
+     * stores only keep the unspent outputs of that block, so the chain must be stopped at the height wanted, for
+     * example by only giving it blocks up to there. The store must not be changed meanwhile.
+     * @param undoDepth How many of the most recent blocks to write the undo blocks of, if the store still has them.
+     * @return The hash of the snapshot.
+     * @throws IllegalArgumentException If the verified chain head of the store is at another height.
+     */
+    public static Sha256Hash write(FullPrunedBlockStore store, int height, int undoDepth, OutputStream outputStream)
+            throws BlockStoreException, IOException {
+        final NetworkParameters params = store.getParams();
+        StoredBlock head = store.getVerifiedChainHead();
+        checkArgument(head.getHeight() == height, "Store is at height %s, not %s", head.getHeight(), height);
+        // Back to the difficulty transition before the oldest block that may be reorganized or looked at.
+        int oldest = Math.max(0, head.getHeight() - Math.max(undoDepth, MEDIAN_TIME_BLOCKS));
+        int firstHeight = oldest - oldest % params.getInterval();
+        LinkedList<StoredBlock> headers = new LinkedList<>();
+        for (StoredBlock cursor = head; cursor != null && cursor.getHeight() >= firstHeight;
+                cursor = cursor.getPrev(store))
+            headers.addFirst(cursor);
+
+        final MessageDigest digest = Sha256Hash.newDigest();
+        final DataOutputStream out = new DataOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(outputStream), digest));
+        out.write(MAGIC.getBytes(Charsets.US_ASCII));
+        out.writeUTF(params.getId());
+        out.writeInt(headers.size());
+        ByteBuffer compact = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock block : headers) {
+            compact.clear();
+            block.serializeCompact(compact);
+            out.write(compact.array());
+            StoredUndoableBlock undoBlock = head.getHeight() - block.getHeight() < undoDepth
+                    ? store.getUndoBlock(block.getHeader().getHash()) : null;
+            if (undoBlock == null) {
+                out.write(0);
+            } else {
+                out.write(1);
+                writeBytes(out, serialize(undoBlock));
+            }
+        }
+
+        final long[] count = new long[1];
+        final IOException[] error = new IOException[1];
+        store.getAllOpenTransactionOutputs(new FullPrunedBlockStore.UTXOHandler() {
+            private final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+
+            @Override
+            public void onOutput(UTXO output) {
+                if (error[0] != null)
+                    return;
+                try {
+                    bos.reset();
+                    output.serializeToStream(bos);
+                    out.write(1);
+                    writeBytes(out, bos.toByteArray());
+                    out.writeUTF(getAddress(params, output));
+                    count[0]++;
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null)
+            throw error[0];
+        out.write(0);
+        out.writeLong(count[0]);
+        Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+        out.write(hash.getBytes());
+        out.flush();
+        log.info("Wrote snapshot {} at height {} with {} headers and {} unspent outputs", hash, head.getHeight(),
+                headers.size(), count[0]);
+        return hash;
+    }
+
+    /**
+     * Loads a snapshot into a new store, which must not have any blocks beyond the genesis block, and sets both chain
+     * heads of the store to the block the snapshot was taken at. The outputs are written in batches as they are read,
+     * but the chain heads only once the whole snapshot was read and its hash checked, so if loading fails the store
+     * is left at the genesis block and should be deleted.
+     * @param expectedHash The hash the snapshot must have, or null to only check it against the hash it ends with.
+     * @return The chain head of the snapshot.
+     * @throws IOException If the snapshot can't be read, is for another network, or doesn't have the right hash.
+     */
+    public static StoredBlock read(FullPrunedBlockStore store, InputStream inputStream,
+            @Nullable Sha256Hash expectedHash) throws BlockStoreException, IOException {
+        NetworkParameters params = store.getParams();
+        if (store.getChainHead().getHeight() != 0 || store.getVerifiedChainHead().getHeight() != 0)
+            throw new BlockStoreException("Snapshots can only be loaded into new stores");
+        MessageDigest digest = Sha256Hash.newDigest();
+        DigestInputStream digestStream = new DigestInputStream(new BufferedInputStream(inputStream), digest);
+        DataInputStream in = new DataInputStream(digestStream);
+        byte[] magic = new byte[MAGIC.length()];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC.getBytes(Charsets.US_ASCII)))
+            throw new IOException("Not a UTXO snapshot");
+        String id = in.readUTF();
+        if (!id.equals(params.getId()))
+            throw new IOException("Snapshot is for " + id + ", not " + params.getId());
+
+        StoredBlock head = null;
+        long count = 0;
+        store.beginDatabaseBatchWrite();
+        try {
+            int numHeaders = in.readInt();
+            if (numHeaders <= 0)
+                throw new IOException("Snapshot has no headers");
+            byte[] compact = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            for (int i = 0; i < numHeaders; i++) {
+                in.readFully(compact);
+                head = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(compact));
+                Sha256Hash hash = head.getHeader().getHash();
+                StoredUndoableBlock undoBlock = in.readByte() != 0
+                        ? deserializeUndoBlock(params, hash, readBytes(in)) : null;
+                // The genesis block is already there.
+                if (store.get(hash) != null)
+                    continue;
+                if (undoBlock != null)
+                    store.put(head, undoBlock);
+                else
+                    store.put(head);
+            }
+
+            while (in.readByte() != 0) {
+                UTXO output = new UTXO(new ByteArrayInputStream(readBytes(in)));
+                String address = in.readUTF();
+                store.addUnspentTransactionOutput(new UTXO(output.getHash(), output.getIndex(), output.getValue(),
+                        output.getHeight(), output.isCoinbase(), output.getScript(), address));
+                if (++count % OUTPUTS_PER_BATCH == 0) {
+                    store.commitDatabaseBatchWrite();
+                    store.beginDatabaseBatchWrite();
+                }
+            }
+            if (in.readLong() != count)
+                throw new IOException("Snapshot has the wrong number of unspent outputs");
+            Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+            digestStream.on(false);
+            byte[] storedHash = new byte[32];
+            in.readFully(storedHash);
+            if (!Arrays.equals(storedHash, hash.getBytes()))
+                throw new IOException("Snapshot is corrupt, its hash is " + hash + " but should be "
+                        + Sha256Hash.wrap(storedHash));
+            if (expectedHash != null && !expectedHash.equals(hash))
+                throw new IOException("Snapshot hash " + hash + " does not match expected " + expectedHash);
+
+            store.setChainHead(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+            log.info("Loaded snapshot {} at height {} with {} headers and {} unspent outputs", hash, head.getHeight(),
+                    numHeaders, count);
+            return head;
+        } catch (ProtocolException e) {
+            store.abortDatabaseBatchWrite();
+            throw new IOException(e);
+        } catch (IOException | BlockStoreException | RuntimeException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+    }
+
+    // Not all stores keep the address of an output, so it is worked out the same way FullPrunedBlockChain does.
+    private static String getAddress(NetworkParameters params, UTXO output) {
+        if (output.getAddress() != null && !output.getAddress().isEmpty())
+            return output.getAddress();
+        try {
+            return output.getScript().getToAddress(params, true).toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            throw new IOException("Negative length in snapshot");
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // The same layout as the undo blocks of LogFullPrunedBlockStore, without the height.
+    private static byte[] serialize(StoredUndoableBlock undoBlock) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (undoBlock.getTxOutChanges() != null) {
+            bos.write(0);
+            undoBlock.getTxOutChanges().serializeToStream(bos);
+        } else {
+            bos.write(1);
+            bos.write(ByteBuffer.allocate(4).putInt(undoBlock.getTransactions().size()).array());
+            for (Transaction tx : undoBlock.getTransactions())
+                tx.bitcoinSerialize(bos);
+        }
+        return bos.toByteArray();
+    }
+
+    private static StoredUndoableBlock deserializeUndoBlock(NetworkParameters params, Sha256Hash hash, byte[] bytes)
+            throws IOException {
+        if (bytes.length == 0)
+            throw new IOException("Empty undo block in snapshot");
+        if (bytes[0] == 0)
+            return new StoredUndoableBlock(hash,
+                    new TransactionOutputChanges(new ByteArrayInputStream(bytes, 1, bytes.length - 1)));
+        int numTransactions = ByteBuffer.wrap(bytes, 1, 4).getInt();
+        List<Transaction> transactions = new ArrayList<>(numTransactions);
+        int offset = 5;
+        for (int i = 0; i < numTransactions; i++) {
+            Transaction tx = new Transaction(params, bytes, offset);
+            transactions.add(tx);
+            offset += tx.getMessageSize();
+        }
+        return new StoredUndoableBlock(hash, transactions);
+    }
+}
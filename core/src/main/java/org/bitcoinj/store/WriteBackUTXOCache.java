@@ -0,0 +1,436 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.UTXO;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A write-back cache of unspent outputs, used by {@link LevelDBFullPrunedBlockStore}. Outputs that are created or
+ * spent are only changed in memory and marked dirty, and all dirty entries are written out together when the store
+ * decides to {@link #writeDirty(Writer) flush}, typically once {@link #needsFlush()} says they take up more than the flush
+ * threshold. An output that is created and spent again before it was ever written, which is common for change
+ * outputs, is simply forgotten and never reaches the disk.</p>
+ *
+ * <p>Entries are spread over a number of shards, each with its own lock and its own least recently used order, so
+ * concurrent lookups rarely wait for each other. Memory use is estimated in bytes. When a shard exceeds its share of
+ * the limit its least recently used clean entries are evicted. Dirty entries are only evicted by a flush.</p>
+ *
+ * <p>Changes made between {@link #beginBatch()} and {@link #commitBatch()} can be undone with {@link #abortBatch()},
+ * which restores the entries as they were when the batch began.</p>
+ */
+public class WriteBackUTXOCache {
+    /** Receives the dirty entries of a flush. */
+    interface Writer {
+        /** The output was created. value is its serialized form. */
+        void put(ByteBuffer key, UTXO utxo, byte[] value);
+
+        /** The output was spent and was previously written. */
+        void delete(ByteBuffer key, UTXO utxo);
+    }
+
+    private static final int SHARDS = 16;
+    // Rough memory use of an entry on top of its key and value: the entry, the map node and the UTXO object.
+    private static final int ENTRY_OVERHEAD = 160;
+
+    // An entry that says the output is unspent, or, if spent is set, that it is spent.
+    static class Entry {
+        final UTXO utxo;
+        // The serialized output if dirty and unspent, otherwise null.
+        @Nullable final byte[] value;
+        final boolean dirty;
+        // Known not to be on disk, so a spend can simply forget the entry.
+        final boolean fresh;
+        final boolean spent;
+        final int size;
+
+        Entry(UTXO utxo, @Nullable byte[] value, boolean dirty, boolean fresh, boolean spent, int size) {
+            this.utxo = utxo;
+            this.value = value;
+            this.dirty = dirty;
+            this.fresh = fresh;
+            this.spent = spent;
+            this.size = size;
+        }
+    }
+
+    private static class Shard {
+        final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long bytes;
+        long dirtyBytes;
+        int dirtyCount;
+        // The entries as they were before the current batch changed them, null values for absent ones.
+        @Nullable Map<ByteBuffer, Entry> journal;
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long maxBytes;
+    private final long flushThresholdBytes;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong(), flushedEntries = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong(), lastFlushNanos = new AtomicLong();
+
+    /**
+     * Creates a cache that holds clean entries in up to about maxBytes of memory, and asks to be flushed once the dirty
+     * entries take up flushThresholdBytes.
+     */
+    public WriteBackUTXOCache(long maxBytes, long flushThresholdBytes) {
+        checkArgument(maxBytes > 0, "maxBytes must be positive");
+        checkArgument(flushThresholdBytes > 0, "flushThresholdBytes must be positive");
+        this.maxBytes = maxBytes;
+        this.flushThresholdBytes = flushThresholdBytes;
+        for (int i = 0; i < SHARDS; i++)
+            shards[i] = new Shard();
+    }
+
+    private Shard shard(ByteBuffer key) {
+        int hash = key.hashCode();
+        return shards[(hash ^ (hash >>> 16)) & (SHARDS - 1)];
+    }
+
+    /**
+     * Returns the entry for the given key, which tells whether the output is unspent or spent, or null if the cache
+     * does not know and the disk has to be asked.
+     */
+    @Nullable
+    Entry get(ByteBuffer key) {
+        Shard shard = shard(key);
+        Entry entry;
+        synchronized (shard) {
+            entry = shard.entries.get(key);
+        }
+        (entry != null ? hits : misses).incrementAndGet();
+        return entry;
+    }
+
+    /** Like {@link #get(ByteBuffer)}, but does not count towards the hit rate. */
+    @Nullable
+    Entry peek(ByteBuffer key) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            return shard.entries.get(key);
+        }
+    }
+
+    /** Remembers an output read from disk, unless the cache already has an entry for it. */
+    void putClean(ByteBuffer key, UTXO utxo, int serializedLength) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            if (shard.entries.containsKey(key))
+                return;
+            put(shard, key, new Entry(utxo, null, false, false, false,
+                    ENTRY_OVERHEAD + key.remaining() + serializedLength));
+        }
+    }
+
+    /**
+     * Records that an output was created. Pass fresh if it is certain that no output with this key was ever written to
+     * disk, so that spending it before the next flush does not have to reach the disk either.
+     */
+    void add(ByteBuffer key, UTXO utxo, byte[] value, boolean fresh) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            Entry previous = shard.entries.get(key);
+            // Only an entry that is itself fresh, which includes no entry at all, keeps the output off the disk.
+            if (previous != null && !previous.fresh)
+                fresh = false;
+            journal(shard, key, previous);
+            put(shard, key, new Entry(utxo, value, true, fresh, false,
+                    ENTRY_OVERHEAD + key.remaining() + value.length));
+        }
+    }
+
+    /** Records that an output was spent. */
+    void spend(ByteBuffer key, UTXO utxo) {
+        Shard shard = shard(key);
+        synchronized (shard) {
+            Entry previous = shard.entries.get(key);
+            journal(shard, key, previous);
+            if (previous != null && previous.fresh) {
+                // Created and spent in memory, the disk never needs to know.
+                remove(shard, key, previous);
+                cancelled.incrementAndGet();
+            } else {
+                put(shard, key, new Entry(utxo, null, true, false, true, ENTRY_OVERHEAD + key.remaining()));
+            }
+        }
+    }
+
+    private void put(Shard shard, ByteBuffer key, Entry entry) {
+        Entry previous = shard.entries.put(key, entry);
+        if (previous != null)
+            account(shard, previous, -1);
+        account(shard, entry, 1);
+        evict(shard);
+    }
+
+    private void remove(Shard shard, ByteBuffer key, Entry entry) {
+        shard.entries.remove(key);
+        account(shard, entry, -1);
+    }
+
+    // Remembers the entry as it was before the current batch first changed it.
+    private void journal(Shard shard, ByteBuffer key, @Nullable Entry previous) {
+        if (shard.journal != null && !shard.journal.containsKey(key))
+            shard.journal.put(key, previous);
+    }
+
+    private static void account(Shard shard, Entry entry, int sign) {
+        shard.bytes += sign * entry.size;
+        if (entry.dirty) {
+            shard.dirtyBytes += sign * entry.size;
+            shard.dirtyCount += sign;
+        }
+    }
+
+    // Evicts least recently used clean entries until the shard is within its share of the limit.
+    private void evict(Shard shard) {
+        long limit = maxBytes / SHARDS + shard.dirtyBytes;
+        Iterator<Entry> it = shard.entries.values().iterator();
+        while (shard.bytes > limit && it.hasNext()) {
+            Entry entry = it.next();
+            if (!entry.dirty) {
+                it.remove();
+                account(shard, entry, -1);
+            }
+        }
+    }
+
+    /** Starts recording changes, so they can be undone by {@link #abortBatch()}. */
+    void beginBatch() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.journal = new HashMap<>();
+            }
+        }
+    }
+
+    /** Keeps the changes made since {@link #beginBatch()}. */
+    void commitBatch() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.journal = null;
+            }
+        }
+    }
+
+    /** Undoes the changes made since {@link #beginBatch()}. */
+    void abortBatch() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                Map<ByteBuffer, Entry> journal = shard.journal;
+                shard.journal = null;
+                if (journal == null)
+                    continue;
+                for (Map.Entry<ByteBuffer, Entry> undo : journal.entrySet()) {
+                    Entry current = shard.entries.remove(undo.getKey());
+                    if (current != null)
+                        account(shard, current, -1);
+                    if (undo.getValue() != null) {
+                        shard.entries.put(undo.getKey(), undo.getValue());
+                        account(shard, undo.getValue(), 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Returns true if the dirty entries take up more than the flush threshold. */
+    public boolean needsFlush() {
+        return getDirtyBytes() >= flushThresholdBytes;
+    }
+
+    /** Returns true if there is nothing to flush. */
+    public boolean isClean() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                if (shard.dirtyCount > 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands every dirty entry to the given writer and returns how many there were. Must not be called during a batch.
+     * Once the writes have reached the disk, {@link #markFlushed(long)} must be called before any other change.
+     */
+    int writeDirty(Writer writer) {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                checkState(shard.journal == null, "Cannot flush during a batch");
+                if (shard.dirtyCount == 0)
+                    continue;
+                for (Map.Entry<ByteBuffer, Entry> e : shard.entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    if (!entry.dirty)
+                        continue;
+                    if (entry.spent)
+                        writer.delete(e.getKey(), entry.utxo);
+                    else
+                        writer.put(e.getKey(), entry.utxo, entry.value);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Marks the entries handed out by {@link #writeDirty(Writer)} as written: created outputs become clean entries and
+     * spent ones are forgotten. elapsedNanos is how long the whole flush took, for the statistics.
+     */
+    void markFlushed(long elapsedNanos) {
+        long count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                if (shard.dirtyCount == 0)
+                    continue;
+                count += shard.dirtyCount;
+                Iterator<Map.Entry<ByteBuffer, Entry>> it = shard.entries.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<ByteBuffer, Entry> e = it.next();
+                    Entry entry = e.getValue();
+                    if (!entry.dirty)
+                        continue;
+                    account(shard, entry, -1);
+                    if (entry.spent) {
+                        it.remove();
+                    } else {
+                        Entry clean = new Entry(entry.utxo, null, false, false, false,
+                                entry.size - entry.value.length);
+                        e.setValue(clean);
+                        account(shard, clean, 1);
+                    }
+                }
+                evict(shard);
+            }
+        }
+        flushes.incrementAndGet();
+        flushedEntries.addAndGet(count);
+        flushNanos.addAndGet(elapsedNanos);
+        lastFlushNanos.set(elapsedNanos);
+    }
+
+    /** Forgets all entries, dirty or not. */
+    void clear() {
+        for (int i = 0; i < SHARDS; i++) {
+            synchronized (shards[i]) {
+                shards[i].entries.clear();
+                shards[i].bytes = shards[i].dirtyBytes = shards[i].dirtyCount = 0;
+                shards[i].journal = null;
+            }
+        }
+    }
+
+    /** Returns the estimated memory used by all entries. */
+    public long getSizeBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /** Returns the estimated memory used by entries that still have to be written. */
+    public long getDirtyBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.dirtyBytes;
+            }
+        }
+        return bytes;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.entries.size();
+            }
+        }
+        return size;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getFlushThresholdBytes() {
+        return flushThresholdBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the share of lookups answered by the cache, or 0 if there were none. */
+    public double getHitRate() {
+        long hits = this.hits.get(), total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Returns the number of outputs that were created and spent without ever being written. */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    public long getFlushedEntries() {
+        return flushedEntries.get();
+    }
+
+    /** Returns the time spent flushing, including writing to disk, over all flushes, in the given unit. */
+    public long getTotalFlushTime(TimeUnit unit) {
+        return unit.convert(flushNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns how long the most recent flush took, in the given unit. */
+    public long getLastFlushTime(TimeUnit unit) {
+        return unit.convert(lastFlushNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("UTXO cache of %d entries, %d KB (%d KB dirty): hit rate %.2f, %d cancelled, %d flushes " +
+                "of %d entries taking %d ms", size(), getSizeBytes() / 1024, getDirtyBytes() / 1024, getHitRate(),
+                getCancelled(), getFlushCount(), getFlushedEntries(), getTotalFlushTime(TimeUnit.MILLISECONDS));
+    }
+}
@@ -21,10 +21,14 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
 import org.bitcoinj.core.Utils;
 
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -72,7 +76,7 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    private InputStream currentFileStream = null;
     private Block nextBlock = null;
     private NetworkParameters params;
     
@@ -98,6 +102,24 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
     
     private void loadNextBlock() {
+        byte[] bytes;
+        while ((bytes = readNextBlockBytes()) != null) {
+            try {
+                nextBlock = params.getDefaultSerializer().makeBlock(bytes);
+                return;
+            } catch (ProtocolException e) {
+                // Skip it, like any other unreadable block.
+            }
+        }
+        nextBlock = null;
+    }
+
+    /**
+     * Reads the serialized form of the next block without parsing it, or returns null if all files are exhausted.
+     * Used by {@link BlockImportPipeline} to hand the parsing off to other threads.
+     */
+    @Nullable
+    byte[] readNextBlockBytes() {
         while (true) {
             try {
                 if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
@@ -115,12 +137,11 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
                     currentFileStream = null;
                 }
                 if (!fileIt.hasNext()) {
-                    nextBlock = null;
                     currentFileStream = null;
-                    return;
+                    return null;
                 }
                 try {
-                    currentFileStream = new FileInputStream(fileIt.next());
+                    currentFileStream = new BufferedInputStream(new FileInputStream(fileIt.next()), 64 * 1024);
                 } catch (FileNotFoundException e) {
                     currentFileStream = null;
                 }
@@ -150,18 +171,13 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
                     continue;
                 bytes = new byte[(int) size];
                 currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = params.getDefaultSerializer().makeBlock(bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                }
-                break;
+                return bytes;
             } catch (IOException e) {
                 currentFileStream = null;
                 continue;
             }
         }
+        return null;
     }
 
     @Override
@@ -0,0 +1,317 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PrunedException;
+import org.bitcoinj.core.ProtocolException;
+import org.bitcoinj.core.VerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Imports blocks stored in the Bitcoin Core format into a chain, like iterating over a {@link BlockFileLoader} and
+ * calling {@link AbstractBlockChain#add(Block)}, but with the work split into three stages that run concurrently:</p>
+ *
+ * <ol>
+ * <li><b>read</b>: several block files are read at once, each by its own thread, which only cuts the files into raw
+ * blocks.</li>
+ * <li><b>verify</b>: a pool of threads parses the blocks, computing their block and transaction hashes, and runs the
+ * checks which do not depend on the chain: proof of work, timestamp, merkle root and transaction sanity. The chain
+ * still runs its own checks; this stage only overlaps parsing and hashing with connecting earlier blocks.</li>
+ * <li><b>connect</b>: the calling thread adds the blocks to the chain, in exactly the order in which they appear in the
+ * files.</li>
+ * </ol>
+ *
+ * <p>The stages are connected by bounded queues. When the connect stage falls behind, the queues fill up and the read
+ * threads block until there is room again, so memory use stays bounded no matter how fast the disk is. Each time that
+ * happens is counted as a stall; see {@link #getReadStalls()}.</p>
+ *
+ * <p>A block that fails the context free checks makes {@link #importBlocks(AbstractBlockChain)} throw, just like
+ * {@link AbstractBlockChain#add(Block)} would have. Blocks which cannot be read or parsed are skipped, as
+ * {@link BlockFileLoader} does.</p>
+ */
+public class BlockImportPipeline {
+    private static final Logger log = LoggerFactory.getLogger(BlockImportPipeline.class);
+
+    // Marks the end of a file's queue.
+    private static final Future<Block> END_OF_FILE = new FutureTask<>(new Callable<Block>() {
+        @Override
+        public Block call() throws Exception {
+            return null;
+        }
+    });
+
+    private static final int DEFAULT_READ_THREADS = 2;
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final int PROGRESS_INTERVAL = 10000;
+
+    private final NetworkParameters params;
+    private final List<File> files;
+
+    private int readThreads = DEFAULT_READ_THREADS;
+    private int verifyThreads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+
+    private final Stage readStage = new Stage("read");
+    private final Stage verifyStage = new Stage("verify");
+    private final Stage connectStage = new Stage("connect");
+    private final AtomicLong readStalls = new AtomicLong();
+
+    public BlockImportPipeline(NetworkParameters params, List<File> files) {
+        this.params = params;
+        this.files = new ArrayList<>(files);
+    }
+
+    /** Sets how many block files are read concurrently. The default is 2. */
+    public void setReadThreads(int readThreads) {
+        checkArgument(readThreads > 0);
+        this.readThreads = readThreads;
+    }
+
+    /** Sets how many threads parse and verify blocks. The default is one per available processor. */
+    public void setVerifyThreads(int verifyThreads) {
+        checkArgument(verifyThreads > 0);
+        this.verifyThreads = verifyThreads;
+    }
+
+    /**
+     * Sets how many blocks read from one file may be waiting to be connected before reading of that file pauses. The
+     * default is 256.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        checkArgument(queueCapacity > 0);
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Reads, verifies and adds all blocks of the files to the given chain. Returns once every block has been added,
+     * or throws as soon as one of them is rejected.
+     *
+     * @return the number of blocks added to the chain
+     */
+    public long importBlocks(AbstractBlockChain chain) throws VerificationException, PrunedException,
+            InterruptedException {
+        checkState(connectStage.count.get() == 0, "A pipeline can only be used once");
+        ExecutorService readers = Executors.newFixedThreadPool(readThreads,
+                new ContextPropagatingThreadFactory("Block import reader"));
+        ExecutorService verifiers = Executors.newFixedThreadPool(verifyThreads,
+                new ContextPropagatingThreadFactory("Block import verifier"));
+        try {
+            // Files are handed to the readers in order, so at most readThreads of them are in progress at any time.
+            List<BlockingQueue<Future<Block>>> queues = new ArrayList<>(files.size());
+            for (File file : files) {
+                BlockingQueue<Future<Block>> queue = new LinkedBlockingQueue<>(queueCapacity);
+                queues.add(queue);
+                readers.execute(new FileReader(file, queue, verifiers));
+            }
+            readers.shutdown();
+            for (BlockingQueue<Future<Block>> queue : queues)
+                connectAll(chain, queue);
+        } finally {
+            readers.shutdownNow();
+            verifiers.shutdownNow();
+        }
+        log.info("Import finished: {}", this);
+        return connectStage.count.get();
+    }
+
+    private void connectAll(AbstractBlockChain chain, BlockingQueue<Future<Block>> queue)
+            throws VerificationException, PrunedException, InterruptedException {
+        FullPrunedBlockChain fullChain = chain instanceof FullPrunedBlockChain ? (FullPrunedBlockChain) chain : null;
+        while (true) {
+            Future<Block> future = queue.take();
+            if (future == END_OF_FILE)
+                return;
+            Block block = get(future);
+            if (block == null)
+                continue; // Unparseable.
+            if (fullChain != null) {
+                // Let the chain prefetch the outputs spent by the next block while it verifies this one.
+                Future<Block> next = queue.peek();
+                if (next != null && next != END_OF_FILE && next.isDone())
+                    hintUpcomingBlock(fullChain, next);
+            }
+            long start = System.nanoTime();
+            chain.add(block);
+            connectStage.record(System.nanoTime() - start);
+            if (connectStage.count.get() % PROGRESS_INTERVAL == 0)
+                log.info("Imported {} blocks: {}", connectStage.count.get(), this);
+        }
+    }
+
+    private void hintUpcomingBlock(FullPrunedBlockChain chain, Future<Block> next) throws InterruptedException {
+        try {
+            Block nextBlock = next.get();
+            if (nextBlock != null)
+                chain.hintUpcomingBlock(nextBlock);
+        } catch (ExecutionException e) {
+            // Reported when that block's turn comes, after this one was added.
+        }
+    }
+
+    @Nullable
+    private Block get(Future<Block> future) throws VerificationException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof VerificationException)
+                throw (VerificationException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /** Returns the number of blocks cut out of the files so far. */
+    public long getBlocksRead() {
+        return readStage.count.get();
+    }
+
+    /** Returns the number of blocks which passed the context free checks so far. */
+    public long getBlocksVerified() {
+        return verifyStage.count.get();
+    }
+
+    /** Returns the number of blocks added to the chain so far. */
+    public long getBlocksConnected() {
+        return connectStage.count.get();
+    }
+
+    /** Returns how often a read thread had to wait because the connect stage was behind. */
+    public long getReadStalls() {
+        return readStalls.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s, %s, %s, %d read stalls", readStage, verifyStage, connectStage,
+                readStalls.get());
+    }
+
+    /** Cuts one file into raw blocks, and queues a parse-and-verify task for each of them. */
+    private class FileReader implements Runnable {
+        private final File file;
+        private final BlockingQueue<Future<Block>> queue;
+        private final ExecutorService verifiers;
+
+        FileReader(File file, BlockingQueue<Future<Block>> queue, ExecutorService verifiers) {
+            this.file = file;
+            this.queue = queue;
+            this.verifiers = verifiers;
+        }
+
+        @Override
+        public void run() {
+            BlockFileLoader loader = new BlockFileLoader(params, Collections.singletonList(file));
+            try {
+                while (true) {
+                    long start = System.nanoTime();
+                    byte[] bytes = loader.readNextBlockBytes();
+                    if (bytes == null)
+                        break;
+                    readStage.record(System.nanoTime() - start);
+                    FutureTask<Block> task = new FutureTask<>(new BlockVerifier(bytes));
+                    if (!queue.offer(task)) {
+                        readStalls.incrementAndGet();
+                        queue.put(task);
+                    }
+                    verifiers.execute(task);
+                }
+            } catch (InterruptedException e) {
+                return; // The import was aborted.
+            } catch (RuntimeException e) {
+                log.error("Failed to read " + file, e);
+            }
+            try {
+                queue.put(END_OF_FILE);
+            } catch (InterruptedException e) {
+                // The import was aborted.
+            }
+        }
+    }
+
+    /** Parses a block and runs the checks which do not need the chain. Returns null if the block cannot be parsed. */
+    private class BlockVerifier implements Callable<Block> {
+        private final byte[] bytes;
+
+        BlockVerifier(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public Block call() throws VerificationException {
+            long start = System.nanoTime();
+            Block block;
+            try {
+                block = params.getDefaultSerializer().makeBlock(bytes);
+            } catch (ProtocolException e) {
+                log.warn("Skipping unparseable block: {}", e.getMessage());
+                return null;
+            }
+            // The height is not known yet, so the height-in-coinbase rule is left to the chain.
+            block.verify(Block.BLOCK_HEIGHT_UNKNOWN, EnumSet.noneOf(Block.VerifyFlag.class));
+            verifyStage.record(System.nanoTime() - start);
+            return block;
+        }
+    }
+
+    /** Throughput counters of one stage. */
+    private static class Stage {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void record(long elapsedNanos) {
+            count.incrementAndGet();
+            nanos.addAndGet(elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            long n = nanos.get();
+            double perSecond = n == 0 ? 0 : count.get() * 1e9 / n;
+            return String.format(Locale.US, "%s: %d blocks (%.1f/sec per thread)", name, count.get(), perSecond);
+        }
+    }
+}
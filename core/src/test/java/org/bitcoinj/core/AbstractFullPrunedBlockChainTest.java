@@ -23,6 +23,9 @@ import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.bitcoinj.store.UTXOSnapshot;
 import org.bitcoinj.utils.BlockFileLoader;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.wallet.SendRequest;
@@ -33,9 +36,15 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
@@ -159,6 +168,132 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void assumeValid() throws Exception {
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+
+        ECKey outKey = new ECKey();
+        int height = 1;
+
+        // Build some blocks on genesis block to create a spendable output
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < PARAMS.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            blocks.add(rollingBlock);
+        }
+
+        // A block spending it with an invalid script, and one more on top.
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, FIFTY_COINS, new byte[] {}));
+        TransactionInput input = t.addInput(spendableOutput);
+        input.clearScriptBytes();
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        blocks.add(rollingBlock);
+        Block trusted = rollingBlock.createNextBlock(null);
+        blocks.add(trusted);
+
+        // Headers synced ahead show that all the blocks lead to the trusted block on top, so the bad script is not run.
+        BlockChain headerChain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        for (Block block : blocks)
+            assertTrue(headerChain.add(block.cloneAsHeader()));
+        chain.setAssumeValidBlock(trusted.getHash(), blocks.size());
+        chain.setHeaderChain(headerChain);
+        for (Block block : blocks)
+            assertTrue(chain.add(block));
+        assertEquals(blocks.size(), chain.getAssumedValidBlockCount());
+        assertEquals(0, chain.getScriptVerifiedBlockCount());
+        // Blocks above the trusted one are verified again.
+        assertTrue(chain.add(trusted.createNextBlock(null)));
+        assertEquals(1, chain.getScriptVerifiedBlockCount());
+        try {
+            store.close();
+        } catch (Exception e) {}
+
+        // Without headers leading to the trusted block, its ancestry can't be shown.
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setAssumeValidBlock(trusted.getHash(), blocks.size());
+        assertBadScriptCaught(blocks);
+
+        // Nor with headers that have less than the minimum work.
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setAssumeValidBlock(trusted.getHash(), blocks.size());
+        chain.setHeaderChain(headerChain);
+        chain.setMinimumChainWork(headerChain.getChainHead().getChainWork().add(BigInteger.ONE));
+        assertBadScriptCaught(blocks);
+
+        // A different block at the trusted height is verified, not rejected.
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setAssumeValidBlock(trusted.getHash(), blocks.size() - 1);
+        chain.setHeaderChain(headerChain);
+        assertBadScriptCaught(blocks);
+
+        // A fork below the trusted height that is connected by a re-organize isn't an ancestor of the trusted block,
+        // so its scripts are run.
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        chain.setAssumeValidBlock(trusted.getHash(), blocks.size());
+        chain.setHeaderChain(headerChain);
+        for (Block block : blocks.subList(0, blocks.size() - 1))
+            assertTrue(chain.add(block));
+        Block badFork = blocks.get(blocks.size() - 3).createNextBlock(null);
+        t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, FIFTY_COINS.subtract(Coin.COIN), new byte[] {}));
+        t.addInput(spendableOutput).clearScriptBytes();
+        badFork.addTransaction(t);
+        badFork.solve();
+        assertTrue(chain.add(badFork));
+        try {
+            chain.add(badFork.createNextBlock(null));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        try {
+            store.close();
+        } catch (Exception e) {}
+
+        // Without an assume-valid block the bad script is caught.
+        store = createStore(PARAMS, 10);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        for (Block block : blocks.subList(0, blocks.size() - 2))
+            assertTrue(chain.add(block));
+        try {
+            chain.add(blocks.get(blocks.size() - 2));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(blocks.size() - 2, chain.getScriptVerifiedBlockCount());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
+    // Adds the blocks up to the one with the bad script, which must fail, then closes the store.
+    private void assertBadScriptCaught(List<Block> blocks) throws Exception {
+        for (Block block : blocks.subList(0, blocks.size() - 2))
+            assertTrue(chain.add(block));
+        try {
+            chain.add(blocks.get(blocks.size() - 2));
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(0, chain.getAssumedValidBlockCount());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -278,6 +413,39 @@ public abstract class AbstractFullPrunedBlockChainTest {
         assertEquals("The address is not equal", address.toString(), output.getAddress());
         assertEquals("The amount is not equal", totalAmount, output.getValue());
 
+        // A batch lookup returns one entry per requested outpoint, in order, with null for spent or unknown ones.
+        TransactionOutPoint newOutput = new TransactionOutPoint(PARAMS, 0, t.getHash());
+        TransactionOutPoint unknownOutput = new TransactionOutPoint(PARAMS, 1, t.getHash());
+        List<UTXO> batch = store.getTransactionOutputs(Arrays.asList(spendableOutput, newOutput, unknownOutput));
+        assertEquals(3, batch.size());
+        assertNull(batch.get(0));
+        assertEquals(store.getTransactionOutput(t.getHash(), 0), batch.get(1));
+        assertNull(batch.get(2));
+
+        // The streaming lookup answers several addresses at once. All but the first coinbase, which was spent above,
+        // still pay outKey.
+        Address coinbaseAddress = outKey.toAddress(PARAMS);
+        final List<UTXO> streamed = new ArrayList<>();
+        store.getOpenTransactionOutputs(Arrays.asList(address, new ECKey().toAddress(PARAMS), coinbaseAddress),
+                new FullPrunedBlockStore.UTXOHandler() {
+                    @Override
+                    public void onOutput(UTXO output) {
+                        streamed.add(output);
+                    }
+                });
+        assertEquals(PARAMS.getSpendableCoinbaseDepth(), streamed.size());
+        int coinbaseOutputs = 0;
+        for (UTXO u : streamed) {
+            if (u.getAddress().equals(coinbaseAddress.toString())) {
+                assertTrue(u.isCoinbase());
+                coinbaseOutputs++;
+            } else {
+                assertEquals(output, u);
+                assertEquals(address.toString(), u.getAddress());
+            }
+        }
+        assertEquals(PARAMS.getSpendableCoinbaseDepth() - 1, coinbaseOutputs);
+
         outputs = null;
         output = null;
         try {
@@ -285,6 +453,83 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void snapshot() throws Exception {
+        final int UNDOABLE_BLOCKS_STORED = 10;
+        store = createStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        ECKey outKey = new ECKey();
+        int height = 1;
+        Block rollingBlock = PARAMS.getGenesisBlock().createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+        chain.add(rollingBlock);
+        Transaction spent = rollingBlock.getTransactions().get(0);
+        // More blocks than undo blocks are kept for.
+        while (height < 3 * UNDOABLE_BLOCKS_STORED) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(Block.BLOCK_VERSION_GENESIS, outKey.getPubKey(), height++);
+            chain.add(rollingBlock);
+        }
+        StoredBlock head = store.getVerifiedChainHead();
+        Address address = outKey.toAddress(PARAMS);
+        List<UTXO> outputs = store.getOpenTransactionOutputs(Lists.newArrayList(address));
+        assertEquals(height - 1, outputs.size());
+
+        // Through a memory store and back into a new store of the kind tested.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            UTXOSnapshot.write(store, head.getHeight() - 1, UNDOABLE_BLOCKS_STORED, bos);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected, the store only has the outputs of its chain head.
+        }
+        Sha256Hash hash = UTXOSnapshot.write(store, head.getHeight(), UNDOABLE_BLOCKS_STORED, bos);
+        MemoryFullPrunedBlockStore memoryStore = new MemoryFullPrunedBlockStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        assertEquals(head, UTXOSnapshot.read(memoryStore, new ByteArrayInputStream(bos.toByteArray()), hash));
+        bos = new ByteArrayOutputStream();
+        UTXOSnapshot.write(memoryStore, UNDOABLE_BLOCKS_STORED, bos);
+        byte[] snapshot = bos.toByteArray();
+        store.close();
+        store = createStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        resetStore(store);
+        assertEquals(head, UTXOSnapshot.read(store, new ByteArrayInputStream(snapshot), null));
+        assertEquals(head, store.getChainHead());
+        assertEquals(new HashSet<>(outputs), new HashSet<>(store.getOpenTransactionOutputs(Lists.newArrayList(address))));
+        assertNotNull(store.getUndoBlock(head.getHeader().getHash()));
+
+        // The chain carries on from the snapshot.
+        chain = new FullPrunedBlockChain(PARAMS, store);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(PARAMS);
+        t.addOutput(new TransactionOutput(PARAMS, t, Coin.COIN, new ECKey()));
+        t.addSignedInput(new TransactionOutPoint(PARAMS, 0, spent.getHash()), spent.getOutput(0).getScriptPubKey(), outKey);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+        assertEquals(height, store.getVerifiedChainHead().getHeight());
+        assertNull(store.getTransactionOutput(spent.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(t.getHash(), 0));
+
+        // Snapshots are checked before the chain heads are set.
+        snapshot[snapshot.length / 2] ^= 1;
+        MemoryFullPrunedBlockStore corrupted = new MemoryFullPrunedBlockStore(PARAMS, UNDOABLE_BLOCKS_STORED);
+        try {
+            UTXOSnapshot.read(corrupted, new ByteArrayInputStream(snapshot), null);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, corrupted.getVerifiedChainHead().getHeight());
+        try {
+            UTXOSnapshot.read(new MemoryFullPrunedBlockStore(PARAMS, UNDOABLE_BLOCKS_STORED),
+                    new ByteArrayInputStream(bos.toByteArray()), hash.equals(Sha256Hash.ZERO_HASH) ? null : Sha256Hash.ZERO_HASH);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testUTXOProviderWithWallet() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
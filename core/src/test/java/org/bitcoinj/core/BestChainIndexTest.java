@@ -0,0 +1,138 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BestChainIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private BlockStore store;
+    private BlockChain chain;
+    private BestChainIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        // The block times used below lie far in the future.
+        Utils.setMockClock(getBlockTime(110));
+        store = new MemoryBlockStore(PARAMS);
+        chain = new BlockChain(PARAMS, store);
+        index = chain.getBestChainIndex();
+    }
+
+    @After
+    public void tearDown() {
+        Utils.mockTime = null;
+    }
+
+    // Each difficulty period spans exactly the target timespan, so the difficulty never changes.
+    private static long getBlockTime(int height) {
+        int interval = PARAMS.getInterval();
+        long timespan = PARAMS.getTargetTimespan();
+        return PARAMS.getGenesisBlock().getTimeSeconds() + (height / interval) * (timespan + 1)
+                + (height % interval) * timespan / (interval - 1);
+    }
+
+    private Block createNextBlock(Block prev, int height) {
+        return prev.createNextBlock(new ECKey().toAddress(PARAMS), Block.BLOCK_VERSION_GENESIS, getBlockTime(height),
+                Block.BLOCK_HEIGHT_UNKNOWN);
+    }
+
+    private Block extend(Block prev, int count) throws Exception {
+        int height = store.get(prev.getHash()).getHeight();
+        for (int i = 0; i < count; i++) {
+            prev = createNextBlock(prev, ++height);
+            assertTrue(chain.add(prev));
+        }
+        return prev;
+    }
+
+    @Test
+    public void followsBestChain() throws Exception {
+        // Crosses several difficulty transitions, which are checked through the index.
+        extend(PARAMS.getGenesisBlock(), 25);
+        assertEquals(25, index.getHeight());
+        StoredBlock cursor = chain.getChainHead();
+        for (int height = 25; height >= 0; height--) {
+            assertEquals(cursor, index.get(height, store));
+            assertTrue(index.contains(cursor));
+            cursor = cursor.getPrev(store);
+        }
+        assertNull(index.get(26, store));
+    }
+
+    @Test
+    public void reorganize() throws Exception {
+        Block split = extend(PARAMS.getGenesisBlock(), 5);
+        StoredBlock splitPoint = chain.getChainHead();
+        extend(split, 3);
+        StoredBlock oldHead = chain.getChainHead();
+        Block forkTip = split;
+        for (int i = 0; i < 3; i++) {
+            forkTip = createNextBlock(forkTip, 6 + i);
+            chain.add(forkTip);
+        }
+        StoredBlock sideBlock = store.get(forkTip.getHash());
+        assertFalse(index.contains(sideBlock));
+        assertEquals(splitPoint, index.findSplit(sideBlock, store));
+        assertEquals(splitPoint, index.getAncestor(sideBlock, 5, store));
+        assertEquals(index.get(2, store), index.getAncestor(sideBlock, 2, store));
+
+        // One more block on the fork makes it the best chain.
+        extend(forkTip, 1);
+        assertEquals(9, index.getHeight());
+        assertFalse(index.contains(oldHead));
+        assertTrue(index.contains(sideBlock));
+        assertEquals(chain.getChainHead(), index.get(9, store));
+        assertEquals(oldHead.getHeight(), index.findSplit(oldHead, store).getHeight() + 3);
+    }
+
+    @Test
+    public void extendsDownwardsFromStore() throws Exception {
+        extend(PARAMS.getGenesisBlock(), 10);
+        // A fresh chain only indexes its head until lower heights are asked for.
+        BestChainIndex fresh = new BlockChain(PARAMS, store).getBestChainIndex();
+        assertEquals(10, fresh.getHeight());
+        assertEquals(PARAMS.getGenesisBlock().getHash(), fresh.get(0, store).getHeader().getHash());
+        assertEquals(index.get(4, store), fresh.get(4, store));
+    }
+
+    @Test
+    public void locator() throws Exception {
+        extend(PARAMS.getGenesisBlock(), 101);
+        List<Sha256Hash> locator = index.getLocator(store);
+        List<Sha256Hash> expected = new ArrayList<>();
+        StoredBlock cursor = chain.getChainHead();
+        for (int i = 0; i < 100; i++) {
+            expected.add(cursor.getHeader().getHash());
+            cursor = cursor.getPrev(store);
+        }
+        expected.add(PARAMS.getGenesisBlock().getHash());
+        assertEquals(expected, locator);
+    }
+}
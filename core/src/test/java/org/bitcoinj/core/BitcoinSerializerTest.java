@@ -65,6 +65,7 @@ public class BitcoinSerializerTest {
         assertEquals("10.0.0.1", peerAddress.getAddr().getHostAddress());
         ByteArrayOutputStream bos = new ByteArrayOutputStream(ADDRESS_MESSAGE_BYTES.length);
         serializer.serialize(addressMessage, bos);
+        assertArrayEquals(bos.toByteArray(), serializer.serialize(addressMessage));
 
         assertEquals(31, addressMessage.getMessageSize());
         addressMessage.addAddress(new PeerAddress(params, InetAddress.getLocalHost()));
@@ -201,6 +202,38 @@ public class BitcoinSerializerTest {
         assertArrayEquals(headersMessageBytes, serializedBytes);
     }
 
+    @Test
+    public void testPayloadReader() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        ByteBuffer in = ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.PayloadReader reader = new BitcoinSerializer.PayloadReader(serializer.deserializeHeader(in));
+        // Feed the payload in pieces, as it would come off the network.
+        while (in.hasRemaining()) {
+            ByteBuffer piece = in.slice();
+            piece.limit(Math.min(piece.remaining(), 37));
+            boolean last = piece.remaining() == in.remaining();
+            assertEquals(last, reader.read(piece));
+            in.position(in.position() + piece.position());
+        }
+        assertTrue(reader.isComplete());
+        Transaction tx = (Transaction) serializer.deserializePayload(reader);
+        assertEquals(serializer.deserialize(ByteBuffer.wrap(TRANSACTION_MESSAGE_BYTES)), tx);
+        assertArrayEquals(TRANSACTION_MESSAGE_BYTES, serializer.serialize(tx));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void testPayloadReaderBadChecksum() throws Exception {
+        MessageSerializer serializer = MainNetParams.get().getDefaultSerializer();
+        byte[] bytes = Arrays.copyOf(TRANSACTION_MESSAGE_BYTES, TRANSACTION_MESSAGE_BYTES.length);
+        bytes[bytes.length - 1] ^= 1;
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        serializer.seekPastMagicBytes(in);
+        BitcoinSerializer.PayloadReader reader = new BitcoinSerializer.PayloadReader(serializer.deserializeHeader(in));
+        assertTrue(reader.read(in));
+        serializer.deserializePayload(reader);
+    }
+
     @Test(expected = BufferUnderflowException.class)
     public void testBitcoinPacketHeaderTooShort() {
         new BitcoinSerializer.BitcoinPacketHeader(ByteBuffer.wrap(new byte[] { 0 }));
@@ -17,13 +17,16 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.core.listeners.NewBestBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet2Params;
 import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.MemoryBlockStore;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.bitcoinj.utils.BriefLogFormatter;
+import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.Wallet.BalanceType;
 
@@ -35,8 +38,11 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.bitcoinj.testing.FakeTxBuilder.createFakeBlock;
@@ -122,6 +128,84 @@ public class BlockChainTest {
         assertEquals(2, future.get().getHeight());
     }
 
+    @Test
+    public void addHeaders() throws Exception {
+        final List<StoredBlock> bestBlocks = new ArrayList<>();
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, new NewBestBlockListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                bestBlocks.add(block);
+            }
+        });
+        List<Block> headers = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        // Stays below the first difficulty transition, which blocks made this quickly would not pass.
+        for (int i = 0; i < 9; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        assertEquals(9, chain.addHeaders(headers));
+        assertEquals(9, chain.getBestChainHeight());
+        assertEquals(prev, chain.getChainHead().getHeader());
+        assertEquals(chain.getChainHead(), blockStore.getChainHead());
+        assertEquals(9, bestBlocks.size());
+        for (int i = 0; i < headers.size(); i++) {
+            assertEquals(headers.get(i), bestBlocks.get(i).getHeader());
+            assertEquals(i + 1, blockStore.get(headers.get(i).getHash()).getHeight());
+        }
+        // Headers the chain already has are accepted again.
+        assertEquals(2, chain.addHeaders(headers.subList(7, 9)));
+        assertEquals(9, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void addHeadersGoesThroughOverriddenHooks() throws Exception {
+        assertTrue(chain.canStoreHeaderRuns());
+        final AtomicInteger chainHeadWrites = new AtomicInteger();
+        BlockChain hookedChain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS)) {
+            @Override
+            protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
+                chainHeadWrites.incrementAndGet();
+                super.doSetChainHead(chainHead);
+            }
+        };
+        assertFalse(hookedChain.canStoreHeaderRuns());
+        List<Block> headers = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        assertEquals(5, hookedChain.addHeaders(headers));
+        assertEquals(5, hookedChain.getBestChainHeight());
+        assertEquals(5, chainHeadWrites.get());
+    }
+
+    @Test
+    public void addHeadersKeepsValidPrefix() throws Exception {
+        List<Block> headers = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < 5; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        // Fails the difficulty check, as height 4 is no difficulty transition point.
+        Block bad = headers.get(3);
+        bad.setDifficultyTarget(bad.getDifficultyTarget() - 1);
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(3, chain.getBestChainHeight());
+        assertEquals(headers.get(2), blockStore.getChainHead().getHeader());
+        assertNull(blockStore.get(bad.getHash()));
+        // The index agrees with the store.
+        assertEquals(blockStore.getChainHead(), chain.getBestChainIndex().get(3, blockStore));
+        assertNull(chain.getBestChainIndex().get(4, blockStore));
+    }
+
     @Test
     public void receiveCoins() throws Exception {
         int height = 1;
@@ -177,6 +261,25 @@ public class BlockChainTest {
         // Successfully traversed a difficulty transition period.
     }
 
+    @Test
+    public void legacyDifficultyCheckOverrideIsCalled() throws Exception {
+        final AtomicInteger legacyChecks = new AtomicInteger();
+        NetworkParameters params = new UnitTestParams() {
+            @Override
+            @SuppressWarnings("deprecation")
+            public void checkDifficultyTransitions(StoredBlock storedPrev, Block next, BlockStore blockStore)
+                    throws VerificationException, BlockStoreException {
+                legacyChecks.incrementAndGet();
+                super.checkDifficultyTransitions(storedPrev, next, blockStore);
+            }
+        };
+        BlockChain legacyChain = new BlockChain(new Context(params), new MemoryBlockStore(params));
+        Block b1 = params.getGenesisBlock().createNextBlock(coinbaseTo);
+        assertTrue(legacyChain.add(b1));
+        assertTrue(legacyChain.add(b1.createNextBlock(coinbaseTo)));
+        assertEquals(2, legacyChecks.get());
+    }
+
     @Test
     public void badDifficulty() throws Exception {
         assertTrue(testNetChain.add(getBlock1()));
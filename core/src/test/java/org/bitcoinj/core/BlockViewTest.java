@@ -0,0 +1,167 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.io.ByteStreams;
+import org.bitcoinj.params.MainNetParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockViewTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = new Context(PARAMS);
+    }
+
+    private byte[] read(String resource) throws Exception {
+        return ByteStreams.toByteArray(getClass().getResourceAsStream(resource));
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void matchesParsedBlocks() throws Exception {
+        for (String resource : new String[] { "block169482.dat", "block370661.dat", "block383616.dat" }) {
+            byte[] payload = read(resource);
+            Block block = PARAMS.getDefaultSerializer().makeBlock(payload);
+            BlockView view = new BlockView(PARAMS, ByteBuffer.wrap(payload));
+            assertEquals(block.getHash(), view.getHash());
+            assertEquals(block.getVersion(), view.getVersion());
+            assertEquals(block.getPrevBlockHash(), view.getPrevBlockHash());
+            assertEquals(block.getMerkleRoot(), view.getMerkleRoot());
+            assertEquals(block.getTimeSeconds(), view.getTimeSeconds());
+            assertEquals(block.getDifficultyTarget(), view.getDifficultyTarget());
+            assertEquals(block.getNonce(), view.getNonce());
+            assertEquals(block.getTransactions().size(), view.getTransactionCount());
+            assertEquals(block.getMerkleRoot(), view.calculateMerkleRoot());
+
+            List<TransactionView> views = view.getTransactions();
+            assertEquals(block.getTransactions().size(), views.size());
+            for (int i = 0; i < views.size(); i++)
+                assertTransactionMatches(block.getTransactions().get(i), views.get(i));
+            assertEquals(block, view.toBlock());
+        }
+    }
+
+    private static void assertTransactionMatches(Transaction tx, TransactionView view) throws Exception {
+        assertEquals(tx.getHash(), view.getHash());
+        assertEquals(tx.getMessageSize(), view.getMessageSize());
+        assertEquals(tx.getVersion(), view.getVersion());
+        assertEquals(tx.getLockTime(), view.getLockTime());
+        assertEquals(tx.isCoinBase(), view.isCoinBase());
+        assertEquals(tx.getInputs().size(), view.getInputCount());
+        for (int i = 0; i < view.getInputCount(); i++) {
+            TransactionInput input = tx.getInput(i);
+            assertEquals(input.getOutpoint().getHash(), view.getOutPointHash(i));
+            assertEquals(input.getOutpoint().getIndex(), view.getOutPointIndex(i));
+            assertArrayEquals(input.getScriptBytes(), bytes(view.getInputScript(i)));
+            assertEquals(input.getSequenceNumber(), view.getInputSequenceNumber(i));
+        }
+        assertEquals(tx.getOutputs().size(), view.getOutputCount());
+        for (int i = 0; i < view.getOutputCount(); i++) {
+            TransactionOutput output = tx.getOutput(i);
+            assertEquals(output.getValue(), view.getOutputValue(i));
+            assertArrayEquals(output.getScriptBytes(), bytes(view.getOutputScript(i)));
+        }
+        assertEquals(tx, view.toTransaction());
+        assertEquals(tx.getHash(), view.toTransaction().getHash());
+    }
+
+    @Test
+    public void headerOnly() throws Exception {
+        byte[] payload = read("block169482.dat");
+        Block block = PARAMS.getDefaultSerializer().makeBlock(payload);
+        BlockView view = new BlockView(PARAMS, ByteBuffer.wrap(Arrays.copyOf(payload, Block.HEADER_SIZE)));
+        assertEquals(block.getHash(), view.getHash());
+        assertFalse(view.hasTransactions());
+        assertEquals(0, view.getTransactionCount());
+        assertTrue(view.getTransactions().isEmpty());
+        assertEquals(block.cloneAsHeader(), view.toBlock());
+    }
+
+    @Test
+    public void viewsSliceOfLargerBuffer() throws Exception {
+        byte[] payload = read("block169482.dat");
+        Transaction tx = PARAMS.getDefaultSerializer().makeBlock(payload).getTransactions().get(1);
+        byte[] txBytes = tx.bitcoinSerialize();
+        // Two copies of the transaction, after some padding.
+        ByteBuffer buffer = ByteBuffer.allocate(3 + 2 * txBytes.length);
+        buffer.position(3);
+        buffer.put(txBytes).put(txBytes);
+        buffer.position(3);
+        TransactionView first = new TransactionView(PARAMS, buffer);
+        assertEquals(3 + txBytes.length, buffer.position());
+        TransactionView second = new TransactionView(PARAMS, buffer);
+        assertFalse(buffer.hasRemaining());
+        assertEquals(tx.getHash(), first.getHash());
+        assertEquals(tx.getHash(), second.getHash());
+        assertTrue(first.asReadOnlyBuffer().isReadOnly());
+        assertTrue(first.getOutputScript(0).isReadOnly());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedTransaction() throws Exception {
+        byte[] payload = read("block169482.dat");
+        byte[] txBytes = PARAMS.getDefaultSerializer().makeBlock(payload).getTransactions().get(1).bitcoinSerialize();
+        new TransactionView(PARAMS, ByteBuffer.wrap(Arrays.copyOf(txBytes, txBytes.length - 1)));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedBlock() throws Exception {
+        byte[] payload = read("block169482.dat");
+        new BlockView(PARAMS, ByteBuffer.wrap(Arrays.copyOf(payload, payload.length - 10))).getTransactions();
+    }
+
+    @Test
+    public void truncatedTransactionCount() throws Exception {
+        byte[] payload = Arrays.copyOf(read("block169482.dat"), Block.HEADER_SIZE + 1);
+        // A var int that needs two more bytes.
+        payload[Block.HEADER_SIZE] = (byte) 0xfd;
+        BlockView view = new BlockView(PARAMS, ByteBuffer.wrap(payload));
+        try {
+            view.getTransactionCount();
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        assertTrue(view.toString(), view.toString().contains("malformed"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void negativeScriptLength() throws Exception {
+        // One input whose script length is a 0xff prefixed var int that reads as -2, followed by enough bytes for the
+        // offsets it leads to to stay inside the buffer.
+        ByteBuffer buffer = ByteBuffer.allocate(100);
+        buffer.put(new byte[] { 1, 0, 0, 0, 1 });
+        buffer.position(buffer.position() + TransactionOutPoint.MESSAGE_LENGTH);
+        buffer.put((byte) 0xff).put(new byte[] { (byte) 0xfe, -1, -1, -1, -1, -1, -1, -1 });
+        buffer.rewind();
+        new TransactionView(PARAMS, buffer);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ForkJoinScriptVerificationEngineTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+    private static final Set<VerifyFlag> FLAGS = EnumSet.of(VerifyFlag.P2SH);
+
+    private ECKey key;
+    private Script scriptPubKey;
+    private ForkJoinScriptVerificationEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        key = new ECKey();
+        scriptPubKey = ScriptBuilder.createOutputScript(key);
+        engine = new ForkJoinScriptVerificationEngine(4);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private Transaction createSpend(int numInputs) {
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey());
+        // ANYONECANPAY so that adding further inputs does not invalidate the signatures already made.
+        for (int i = 0; i < numInputs; i++)
+            tx.addSignedInput(new TransactionOutPoint(PARAMS, i, Sha256Hash.of(new byte[] { (byte) i })),
+                    scriptPubKey, key, Transaction.SigHash.ALL, true);
+        return tx;
+    }
+
+    private List<Script> connectedScripts(int numInputs) {
+        List<Script> scripts = new ArrayList<>(numInputs);
+        for (int i = 0; i < numInputs; i++)
+            scripts.add(scriptPubKey);
+        return scripts;
+    }
+
+    @Test
+    public void verifiesAllInputs() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        batch.add(createSpend(1), connectedScripts(1), FLAGS);
+        batch.add(createSpend(25), connectedScripts(25), FLAGS);
+        batch.verify();
+        assertEquals(26, engine.getInputsVerified());
+        assertEquals(0, engine.getQueueDepth());
+        assertTrue(engine.getInputsPerSecond() > 0);
+    }
+
+    @Test
+    public void badInputFailsBatchButNotEngine() throws Exception {
+        Transaction tx = createSpend(10);
+        List<Script> scripts = connectedScripts(10);
+        scripts.set(7, ScriptBuilder.createOutputScript(new ECKey()));
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        batch.add(tx, scripts, FLAGS);
+        try {
+            batch.verify();
+            fail();
+        } catch (ScriptException e) {
+            // expected
+        }
+        // The next block can still be verified on the same engine.
+        batch = engine.newBatch();
+        batch.add(createSpend(3), connectedScripts(3), FLAGS);
+        batch.verify();
+        assertEquals(0, engine.getQueueDepth());
+    }
+
+    @Test
+    public void cancelledBatch() throws Exception {
+        ScriptVerificationEngine.Batch batch = engine.newBatch();
+        batch.add(createSpend(50), connectedScripts(50), FLAGS);
+        batch.cancel();
+        // Nothing of the cancelled batch is left running.
+        assertEquals(0, engine.getQueueDepth());
+        engine.newBatch().verify();
+    }
+}
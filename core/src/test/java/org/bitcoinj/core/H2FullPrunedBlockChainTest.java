@@ -17,11 +17,24 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.DatabaseConnectionPool;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.bitcoinj.script.ScriptBuilder;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -52,4 +65,88 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void batchedOutputsAreVisibleBeforeCommit() throws Exception {
+        store = createStore(PARAMS, 10);
+        Address address = new ECKey().toAddress(PARAMS);
+        UTXO stored = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+        UTXO created = new UTXO(Sha256Hash.of(new byte[] { 2 }), 0, Coin.CENT, 2, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+        UTXO spentInBatch = new UTXO(Sha256Hash.of(new byte[] { 3 }), 0, Coin.CENT, 2, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+        store.addUnspentTransactionOutput(stored);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(stored);
+        store.addUnspentTransactionOutput(created);
+        store.addUnspentTransactionOutput(spentInBatch);
+        store.removeUnspentTransactionOutput(spentInBatch);
+        assertNull(store.getTransactionOutput(stored.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(stored.getHash(), 1));
+        assertEquals(created, store.getTransactionOutput(created.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(created.getHash(), 1));
+        assertEquals(Arrays.asList(null, created, null), store.getTransactionOutputs(Arrays.asList(
+                new TransactionOutPoint(PARAMS, 0, stored.getHash()),
+                new TransactionOutPoint(PARAMS, 0, created.getHash()),
+                new TransactionOutPoint(PARAMS, 0, spentInBatch.getHash()))));
+        try {
+            store.removeUnspentTransactionOutput(stored);
+            fail();
+        } catch (BlockStoreException e) {
+            // Already removed in this batch.
+        }
+        // Removed and added again within the same batch.
+        store.addUnspentTransactionOutput(stored);
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(stored, store.getTransactionOutput(stored.getHash(), 0));
+        assertEquals(created, store.getTransactionOutput(created.getHash(), 0));
+        assertNull(store.getTransactionOutput(spentInBatch.getHash(), 0));
+        assertEquals(2, store.getOpenTransactionOutputs(Arrays.asList(address)).size());
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(created);
+        store.abortDatabaseBatchWrite();
+        assertEquals(created, store.getTransactionOutput(created.getHash(), 0));
+        store.close();
+    }
+
+    @Test
+    public void concurrentReadsShareBoundedPool() throws Exception {
+        store = createStore(PARAMS, 10);
+        final H2FullPrunedBlockStore h2Store = (H2FullPrunedBlockStore) store;
+        final Address address = new ECKey().toAddress(PARAMS);
+        h2Store.addUnspentTransactionOutput(new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString()));
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            if (!Coin.COIN.equals(Coin.valueOf(h2Store.calculateBalanceForAddress(address).longValue())))
+                                failures.incrementAndGet();
+                            if (h2Store.getOpenTransactionOutputs(Arrays.asList(address)).size() != 1)
+                                failures.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(0, failures.get());
+        DatabaseConnectionPool pool = h2Store.getConnectionPool();
+        assertTrue(pool.getOpenConnections() <= H2FullPrunedBlockStore.DEFAULT_MAX_CONNECTIONS);
+        assertEquals(0, pool.getActiveConnections());
+        store.close();
+    }
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.LogFullPrunedBlockStore;
+import org.junit.After;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A LogFullPrunedBlockStore implementation of the FullPrunedBlockStoreTest
+ */
+public class LogFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    // Small segments, so that the tests also roll over to new segments and compact old ones.
+    private static final int SEGMENT_SIZE = 1024 * 1024;
+
+    private final List<File> directories = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        for (File directory : directories) {
+            for (File f : directory.listFiles())
+                f.delete();
+            directory.delete();
+        }
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        File directory = Files.createTempDir();
+        directories.add(directory);
+        return new LogFullPrunedBlockStore(params, directory, blockCount, SEGMENT_SIZE);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // Every store gets a directory of its own.
+    }
+}
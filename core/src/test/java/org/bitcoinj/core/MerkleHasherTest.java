@@ -0,0 +1,74 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.reverseBytes;
+import static org.junit.Assert.*;
+
+public class MerkleHasherTest {
+    private static List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            leaves.add(Sha256Hash.of(Utils.HEX.decode(String.format("%08x", i))));
+        return leaves;
+    }
+
+    // The straightforward way, one level after the other.
+    private static Sha256Hash referenceRoot(List<Sha256Hash> level) {
+        while (level.size() > 1) {
+            List<Sha256Hash> next = new ArrayList<>();
+            for (int left = 0; left < level.size(); left += 2) {
+                int right = Math.min(left + 1, level.size() - 1);
+                next.add(Sha256Hash.wrapReversed(Sha256Hash.hashTwice(
+                        reverseBytes(level.get(left).getBytes()), 0, 32,
+                        reverseBytes(level.get(right).getBytes()), 0, 32)));
+            }
+            level = next;
+        }
+        return level.get(0);
+    }
+
+    @Test
+    public void smallTrees() {
+        for (int count = 1; count <= 70; count++) {
+            List<Sha256Hash> leaves = leaves(count);
+            assertEquals("leaves: " + count, referenceRoot(leaves), MerkleHasher.root(leaves));
+        }
+    }
+
+    @Test
+    public void largeTreesHashedInParallel() {
+        // Around the threshold, with full and short last subtrees, including one of a single leaf.
+        int[] counts = { MerkleHasher.PARALLEL_THRESHOLD - 1, MerkleHasher.PARALLEL_THRESHOLD,
+                MerkleHasher.PARALLEL_THRESHOLD + 1, 5000, 3 * 4096 + 7 };
+        for (int count : counts) {
+            List<Sha256Hash> leaves = leaves(count);
+            assertEquals("leaves: " + count, referenceRoot(leaves), MerkleHasher.root(leaves));
+        }
+    }
+
+    @Test
+    public void combine() {
+        List<Sha256Hash> leaves = leaves(2);
+        assertEquals(referenceRoot(leaves), MerkleHasher.combine(leaves.get(0), leaves.get(1)));
+    }
+}
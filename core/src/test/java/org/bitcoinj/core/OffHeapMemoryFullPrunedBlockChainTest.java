@@ -0,0 +1,59 @@
+/*
+ * Copyright by the original author or authors.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * A MemoryStore implementation of the FullPrunedBlockStoreTest, with the unspent outputs kept off the heap
+ */
+public class OffHeapMemoryFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
+{
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException
+    {
+        return new MemoryFullPrunedBlockStore(params, blockCount, true);
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException
+    {
+        //No-op for memory store, because it's not persistent
+    }
+
+    @Test
+    public void outputsKeepTheirAddress() throws Exception {
+        MemoryFullPrunedBlockStore store = new MemoryFullPrunedBlockStore(PARAMS, 10, true);
+        Address address = new ECKey().toAddress(PARAMS);
+        String[] addresses = { null, "", address.toString() };
+        for (int i = 0; i < addresses.length; i++)
+            store.addUnspentTransactionOutput(new UTXO(Sha256Hash.ZERO_HASH, i, Coin.COIN, 1, false,
+                    ScriptBuilder.createOutputScript(address), addresses[i]));
+        for (int i = 0; i < addresses.length; i++)
+            assertEquals(addresses[i], store.getTransactionOutput(Sha256Hash.ZERO_HASH, i).getAddress());
+        assertEquals(addresses.length, store.getUnspentOutputCount());
+        assertTrue(store.getOffHeapBytesUsed() > 0);
+        assertTrue(store.getOffHeapBytesAllocated() > store.getOffHeapBytesUsed());
+        store.close();
+    }
+}
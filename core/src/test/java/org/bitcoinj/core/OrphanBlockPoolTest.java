@@ -0,0 +1,131 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OrphanBlockPoolTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS, 100, Coin.ZERO, false));
+        to = new ECKey().toAddress(PARAMS);
+    }
+
+    private List<Block> createChain(Block prev, int count) {
+        List<Block> blocks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            prev = prev.createNextBlock(to);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void findsChildrenByParent() throws Exception {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        Block parent = PARAMS.getGenesisBlock().createNextBlock(to);
+        Block child1 = parent.createNextBlock(to);
+        Block child2 = parent.createNextBlock(new ECKey().toAddress(PARAMS));
+        Block grandChild = child1.createNextBlock(to);
+        pool.add(new OrphanBlockPool.OrphanBlock(grandChild, null, null));
+        pool.add(new OrphanBlockPool.OrphanBlock(child1, null, null));
+        pool.add(new OrphanBlockPool.OrphanBlock(child2, null, null));
+        assertEquals(3, pool.size());
+
+        List<OrphanBlockPool.OrphanBlock> children = pool.getChildren(parent.getHash());
+        assertEquals(2, children.size());
+        assertEquals(child1, children.get(0).block);
+        assertEquals(child2, children.get(1).block);
+        assertEquals(3, pool.size());
+        pool.remove(children.get(0));
+        assertFalse(pool.contains(child1.getHash()));
+        assertTrue(pool.contains(grandChild.getHash()));
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.getChildren(parent.getHash()).size());
+        pool.remove(children.get(1));
+        assertTrue(pool.getChildren(parent.getHash()).isEmpty());
+    }
+
+    @Test
+    public void evictsOldestOverBudget() throws Exception {
+        OrphanBlockPool pool = new OrphanBlockPool();
+        List<Block> blocks = createChain(PARAMS.getGenesisBlock(), 4);
+        int blockSize = blocks.get(0).getOptimalEncodingMessageSize();
+        pool.setMaxBytes(blockSize * 2 + blockSize / 2);
+        for (Block block : blocks)
+            pool.add(new OrphanBlockPool.OrphanBlock(block, null, null));
+        assertEquals(2, pool.size());
+        assertEquals(2, pool.getEvictions());
+        assertTrue(pool.getBytes() <= pool.getMaxBytes());
+        assertFalse(pool.contains(blocks.get(0).getHash()));
+        assertFalse(pool.contains(blocks.get(1).getHash()));
+        assertTrue(pool.contains(blocks.get(3).getHash()));
+        // An evicted orphan can no longer be found through its parent.
+        assertTrue(pool.getChildren(blocks.get(0).getHash()).isEmpty());
+    }
+
+    @Test
+    public void chainConnectsOrphansInReverseOrder() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        List<Block> blocks = createChain(PARAMS.getGenesisBlock(), 6);
+        for (int i = blocks.size() - 1; i > 0; i--)
+            assertFalse(chain.add(blocks.get(i)));
+        assertEquals(5, chain.getOrphanBlockPool().size());
+        assertEquals(blocks.get(1), chain.getOrphanRoot(blocks.get(5).getHash()));
+        assertTrue(chain.add(blocks.get(0)));
+        assertEquals(6, chain.getBestChainHeight());
+        assertEquals(0, chain.getOrphanBlockPool().size());
+        assertEquals(0, chain.getOrphanBlockPool().getBytes());
+    }
+
+    @Test
+    public void failingOrphanKeepsSiblingsInPool() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        Block parent = PARAMS.getGenesisBlock().createNextBlock(to);
+        // The first child changes the difficulty where it may not, so it fails to connect.
+        Block badChild = parent.createNextBlock(to);
+        badChild.setDifficultyTarget(parent.getDifficultyTarget() - 1);
+        badChild.solve();
+        Block child = parent.createNextBlock(new ECKey().toAddress(PARAMS));
+        Block grandChild = child.createNextBlock(to);
+        assertFalse(chain.add(badChild));
+        assertFalse(chain.add(child));
+        assertFalse(chain.add(grandChild));
+        try {
+            chain.add(parent);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        // The other child and its own child are connected anyway, and the bad one is dropped.
+        assertEquals(3, chain.getBestChainHeight());
+        assertEquals(grandChild.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(0, chain.getOrphanBlockPool().size());
+    }
+}
@@ -346,6 +346,293 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setMaxBlockDownloadPeers(3);
+        peerGroup.getBlockDownloadScheduler().setWindow(2);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block);
+        for (int i = 1; i < 7; i++)
+            blocks.add(FakeTxBuilder.makeSolvedTestBlock(blocks.get(i - 1)));
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+
+        // The download peer is told about seven blocks and spreads them over the peers, two at a time. The last one
+        // is only asked from the download peer, once it has room for it.
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        for (Block block : blocks)
+            inv.addBlock(block);
+        inbound(p1, inv);
+        assertEquals(hashes(blocks, 0, 3), requestedBlocks(p1));
+        assertEquals(hashes(blocks, 1, 4), requestedBlocks(p2));
+        assertEquals(hashes(blocks, 2, 5), requestedBlocks(p3));
+
+        // Blocks that arrive early wait for the blocks before them.
+        inbound(p3, blocks.get(2));
+        pingAndWait(p3);
+        inbound(p2, blocks.get(1));
+        pingAndWait(p2);
+        assertEquals(0, blockChain.getBestChainHeight());
+        inbound(p1, blocks.get(0));
+        pingAndWait(p1);
+        assertEquals(3, blockChain.getBestChainHeight());
+        assertEquals(hashes(blocks, 6), requestedBlocks(p1));
+        inbound(p1, blocks.get(3));
+        pingAndWait(p1);
+        inbound(p3, blocks.get(5));
+        pingAndWait(p3);
+        assertEquals(4, blockChain.getBestChainHeight());
+
+        // The second peer doesn't send its block in time, so it is asked from the third.
+        Utils.rollMockClock(11);
+        peerGroup.getBlockDownloadScheduler().checkStalls();
+        assertEquals(hashes(blocks, 4), requestedBlocks(p3));
+        inbound(p3, blocks.get(4));
+        pingAndWait(p3);
+        inbound(p1, blocks.get(6));
+        pingAndWait(p1);
+        assertEquals(7, blockChain.getBestChainHeight());
+        // Sending it late does no harm.
+        inbound(p2, blocks.get(4));
+        pingAndWait(p2);
+        assertEquals(7, blockChain.getBestChainHeight());
+        assertEquals(0, peerGroup.getBlockDownloadScheduler().getPendingBlocks());
+
+        List<PeerDownloadStats> stats = peerGroup.getBlockDownloadStats();
+        assertEquals(3, stats.size());
+        assertEquals(3, stats.get(0).getBlocksReceived());
+        assertEquals(1, stats.get(1).getBlocksReceived());
+        assertEquals(1, stats.get(1).getStalls());
+        assertEquals(3, stats.get(2).getBlocksReceived());
+        assertEquals(0, stats.get(2).getBlocksInFlight());
+    }
+
+    @Test
+    public void parallelBlockDownloadSurvivesDownloadPeerDeath() throws Exception {
+        peerGroup.setMaxBlockDownloadPeers(3);
+        peerGroup.getBlockDownloadScheduler().setWindow(2);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block);
+        for (int i = 1; i < 7; i++)
+            blocks.add(FakeTxBuilder.makeSolvedTestBlock(blocks.get(i - 1)));
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        pingWithRoundTrip(p2, 10);
+        pingWithRoundTrip(p3, 20);
+
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        for (Block block : blocks)
+            inv.addBlock(block);
+        inbound(p1, inv);
+        assertEquals(hashes(blocks, 0, 3), requestedBlocks(p1));
+        assertEquals(hashes(blocks, 1, 4), requestedBlocks(p2));
+        assertEquals(hashes(blocks, 2, 5), requestedBlocks(p3));
+        inbound(p2, blocks.get(1));
+        pingAndWait(p2);
+        inbound(p3, blocks.get(2));
+        pingAndWait(p3);
+
+        // The download peer dies. Its blocks are asked from the others, and the new download peer takes over the
+        // blocks that already arrived, so they aren't downloaded again.
+        closePeer(peerOf(p1));
+        assertEquals(hashes(blocks, 0), requestedBlocks(p2));
+        assertEquals(hashes(blocks, 3), requestedBlocks(p3));
+        assertTrue(outbound(p2) instanceof GetBlocksMessage);
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        inbound(p2, inv);
+        pingAndWait(p2);
+        inbound(p2, blocks.get(0));
+        pingAndWait(p2);
+        assertEquals(3, blockChain.getBestChainHeight());
+        assertEquals(hashes(blocks, 6), requestedBlocks(p2));
+        inbound(p3, blocks.get(3));
+        pingAndWait(p3);
+        inbound(p2, blocks.get(4));
+        pingAndWait(p2);
+        inbound(p3, blocks.get(5));
+        pingAndWait(p3);
+        inbound(p2, blocks.get(6));
+        pingAndWait(p2);
+        assertEquals(7, blockChain.getBestChainHeight());
+        assertEquals(0, peerGroup.getBlockDownloadScheduler().getPendingBlocks());
+        assertNull(outbound(p2));
+        assertNull(outbound(p3));
+    }
+
+    @Test
+    public void peerScoring() throws Exception {
+        Utils.setMockClock();
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        InboundMessageQueuer p4 = connectPeer(4);
+        Block b1 = FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block;
+
+        // The download peer is much slower than the others.
+        pingWithRoundTrip(p1, 1000);
+        pingWithRoundTrip(p2, 10);
+        pingWithRoundTrip(p3, 20);
+        serveBlock(p1, b1, 1000);
+        serveBlock(p2, b1, 10);
+        serveBlock(p3, b1, 20);
+        assertTrue(peerOf(p2).getScore().getScore() > peerOf(p3).getScore().getScore());
+        assertTrue(peerOf(p3).getScore().getScore() > peerOf(p1).getScore().getScore());
+        // The fourth peer answers pings fastest but never sent a block, so it is neither ranked nor disconnected.
+        pingWithRoundTrip(p4, 1);
+        assertFalse(peerOf(p4).getScore().hasBlockSamples());
+
+        // It keeps downloading for a while, then the best peer takes over.
+        peerGroup.checkPeerScores();
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        Utils.rollMockClock(61);
+        peerGroup.checkPeerScores();
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertTrue(outbound(p2) instanceof GetBlocksMessage);
+
+        // Staying that slow, it is disconnected after a few checks.
+        final SettableFuture<Void> p1CloseFuture = SettableFuture.create();
+        peerOf(p1).addDisconnectedEventListener(new PeerDisconnectedEventListener() {
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                p1CloseFuture.set(null);
+            }
+        });
+        peerGroup.checkPeerScores();
+        assertFalse(p1CloseFuture.isDone());
+        peerGroup.checkPeerScores();
+        p1CloseFuture.get();
+        assertTrue(peerGroup.getConnectedPeers().contains(peerOf(p3)));
+        assertTrue(peerGroup.getConnectedPeers().contains(peerOf(p4)));
+    }
+
+    @Test
+    public void downloadPeerRotationKeepsPendingBlocks() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setMaxBlockDownloadPeers(3);
+        peerGroup.getBlockDownloadScheduler().setWindow(2);
+        peerGroup.getBlockDownloadScheduler().setStallTimeoutMillis(TimeUnit.MINUTES.toMillis(10));
+        remoteVersionMessage.bestHeight = 100;
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(FakeTxBuilder.createFakeBlock(blockStore, BLOCK_HEIGHT_GENESIS).block);
+        for (int i = 1; i < 9; i++)
+            blocks.add(FakeTxBuilder.makeSolvedTestBlock(blocks.get(i - 1)));
+
+        peerGroup.startBlockChainDownload(new AbstractPeerDataEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+        pingWithRoundTrip(p1, 200000);
+        pingWithRoundTrip(p2, 10);
+        pingWithRoundTrip(p3, 20);
+
+        InventoryMessage inv = new InventoryMessage(PARAMS);
+        for (Block block : blocks)
+            inv.addBlock(block);
+        inbound(p1, inv);
+        assertEquals(hashes(blocks, 0, 3), requestedBlocks(p1));
+        assertEquals(hashes(blocks, 1, 4), requestedBlocks(p2));
+        assertEquals(hashes(blocks, 2, 5), requestedBlocks(p3));
+        Utils.rollMockClockMillis(1000);
+        inbound(p1, blocks.get(0));
+        pingAndWait(p1);
+        assertEquals(hashes(blocks, 6), requestedBlocks(p1));
+        inbound(p2, blocks.get(1));
+        pingAndWait(p2);
+        assertEquals(hashes(blocks, 7), requestedBlocks(p2));
+        inbound(p3, blocks.get(2));
+        pingAndWait(p3);
+        assertEquals(3, blockChain.getBestChainHeight());
+
+        // The slow download peer is replaced mid-download. The new one takes over the blocks in flight, and only the
+        // last block it is told about is asked from it.
+        Utils.rollMockClock(61);
+        peerGroup.checkPeerScores();
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertTrue(outbound(p2) instanceof GetBlocksMessage);
+        inv = new InventoryMessage(PARAMS);
+        for (Block block : blocks.subList(3, blocks.size()))
+            inv.addBlock(block);
+        inbound(p2, inv);
+        pingAndWait(p2);
+        inbound(p1, blocks.get(3));
+        pingAndWait(p1);
+        inbound(p1, blocks.get(6));
+        pingAndWait(p1);
+        inbound(p2, blocks.get(4));
+        pingAndWait(p2);
+        assertEquals(5, blockChain.getBestChainHeight());
+        assertEquals(hashes(blocks, 8), requestedBlocks(p2));
+        inbound(p3, blocks.get(5));
+        pingAndWait(p3);
+        inbound(p2, blocks.get(7));
+        pingAndWait(p2);
+        inbound(p2, blocks.get(8));
+        pingAndWait(p2);
+        assertEquals(9, blockChain.getBestChainHeight());
+        assertEquals(0, peerGroup.getBlockDownloadScheduler().getPendingBlocks());
+        // No block was asked for twice.
+        assertNull(outbound(p1));
+        assertNull(outbound(p2));
+        assertNull(outbound(p3));
+    }
+
+    private void serveBlock(InboundMessageQueuer p, Block block, int millis) throws Exception {
+        ListenableFuture<Block> future = peerOf(p).getBlock(block.getHash());
+        assertTrue(waitForOutbound(p) instanceof GetDataMessage);
+        Utils.rollMockClockMillis(millis);
+        inbound(p, block);
+        assertEquals(block, future.get());
+    }
+
+    private void pingWithRoundTrip(InboundMessageQueuer p, int millis) throws Exception {
+        ListenableFuture<Long> future = peerOf(p).ping();
+        Ping ping = (Ping) waitForOutbound(p);
+        Utils.rollMockClockMillis(millis);
+        inbound(p, new Pong(ping.getNonce()));
+        assertEquals(millis, (long) future.get());
+    }
+
+    private static List<Sha256Hash> hashes(List<Block> blocks, int... indexes) {
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (int index : indexes)
+            hashes.add(blocks.get(index).getHash());
+        return hashes;
+    }
+
+    // Returns the blocks of the next getdata sent to the peer, skipping the ping that follows filtered block requests.
+    private List<Sha256Hash> requestedBlocks(InboundMessageQueuer p) throws InterruptedException {
+        GetDataMessage getdata = (GetDataMessage) waitForOutbound(p);
+        List<Sha256Hash> hashes = new ArrayList<>();
+        for (InventoryItem item : getdata.getItems())
+            hashes.add(item.hash);
+        if (getdata.getItems().get(0).type == InventoryItem.Type.FilteredBlock)
+            assertTrue(waitForOutbound(p) instanceof Ping);
+        return hashes;
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
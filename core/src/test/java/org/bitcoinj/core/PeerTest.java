@@ -427,6 +427,66 @@ public class PeerTest extends TestWithNetworkConnections {
         assertEquals(b, b3);
     }
 
+    @Test
+    public void scoreMeasuresGetData() throws Exception {
+        Utils.setMockClock();
+        connect();
+
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        assertEquals(-1, peer.getScore().getGetDataLatencyMillis());
+
+        // The block is sent 300 msec after it was asked for.
+        Future<Block> resultFuture = peer.getBlock(b2.getHash());
+        outbound(writeTarget);
+        Utils.rollMockClockMillis(300);
+        inbound(writeTarget, b2);
+        resultFuture.get();
+        // The other one isn't found.
+        resultFuture = peer.getBlock(b3.getHash());
+        GetDataMessage getdata = (GetDataMessage) outbound(writeTarget);
+        inbound(writeTarget, new NotFoundMessage(PARAMS, getdata.getItems()));
+        pingAndWait(writeTarget);
+        assertTrue(resultFuture.isCancelled());
+
+        PeerScore score = peer.getScore();
+        assertEquals(300, score.getGetDataLatencyMillis());
+        assertEquals(1, score.getBlocksReceived());
+        assertEquals(2, score.getItemsRequested());
+        assertEquals(1, score.getNotFound());
+        assertEquals(300, score.getMillisPerBlock());
+        assertEquals(0, score.getScore(), 0);  // Not pinged yet.
+    }
+
+    @Test
+    public void scoreMeasuresLatencyToFirstBlock() throws Exception {
+        Utils.setMockClock();
+        connect();
+
+        Block b1 = createFakeBlock(blockStore, Block.BLOCK_HEIGHT_GENESIS).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+
+        // The second block was queued behind the first, so its wait isn't latency.
+        peer.requestBlocks(Arrays.asList(b2.getHash(), b3.getHash()), false);
+        assertEquals(2, ((GetDataMessage) outbound(writeTarget)).getItems().size());
+        Utils.rollMockClockMillis(300);
+        inbound(writeTarget, b2);
+        pingAndWait(writeTarget);
+        Utils.rollMockClockMillis(100);
+        inbound(writeTarget, b3);
+        pingAndWait(writeTarget);
+
+        PeerScore score = peer.getScore();
+        assertTrue(score.hasBlockSamples());
+        assertEquals(300, score.getGetDataLatencyMillis());
+        assertEquals(2, score.getBlocksReceived());
+        assertEquals(200, score.getMillisPerBlock());
+    }
+
     @Test
     public void getLargeBlock() throws Exception {
         connect();
@@ -31,7 +31,9 @@ import org.junit.runners.Parameterized;
 import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -39,6 +41,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -56,10 +59,10 @@ public class NetworkAbstractionTests {
         this.clientType = clientType;
         if (clientType == 0) {
             channels = new NioClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
-            channels.startAsync();
+            channels.startAsync().awaitRunning();
         } else
             channels = null;
     }
@@ -659,4 +662,133 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    @Test
+    public void connectionsAreSpreadOverSelectorThreads() throws Exception {
+        final int threads = 3, connections = 6;
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public ProtobufConnection<TwoWayChannelMessage> getNewConnection(InetAddress inetAddress, int port) {
+                return new ProtobufConnection<>(new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), threads);
+        server.startAsync();
+        server.awaitRunning();
+
+        Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder().setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+        MessageWriteTarget[] clients = new MessageWriteTarget[connections];
+        for (int i = 0; i < connections; i++) {
+            final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+            final SettableFuture<Protos.TwoWayChannelMessage> clientMessageReceived = SettableFuture.create();
+            ProtobufConnection<TwoWayChannelMessage> clientHandler = new ProtobufConnection<>(
+                    new ProtobufConnection.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufConnection<TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                            clientMessageReceived.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufConnection<TwoWayChannelMessage> handler) {
+                            clientConnectionOpen.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufConnection<TwoWayChannelMessage> handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            clients[i] = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+            clientConnectionOpen.get();
+            clientHandler.write(msg);
+            assertEquals(msg, clientMessageReceived.get());
+        }
+
+        // Every thread got two of the connections, and read and wrote for them.
+        assertEquals(threads, server.getLoopStats().size());
+        for (SelectorLoopStats stats : server.getLoopStats()) {
+            assertTrue(stats.toString(), stats.getBytesRead() > 0);
+            assertTrue(stats.toString(), stats.getBytesWritten() > 0);
+            assertTrue(stats.toString(), stats.getSelectedKeys() > 0);
+        }
+
+        for (MessageWriteTarget client : clients)
+            client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void writeStallsAreCounted() throws Exception {
+        final SettableFuture<ConnectionHandler> serverWriteTarget = SettableFuture.create();
+        NioServer server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new StreamConnection() {
+                    @Override
+                    public void connectionClosed() {
+                    }
+
+                    @Override
+                    public void connectionOpened() {
+                    }
+
+                    @Override
+                    public int receiveBytes(ByteBuffer buff) {
+                        return 0;
+                    }
+
+                    @Override
+                    public void setWriteTarget(MessageWriteTarget writeTarget) {
+                        serverWriteTarget.set((ConnectionHandler) writeTarget);
+                    }
+
+                    @Override
+                    public int getMaxMessageSize() {
+                        return 1024;
+                    }
+                };
+            }
+        }, new InetSocketAddress("localhost", 4243), 1);
+        server.startAsync();
+        server.awaitRunning();
+
+        Socket socket = new Socket();
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress("localhost", 4243));
+        ConnectionHandler handler = serverWriteTarget.get();
+        // Far more than fits in the socket buffers, while the client doesn't read.
+        byte[] chunk = new byte[1024 * 1024];
+        int total = 16 * chunk.length;
+        for (int i = 0; i < total / chunk.length; i++)
+            handler.writeBytes(chunk);
+        assertTrue(handler.getQueuedBytes() > 0);
+
+        byte[] read = new byte[chunk.length];
+        int remaining = total;
+        while (remaining > 0)
+            remaining -= socket.getInputStream().read(read, 0, Math.min(read.length, remaining));
+        while (server.getLoopStats().get(0).getBytesWritten() < total)
+            Thread.sleep(10);
+        // The socket took the rest as the client read it, so not in one go.
+        assertEquals(0, handler.getQueuedBytes());
+        assertTrue(handler.getWriteStalls() > 0);
+        assertEquals(handler.getWriteStalls(), server.getLoopStats().get(0).getWriteStalls());
+        assertTrue(server.getLoopStats().get(0).getWriteStallNanos() > 0);
+
+        socket.close();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private SignatureCache previousDefault;
+
+    @Before
+    public void setUp() {
+        previousDefault = SignatureCache.getDefault();
+    }
+
+    @After
+    public void tearDown() {
+        SignatureCache.setDefault(previousDefault);
+    }
+
+    @Test
+    public void remembersValidSignatures() {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+        assertFalse(cache.contains(hash, key.getPubKey(), sigBytes));
+        assertTrue(cache.verify(hash, sig, sigBytes, key.getPubKey()));
+        assertTrue(cache.contains(hash, key.getPubKey(), sigBytes));
+        assertTrue(cache.verify(hash, sig, sigBytes, key.getPubKey()));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // The same signature for another hash or key is not known.
+        assertFalse(cache.contains(Sha256Hash.of(new byte[] { 2 }), key.getPubKey(), sigBytes));
+        assertFalse(cache.contains(hash, new ECKey().getPubKey(), sigBytes));
+    }
+
+    @Test
+    public void keySeparatesPubKeyFromSignature() {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        cache.add(hash, new byte[] { 2, 3 }, new byte[] { 4 });
+        assertTrue(cache.contains(hash, new byte[] { 2, 3 }, new byte[] { 4 }));
+        // Moving a byte across the boundary of public key and signature yields another entry.
+        assertFalse(cache.contains(hash, new byte[] { 2 }, new byte[] { 3, 4 }));
+        assertFalse(cache.contains(hash, new byte[] { 2, 3, 4 }, new byte[0]));
+    }
+
+    @Test
+    public void forgetsInvalidSignatures() {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        ECKey key = new ECKey();
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] sigBytes = sig.encodeToDER();
+        byte[] otherPubKey = new ECKey().getPubKey();
+        assertFalse(cache.verify(hash, sig, sigBytes, otherPubKey));
+        assertFalse(cache.verify(hash, sig, sigBytes, otherPubKey));
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void staysWithinCapacity() {
+        // The smallest cache has one bucket per stripe.
+        SignatureCache cache = new SignatureCache(1);
+        assertEquals(1024, cache.getCapacity());
+        byte[] pubKey = new ECKey().getPubKey();
+        byte[] sigBytes = new byte[] { 1 };
+        for (int i = 0; i < 10000; i++)
+            cache.add(Sha256Hash.of(Coin.valueOf(i).toString().getBytes()), pubKey, sigBytes);
+        int found = 0;
+        for (int i = 0; i < 10000; i++)
+            if (cache.contains(Sha256Hash.of(Coin.valueOf(i).toString().getBytes()), pubKey, sigBytes))
+                found++;
+        assertTrue(found <= cache.getCapacity());
+        assertTrue(cache.contains(Sha256Hash.of(Coin.valueOf(9999).toString().getBytes()), pubKey, sigBytes));
+    }
+
+    @Test
+    public void scriptUsesDefaultCache() throws Exception {
+        SignatureCache cache = new SignatureCache(SignatureCache.DEFAULT_MAX_BYTES);
+        SignatureCache.setDefault(cache);
+        ECKey key = new ECKey();
+        Script scriptPubKey = ScriptBuilder.createOutputScript(key);
+        Transaction tx = new Transaction(PARAMS);
+        tx.addOutput(Coin.COIN, new ECKey());
+        tx.addSignedInput(new TransactionOutPoint(PARAMS, 0, Sha256Hash.of(new byte[] { 1 })), scriptPubKey, key);
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        // Signing checks the new signature once already.
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+        tx.getInput(0).getScriptSig().correctlySpends(tx, 0, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        assertEquals(misses, cache.getMisses());
+        assertEquals(hits + 1, cache.getHits());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockArchiveTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private BlockArchive archive;
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        directory = Files.createTempDir();
+        archive = new BlockArchive(PARAMS, directory, 1000);
+        address = new ECKey().toAddress(PARAMS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        archive.close();
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+    }
+
+    private List<Block> blocks(int count) {
+        List<Block> blocks = new ArrayList<>();
+        Block prev = PARAMS.getGenesisBlock();
+        for (int i = 0; i < count; i++) {
+            prev = prev.createNextBlock(address);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    private void reopen() throws Exception {
+        archive.close();
+        archive = new BlockArchive(PARAMS, directory, 1000);
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        List<Block> blocks = blocks(3);
+        for (Block block : blocks)
+            assertTrue(archive.put(block));
+        assertFalse(archive.put(blocks.get(1)));
+        assertEquals(3, archive.size());
+        for (Block block : blocks) {
+            assertTrue(archive.contains(block.getHash()));
+            assertEquals(block, archive.get(block.getHash()));
+            assertArrayEquals(block.bitcoinSerialize(), archive.getBlockBytes(block.getHash()));
+        }
+        assertNull(archive.get(Sha256Hash.ZERO_HASH));
+        assertEquals(blocks.get(0).getHash(), archive.getNextBlockHash(PARAMS.getGenesisBlock().getHash()));
+        assertEquals(blocks.get(2).getHash(), archive.getNextBlockHash(blocks.get(1).getHash()));
+        assertNull(archive.getNextBlockHash(blocks.get(2).getHash()));
+
+        reopen();
+        assertEquals(3, archive.size());
+        assertEquals(blocks.get(2), archive.get(blocks.get(2).getHash()));
+        assertEquals(blocks.get(1).getHash(), archive.getNextBlockHash(blocks.get(0).getHash()));
+    }
+
+    @Test
+    public void rollsOverFiles() throws Exception {
+        List<Block> blocks = blocks(20);
+        for (Block block : blocks)
+            archive.put(block);
+        assertTrue(new File(directory, "blk00001.dat").exists());
+        // Each file starts with a block in the format of the reference client.
+        byte[] magic = new byte[4];
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, "blk00001.dat"), "r")) {
+            assertTrue(file.length() <= 1000);
+            file.readFully(magic);
+        }
+        assertEquals(PARAMS.getPacketMagic(), ((magic[0] & 0xFFL) << 24) | ((magic[1] & 0xFF) << 16)
+                | ((magic[2] & 0xFF) << 8) | (magic[3] & 0xFF));
+        reopen();
+        for (Block block : blocks)
+            assertEquals(block, archive.get(block.getHash()));
+    }
+
+    @Test
+    public void recoversUnindexedBlocksAndTornWrites() throws Exception {
+        // Keep all blocks in one file.
+        archive.close();
+        archive = new BlockArchive(PARAMS, directory);
+        List<Block> blocks = blocks(3);
+        for (Block block : blocks)
+            archive.put(block);
+        archive.close();
+        File blockFile = new File(directory, "blk00000.dat");
+        long length = blockFile.length();
+        // Lose the index records of the last two blocks, one of them only partly, and half of a block after them.
+        try (RandomAccessFile index = new RandomAccessFile(new File(directory, "index.dat"), "rw")) {
+            index.setLength(index.length() - 72 - 10);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(blockFile, "rw")) {
+            file.seek(length);
+            byte[] torn = Arrays.copyOf(blocks(1).get(0).bitcoinSerialize(), 50);
+            file.write(torn);
+        }
+        archive = new BlockArchive(PARAMS, directory);
+        assertEquals(3, archive.size());
+        assertEquals(length, blockFile.length());
+        for (Block block : blocks)
+            assertEquals(block, archive.get(block.getHash()));
+        assertEquals(blocks.get(2).getHash(), archive.getNextBlockHash(blocks.get(1).getHash()));
+    }
+
+    @Test
+    public void replayChain() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        chain.setBlockArchive(archive);
+        for (Block block : blocks(5))
+            assertTrue(chain.add(block));
+        assertEquals(5, archive.size());
+
+        BlockChain replayed = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        replayed.setBlockArchive(archive);
+        assertEquals(5, replayed.replayFromArchive());
+        assertEquals(chain.getChainHead(), replayed.getChainHead());
+        assertEquals(0, replayed.replayFromArchive());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DatabaseConnectionPoolTest {
+    private DatabaseConnectionPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        pool = new DatabaseConnectionPool(new DatabaseConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                return DriverManager.getConnection("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1");
+            }
+        }, 2, 100);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void boundedAndReused() throws Exception {
+        DatabaseConnectionPool.PooledConnection a = pool.acquire();
+        DatabaseConnectionPool.PooledConnection b = pool.acquire();
+        assertNotSame(a, b);
+        assertEquals(2, pool.getActiveConnections());
+        try {
+            pool.acquire();
+            fail();
+        } catch (SQLTimeoutException e) {
+            // Both connections are in use.
+        }
+        assertEquals(1, pool.getTimeoutCount());
+        assertEquals(1, pool.getWaitCount());
+
+        pool.release(b);
+        assertSame(b, pool.acquire());
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(3, pool.getAcquireCount());
+        pool.release(a);
+        pool.release(b);
+        assertEquals(0, pool.getActiveConnections());
+        assertEquals(2, pool.getIdleConnections());
+    }
+
+    @Test
+    public void waitsForRelease() throws Exception {
+        final DatabaseConnectionPool slowPool = new DatabaseConnectionPool(new DatabaseConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection createConnection() throws SQLException {
+                return DriverManager.getConnection("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1");
+            }
+        }, 1, 10000);
+        DatabaseConnectionPool.PooledConnection a = slowPool.acquire();
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Object> result = new AtomicReference<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    result.set(slowPool.acquire());
+                } catch (SQLException e) {
+                    result.set(e);
+                }
+            }
+        };
+        thread.start();
+        started.await();
+        while (slowPool.getWaitCount() == 0)
+            Thread.sleep(1);
+        slowPool.release(a);
+        thread.join();
+        assertSame(a, result.get());
+        slowPool.close();
+    }
+
+    @Test
+    public void openTransactionIsRolledBack() throws Exception {
+        DatabaseConnectionPool.PooledConnection a = pool.acquire();
+        a.getConnection().createStatement().execute("CREATE TABLE IF NOT EXISTS t (x INT)");
+        a.getConnection().setAutoCommit(false);
+        a.getConnection().createStatement().execute("INSERT INTO t VALUES (1)");
+        pool.release(a);
+        DatabaseConnectionPool.PooledConnection b = pool.acquire();
+        assertSame(a, b);
+        assertTrue(b.getConnection().getAutoCommit());
+        assertFalse(b.getConnection().createStatement().executeQuery("SELECT * FROM t").next());
+        b.getConnection().createStatement().execute("DROP TABLE t");
+        pool.release(b);
+    }
+
+    @Test
+    public void closedConnectionsAreDropped() throws Exception {
+        DatabaseConnectionPool.PooledConnection a = pool.acquire();
+        assertSame(a.getPreparedStatement("SELECT 1"), a.getPreparedStatement("SELECT 1"));
+        a.getConnection().close();
+        pool.release(a);
+        assertEquals(1, pool.getDiscardedCount());
+        assertEquals(0, pool.getOpenConnections());
+
+        DatabaseConnectionPool.PooledConnection b = pool.acquire();
+        assertNotSame(a, b);
+        pool.close();
+        assertTrue(b.getConnection().isClosed());
+        // Released after the pool was closed, so it is not taken back.
+        pool.release(b);
+        assertEquals(0, pool.getIdleConnections());
+        DatabaseConnectionPool.PooledConnection c = pool.acquire();
+        assertFalse(c.getConnection().isClosed());
+        pool.release(c);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogFullPrunedBlockStoreTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private File directory;
+    private LogFullPrunedBlockStore store;
+    private Address address;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = Files.createTempDir();
+        store = new LogFullPrunedBlockStore(PARAMS, directory, 10, 4096);
+        address = new ECKey().toAddress(PARAMS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+    }
+
+    private UTXO utxo(int i) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), i, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+    }
+
+    private StoredBlock nextBlock(StoredBlock prev) {
+        return prev.build(prev.getHeader().createNextBlock(address).cloneAsHeader());
+    }
+
+    private void reopen() throws Exception {
+        store.close();
+        store = new LogFullPrunedBlockStore(PARAMS, directory, 10, 4096);
+    }
+
+    @Test
+    public void onlyCommittedBatchesSurvive() throws Exception {
+        StoredBlock b1 = nextBlock(store.getChainHead());
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.addUnspentTransactionOutput(utxo(1));
+        store.setChainHead(b1);
+        store.commitDatabaseBatchWrite();
+
+        // A batch that is never committed, as if the process died.
+        StoredBlock b2 = nextBlock(b1);
+        store.beginDatabaseBatchWrite();
+        store.put(b2);
+        store.addUnspentTransactionOutput(utxo(2));
+        store.removeUnspentTransactionOutput(utxo(1));
+        store.setChainHead(b2);
+        assertNull(store.getTransactionOutput(utxo(1).getHash(), 1));
+        reopen();
+
+        assertEquals(b1, store.getChainHead());
+        assertNull(store.get(b2.getHeader().getHash()));
+        assertEquals(utxo(1), store.getTransactionOutput(utxo(1).getHash(), 1));
+        assertNull(store.getTransactionOutput(utxo(2).getHash(), 2));
+        assertEquals(1, store.getOpenTransactionOutputs(Collections.singletonList(address)).size());
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws Exception {
+        StoredBlock b1 = nextBlock(store.getChainHead());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.addUnspentTransactionOutput(utxo(1));
+        reopen();
+        store.close();
+
+        // Overwrite the end marker of the last segment with a record that was only partly written.
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        RandomAccessFile raf = new RandomAccessFile(files[files.length - 1], "rw");
+        int offset = 0, length;
+        while (true) {
+            raf.seek(offset);
+            if ((length = raf.readInt()) == 0)
+                break;
+            offset += length;
+        }
+        raf.seek(offset);
+        raf.writeInt(100);
+        raf.writeInt(12345);
+        raf.write(new byte[] { 1, 37, 2 });
+        raf.close();
+
+        store = new LogFullPrunedBlockStore(PARAMS, directory, 10, 4096);
+        assertEquals(b1, store.getChainHead());
+        assertEquals(utxo(1), store.getTransactionOutput(utxo(1).getHash(), 1));
+        // And the store can be written to again.
+        store.addUnspentTransactionOutput(utxo(2));
+        reopen();
+        assertEquals(utxo(2), store.getTransactionOutput(utxo(2).getHash(), 2));
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void damagedFullSegmentIsCorruption() throws Exception {
+        for (int i = 0; i < 100; i++)
+            store.addUnspentTransactionOutput(utxo(i));
+        store.close();
+        File[] files = directory.listFiles();
+        assertTrue(files.length > 2);
+        Arrays.sort(files);
+
+        // As if a page of a full segment never made it to disk. The segments after it must not be replayed.
+        RandomAccessFile raf = new RandomAccessFile(files[1], "rw");
+        raf.seek(0);
+        int length = raf.readInt();
+        raf.seek(length);
+        raf.write(new byte[1024]);
+        raf.close();
+
+        store = new LogFullPrunedBlockStore(PARAMS, directory, 10, 4096);
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        // Outputs that are created and spent again leave nothing but garbage behind.
+        for (int i = 0; i < 500; i++) {
+            store.addUnspentTransactionOutput(utxo(i));
+            if (i % 10 != 0)
+                store.removeUnspentTransactionOutput(utxo(i));
+        }
+        store.compact();
+        assertTrue(store.getSegmentCount() < 10);
+        reopen();
+        for (int i = 0; i < 500; i++) {
+            UTXO output = store.getTransactionOutput(utxo(i).getHash(), i);
+            if (i % 10 == 0)
+                assertEquals(utxo(i), output);
+            else
+                assertNull(output);
+        }
+        assertFalse(store.hasUnspentOutputs(utxo(1).getHash(), 2));
+        assertEquals(50, store.getOpenTransactionOutputs(Collections.singletonList(address)).size());
+    }
+}
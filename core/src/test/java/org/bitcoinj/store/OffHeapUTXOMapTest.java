@@ -0,0 +1,122 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapUTXOMapTest {
+    @Test
+    public void matchesHashMap() {
+        // Enough churn to resize the table and to compact the chunks several times.
+        OffHeapUTXOMap map = new OffHeapUTXOMap(16);
+        Map<ByteBuffer, byte[]> expected = new HashMap<>();
+        List<byte[]> keys = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 300000; i++) {
+            int op = random.nextInt(10);
+            if (op < 6 || keys.isEmpty()) {
+                byte[] key = new byte[OffHeapUTXOMap.KEY_LENGTH];
+                random.nextBytes(key);
+                byte[] value = new byte[20 + random.nextInt(100)];
+                random.nextBytes(value);
+                map.put(key, value);
+                expected.put(ByteBuffer.wrap(key), value);
+                keys.add(key);
+            } else {
+                byte[] key = keys.remove(random.nextInt(keys.size()));
+                if (op < 9) {
+                    assertTrue(map.remove(key));
+                    assertFalse(map.remove(key));
+                    expected.remove(ByteBuffer.wrap(key));
+                } else {
+                    byte[] value = new byte[random.nextInt(200)];
+                    map.put(key, value);
+                    expected.put(ByteBuffer.wrap(key), value);
+                    keys.add(key);
+                }
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<ByteBuffer, byte[]> entry : expected.entrySet())
+            assertArrayEquals(entry.getValue(), map.get(entry.getKey().array()));
+        assertEquals(expected.size(), map.keys().size());
+        for (byte[] key : map.keys())
+            assertTrue(expected.containsKey(ByteBuffer.wrap(key)));
+        assertNull(map.get(new byte[OffHeapUTXOMap.KEY_LENGTH]));
+        // Garbage never takes up much more than the live entries.
+        assertTrue(map.getOffHeapBytes() < 3 * map.getLiveBytes() + 32 * 1024 * 1024);
+    }
+
+    @Test
+    public void transactional() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Context.propagate(new Context(params));
+        OffHeapTransactionalUTXOMap map = new OffHeapTransactionalUTXOMap();
+        Address address = new ECKey().toAddress(params);
+        UTXO a = new UTXO(Sha256Hash.of(new byte[] { 1 }), 0, Coin.COIN, 1, false,
+                ScriptBuilder.createOutputScript(address), address.toString());
+        UTXO b = new UTXO(Sha256Hash.of(new byte[] { 2 }), 1, Coin.CENT, 2, true,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(params)));
+        StoredTransactionOutPoint keyA = new StoredTransactionOutPoint(a), keyB = new StoredTransactionOutPoint(b);
+        map.put(keyA, a);
+
+        map.beginDatabaseBatchWrite();
+        map.remove(keyA);
+        map.put(keyB, b);
+        assertNull(map.get(keyA));
+        map.abortDatabaseBatchWrite();
+        assertEquals(a, map.get(keyA));
+        assertNull(map.get(keyB));
+
+        map.beginDatabaseBatchWrite();
+        map.remove(keyA);
+        map.put(keyB, b);
+        map.commitDatabaseBatchWrite();
+        assertNull(map.get(keyA));
+        UTXO stored = map.get(keyB);
+        assertEquals(b, stored);
+        assertEquals(b.getValue(), stored.getValue());
+        assertEquals(b.getScript(), stored.getScript());
+        assertTrue(stored.isCoinbase());
+        assertEquals(1, map.values().size());
+
+        map.put(keyA, a);
+        assertEquals(address.toString(), map.get(keyA).getAddress());
+    }
+}
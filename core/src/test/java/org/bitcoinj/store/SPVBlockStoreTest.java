@@ -24,8 +24,15 @@ import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +65,143 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void putAll() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 5; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        store.putAll(blocks, prev);
+        store.close();
+
+        store = new SPVBlockStore(params, f);
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(prev, store.getChainHead());
+    }
+
+    private static List<StoredBlock> extend(SPVBlockStore store, int count) throws Exception {
+        Address to = new ECKey().toAddress(store.getParams());
+        List<StoredBlock> blocks = new ArrayList<>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < count; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    // Only the last capacity blocks are still in the ring. Older ones may still be cached until the store is reopened.
+    private static void assertStored(SPVBlockStore store, List<StoredBlock> blocks, int capacity, boolean reopened)
+            throws Exception {
+        for (int i = 0; i < blocks.size(); i++) {
+            StoredBlock block = blocks.get(i);
+            if (i < blocks.size() - capacity) {
+                if (reopened)
+                    assertNull(store.get(block.getHeader().getHash()));
+            }
+            else
+                assertEquals(block, store.get(block.getHeader().getHash()));
+        }
+    }
+
+    @Test
+    public void indexed() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        File indexFile = SPVBlockStore.getIndexFile(f);
+        indexFile.deleteOnExit();
+        int capacity = 10;
+        SPVBlockStore store = new SPVBlockStore(params, f, capacity, true);
+        List<StoredBlock> blocks = extend(store, 35);
+        assertStored(store, blocks, capacity, false);
+        store.close();
+
+        // Reopened from a cleanly closed index.
+        store = new SPVBlockStore(params, f, capacity, true);
+        assertStored(store, blocks, capacity, true);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        store.close();
+
+        // Blocks added without the index are found once it is rebuilt.
+        store = new SPVBlockStore(params, f, capacity);
+        blocks.addAll(extend(store, 4));
+        store.close();
+        store = new SPVBlockStore(params, f, capacity, true);
+        assertStored(store, blocks, capacity, true);
+        store.close();
+
+        // An index left dirty by a crash is rebuilt.
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.seek(8);
+        raf.writeInt(0);
+        raf.seek(64);
+        raf.write(new byte[1024]);
+        raf.close();
+        store = new SPVBlockStore(params, f, capacity, true);
+        assertStored(store, blocks, capacity, true);
+        blocks.addAll(extend(store, 7));
+        assertStored(store, blocks, capacity, false);
+        store.close();
+    }
+
+    @Test
+    public void concurrentReaders() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        final List<StoredBlock> written = new CopyOnWriteArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] readers = new Thread[4];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        int lastHeight = 0;
+                        while (written.size() < 50) {
+                            // The chain head only moves forward, and every block written so far can be read.
+                            int height = store.getChainHead().getHeight();
+                            assertTrue(height >= lastHeight);
+                            lastHeight = height;
+                            for (StoredBlock block : written)
+                                assertEquals(block, store.get(block.getHeader().getHash()));
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            readers[i].start();
+        }
+        Address to = new ECKey().toAddress(params);
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 50; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            store.setChainHead(prev);
+            written.add(prev);
+        }
+        for (Thread reader : readers)
+            reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        store.close();
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UTXOAddressIndexTest {
+    private static final NetworkParameters PARAMS = UnitTestParams.get();
+
+    private static StoredTransactionOutPoint outPoint(int tx, int index) {
+        return new StoredTransactionOutPoint(Sha256Hash.of(new byte[] { (byte) tx }), index);
+    }
+
+    @Test
+    public void addAndRemove() {
+        UTXOAddressIndex index = new UTXOAddressIndex();
+        ECKey key = new ECKey();
+        Address address = key.toAddress(PARAMS);
+        Script toAddress = ScriptBuilder.createOutputScript(address);
+        Script toPubKey = ScriptBuilder.createOutputScript(key);
+        Address other = new ECKey().toAddress(PARAMS);
+
+        index.add(outPoint(1, 0), toAddress);
+        index.add(outPoint(1, 0), toAddress);
+        assertEquals(Arrays.asList(outPoint(1, 0)), index.get(address));
+        // Pay to pubkey outputs are found by the address of the key.
+        index.add(outPoint(2, 3), toPubKey);
+        index.add(outPoint(3, 0), ScriptBuilder.createOutputScript(other));
+        assertEquals(3, index.size());
+        assertEquals(new HashSet<>(Arrays.asList(outPoint(1, 0), outPoint(2, 3))), new HashSet<>(index.get(address)));
+        assertEquals(Arrays.asList(outPoint(3, 0)), index.get(other));
+
+        index.remove(outPoint(1, 0), toAddress);
+        index.remove(outPoint(1, 0), toAddress);
+        assertEquals(Arrays.asList(outPoint(2, 3)), index.get(address));
+        index.remove(outPoint(2, 3), toPubKey);
+        assertTrue(index.get(address).isEmpty());
+        assertEquals(1, index.size());
+        index.clear();
+        assertTrue(index.get(other).isEmpty());
+    }
+
+    @Test
+    public void addressHashes() {
+        ECKey key = new ECKey();
+        assertArrayEquals(key.getPubKeyHash(), UTXOAddressIndex.getAddressHash(ScriptBuilder.createOutputScript(key)));
+        Script multisig = ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key, new ECKey()));
+        assertArrayEquals(ScriptBuilder.createP2SHOutputScript(multisig).getPubKeyHash(),
+                UTXOAddressIndex.getAddressHash(ScriptBuilder.createP2SHOutputScript(multisig)));
+        // Bare multisig and data outputs do not pay to an address.
+        assertNull(UTXOAddressIndex.getAddressHash(multisig));
+        assertNull(UTXOAddressIndex.getAddressHash(ScriptBuilder.createOpReturnScript(new byte[20])));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.UTXO;
+import org.bitcoinj.script.Script;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBackUTXOCacheTest {
+    private WriteBackUTXOCache cache;
+    private List<UTXO> puts, deletes;
+    private WriteBackUTXOCache.Writer writer;
+
+    @Before
+    public void setUp() {
+        cache = new WriteBackUTXOCache(1024 * 1024, 4096);
+        puts = new ArrayList<>();
+        deletes = new ArrayList<>();
+        writer = new WriteBackUTXOCache.Writer() {
+            @Override
+            public void put(ByteBuffer key, UTXO utxo, byte[] value) {
+                puts.add(utxo);
+            }
+
+            @Override
+            public void delete(ByteBuffer key, UTXO utxo) {
+                deletes.add(utxo);
+            }
+        };
+    }
+
+    private static UTXO utxo(int i) {
+        return new UTXO(Sha256Hash.of(new byte[] { (byte) i, (byte) (i >> 8) }), 0, Coin.COIN, 1, false,
+                new Script(new byte[0]));
+    }
+
+    private static ByteBuffer key(UTXO utxo) {
+        return ByteBuffer.wrap(utxo.getHash().getBytes());
+    }
+
+    private void flush() {
+        cache.writeDirty(writer);
+        cache.markFlushed(0);
+    }
+
+    @Test
+    public void createdAndSpentOutputsCancel() {
+        UTXO a = utxo(1), b = utxo(2);
+        cache.add(key(a), a, new byte[10], true);
+        cache.add(key(b), b, new byte[10], false);
+        cache.spend(key(a), a);
+        cache.spend(key(b), b);
+        assertNull(cache.get(key(a)));
+        assertTrue(cache.get(key(b)).spent);
+        assertEquals(1, cache.getCancelled());
+
+        // Only the output that may have been on disk before has to be deleted.
+        flush();
+        assertEquals(0, puts.size());
+        assertEquals(1, deletes.size());
+        assertEquals(b, deletes.get(0));
+        assertTrue(cache.isClean());
+        assertNull(cache.get(key(b)));
+    }
+
+    @Test
+    public void flushedOutputsAreNoLongerFresh() {
+        UTXO a = utxo(1);
+        cache.add(key(a), a, new byte[10], true);
+        flush();
+        assertEquals(1, puts.size());
+        assertFalse(cache.get(key(a)).dirty);
+
+        // Now on disk, so spending it must reach the disk too.
+        cache.spend(key(a), a);
+        flush();
+        assertEquals(1, deletes.size());
+        assertEquals(0, cache.getCancelled());
+    }
+
+    @Test
+    public void abortRestoresEntries() {
+        UTXO a = utxo(1), b = utxo(2), c = utxo(3);
+        cache.add(key(a), a, new byte[10], true);
+        cache.putClean(key(b), b, 10);
+        long bytes = cache.getSizeBytes(), dirtyBytes = cache.getDirtyBytes();
+
+        cache.beginBatch();
+        cache.spend(key(a), a);
+        cache.spend(key(b), b);
+        cache.add(key(c), c, new byte[10], true);
+        cache.abortBatch();
+
+        assertEquals(a, cache.get(key(a)).utxo);
+        assertFalse(cache.get(key(b)).spent);
+        assertNull(cache.get(key(c)));
+        assertEquals(bytes, cache.getSizeBytes());
+        assertEquals(dirtyBytes, cache.getDirtyBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotFlushDuringBatch() {
+        cache.beginBatch();
+        flush();
+    }
+
+    @Test
+    public void boundedAndCounted() {
+        WriteBackUTXOCache small = new WriteBackUTXOCache(16 * 1024, 1024);
+        for (int i = 0; i < 1000; i++) {
+            UTXO utxo = utxo(i);
+            small.putClean(key(utxo), utxo, 40);
+        }
+        assertTrue(small.getSizeBytes() <= small.getMaxBytes());
+        assertTrue(small.size() < 1000);
+        assertTrue(small.isClean());
+
+        // Dirty entries are never evicted, however many there are.
+        for (int i = 0; i < 1000; i++) {
+            UTXO utxo = utxo(i);
+            small.add(key(utxo), utxo, new byte[40], true);
+        }
+        assertEquals(1000, small.size());
+        assertTrue(small.needsFlush());
+
+        small.get(key(utxo(1)));
+        small.get(ByteBuffer.wrap(new byte[32]));
+        assertEquals(1, small.getHits());
+        assertEquals(1, small.getMisses());
+        assertEquals(0.5, small.getHitRate(), 0);
+    }
+}
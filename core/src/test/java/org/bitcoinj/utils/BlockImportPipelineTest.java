@@ -0,0 +1,76 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.FullPrunedBlockChain;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.store.MemoryFullPrunedBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockImportPipelineTest {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    private List<File> blockFiles;
+    private int blocksInFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(PARAMS));
+        File blockFile = new File(getClass().getResource("/org/bitcoinj/core/first-100k-blocks.dat").getFile());
+        blockFiles = Arrays.asList(blockFile);
+        blocksInFile = 0;
+        for (Block block : new BlockFileLoader(PARAMS, blockFiles))
+            blocksInFile++;
+    }
+
+    @Test
+    public void importsIntoFullPrunedChain() throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(PARAMS, new MemoryFullPrunedBlockStore(PARAMS, 10));
+        BlockImportPipeline pipeline = new BlockImportPipeline(PARAMS, blockFiles);
+        pipeline.setVerifyThreads(3);
+        pipeline.setQueueCapacity(2);
+        assertEquals(blocksInFile, pipeline.importBlocks(chain));
+        assertEquals(blocksInFile, pipeline.getBlocksRead());
+        assertEquals(blocksInFile, pipeline.getBlocksVerified());
+        assertEquals(blocksInFile, pipeline.getBlocksConnected());
+        // The file starts with the genesis block.
+        assertEquals(blocksInFile - 1, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void importsFilesInOrder() throws Exception {
+        BlockChain chain = new BlockChain(PARAMS, new MemoryBlockStore(PARAMS));
+        // The second copy only contains blocks the chain already has, which it ignores.
+        BlockImportPipeline pipeline = new BlockImportPipeline(PARAMS, Arrays.asList(blockFiles.get(0),
+                blockFiles.get(0)));
+        pipeline.setReadThreads(2);
+        assertEquals(2 * blocksInFile, pipeline.importBlocks(chain));
+        assertEquals(blocksInFile - 1, chain.getBestChainHeight());
+    }
+}
@@ -39,6 +39,7 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Shows connected peers in a table view, so you can watch as they come and go.
@@ -168,6 +169,7 @@ public class PeerMonitor {
         public static final int CHAIN_HEIGHT = 3;
         public static final int PING_TIME = 4;
         public static final int LAST_PING_TIME = 5;
+        public static final int SCORE = 6;
 
         public List<Peer> connectedPeers = Lists.newArrayList();
         public List<Peer> pendingPeers = Lists.newArrayList();
@@ -192,13 +194,14 @@ public class PeerMonitor {
                 case CHAIN_HEIGHT: return "Chain height";
                 case PING_TIME: return "Average ping";
                 case LAST_PING_TIME: return "Last ping";
+                case SCORE: return "Score";
                 default: throw new RuntimeException();
             }
         }
 
         @Override
         public int getColumnCount() {
-            return 6;
+            return 7;
         }
 
         @Override
@@ -210,6 +213,8 @@ public class PeerMonitor {
                 case PING_TIME:
                 case LAST_PING_TIME:
                     return Long.class;
+                case SCORE:
+                    return Double.class;
                 default:
                     return String.class;
             }
@@ -229,6 +234,8 @@ public class PeerMonitor {
                     case PING_TIME:
                     case LAST_PING_TIME:
                         return 0L;
+                    case SCORE:
+                        return 0.0;
                     default:
                         return "(pending)";
                 }
@@ -246,6 +253,8 @@ public class PeerMonitor {
                 case PING_TIME:
                 case LAST_PING_TIME:
                     return col == PING_TIME ? peer.getPingTime() : peer.getLastPingTime();
+                case SCORE:
+                    return peer.getScore().getScore();
 
                 default: throw new RuntimeException();
             }
@@ -310,6 +319,8 @@ public class PeerMonitor {
                 // We don't know the answer yet
                 str = "";
             }
+            if (column == PeerTableModel.SCORE)
+                str = String.format(Locale.US, "%.2f", (Double) contents);
             setText(str);
             return this;
         }
@@ -0,0 +1,103 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.MerkleHasher;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many merkle roots a second {@link MerkleHasher} computes for trees of growing size, next to the
+ * straightforward level-by-level way that keeps every node as a separate array. Trees from
+ * {@link MerkleHasher#PARALLEL_THRESHOLD} leaves up are hashed in parallel by MerkleHasher.
+ */
+public class MerkleHasherBenchmark {
+    public static void main(String[] args) throws Exception {
+        OptionParser parser = new OptionParser();
+        parser.accepts("help");
+        OptionSpec<Integer> secondsFlag = parser.accepts("seconds").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(3);
+        OptionSpec<Integer> maxLeavesFlag = parser.accepts("max-leaves").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(65536);
+        OptionSet options = parser.parse(args);
+
+        if (options.has("help")) {
+            System.out.println("Usage: MerkleHasherBenchmark [--seconds=N] [--max-leaves=N]");
+            return;
+        }
+
+        int seconds = secondsFlag.value(options);
+        Random random = new Random();
+        for (int count = 16; count <= maxLeavesFlag.value(options); count *= 4) {
+            List<Sha256Hash> leaves = new ArrayList<>(count);
+            byte[] bytes = new byte[Sha256Hash.LENGTH];
+            for (int i = 0; i < count; i++) {
+                random.nextBytes(bytes);
+                leaves.add(Sha256Hash.wrap(bytes.clone()));
+            }
+            if (!MerkleHasher.root(leaves).equals(referenceRoot(leaves)))
+                throw new IllegalStateException("Roots differ for " + count + " leaves");
+            // Warm up, then measure.
+            run(leaves, false, 1);
+            run(leaves, true, 1);
+            long reference = run(leaves, false, seconds);
+            long hasher = run(leaves, true, seconds);
+            System.out.printf("%7d leaves: %,10d roots/s level by level, %,10d roots/s MerkleHasher (%.1fx)%n",
+                    count, reference / seconds, hasher / seconds, (double) hasher / Math.max(1, reference));
+        }
+    }
+
+    private static long run(List<Sha256Hash> leaves, boolean useHasher, int seconds) {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long roots = 0;
+        while (System.nanoTime() < end) {
+            if (useHasher)
+                MerkleHasher.root(leaves);
+            else
+                referenceRoot(leaves);
+            roots++;
+        }
+        return roots;
+    }
+
+    // How Block computed its merkle root before MerkleHasher: every node is kept, and each pair is reversed into new
+    // arrays before it is hashed.
+    private static Sha256Hash referenceRoot(List<Sha256Hash> leaves) {
+        List<byte[]> tree = new ArrayList<>();
+        for (Sha256Hash leaf : leaves)
+            tree.add(leaf.getBytes());
+        int levelOffset = 0;
+        for (int levelSize = leaves.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            for (int left = 0; left < levelSize; left += 2) {
+                int right = Math.min(left + 1, levelSize - 1);
+                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
+                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
+                tree.add(Utils.reverseBytes(Sha256Hash.hashTwice(leftBytes, 0, 32, rightBytes, 0, 32)));
+            }
+            levelOffset += levelSize;
+        }
+        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.utils.BriefLogFormatter;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many reads per second an {@link SPVBlockStore} serves to a growing number of threads, while one more
+ * thread keeps adding blocks. Each read asks for the chain head and for a random stored block, most of which are no
+ * longer cached, so the ring buffer is read as well.
+ */
+public class SPVBlockStoreBenchmark {
+    public static void main(String[] args) throws Exception {
+        BriefLogFormatter.initWithSilentBitcoinJ();
+
+        OptionParser parser = new OptionParser();
+        parser.accepts("help");
+        OptionSpec<Integer> threadsFlag = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(Runtime.getRuntime().availableProcessors());
+        OptionSpec<Integer> secondsFlag = parser.accepts("seconds").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(5);
+        OptionSpec<Integer> capacityFlag = parser.accepts("capacity").withRequiredArg().ofType(Integer.class)
+                .defaultsTo(SPVBlockStore.DEFAULT_CAPACITY);
+        parser.accepts("indexed");
+        OptionSet options = parser.parse(args);
+
+        if (options.has("help")) {
+            System.out.println("Usage: SPVBlockStoreBenchmark [--threads=N] [--seconds=N] [--capacity=N] [--indexed]");
+            return;
+        }
+
+        NetworkParameters params = UnitTestParams.get();
+        int capacity = capacityFlag.value(options);
+        File file = File.createTempFile("spvblockstore-benchmark", null);
+        file.delete();
+        file.deleteOnExit();
+        SPVBlockStore.getIndexFile(file).deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, file, capacity, options.has("indexed"));
+        try {
+            System.out.println("Filling store with " + capacity + " blocks");
+            Address to = new ECKey().toAddress(params);
+            List<Sha256Hash> hashes = new ArrayList<>();
+            StoredBlock head = store.getChainHead();
+            for (int i = 1; i < capacity; i++) {
+                Block next = head.getHeader().createNextBlock(to, Block.BLOCK_VERSION_GENESIS,
+                        head.getHeader().getTimeSeconds() + 1, head.getHeight() + 1);
+                head = head.build(next.cloneAsHeader());
+                store.put(head);
+                hashes.add(head.getHeader().getHash());
+            }
+            store.setChainHead(head);
+
+            int seconds = secondsFlag.value(options);
+            for (int threads = 1; threads <= threadsFlag.value(options); threads *= 2) {
+                // Warm up, then measure.
+                run(store, hashes, threads, 1);
+                long reads = run(store, hashes, threads, seconds);
+                System.out.printf("%3d threads: %,12d reads/s%n", threads, reads / seconds);
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    private static long run(final SPVBlockStore store, final List<Sha256Hash> hashes, int threads, int seconds)
+            throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads + 1);
+        for (int i = 0; i < threads; i++) {
+            new Thread("reader " + i) {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    long count = 0;
+                    try {
+                        while (running.get()) {
+                            store.getChainHead();
+                            store.get(hashes.get(random.nextInt(hashes.size())));
+                            count++;
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        reads.addAndGet(count);
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        // A writer that re-stores the chain head, as a block chain does when it advances.
+        new Thread("writer") {
+            @Override
+            public void run() {
+                try {
+                    while (running.get()) {
+                        StoredBlock head = store.getChainHead();
+                        store.put(head);
+                        store.setChainHead(head);
+                        Thread.sleep(10);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }.start();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        running.set(false);
+        done.await();
+        return reads.get();
+    }
+}